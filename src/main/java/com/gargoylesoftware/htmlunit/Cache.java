@@ -17,15 +17,24 @@ package com.gargoylesoftware.htmlunit;
 import static com.gargoylesoftware.htmlunit.util.StringUtils.parseHttpDate;
 
 import java.io.Serializable;
-import java.util.Collections;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.lang.math.NumberUtils;
 import org.apache.commons.lang.time.DateUtils;
 import org.w3c.dom.css.CSSStyleSheet;
 
+import com.gargoylesoftware.htmlunit.util.ResponseHeaders;
+
 /**
  * <p>Simple cache implementation which caches compiled JavaScript files and parsed CSS snippets. Caching
  * compiled JavaScript files avoids unnecessary web requests and additional compilation overhead, while
@@ -39,47 +48,392 @@ public class Cache implements Serializable {
 
     private static final long serialVersionUID = -3864114727885057419L;
 
+    /** The maximum number of permanent redirects remembered. */
+    private static final int MAX_PERMANENT_REDIRECTS = 200;
+
+    /** The maximum number of scripts compiled from inline code remembered. */
+    private static final int MAX_INLINE_SCRIPTS = 500;
+
+    /** The maximum total length of the code of the scripts compiled from inline code remembered. */
+    private static final long MAX_INLINE_SCRIPTS_LENGTH = 1000000;
+
+    /** The number of segments over which the entries are spread, a power of two. */
+    private static final int SEGMENTS = 16;
+
     /** The maximum size of the cache. */
     private int maxSize_ = 40;
 
+    /** The maximum estimated weight of the cache, in bytes. */
+    private long maxWeight_ = Long.MAX_VALUE;
+
+    /** Whether the cache is shared between several web clients. */
+    private boolean shared_;
+
+    /**
+     * The segments which hold the cached entries, each one guarding its entries with its own lock so that
+     * threads looking up different entries don't wait for each other. Note that when keying on URLs, we
+     * key on the string version of the URLs, rather than on the URLs themselves. This is done for
+     * performance, because a) the {@link java.net.URL#hashCode()} method is synchronized, and b) the
+     * {@link java.net.URL#hashCode()} method triggers DNS lookups of the URL hostnames' IPs. As of this
+     * writing, the HtmlUnit unit tests run ~20% faster whey keying on strings rather than on
+     * {@link java.net.URL} instances.
+     */
+    private final Segment[] segments_;
+
+    /** The number of cached entries, updated while holding the lock of the segment which changed. */
+    private final AtomicInteger size_ = new AtomicInteger();
+
+    /** The estimated weight of the cached entries, in bytes, updated as {@link #size_}. */
+    private final AtomicLong weight_ = new AtomicLong();
+
+    /** The clock stamping the entries when they are used, to find the least recently used one. */
+    private final AtomicLong clock_ = new AtomicLong();
+
+    /** The lock held while evicting entries, so that concurrent stores don't evict more than needed. */
+    private final ReentrantLock evictionLock_ = new ReentrantLock();
+
+    /**
+     * The targets of the <tt>301 Moved Permanently</tt> responses received, keyed by the string version
+     * of the redirected URLs. All accesses have to be synchronized on the map.
+     */
+    private final PermanentRedirects permanentRedirects_ = new PermanentRedirects();
+
+    /**
+     * The scripts compiled from code without URL of its own, like inline scripts and event handlers, keyed
+     * by content. They are kept apart from the other entries so that the many small scripts of a page don't
+     * evict the external scripts and the stylesheets. All accesses have to be synchronized on the map.
+     */
+    private final InlineScripts inlineScripts_ = new InlineScripts();
+
+    /**
+     * Creates a new cache.
+     */
+    public Cache() {
+        segments_ = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments_[i] = new Segment();
+        }
+    }
+
+    /**
+     * A part of the cached entries, ordered from the least to the most recently used one. All accesses,
+     * including lookups which update the order, have to be synchronized on the segment.
+     */
+    private static final class Segment extends LinkedHashMap<String, Entry> {
+
+        private static final long serialVersionUID = -2406226185452961563L;
+
+        Segment() {
+            super(16, 0.75f, true);
+        }
+
+        Cache.Entry getEldest() {
+            if (isEmpty()) {
+                return null;
+            }
+            return values().iterator().next();
+        }
+    }
+
     /**
-     * The map which holds the cached responses. Note that when keying on URLs, we key on the string version
-     * of the URLs, rather than on the URLs themselves. This is done for performance, because a) the
-     * {@link java.net.URL#hashCode()} method is synchronized, and b) the {@link java.net.URL#hashCode()}
-     * method triggers DNS lookups of the URL hostnames' IPs. As of this writing, the HtmlUnit unit tests
-     * run ~20% faster whey keying on strings rather than on {@link java.net.URL} instances.
+     * A remembered permanent redirect.
      */
-    private final Map<String, Entry> entries_ = Collections.synchronizedMap(new HashMap<String, Entry>(maxSize_));
+    private static final class PermanentRedirect implements Serializable {
+
+        private static final long serialVersionUID = -6371924305512748630L;
+        private final URL target_;
+        private final long freshUntil_;
+
+        PermanentRedirect(final URL target, final long freshUntil) {
+            target_ = target;
+            freshUntil_ = freshUntil;
+        }
+    }
+
+    /**
+     * An access ordered map of the permanent redirects, bounded by number of entries.
+     */
+    private static final class PermanentRedirects extends LinkedHashMap<String, PermanentRedirect> {
+
+        private static final long serialVersionUID = 3512286742932117263L;
+
+        PermanentRedirects() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, PermanentRedirect> eldest) {
+            return size() > MAX_PERMANENT_REDIRECTS;
+        }
+    }
+
+    /**
+     * An access ordered map of the scripts compiled from inline code, bounded by number of entries and by
+     * total length of the code.
+     */
+    private static final class InlineScripts extends LinkedHashMap<String, InlineScriptEntry> {
+
+        private static final long serialVersionUID = -1876365407287478219L;
+
+        /** The total length of the code of the remembered scripts. */
+        private long length_;
+
+        InlineScripts() {
+            super(16, 0.75f, true);
+        }
+
+        void add(final String key, final Object script, final int length) {
+            final InlineScriptEntry previous = put(key, new InlineScriptEntry(script, length));
+            if (previous != null) {
+                length_ -= previous.length_;
+            }
+            length_ += length;
+            final Iterator<InlineScriptEntry> iterator = values().iterator();
+            while ((size() > MAX_INLINE_SCRIPTS || length_ > MAX_INLINE_SCRIPTS_LENGTH) && size() > 1) {
+                length_ -= iterator.next().length_;
+                iterator.remove();
+            }
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            length_ = 0;
+        }
+    }
+
+    /**
+     * A script compiled from inline code, with the length of that code.
+     */
+    private static final class InlineScriptEntry implements Serializable {
+
+        private static final long serialVersionUID = 6271096312539040118L;
+        private final Object script_;
+        private final int length_;
+
+        InlineScriptEntry(final Object script, final int length) {
+            script_ = script;
+            length_ = length;
+        }
+    }
 
     /**
      * A cache entry.
      */
-    private class Entry implements Comparable<Entry>, Serializable {
+    private static class Entry implements Serializable {
 
         private static final long serialVersionUID = 588400350259242484L;
         private final String key_;
-        private final Object value_;
-        private long lastAccess_;
+        private final WebResponse response_;
+        private final long weight_;
+        private volatile Object value_;
+        private volatile long freshUntil_;
+        private volatile long lastUsed_;
 
-        Entry(final String key, final Object value) {
+        Entry(final String key, final WebResponse response, final Object value, final long freshUntil,
+                final long weight) {
             key_ = key;
+            response_ = response;
             value_ = value;
-            lastAccess_ = System.currentTimeMillis();
+            freshUntil_ = freshUntil;
+            weight_ = weight;
         }
 
         /**
-         * {@inheritDoc}
+         * Indicates if this entry can be used without asking the server.
+         * @return <code>true</code> if the entry doesn't need to be revalidated
          */
-        public int compareTo(final Entry other) {
-            return NumberUtils.compare(lastAccess_, other.lastAccess_);
+        public boolean isFresh() {
+            return System.currentTimeMillis() < freshUntil_;
         }
+    }
 
-        /**
-         * Updates the last access date.
-         */
-        public void touch() {
-            lastAccess_ = System.currentTimeMillis();
+    private Segment getSegment(final String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return segments_[hash & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Puts the specified entry in its segment and evicts the least recently used entries exceeding the
+     * limits. The caller has to release the removed entries.
+     * @param entry the entry to store
+     * @param removed the list to which the entries removed from the cache are added
+     * @return <code>true</code> if the entry has been stored
+     */
+    private boolean putInMap(final Entry entry, final List<Entry> removed) {
+        final boolean stored = entry.weight_ <= maxWeight_;
+        final Segment segment = getSegment(entry.key_);
+        synchronized (segment) {
+            final Entry previous;
+            if (stored) {
+                entry.lastUsed_ = clock_.incrementAndGet();
+                previous = segment.put(entry.key_, entry);
+                size_.incrementAndGet();
+                weight_.addAndGet(entry.weight_);
+            }
+            else {
+                // too heavy to be cached, it would just flush the cache
+                previous = segment.remove(entry.key_);
+            }
+            if (previous != null) {
+                size_.decrementAndGet();
+                weight_.addAndGet(-previous.weight_);
+                removed.add(previous);
+            }
+        }
+        evict(removed);
+        return stored;
+    }
+
+    private boolean isOverflowing() {
+        return size_.get() > maxSize_ || weight_.get() > maxWeight_;
+    }
+
+    /**
+     * Evicts the least recently used entries exceeding the limits. The victim is the least recently used
+     * of the eldest entries of the segments, so that eviction costs a look at each segment, whatever the
+     * number of entries. The caller has to release the removed entries.
+     * @param removed the list to which the evicted entries are added
+     */
+    private void evict(final List<Entry> removed) {
+        if (!isOverflowing()) {
+            return;
+        }
+        evictionLock_.lock();
+        try {
+            while (isOverflowing()) {
+                Segment victimSegment = null;
+                long oldest = Long.MAX_VALUE;
+                for (final Segment segment : segments_) {
+                    synchronized (segment) {
+                        final Entry eldest = segment.getEldest();
+                        if (eldest != null && eldest.lastUsed_ < oldest) {
+                            oldest = eldest.lastUsed_;
+                            victimSegment = segment;
+                        }
+                    }
+                }
+                if (victimSegment == null) {
+                    return;
+                }
+                synchronized (victimSegment) {
+                    // the eldest entry may have been used meanwhile, the new eldest one is then evicted
+                    final Entry eldest = victimSegment.getEldest();
+                    if (eldest != null) {
+                        victimSegment.remove(eldest.key_);
+                        size_.decrementAndGet();
+                        weight_.addAndGet(-eldest.weight_);
+                        removed.add(eldest);
+                    }
+                }
+            }
+        }
+        finally {
+            evictionLock_.unlock();
+        }
+    }
+
+    /**
+     * Indicates that the cache doesn't use the responses of the specified entries anymore, which releases
+     * their resources, like the temporary file holding a large body, unless a page still uses them.
+     * This involves file system accesses, the caller must therefore not hold the lock of a segment.
+     * @param removed the entries removed from the cache
+     */
+    private static void release(final List<Entry> removed) {
+        for (final Entry entry : removed) {
+            if (entry.response_ instanceof WebResponseImpl) {
+                ((WebResponseImpl) entry.response_).release();
+            }
+        }
+    }
+
+    /**
+     * Returns the entry of a response, looking it up in the secondary storage if needed.
+     * @param key the URL of the response
+     * @return the entry, <tt>null</tt> if there is none
+     */
+    private Entry getEntry(final String key) {
+        Entry entry = getEntryInMemory(key);
+        if (entry == null) {
+            loadMissingEntry(key);
+            entry = getEntryInMemory(key);
+        }
+        return entry;
+    }
+
+    private Entry getEntryInMemory(final String key) {
+        final Segment segment = getSegment(key);
+        synchronized (segment) {
+            final Entry entry = segment.get(key);
+            if (entry != null) {
+                entry.lastUsed_ = clock_.incrementAndGet();
+            }
+            return entry;
+        }
+    }
+
+    private void store(final Entry entry) {
+        // the cache is a user of the response as long as the entry is in the map
+        if (entry.response_ instanceof WebResponseImpl && !((WebResponseImpl) entry.response_).retain()) {
+            return;
+        }
+        final List<Entry> removed = new ArrayList<Entry>();
+        final boolean stored = putInMap(entry, removed);
+        if (!stored) {
+            removed.add(entry);
+        }
+        release(removed);
+    }
+
+    /**
+     * Puts an entry in the in-memory cache without checking if it is cacheable and without
+     * calling {@link #entryStored(String, WebResponse, Object, long)}. This allows subclasses to
+     * promote entries from a secondary storage.
+     *
+     * @param key the key of the entry: the URL of the response or the CSS snippet
+     * @param response the cached response, <tt>null</tt> for CSS snippets
+     * @param value the cached object
+     * @param freshUntil the time until which the entry can be used without revalidation
+     */
+    protected void putEntry(final String key, final WebResponse response, final Object value,
+            final long freshUntil) {
+        final long weight;
+        if (response != null) {
+            weight = estimateWeight(response, value);
+        }
+        else {
+            // a char takes 2 bytes, the parsed stylesheet is estimated to be as big as the snippet
+            weight = 4L * key.length();
         }
+        store(new Entry(key, response, value, freshUntil, weight));
+    }
+
+    /**
+     * Called when the response for the specified URL isn't cached in memory, before reporting a cache miss.
+     * Subclasses may override it to look the URL up in a secondary storage and promote what they find using
+     * {@link #putEntry(String, WebResponse, Object, long)}. It isn't called for CSS snippets, which are
+     * only cached in memory. The default implementation does nothing.
+     *
+     * @param key the key of the entry: the URL of the response
+     */
+    protected void loadMissingEntry(final String key) {
+        // nothing to do, the cache lives only in memory
+    }
+
+    /**
+     * Called when an entry has been cached in memory or updated. Subclasses may override it to write the
+     * entry to a secondary storage. The default implementation does nothing.
+     *
+     * @param key the key of the entry: the URL of the response or the CSS snippet
+     * @param response the cached response, <tt>null</tt> for CSS snippets
+     * @param value the cached object (may be the response itself)
+     * @param freshUntil the time until which the entry can be used without revalidation
+     */
+    protected void entryStored(final String key, final WebResponse response, final Object value,
+            final long freshUntil) {
+        // nothing to do, the cache lives only in memory
     }
 
     /**
@@ -92,12 +446,82 @@ public class Cache implements Serializable {
      * simply a WebResponse)
      */
     public void cacheIfPossible(final WebRequestSettings request, final WebResponse response, final Object toCache) {
-        if (isCacheable(request, response)) {
-            final String url = response.getRequestSettings().getUrl().toString();
-            final Entry entry = new Entry(url, toCache);
-            entries_.put(entry.key_, entry);
-            deleteOverflow();
+        if (isShared() && toCache instanceof CSSStyleSheet) {
+            // scripts can modify the parsed stylesheets, only the response can be shared
+            cacheIfPossible(request, response, response);
+            return;
         }
+        final WebResponse originalResponse = unwrap(response);
+        final String url = response.getRequestSettings().getUrl().toString();
+        final long existingFreshUntil;
+        final Segment segment = getSegment(url);
+        synchronized (segment) {
+            final Entry existing = segment.get(url);
+            if (existing == null || existing.response_ != originalResponse) {
+                existingFreshUntil = -1;
+            }
+            else {
+                // same response, for instance a script compiled from a response cached previously
+                if (toCache != response) {
+                    existing.value_ = toCache;
+                }
+                existingFreshUntil = existing.freshUntil_;
+            }
+        }
+        if (existingFreshUntil != -1) {
+            if (toCache != response) {
+                entryStored(url, originalResponse, toCache, existingFreshUntil);
+            }
+            return;
+        }
+        if (isCacheable(request, originalResponse)) {
+            final Object value;
+            if (toCache == response) {
+                value = originalResponse;
+            }
+            else {
+                value = toCache;
+            }
+            final long freshUntil = getFreshUntil(originalResponse, System.currentTimeMillis());
+            putEntry(url, originalResponse, value, freshUntil);
+            entryStored(url, originalResponse, value, freshUntil);
+        }
+    }
+
+    /**
+     * Estimates the number of bytes used by a cached response and the object cached with it.
+     * This estimation is used to bound the cache by weight (see {@link #setMaxWeight(long)}).
+     * The in-memory size of the response body is used as estimation of the size of a compiled
+     * script or of a parsed stylesheet.
+     *
+     * @param response the cached response
+     * @param value the cached object (may be the response itself)
+     * @return the estimated weight in bytes
+     */
+    protected long estimateWeight(final WebResponse response, final Object value) {
+        final long contentWeight;
+        if (response instanceof WebResponseImpl) {
+            contentWeight = ((WebResponseImpl) response).getResponseData().getContentLengthInMemory();
+        }
+        else {
+            contentWeight = NumberUtils.toLong(response.getResponseHeaderValue("Content-Length"));
+        }
+        if (value == response) {
+            return contentWeight;
+        }
+        return 2 * contentWeight;
+    }
+
+    /**
+     * Returns the response held by the specified response if it comes from the cache.
+     * @param response the response
+     * @return the response as stored in the cache
+     */
+    private static WebResponse unwrap(final WebResponse response) {
+        if (response instanceof WebResponseFromCache) {
+            return ((WebResponseFromCache) response).getCachedResponse();
+        }
+        return response;
     }
 
     /**
@@ -112,25 +536,27 @@ public class Cache implements Serializable {
      * @param styleSheet the parsed version of <tt>css</tt>
      */
     public void cache(final String css, final CSSStyleSheet styleSheet) {
-        final Entry entry = new Entry(css, styleSheet);
-        entries_.put(entry.key_, entry);
-        deleteOverflow();
+        if (isShared()) {
+            // scripts can modify the parsed stylesheets, they can't be shared
+            return;
+        }
+        putEntry(css, null, styleSheet, Long.MAX_VALUE);
+        entryStored(css, null, styleSheet, Long.MAX_VALUE);
     }
 
     /**
-     * Truncates the cache to the maximal number of entries.
+     * Truncates the cache to the maximal number of entries and to the maximal weight.
      */
     protected void deleteOverflow() {
-        synchronized (entries_) {
-            while (entries_.size() > maxSize_) {
-                final Entry oldestEntry = Collections.min(entries_.values());
-                entries_.remove(oldestEntry.key_);
-            }
-        }
+        final List<Entry> removed = new ArrayList<Entry>();
+        evict(removed);
+        release(removed);
     }
 
     /**
-     * Determines if the specified response can be cached.
+     * Determines if the specified response can be cached. Responses which are considered as
+     * dynamic are cached only if they provide a validator (<tt>ETag</tt> or <tt>Last-Modified</tt>
+     * header) allowing to revalidate them with a conditional request.
      *
      * @param request the performed request
      * @param response the received response
@@ -138,7 +564,195 @@ public class Cache implements Serializable {
      */
     protected boolean isCacheable(final WebRequestSettings request, final  WebResponse response) {
         return HttpMethod.GET == response.getRequestSettings().getHttpMethod()
-            && !isDynamicContent(response);
+            && response.getStatusCode() == HttpStatus.SC_OK
+            && !hasCacheControlDirective(response, "no-store")
+            && (!isShared() || isShareable(request, response))
+            && (!isDynamicContent(response) || hasValidator(response));
+    }
+
+    /**
+     * Determines if the specified response can be stored in a shared cache: responses marked as
+     * <tt>private</tt> can't, nor can responses to authenticated requests unless they are explicitly
+     * marked as <tt>public</tt> (or have a <tt>s-maxage</tt>). Responses to requests carrying cookies
+     * are likely to be personalized and are stored only when marked as <tt>public</tt>.
+     *
+     * @param request the performed request
+     * @param response the received response
+     * @return <code>true</code> if the response can be reused by other web clients
+     */
+    protected boolean isShareable(final WebRequestSettings request, final WebResponse response) {
+        if (hasCacheControlDirective(response, "private")) {
+            return false;
+        }
+        final boolean isPublic = hasCacheControlDirective(response, "public");
+        final WebRequestSettings performedRequest = response.getRequestSettings();
+        final WebResponseData data = getResponseData(response);
+        final boolean authenticated = getRequestHeader(performedRequest, "Authorization") != null
+            || (data != null && data.isRequestAuthenticated());
+        if (authenticated && !isPublic && !hasCacheControlDirective(response, "s-maxage")) {
+            return false;
+        }
+        final boolean withCookies = getRequestHeader(performedRequest, "Cookie") != null
+            || (data != null && data.isRequestWithCookies());
+        return !withCookies || isPublic;
+    }
+
+    /**
+     * Returns the data of the specified response if it is available.
+     * @param response the response
+     * @return the data of the response, <tt>null</tt> if the response isn't a {@link WebResponseImpl}
+     */
+    private static WebResponseData getResponseData(final WebResponse response) {
+        if (response instanceof WebResponseImpl) {
+            return ((WebResponseImpl) response).getResponseData();
+        }
+        return null;
+    }
+
+    /**
+     * Indicates if the specified response contains a header that can be used to revalidate it.
+     * @param response the response to examine
+     * @return <code>true</code> if the response has an <tt>ETag</tt> or a <tt>Last-Modified</tt> header
+     */
+    protected boolean hasValidator(final WebResponse response) {
+        return response.getResponseHeaderValue("ETag") != null
+            || response.getResponseHeaderValue("Last-Modified") != null;
+    }
+
+    /**
+     * <p>Computes the time until which the specified response can be used without revalidation.</p>
+     *
+     * <p>A <tt>no-cache</tt> directive forces revalidation, a <tt>max-age</tt> directive (or
+     * <tt>s-maxage</tt> for a shared cache) defines the freshness lifetime from now on. Otherwise,
+     * content which isn't considered as dynamic (see {@link #isDynamicContent(WebResponse)}) is
+     * never revalidated.</p>
+     *
+     * @param response the response to examine
+     * @param now the current time
+     * @return the time until which the response is fresh, <tt>0</tt> if it should always be revalidated
+     */
+    protected long getFreshUntil(final WebResponse response, final long now) {
+        if (hasCacheControlDirective(response, "no-cache")) {
+            return 0;
+        }
+        final String maxAge = getMaxAge(response);
+        if (maxAge != null) {
+            return getMaxAgeEnd(maxAge, now);
+        }
+        if (!isDynamicContent(response)) {
+            return Long.MAX_VALUE;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the end of the freshness lifetime defined by a <tt>max-age</tt> value, saturated to
+     * {@link Long#MAX_VALUE} for values too large to be represented.
+     * @param maxAge the number of seconds
+     * @param now the current time
+     * @return the end of the freshness lifetime
+     */
+    private static long getMaxAgeEnd(final String maxAge, final long now) {
+        final long seconds;
+        if (maxAge.matches("\\d+")) {
+            // more digits than a long can hold means "forever" as well
+            seconds = NumberUtils.toLong(maxAge, Long.MAX_VALUE);
+        }
+        else {
+            seconds = NumberUtils.toLong(maxAge);
+        }
+        if (seconds > (Long.MAX_VALUE - now) / DateUtils.MILLIS_PER_SECOND) {
+            return Long.MAX_VALUE;
+        }
+        return now + seconds * DateUtils.MILLIS_PER_SECOND;
+    }
+
+    /**
+     * Indicates if the specified <tt>Cache-Control</tt> header value contains the specified directive.
+     * @param cacheControl the header value, may be <tt>null</tt>
+     * @param directive the lower case directive name
+     * @return <code>true</code> if the directive is present
+     */
+    private static boolean hasDirective(final String cacheControl, final String directive) {
+        return ResponseHeaders.parseCacheControl(cacheControl).containsKey(directive);
+    }
+
+    /**
+     * Returns the value of the specified directive of a <tt>Cache-Control</tt> header value.
+     * @param cacheControl the header value, may be <tt>null</tt>
+     * @param directive the lower case directive name
+     * @return the directive value, or <tt>null</tt> if not present or without value
+     */
+    private static String getDirectiveValue(final String cacheControl, final String directive) {
+        return ResponseHeaders.parseCacheControl(cacheControl).get(directive);
+    }
+
+    private static boolean hasCacheControlDirective(final WebResponse response, final String directive) {
+        final ResponseHeaders headers = getParsedHeaders(response);
+        if (headers != null) {
+            return headers.hasCacheControlDirective(directive);
+        }
+        return hasDirective(response.getResponseHeaderValue("Cache-Control"), directive);
+    }
+
+    private static String getCacheControlDirectiveValue(final WebResponse response, final String directive) {
+        final ResponseHeaders headers = getParsedHeaders(response);
+        if (headers != null) {
+            return headers.getCacheControlDirectiveValue(directive);
+        }
+        return getDirectiveValue(response.getResponseHeaderValue("Cache-Control"), directive);
+    }
+
+    /**
+     * Returns the freshness lifetime in seconds given by the <tt>Cache-Control</tt> header of the response.
+     */
+    private String getMaxAge(final WebResponse response) {
+        String maxAge = null;
+        if (isShared()) {
+            maxAge = getCacheControlDirectiveValue(response, "s-maxage");
+        }
+        if (maxAge == null) {
+            maxAge = getCacheControlDirectiveValue(response, "max-age");
+        }
+        return maxAge;
+    }
+
+    /**
+     * Returns the headers of the specified response with the values already parsed from them, when available.
+     * @param response the response
+     * @return the parsed headers, or <tt>null</tt> for responses which don't keep them
+     */
+    private static ResponseHeaders getParsedHeaders(final WebResponse response) {
+        final WebResponse originalResponse = unwrap(response);
+        if (originalResponse instanceof WebResponseImpl) {
+            return ((WebResponseImpl) originalResponse).getResponseData().getHeaders();
+        }
+        return null;
+    }
+
+    private static String getRequestHeader(final WebRequestSettings request, final String name) {
+        for (final Map.Entry<String, String> header : request.getAdditionalHeaders().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Indicates if the specified request asks to bypass fresh cached responses, either with
+     * <tt>Cache-Control: no-cache</tt>, <tt>Cache-Control: max-age=0</tt> or <tt>Pragma: no-cache</tt>.
+     * Such requests are sent to the server as conditional requests when possible.
+     *
+     * @param request the request
+     * @return <code>true</code> if the cached response has to be revalidated
+     */
+    protected boolean isRevalidationRequested(final WebRequestSettings request) {
+        final Map<String, String> cacheControl =
+            ResponseHeaders.parseCacheControl(getRequestHeader(request, "Cache-Control"));
+        return cacheControl.containsKey("no-cache")
+            || "0".equals(cacheControl.get("max-age"))
+            || hasDirective(getRequestHeader(request, "Pragma"), "no-cache");
     }
 
     /**
@@ -179,6 +793,10 @@ public class Cache implements Serializable {
      * @return the specified date header of the specified response
      */
     protected Date parseDateHeader(final WebResponse response, final String headerName) {
+        final ResponseHeaders headers = getParsedHeaders(response);
+        if (headers != null) {
+            return headers.getDate(headerName);
+        }
         final String value = response.getResponseHeaderValue(headerName);
         final Date date = parseHttpDate(value);
         return date;
@@ -207,17 +825,109 @@ public class Cache implements Serializable {
      * @return the cached object corresponding to the specified request if any
      */
     public Object getCachedObject(final WebRequestSettings request) {
-        if (HttpMethod.GET != request.getHttpMethod()) {
+        final Entry cachedEntry = getFreshEntry(request);
+        if (cachedEntry == null) {
             return null;
         }
-        final Entry cachedEntry = entries_.get(request.getUrl().toString());
+        return getValueToUse(cachedEntry);
+    }
+
+    /**
+     * Returns the cached response corresponding to the specified request if it can be used without
+     * revalidation. If there is no such response, this method returns <tt>null</tt>.
+     *
+     * @param request the request whose corresponding response is sought
+     * @return the cached response corresponding to the specified request if any
+     */
+    public WebResponse getCachedResponse(final WebRequestSettings request) {
+        final Entry cachedEntry = getFreshEntry(request);
         if (cachedEntry == null) {
             return null;
         }
-        synchronized (entries_) {
-            cachedEntry.touch();
+        return cachedEntry.response_;
+    }
+
+    private Entry getFreshEntry(final WebRequestSettings request) {
+        if (HttpMethod.GET != request.getHttpMethod()) {
+            return null;
+        }
+        final Entry cachedEntry = getEntry(request.getUrl().toString());
+        if (cachedEntry == null || !cachedEntry.isFresh() || isRevalidationRequested(request)) {
+            return null;
+        }
+        return cachedEntry;
+    }
+
+    /**
+     * Returns the cached response corresponding to the specified request which has to be revalidated
+     * with the server before being used. If there is no such response, this method returns <tt>null</tt>.
+     *
+     * @param request the request whose corresponding response is sought
+     * @return the cached response needing revalidation, if any
+     */
+    public WebResponse getStaleResponse(final WebRequestSettings request) {
+        if (HttpMethod.GET != request.getHttpMethod()) {
+            return null;
+        }
+        final Entry cachedEntry = getEntry(request.getUrl().toString());
+        if (cachedEntry == null || cachedEntry.response_ == null
+                || (cachedEntry.isFresh() && !isRevalidationRequested(request))) {
+            return null;
+        }
+        return cachedEntry.response_;
+    }
+
+    /**
+     * Notifies the cache that the server confirmed with a <tt>304 Not Modified</tt> response that the
+     * cached response for the specified request is still valid.
+     *
+     * @param request the conditional request
+     * @param notModifiedResponse the <tt>304</tt> response received from the server
+     * @return the cached response, or <tt>null</tt> if it isn't in the cache anymore
+     */
+    public WebResponse revalidated(final WebRequestSettings request, final WebResponse notModifiedResponse) {
+        final String url = request.getUrl().toString();
+        final Entry cachedEntry = getEntry(url);
+        if (cachedEntry == null || cachedEntry.response_ == null) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        final WebResponse freshnessSource;
+        if (notModifiedResponse.getResponseHeaderValue("Cache-Control") != null
+                || notModifiedResponse.getResponseHeaderValue("Expires") != null) {
+            freshnessSource = notModifiedResponse;
+        }
+        else {
+            freshnessSource = cachedEntry.response_;
+        }
+        final long freshUntil = getFreshUntil(freshnessSource, now);
+        final Object value;
+        synchronized (getSegment(url)) {
+            cachedEntry.freshUntil_ = freshUntil;
+            value = cachedEntry.value_;
+        }
+        entryStored(url, cachedEntry.response_, value, freshUntil);
+        return cachedEntry.response_;
+    }
+
+    /**
+     * Returns the object cached together with the specified response, if this response has been
+     * delivered from the cache (possibly after a successful revalidation with the server). This allows
+     * to reuse for instance a compiled script when the server indicates that it hasn't been modified.
+     *
+     * @param response the response, as returned by {@link WebClient#loadWebResponse(WebRequestSettings)}
+     * @return the cached object associated with the response, if any
+     */
+    public Object getCachedObject(final WebResponse response) {
+        if (!(response instanceof WebResponseFromCache)) {
+            return null;
+        }
+        final WebResponse cachedResponse = ((WebResponseFromCache) response).getCachedResponse();
+        final Entry cachedEntry = getEntry(response.getRequestSettings().getUrl().toString());
+        if (cachedEntry == null || cachedEntry.response_ != cachedResponse) {
+            return null;
         }
-        return cachedEntry.value_;
+        return getValueToUse(cachedEntry);
     }
 
     /**
@@ -228,14 +938,153 @@ public class Cache implements Serializable {
      * @return the cached stylesheet corresponding to the specified CSS snippet
      */
     public CSSStyleSheet getCachedStyleSheet(final String css) {
-        final Entry cachedEntry = entries_.get(css);
+        final Entry cachedEntry = getEntryInMemory(css);
         if (cachedEntry == null) {
             return null;
         }
-        synchronized (entries_) {
-            cachedEntry.touch();
+        return (CSSStyleSheet) getValueToUse(cachedEntry);
+    }
+
+    /**
+     * Returns the value of the specified entry as it can be handed out. Parsed stylesheets can be
+     * modified through JavaScript, therefore a shared cache doesn't hand out the ones stored before
+     * it was shared.
+     * @param entry the cache entry
+     * @return the value to use, <tt>null</tt> for a stylesheet in a shared cache
+     */
+    private Object getValueToUse(final Entry entry) {
+        final Object value = entry.value_;
+        if (isShared() && value instanceof CSSStyleSheet) {
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * Caches a script compiled from code which has no URL of its own, like the code of an inline script
+     * or of an event handler. As such code is often repeated from page to page, it is cached by content.
+     *
+     * @param key the key built from the code and from the settings influencing its compilation
+     * @param script the compiled script, possibly wrapped with the information needed to check that it
+     * really corresponds to the key
+     * @param length the length of the code, which bounds the memory used by these scripts
+     */
+    public void cacheInlineScript(final String key, final Object script, final int length) {
+        synchronized (inlineScripts_) {
+            inlineScripts_.add(key, script, length);
+        }
+    }
+
+    /**
+     * Returns the object cached with {@link #cacheInlineScript(String, Object, int)} for the specified key.
+     *
+     * @param key the key built from the code and from the settings influencing its compilation
+     * @return the cached object, or <tt>null</tt> if there is none
+     */
+    public Object getCachedInlineScript(final String key) {
+        synchronized (inlineScripts_) {
+            final InlineScriptEntry entry = inlineScripts_.get(key);
+            if (entry == null) {
+                return null;
+            }
+            return entry.script_;
+        }
+    }
+
+    /**
+     * Remembers the target of a <tt>301 Moved Permanently</tt> response if its headers allow it, so that
+     * the next requests for the same URL are redirected without asking the server.
+     *
+     * @param request the performed request
+     * @param response the redirect response
+     * @param target the absolute URL designated by the <tt>Location</tt> header
+     */
+    public void cachePermanentRedirect(final WebRequestSettings request, final WebResponse response,
+            final URL target) {
+        if (!isPermanentRedirectCacheable(request, response)) {
+            return;
+        }
+        final long freshUntil = getPermanentRedirectFreshUntil(response, System.currentTimeMillis());
+        if (freshUntil == 0) {
+            return;
+        }
+        final String url = response.getRequestSettings().getUrl().toString();
+        if (url.equals(target.toString())) {
+            return;
+        }
+        synchronized (permanentRedirects_) {
+            permanentRedirects_.put(url, new PermanentRedirect(target, freshUntil));
+        }
+    }
+
+    /**
+     * Returns the target of a remembered permanent redirect for the specified request.
+     *
+     * @param request the request about to be performed
+     * @return the URL to request instead, or <tt>null</tt> if the server has to be asked
+     */
+    public URL getPermanentRedirect(final WebRequestSettings request) {
+        if (HttpMethod.GET != request.getHttpMethod() || isRevalidationRequested(request)) {
+            return null;
+        }
+        final String url = request.getUrl().toString();
+        synchronized (permanentRedirects_) {
+            final PermanentRedirect redirect = permanentRedirects_.get(url);
+            if (redirect == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() >= redirect.freshUntil_) {
+                permanentRedirects_.remove(url);
+                return null;
+            }
+            return redirect.target_;
         }
-        return (CSSStyleSheet) cachedEntry.value_;
+    }
+
+    /**
+     * Determines if the target of the specified redirect response can be remembered. Only
+     * <tt>301 Moved Permanently</tt> responses to <tt>GET</tt> requests without <tt>no-store</tt>
+     * directive are, and for a shared cache only if they are shareable.
+     *
+     * @param request the performed request
+     * @param response the redirect response
+     * @return <code>true</code> if the redirect can be remembered
+     */
+    protected boolean isPermanentRedirectCacheable(final WebRequestSettings request, final WebResponse response) {
+        return HttpMethod.GET == response.getRequestSettings().getHttpMethod()
+            && response.getStatusCode() == HttpStatus.SC_MOVED_PERMANENTLY
+            && !hasCacheControlDirective(response, "no-store")
+            && (!isShared() || isShareable(request, response));
+    }
+
+    /**
+     * Computes the time until which the target of the specified permanent redirect can be used without
+     * asking the server. Like browsers do, a permanent redirect is remembered indefinitely unless its
+     * <tt>Cache-Control</tt> or <tt>Expires</tt> header says otherwise.
+     *
+     * @param response the redirect response
+     * @param now the current time
+     * @return the time until which the redirect can be followed directly, <tt>0</tt> if it can't be
+     */
+    protected long getPermanentRedirectFreshUntil(final WebResponse response, final long now) {
+        if (response.getResponseHeaderValue("Cache-Control") != null
+                || response.getResponseHeaderValue("Expires") != null) {
+            if (hasCacheControlDirective(response, "no-cache")) {
+                return 0;
+            }
+            final String maxAge = getMaxAge(response);
+            if (maxAge != null) {
+                return getMaxAgeEnd(maxAge, now);
+            }
+            final Date expires = parseDateHeader(response, "Expires");
+            if (expires != null && expires.getTime() > now) {
+                return expires.getTime();
+            }
+            if (response.getResponseHeaderValue("Expires") != null) {
+                return 0; // past or invalid dates like "0" mean already expired
+            }
+        }
+        return Long.MAX_VALUE;
     }
 
     /**
@@ -262,21 +1111,89 @@ public class Cache implements Serializable {
         deleteOverflow();
     }
 
+    /**
+     * Returns the cache's maximum weight. This is the maximum estimated number of bytes used by the
+     * cached responses, compiled scripts and parsed stylesheets. The default is unbounded.
+     *
+     * @return the cache's maximum weight
+     */
+    public long getMaxWeight() {
+        return maxWeight_;
+    }
+
+    /**
+     * Sets the cache's maximum weight. This is the maximum estimated number of bytes used by the
+     * cached responses, compiled scripts and parsed stylesheets.
+     *
+     * @param maxWeight the cache's maximum weight in bytes (must be &gt;= 0)
+     * @see #estimateWeight(WebResponse, Object)
+     */
+    public void setMaxWeight(final long maxWeight) {
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException("Illegal value for maxWeight: " + maxWeight);
+        }
+        maxWeight_ = maxWeight;
+        deleteOverflow();
+    }
+
+    /**
+     * Indicates if this cache is shared between several web clients.
+     *
+     * @return <code>true</code> if this cache is shared
+     * @see #setShared(boolean)
+     */
+    public boolean isShared() {
+        return shared_;
+    }
+
+    /**
+     * <p>Indicates that this cache is shared between several web clients. The cache is thread safe and
+     * may always be set on several clients (see {@link WebClient#setCache(Cache)}); a shared cache
+     * additionally follows the rules of HTTP shared caches so that the content received by a client isn't
+     * served to another one: responses marked as <tt>private</tt>, responses to authenticated requests and
+     * responses to requests with cookies are not cached unless marked as <tt>public</tt>, and <tt>s-maxage</tt>
+     * takes precedence over <tt>max-age</tt>. Parsed stylesheets aren't cached, as scripts can modify
+     * them: each client parses the stylesheets it uses, from the cached responses.</p>
+     *
+     * <p>Compiled scripts are reused only by clients simulating the same browser version with the same
+     * {@link ScriptPreProcessor}, therefore clients sharing a cache should preferably have the same settings.</p>
+     *
+     * @param shared whether the cache is shared
+     */
+    public void setShared(final boolean shared) {
+        shared_ = shared;
+    }
+
     /**
      * Returns the number of entries in the cache.
      *
      * @return the number of entries in the cache
      */
     public int getSize() {
-        return entries_.size();
+        return size_.get();
     }
 
     /**
      * Clears the cache.
      */
     public void clear() {
-        synchronized (entries_) {
-            entries_.clear();
+        final List<Entry> removed = new ArrayList<Entry>();
+        for (final Segment segment : segments_) {
+            synchronized (segment) {
+                for (final Entry entry : segment.values()) {
+                    size_.decrementAndGet();
+                    weight_.addAndGet(-entry.weight_);
+                    removed.add(entry);
+                }
+                segment.clear();
+            }
+        }
+        release(removed);
+        synchronized (permanentRedirects_) {
+            permanentRedirects_.clear();
+        }
+        synchronized (inlineScripts_) {
+            inlineScripts_.clear();
         }
     }
 
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+/**
+ * The pool of HTTP connections used by {@link HttpWebConnection}. Connections are kept alive between
+ * requests and reused for the same host.
+ *
+ * <p>By default each {@link HttpWebConnection} has its own pool. A pool may also be shared by the web
+ * connections of many {@link WebClient}s, for instance to bound the total number of connections opened
+ * by a fleet of clients:</p>
+ * <pre>
+ * final ConnectionPool pool = new ConnectionPool();
+ * pool.setMaxConnectionsPerHost(20);
+ * pool.setMaxTotalConnections(200);
+ * for (final WebClient client : clients) {
+ *     ((HttpWebConnection) client.getWebConnection()).setConnectionPool(pool);
+ * }
+ * </pre>
+ * <p>The connection timeout of a shared pool is the one configured on the pool, whereas the socket
+ * timeout is the one of each {@link WebClient}.</p>
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+public class ConnectionPool {
+
+    /** The default maximal number of connections per host. */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST =
+        MultiThreadedHttpConnectionManager.DEFAULT_MAX_HOST_CONNECTIONS;
+
+    /** The default maximal number of connections. */
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS =
+        MultiThreadedHttpConnectionManager.DEFAULT_MAX_TOTAL_CONNECTIONS;
+
+    private final MultiThreadedHttpConnectionManager connectionManager_ = new MultiThreadedHttpConnectionManager();
+    private IdleConnectionTimeoutThread idleConnectionReaper_;
+    private long idleTimeout_;
+
+    /**
+     * Returns the maximal number of connections opened at the same time to a host.
+     * @return the maximal number of connections per host
+     */
+    public int getMaxConnectionsPerHost() {
+        return getParams().getDefaultMaxConnectionsPerHost();
+    }
+
+    /**
+     * Sets the maximal number of connections opened at the same time to a host, unless
+     * configured otherwise for this host with {@link #setMaxConnectionsPerHost(String, int, String, int)}.
+     * Additional requests wait for a connection to be released.
+     * @param maxConnections the maximal number of connections per host
+     */
+    public void setMaxConnectionsPerHost(final int maxConnections) {
+        getParams().setDefaultMaxConnectionsPerHost(maxConnections);
+    }
+
+    /**
+     * Sets the maximal number of connections opened at the same time to a specific host.
+     * @param host the host name
+     * @param port the port
+     * @param protocol the protocol, <tt>http</tt> or <tt>https</tt>
+     * @param maxConnections the maximal number of connections to this host
+     */
+    public void setMaxConnectionsPerHost(final String host, final int port, final String protocol,
+            final int maxConnections) {
+        final HostConfiguration hostConfiguration = new HostConfiguration();
+        hostConfiguration.setHost(host, port, protocol);
+        getParams().setMaxConnectionsPerHost(hostConfiguration, maxConnections);
+    }
+
+    /**
+     * Returns the maximal number of connections opened at the same time, all hosts together.
+     * @return the maximal number of connections
+     */
+    public int getMaxTotalConnections() {
+        return getParams().getMaxTotalConnections();
+    }
+
+    /**
+     * Sets the maximal number of connections opened at the same time, all hosts together.
+     * @param maxConnections the maximal number of connections
+     */
+    public void setMaxTotalConnections(final int maxConnections) {
+        getParams().setMaxTotalConnections(maxConnections);
+    }
+
+    /**
+     * Returns the time after which an unused connection is closed.
+     * @return the time in milliseconds, <tt>0</tt> if idle connections are kept open
+     */
+    public synchronized long getIdleTimeout() {
+        return idleTimeout_;
+    }
+
+    /**
+     * Sets the time after which an unused connection is closed. The pool is checked by a background
+     * thread every <tt>idleTimeout / 2</tt> milliseconds. By default, idle connections are kept open
+     * until the server closes them.
+     * @param idleTimeout the time in milliseconds, <tt>0</tt> to keep idle connections open
+     */
+    public synchronized void setIdleTimeout(final long idleTimeout) {
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException("idleTimeout should not be negative!");
+        }
+        stopIdleConnectionReaper();
+        idleTimeout_ = idleTimeout;
+        if (idleTimeout > 0) {
+            idleConnectionReaper_ = new IdleConnectionTimeoutThread();
+            idleConnectionReaper_.setConnectionTimeout(idleTimeout);
+            idleConnectionReaper_.setTimeoutInterval(Math.max(1, idleTimeout / 2));
+            idleConnectionReaper_.addConnectionManager(connectionManager_);
+            idleConnectionReaper_.start();
+        }
+    }
+
+    /**
+     * Indicates if a pooled connection is checked before being reused, which avoids failures on
+     * connections closed by the server but costs a few milliseconds per request.
+     * @return <tt>true</tt> if stale connections are detected (the default)
+     */
+    public boolean isStaleCheckingEnabled() {
+        return getParams().isStaleCheckingEnabled();
+    }
+
+    /**
+     * Enables or disables the check of pooled connections before their reuse.
+     * @param enabled <tt>true</tt> to detect stale connections
+     */
+    public void setStaleCheckingEnabled(final boolean enabled) {
+        getParams().setStaleCheckingEnabled(enabled);
+    }
+
+    /**
+     * Returns the timeout used when establishing a new connection.
+     * @return the timeout in milliseconds, <tt>0</tt> for no timeout
+     */
+    public int getConnectionTimeout() {
+        return getParams().getConnectionTimeout();
+    }
+
+    /**
+     * Sets the timeout used when establishing a new connection. This is set to the {@link WebClient}'s
+     * timeout when the pool isn't shared.
+     * @param timeout the timeout in milliseconds, <tt>0</tt> for no timeout
+     */
+    public void setConnectionTimeout(final int timeout) {
+        getParams().setConnectionTimeout(timeout);
+    }
+
+    /**
+     * Returns the number of connections currently open, either in use or idle.
+     * @return the number of connections
+     */
+    public int getConnectionsInPool() {
+        return connectionManager_.getConnectionsInPool();
+    }
+
+    /**
+     * Closes all the connections which are not currently in use.
+     */
+    public void closeIdleConnections() {
+        connectionManager_.closeIdleConnections(0);
+    }
+
+    /**
+     * Closes all the connections and stops the background thread. The pool can't be used anymore afterwards.
+     */
+    public synchronized void shutdown() {
+        stopIdleConnectionReaper();
+        connectionManager_.shutdown();
+    }
+
+    /**
+     * <span style="color:red">INTERNAL API - SUBJECT TO CHANGE AT ANY TIME - USE AT YOUR OWN RISK.</span><br/>
+     *
+     * Returns the underlying HttpClient connection manager.
+     * @return the connection manager
+     */
+    public HttpConnectionManager getConnectionManager() {
+        return connectionManager_;
+    }
+
+    private HttpConnectionManagerParams getParams() {
+        return connectionManager_.getParams();
+    }
+
+    private void stopIdleConnectionReaper() {
+        if (idleConnectionReaper_ != null) {
+            idleConnectionReaper_.shutdown();
+            idleConnectionReaper_ = null;
+        }
+    }
+}
@@ -16,9 +16,14 @@ package com.gargoylesoftware.htmlunit;
 
 import java.io.Serializable;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.httpclient.HttpState;
 import org.apache.commons.httpclient.cookie.CookiePolicy;
@@ -30,6 +35,9 @@ import com.gargoylesoftware.htmlunit.util.Cookie;
 /**
  * Manages cookies for a {@link WebClient}. This class is thread-safe.
  *
+ * <p>The cookies are indexed by domain, so that looking up the cookies for a URL only considers the cookies
+ * of the host and of its parent domains. Lookups don't lock the cookie manager.</p>
+ *
  * @version $Revision: 5301 $
  * @author Daniel Gredler
  * @author Ahmed Ashour
@@ -46,25 +54,40 @@ public class CookieManager implements Serializable {
      */
     public static final String HTMLUNIT_COOKIE_POLICY = CookiePolicy.BROWSER_COMPATIBILITY;
 
+    private static final StoredCookie[] NO_COOKIES = new StoredCookie[0];
+
     /** Whether or not cookies are enabled. */
-    private boolean cookiesEnabled_;
+    private volatile boolean cookiesEnabled_;
 
-    /** The cookies added to this cookie manager. */
+    /** The cookies added to this cookie manager, in insertion order. Guarded by <tt>this</tt>. */
     private final Set<Cookie> cookies_;
 
+    /**
+     * The same cookies, indexed by their domain (lower case, without leading dot). The arrays are never
+     * modified but replaced, under the lock of <tt>this</tt>.
+     */
+    private final ConcurrentMap<String, StoredCookie[]> cookiesByDomain_;
+
+    /** Insertion counter, used to return the cookies of several domains in insertion order. */
+    private long insertions_;
+
+    /** Unmodifiable copy of {@link #cookies_}, <tt>null</tt> when it has to be computed again. */
+    private transient volatile Set<Cookie> cookiesSnapshot_;
+
     /**
      * Creates a new instance.
      */
     public CookieManager() {
         cookiesEnabled_ = true;
         cookies_ = new LinkedHashSet<Cookie>();
+        cookiesByDomain_ = new ConcurrentHashMap<String, StoredCookie[]>();
     }
 
     /**
      * Enables/disables cookie support. Cookies are enabled by default.
      * @param enabled <tt>true</tt> to enable cookie support, <tt>false</tt> otherwise
      */
-    public synchronized void setCookiesEnabled(final boolean enabled) {
+    public void setCookiesEnabled(final boolean enabled) {
         cookiesEnabled_ = enabled;
     }
 
@@ -72,7 +95,7 @@ public class CookieManager implements Serializable {
      * Returns <tt>true</tt> if cookies are enabled. Cookies are enabled by default.
      * @return <tt>true</tt> if cookies are enabled, <tt>false</tt> otherwise
      */
-    public synchronized boolean isCookiesEnabled() {
+    public boolean isCookiesEnabled() {
         return cookiesEnabled_;
     }
 
@@ -80,8 +103,15 @@ public class CookieManager implements Serializable {
      * Returns the currently configured cookies, in an unmodifiable set.
      * @return the currently configured cookies, in an unmodifiable set
      */
-    public synchronized Set<Cookie> getCookies() {
-        return Collections.unmodifiableSet(cookies_);
+    public Set<Cookie> getCookies() {
+        Set<Cookie> snapshot = cookiesSnapshot_;
+        if (snapshot == null) {
+            synchronized (this) {
+                snapshot = Collections.unmodifiableSet(new LinkedHashSet<Cookie>(cookies_));
+                cookiesSnapshot_ = snapshot;
+            }
+        }
+        return snapshot;
     }
 
     /**
@@ -89,8 +119,20 @@ public class CookieManager implements Serializable {
      * @param url the URL on which to filter the returned cookies
      * @return the currently configured cookies applicable to the specified URL, in an unmodifiable set
      */
-    public synchronized Set<Cookie> getCookies(final URL url) {
+    public Set<Cookie> getCookies(final URL url) {
         final String host = url.getHost();
+        final List<StoredCookie> candidates = getCandidates(host);
+        if (candidates.isEmpty()) {
+            return Collections.emptySet();
+        }
+        if (candidates.size() > 1) {
+            Collections.sort(candidates, StoredCookie.INSERTION_ORDER);
+        }
+        final List<Cookie> candidateCookies = new ArrayList<Cookie>(candidates.size());
+        for (final StoredCookie candidate : candidates) {
+            candidateCookies.add(candidate.cookie_);
+        }
+
         final String path = url.getPath();
         final boolean secure = "https".equals(url.getProtocol());
 
@@ -103,7 +145,7 @@ public class CookieManager implements Serializable {
         }
 
         final CookieSpec spec = CookiePolicy.getCookieSpec(HTMLUNIT_COOKIE_POLICY);
-        final org.apache.commons.httpclient.Cookie[] all = Cookie.toHttpClient(cookies_);
+        final org.apache.commons.httpclient.Cookie[] all = Cookie.toHttpClient(candidateCookies);
         final org.apache.commons.httpclient.Cookie[] matches = spec.match(host, port, path, secure, all);
 
         final Set<Cookie> cookies = new LinkedHashSet<Cookie>();
@@ -111,13 +153,47 @@ public class CookieManager implements Serializable {
         return Collections.unmodifiableSet(cookies);
     }
 
+    /**
+     * Returns the cookies which domain is the specified host or one of its parent domains, as well as the
+     * cookies without domain, which are left to the cookie spec.
+     * @param host the host
+     * @return the cookies which may apply to the host
+     */
+    private List<StoredCookie> getCandidates(final String host) {
+        final List<StoredCookie> candidates = new ArrayList<StoredCookie>();
+        if (cookiesByDomain_.isEmpty()) {
+            return candidates;
+        }
+        String domain = host.toLowerCase();
+        while (domain.length() != 0) {
+            final StoredCookie[] domainCookies = cookiesByDomain_.get(domain);
+            if (domainCookies != null) {
+                for (final StoredCookie domainCookie : domainCookies) {
+                    candidates.add(domainCookie);
+                }
+            }
+            final int dotIndex = domain.indexOf('.');
+            if (dotIndex == -1) {
+                break;
+            }
+            domain = domain.substring(dotIndex + 1);
+        }
+        final StoredCookie[] noDomainCookies = cookiesByDomain_.get(getDomainKey(null));
+        if (noDomainCookies != null) {
+            for (final StoredCookie noDomainCookie : noDomainCookies) {
+                candidates.add(noDomainCookie);
+            }
+        }
+        return candidates;
+    }
+
     /**
      * Returns the currently configured cookie with the specified name, or <tt>null</tt> if one does not exist.
      * @param name the name of the cookie to return
      * @return the currently configured cookie with the specified name, or <tt>null</tt> if one does not exist
      */
-    public synchronized Cookie getCookie(final String name) {
-        for (Cookie cookie : cookies_) {
+    public Cookie getCookie(final String name) {
+        for (Cookie cookie : getCookies()) {
             if (StringUtils.equals(cookie.getName(), name)) {
                 return cookie;
             }
@@ -132,6 +208,8 @@ public class CookieManager implements Serializable {
     public synchronized void addCookie(final Cookie cookie) {
         cookies_.remove(cookie);
         cookies_.add(cookie);
+        index(cookie, true);
+        cookiesSnapshot_ = null;
     }
 
     /**
@@ -139,7 +217,10 @@ public class CookieManager implements Serializable {
      * @param cookie the cookie to remove
      */
     public synchronized void removeCookie(final Cookie cookie) {
-        cookies_.remove(cookie);
+        if (cookies_.remove(cookie)) {
+            index(cookie, false);
+            cookiesSnapshot_ = null;
+        }
     }
 
     /**
@@ -147,13 +228,57 @@ public class CookieManager implements Serializable {
      */
     public synchronized void clearCookies() {
         cookies_.clear();
+        cookiesByDomain_.clear();
+        cookiesSnapshot_ = null;
+    }
+
+    /**
+     * Replaces (or removes) the specified cookie in the domain index. Must be called with the lock held.
+     * @param cookie the cookie
+     * @param add whether the cookie is added or removed
+     */
+    private void index(final Cookie cookie, final boolean add) {
+        final String key = getDomainKey(cookie.getDomain());
+        final StoredCookie[] previous = cookiesByDomain_.get(key);
+        final List<StoredCookie> updated = new ArrayList<StoredCookie>();
+        if (previous != null) {
+            for (final StoredCookie storedCookie : previous) {
+                if (!storedCookie.cookie_.equals(cookie)) {
+                    updated.add(storedCookie);
+                }
+            }
+        }
+        if (add) {
+            updated.add(new StoredCookie(cookie, insertions_++));
+        }
+        if (updated.isEmpty()) {
+            cookiesByDomain_.remove(key);
+        }
+        else {
+            cookiesByDomain_.put(key, updated.toArray(NO_COOKIES));
+        }
+    }
+
+    private static String getDomainKey(final String domain) {
+        if (domain == null) {
+            return "";
+        }
+        final String key = domain.toLowerCase();
+        if (key.startsWith(".")) {
+            return key.substring(1);
+        }
+        return key;
     }
 
     /**
      * Updates the specified HTTP state's cookie configuration according to the current cookie settings.
      * @param state the HTTP state to update
      * @see #updateFromState(HttpState)
+     * @deprecated as of 2.8, {@link HttpWebConnection} no longer calls this method: it only gives to HttpClient
+     *             the cookies of each request, and adds the cookies it receives through {@link #addCookie(Cookie)}
+     *             and {@link #removeCookie(Cookie)}
      */
+    @Deprecated
     protected synchronized void updateState(final HttpState state) {
         if (!cookiesEnabled_) {
             return;
@@ -168,13 +293,42 @@ public class CookieManager implements Serializable {
      * Updates the current cookie settings from the specified HTTP state's cookie configuration.
      * @param state the HTTP state to update from
      * @see #updateState(HttpState)
+     * @deprecated as of 2.8, {@link HttpWebConnection} no longer calls this method: it only gives to HttpClient
+     *             the cookies of each request, and adds the cookies it receives through {@link #addCookie(Cookie)}
+     *             and {@link #removeCookie(Cookie)}
      */
+    @Deprecated
     protected synchronized void updateFromState(final HttpState state) {
         if (!cookiesEnabled_) {
             return;
         }
-        cookies_.clear();
-        cookies_.addAll(Cookie.fromHttpClient(state.getCookies()));
+        clearCookies();
+        for (final Cookie cookie : Cookie.fromHttpClient(state.getCookies())) {
+            addCookie(cookie);
+        }
     }
 
+    /**
+     * A cookie in the domain index, with its insertion rank.
+     */
+    private static final class StoredCookie implements Serializable {
+        private static final long serialVersionUID = -2834460426396307493L;
+
+        static final Comparator<StoredCookie> INSERTION_ORDER = new Comparator<StoredCookie>() {
+            public int compare(final StoredCookie o1, final StoredCookie o2) {
+                if (o1.insertion_ < o2.insertion_) {
+                    return -1;
+                }
+                return o1.insertion_ == o2.insertion_ ? 0 : 1;
+            }
+        };
+
+        private final Cookie cookie_;
+        private final long insertion_;
+
+        StoredCookie(final Cookie cookie, final long insertion) {
+            cookie_ = cookie;
+            insertion_ = insertion;
+        }
+    }
 }
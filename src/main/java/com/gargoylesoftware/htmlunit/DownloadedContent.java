@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+
+/**
+ * Wrapper for content downloaded from a remote server. Small contents are held in memory
+ * whereas large ones are stored in a temporary file, so that huge downloads don't have to
+ * be fully materialized on the heap.
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+public interface DownloadedContent extends Serializable {
+
+    /**
+     * Returns a new stream allowing to read the downloaded content.
+     * @return the stream
+     * @throws IOException in case of problem accessing the content
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Returns the number of bytes of the (raw) downloaded content.
+     * @return the length of the content
+     */
+    long length();
+
+    /**
+     * Releases the resources held by this content, like a temporary file. The content can't be
+     * read anymore afterwards.
+     */
+    void cleanUp();
+
+    /**
+     * Implementation keeping content in memory.
+     */
+    class InMemory implements DownloadedContent {
+        private static final long serialVersionUID = -2516893413758178442L;
+        private final byte[] bytes_;
+
+        /**
+         * Creates an instance wrapping the provided bytes.
+         * @param byteArray the content
+         */
+        public InMemory(final byte[] byteArray) {
+            bytes_ = byteArray;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(bytes_);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long length() {
+            return bytes_.length;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void cleanUp() {
+            // nothing to release, the garbage collector takes care of the bytes
+        }
+
+        /**
+         * Returns the wrapped bytes without copying them.
+         * @return the wrapped bytes
+         */
+        byte[] getBytes() {
+            return bytes_;
+        }
+    }
+
+    /**
+     * Implementation keeping content on the file system.
+     */
+    class OnFile implements DownloadedContent {
+        private static final long serialVersionUID = 7446372390470457513L;
+        private final File file_;
+        private final boolean temporary_;
+
+        /**
+         * Creates an instance reading its content from the provided file. The file belongs to the caller
+         * and isn't deleted by {@link #cleanUp()}.
+         * @param file the file holding the content
+         */
+        public OnFile(final File file) {
+            this(file, false);
+        }
+
+        /**
+         * Creates an instance reading its content from the provided file.
+         * @param file the file holding the content
+         * @param temporary whether the file has been created for this content only and should be
+         *        deleted by {@link #cleanUp()}
+         */
+        public OnFile(final File file, final boolean temporary) {
+            file_ = file;
+            temporary_ = temporary;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public InputStream getInputStream() throws IOException {
+            return new BufferedInputStream(new FileInputStream(file_));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long length() {
+            return file_.length();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void cleanUp() {
+            if (temporary_) {
+                file_.delete();
+            }
+        }
+    }
+}
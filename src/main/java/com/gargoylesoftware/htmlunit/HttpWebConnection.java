@@ -14,24 +14,29 @@
  */
 package com.gargoylesoftware.htmlunit;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpState;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.URI;
 import org.apache.commons.httpclient.URIException;
+import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.auth.CredentialsProvider;
 import org.apache.commons.httpclient.cookie.CookiePolicy;
 import org.apache.commons.httpclient.methods.DeleteMethod;
@@ -51,10 +56,12 @@ import org.apache.commons.httpclient.methods.multipart.PartBase;
 import org.apache.commons.httpclient.methods.multipart.StringPart;
 import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.commons.httpclient.util.EncodingUtil;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.SimpleLog;
 
+import com.gargoylesoftware.htmlunit.util.Cookie;
 import com.gargoylesoftware.htmlunit.util.KeyDataPair;
 import com.gargoylesoftware.htmlunit.util.NameValuePair;
 import com.gargoylesoftware.htmlunit.util.UrlUtils;
@@ -72,9 +79,15 @@ import com.gargoylesoftware.htmlunit.util.UrlUtils;
  */
 public class HttpWebConnection implements WebConnection {
 
+    /** Default maximal size of a response body kept in memory, larger bodies are stored in a temporary file. */
+    static final int MAX_IN_MEMORY = 500 * 1024;
+
     private final WebClient webClient_;
     private HttpClient httpClient_;
     private String virtualHost_;
+    private int maxInMemory_ = MAX_IN_MEMORY;
+    private ConnectionPool connectionPool_;
+    private boolean sharedConnectionPool_;
 
     /**
      * Creates a new HTTP web connection instance.
@@ -92,16 +105,33 @@ public class HttpWebConnection implements WebConnection {
 
         final URL url = settings.getUrl();
         final HttpClient httpClient = getHttpClient();
-        webClient_.getCookieManager().updateState(httpClient.getState());
 
         final HttpMethodBase httpMethod = makeHttpMethod(settings);
+        httpMethod.getParams().setSoTimeout(getTimeout());
+        final RequestState state = createRequestState(settings);
+        final WebResponseTimings timings = new WebResponseTimings();
+        TimingConnectionManager.setCurrentTimings(timings);
         try {
             final HostConfiguration hostConfiguration = getHostConfiguration(settings);
             final long startTime = System.currentTimeMillis();
-            final int responseCode = httpClient.executeMethod(hostConfiguration, httpMethod);
+            final long start = System.nanoTime();
+            final int responseCode = httpClient.executeMethod(hostConfiguration, httpMethod, state);
             final long endTime = System.currentTimeMillis();
-            webClient_.getCookieManager().updateFromState(httpClient.getState());
-            return makeWebResponse(responseCode, httpMethod, settings, endTime - startTime);
+            timings.setFirstByte(TimingConnectionManager.toMillis(System.nanoTime() - start));
+            updateCookies(state);
+            final WebResponse response = makeWebResponse(responseCode, httpMethod, settings, endTime - startTime);
+            timings.setBodyComplete(TimingConnectionManager.toMillis(System.nanoTime() - start));
+            if (response instanceof WebResponseImpl) {
+                final WebResponseData responseData = ((WebResponseImpl) response).getResponseData();
+                responseData.setTimings(timings);
+                // the credentials may have been added by HttpClient after an authentication challenge
+                responseData.setRequestCredentials(httpMethod.getRequestHeader("Authorization") != null,
+                    httpMethod.getRequestHeader("Cookie") != null);
+            }
+            return response;
+        }
+        catch (final TimingConnectionManager.ConnectFailedException e) {
+            throw e.getIOException();
         }
         catch (final HttpException e) {
             // KLUDGE: hitting www.yahoo.com will cause an exception to be thrown while
@@ -128,6 +158,7 @@ public class HttpWebConnection implements WebConnection {
             throw new RuntimeException("HTTP Error: " + e.getMessage(), e);
         }
         finally {
+            TimingConnectionManager.setCurrentTimings(null);
             onResponseGenerated(httpMethod);
         }
     }
@@ -229,23 +260,7 @@ public class HttpWebConnection implements WebConnection {
                 }
             }
             else if (FormEncodingType.MULTIPART == webRequestSettings.getEncodingType()) {
-                final List<PartBase> partList = new ArrayList<PartBase>();
-                for (final NameValuePair pair : webRequestSettings.getRequestParameters()) {
-                    final PartBase newPart;
-                    if (pair instanceof KeyDataPair) {
-                        final KeyDataPair pairWithFile = (KeyDataPair) pair;
-                        final String charset = webRequestSettings.getCharset();
-                        newPart = buildFilePart(pairWithFile, charset);
-                    }
-                    else {
-                        newPart = new StringPart(pair.getName(), pair.getValue(), webRequestSettings.getCharset());
-                        newPart.setContentType(null); // Firefox and IE seem not to send a content type
-                    }
-                    newPart.setTransferEncoding(null); // Firefox and IE don't send transfer encoding headers
-                    partList.add(newPart);
-                }
-                Part[] parts = new Part[partList.size()];
-                parts = partList.toArray(parts);
+                final Part[] parts = buildParts(webRequestSettings, webClient_);
                 method.setRequestEntity(new MultipartRequestEntity(parts, method.getParams()));
             }
             else { // for instance a PUT request
@@ -282,7 +297,97 @@ public class HttpWebConnection implements WebConnection {
         return httpMethod;
     }
 
+    /**
+     * Returns the URL used to match the cookies of the specified request.
+     * @param webRequestSettings the request
+     * @return the encoded URL, with a path of <tt>/</tt> if it had no path
+     * @throws IOException if the URL can't be built
+     */
+    static URL getCookieUrl(final WebRequestSettings webRequestSettings) throws IOException {
+        final URL url = UrlUtils.encodeUrl(webRequestSettings.getUrl(), false);
+        if (url.getPath().length() == 0) {
+            return new URL(url.getProtocol(), url.getHost(), url.getPort(), "/");
+        }
+        return url;
+    }
+
+    /**
+     * Creates the HTTP state of a request, holding only the cookies which apply to it.
+     * @param settings the request
+     * @return the HTTP state to execute the request with
+     * @throws IOException if the cookie URL can't be built
+     */
+    private RequestState createRequestState(final WebRequestSettings settings) throws IOException {
+        final CookieManager cookieManager = webClient_.getCookieManager();
+        final RequestState state = new RequestState(getHttpClient().getState());
+        if (cookieManager.isCookiesEnabled()) {
+            state.addCookies(Cookie.toHttpClient(cookieManager.getCookies(getCookieUrl(settings))));
+            state.startRecording();
+        }
+        return state;
+    }
+
+    /**
+     * Adds to the cookie manager the cookies received during the execution of a request, including the ones
+     * of intermediate responses (authentication challenges), and removes the ones the responses expired.
+     * @param state the state the request has been executed with
+     */
+    private void updateCookies(final RequestState state) {
+        updateCookies(webClient_.getCookieManager(), state.getReceivedCookies());
+    }
+
+    /**
+     * Adds to the cookie manager the specified cookies received from a server, and removes the ones they expire.
+     * @param cookieManager the cookie manager to update
+     * @param receivedCookies the received cookies, in the order they were received
+     */
+    static void updateCookies(final CookieManager cookieManager,
+            final List<org.apache.commons.httpclient.Cookie> receivedCookies) {
+        for (final org.apache.commons.httpclient.Cookie cookie : receivedCookies) {
+            final Cookie htmlUnitCookie = new Cookie(cookie.getDomain(), cookie.getName(), cookie.getValue(),
+                cookie.getPath(), cookie.getExpiryDate(), cookie.getSecure());
+            if (cookie.isExpired()) {
+                cookieManager.removeCookie(htmlUnitCookie);
+            }
+            else {
+                cookieManager.addCookie(htmlUnitCookie);
+            }
+        }
+    }
+
     FilePart buildFilePart(final KeyDataPair pairWithFile, final String charset) throws FileNotFoundException {
+        return buildFilePart(pairWithFile, charset, webClient_);
+    }
+
+    /**
+     * Builds the parts of the <tt>multipart/form-data</tt> body of the specified request.
+     * @param webRequestSettings the request
+     * @param webClient the web client sending the request
+     * @return the parts of the request body
+     * @throws FileNotFoundException if a file to upload doesn't exist
+     */
+    static Part[] buildParts(final WebRequestSettings webRequestSettings, final WebClient webClient)
+        throws FileNotFoundException {
+        final List<PartBase> partList = new ArrayList<PartBase>();
+        for (final NameValuePair pair : webRequestSettings.getRequestParameters()) {
+            final PartBase newPart;
+            if (pair instanceof KeyDataPair) {
+                final KeyDataPair pairWithFile = (KeyDataPair) pair;
+                final String charset = webRequestSettings.getCharset();
+                newPart = buildFilePart(pairWithFile, charset, webClient);
+            }
+            else {
+                newPart = new StringPart(pair.getName(), pair.getValue(), webRequestSettings.getCharset());
+                newPart.setContentType(null); // Firefox and IE seem not to send a content type
+            }
+            newPart.setTransferEncoding(null); // Firefox and IE don't send transfer encoding headers
+            partList.add(newPart);
+        }
+        return partList.toArray(new Part[partList.size()]);
+    }
+
+    private static FilePart buildFilePart(final KeyDataPair pairWithFile, final String charset,
+            final WebClient webClient) throws FileNotFoundException {
         final FilePartPageCharSet part;
         if (pairWithFile.getData() != null) {
             part = new FilePartPageCharSet(pairWithFile.getName(),
@@ -294,7 +399,7 @@ public class HttpWebConnection implements WebConnection {
                 pairWithFile.getContentType(), charset);
         }
         part.pairWithFile_ = pairWithFile;
-        part.webClient_ = webClient_;
+        part.webClient_ = webClient;
 
         // Firefox and IE seem not to specify a charset for a file part
         part.setCharSet(null);
@@ -359,8 +464,11 @@ public class HttpWebConnection implements WebConnection {
                 ((SimpleLog) log).setLevel(SimpleLog.LOG_LEVEL_WARN);
             }
 
-            httpClient_.getHttpConnectionManager().getParams().setSoTimeout(getTimeout());
-            httpClient_.getHttpConnectionManager().getParams().setConnectionTimeout(getTimeout());
+            // a shared pool keeps its own settings, the socket timeout is then set on each method
+            if (!sharedConnectionPool_) {
+                httpClient_.getHttpConnectionManager().getParams().setSoTimeout(getTimeout());
+                httpClient_.getHttpConnectionManager().getParams().setConnectionTimeout(getTimeout());
+            }
 
             if (virtualHost_ != null) {
                 httpClient_.getParams().setVirtualHost(virtualHost_);
@@ -392,8 +500,35 @@ public class HttpWebConnection implements WebConnection {
      * @return the <tt>HttpClient</tt> that will be used by this WebConnection
      */
     protected HttpClient createHttpClient() {
-        final MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
-        return new HttpClient(connectionManager);
+        return new HttpClient(new TimingConnectionManager(getConnectionPool().getConnectionManager()));
+    }
+
+    /**
+     * Returns the pool of connections used by this web connection. Unless one has been set with
+     * {@link #setConnectionPool(ConnectionPool)}, this connection has its own pool.
+     * @return the connection pool
+     */
+    public synchronized ConnectionPool getConnectionPool() {
+        if (connectionPool_ == null) {
+            connectionPool_ = new ConnectionPool();
+        }
+        return connectionPool_;
+    }
+
+    /**
+     * Sets the pool of connections to use, which may be shared with other web connections.
+     * The pool's settings, in particular its connection timeout, aren't modified by this web connection.
+     * The previous pool, if it was owned by this web connection, is shut down.
+     * @param connectionPool the pool to use
+     */
+    public synchronized void setConnectionPool(final ConnectionPool connectionPool) {
+        WebAssert.notNull("connectionPool", connectionPool);
+        if (connectionPool_ != null && connectionPool_ != connectionPool && !sharedConnectionPool_) {
+            connectionPool_.shutdown();
+        }
+        connectionPool_ = connectionPool;
+        sharedConnectionPool_ = true;
+        httpClient_ = null;
     }
 
     /**
@@ -412,6 +547,26 @@ public class HttpWebConnection implements WebConnection {
         return virtualHost_;
     }
 
+    /**
+     * Sets the maximal number of bytes of a response body that are kept in memory. Larger
+     * response bodies are written to a temporary file and read from it when needed.
+     * @param maxInMemory the maximal number of bytes kept in memory (must be &gt;= 0)
+     */
+    public void setMaxInMemory(final int maxInMemory) {
+        if (maxInMemory < 0) {
+            throw new IllegalArgumentException("Illegal value for maxInMemory: " + maxInMemory);
+        }
+        maxInMemory_ = maxInMemory;
+    }
+
+    /**
+     * Returns the maximal number of bytes of a response body that are kept in memory.
+     * @return the maximal number of bytes kept in memory
+     */
+    public int getMaxInMemory() {
+        return maxInMemory_;
+    }
+
     /**
      * Converts an HttpMethod into a WebResponse.
      */
@@ -425,8 +580,9 @@ public class HttpWebConnection implements WebConnection {
         if (statusMessage == null) {
             statusMessage = "Unknown status code";
         }
-        final List<NameValuePair> headers = new ArrayList<NameValuePair>();
-        for (final Header header : method.getResponseHeaders()) {
+        final Header[] responseHeaders = method.getResponseHeaders();
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>(responseHeaders.length);
+        for (final Header header : responseHeaders) {
             headers.add(new NameValuePair(header.getName(), header.getValue()));
         }
         final WebResponseData responseData = newWebResponseDataInstance(statusMessage, headers, statusCode, method);
@@ -449,7 +605,67 @@ public class HttpWebConnection implements WebConnection {
             final int statusCode,
             final HttpMethodBase method
     ) throws IOException {
-        return new WebResponseData(method.getResponseBodyAsStream(), statusCode, statusMessage, headers);
+        return new WebResponseData(downloadResponseBody(method), statusCode, statusMessage, headers);
+    }
+
+    /**
+     * Reads the content of the response body of the provided method, keeping it in memory
+     * or storing it in a temporary file depending on its size.
+     * @param method the method whose response body should be downloaded
+     * @return the downloaded content, <tt>null</tt> if the response has no body
+     * @throws IOException if there is a problem reading the response body
+     */
+    protected DownloadedContent downloadResponseBody(final HttpMethodBase method) throws IOException {
+        final InputStream is = method.getResponseBodyAsStream();
+        if (is == null) {
+            return null;
+        }
+        return downloadContent(is, getMaxInMemory());
+    }
+
+    /**
+     * Reads the provided stream until its end and closes it.
+     * @param is the stream to read
+     * @param maxInMemory the maximal number of bytes kept in memory before switching to a temporary file
+     * @return the downloaded content
+     * @throws IOException if there is a problem reading the stream
+     */
+    static DownloadedContent downloadContent(final InputStream is, final int maxInMemory) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        try {
+            int nbRead = is.read(buffer);
+            while (nbRead != -1) {
+                bos.write(buffer, 0, nbRead);
+                if (bos.size() > maxInMemory) {
+                    // too large to be kept in memory, write everything to a temporary file
+                    // the file is deleted when the response is cleaned up, see WebClient#cleanUpWebResponse(),
+                    // or at the latest when the JVM exits for responses nobody cleans up
+                    final File file = File.createTempFile("htmlunit", ".tmp");
+                    file.deleteOnExit();
+                    try {
+                        final OutputStream fos = new FileOutputStream(file);
+                        try {
+                            bos.writeTo(fos);
+                            IOUtils.copyLarge(is, fos);
+                        }
+                        finally {
+                            fos.close();
+                        }
+                    }
+                    catch (final IOException e) {
+                        file.delete();
+                        throw e;
+                    }
+                    return new DownloadedContent.OnFile(file, true);
+                }
+                nbRead = is.read(buffer);
+            }
+        }
+        finally {
+            IOUtils.closeQuietly(is);
+        }
+        return new DownloadedContent.InMemory(bos.toByteArray());
     }
 
     /**
@@ -476,6 +692,64 @@ public class HttpWebConnection implements WebConnection {
         }
     }
 
+    /**
+     * The HTTP state of a single request: it holds the cookies which apply to the request and records the
+     * cookies received while executing it. Credentials are shared with the state of the HTTP client.
+     */
+    private static final class RequestState extends HttpState {
+        private final HttpState clientState_;
+        private final List<org.apache.commons.httpclient.Cookie> receivedCookies_
+            = new ArrayList<org.apache.commons.httpclient.Cookie>();
+        private boolean recording_;
+
+        private RequestState(final HttpState clientState) {
+            clientState_ = clientState;
+        }
+
+        /**
+         * Starts recording the cookies added to this state, i.e. the ones received from the server.
+         */
+        void startRecording() {
+            recording_ = true;
+        }
+
+        /**
+         * Returns the cookies received from the server, expired ones included, in the order they were received.
+         * @return the received cookies
+         */
+        synchronized List<org.apache.commons.httpclient.Cookie> getReceivedCookies() {
+            return receivedCookies_;
+        }
+
+        @Override
+        public synchronized void addCookie(final org.apache.commons.httpclient.Cookie cookie) {
+            super.addCookie(cookie);
+            if (recording_) {
+                receivedCookies_.add(cookie);
+            }
+        }
+
+        @Override
+        public Credentials getCredentials(final AuthScope authscope) {
+            return clientState_.getCredentials(authscope);
+        }
+
+        @Override
+        public void setCredentials(final AuthScope authscope, final Credentials credentials) {
+            clientState_.setCredentials(authscope, credentials);
+        }
+
+        @Override
+        public Credentials getProxyCredentials(final AuthScope authscope) {
+            return clientState_.getProxyCredentials(authscope);
+        }
+
+        @Override
+        public void setProxyCredentials(final AuthScope authscope, final Credentials credentials) {
+            clientState_.setProxyCredentials(authscope, credentials);
+        }
+    }
+
     /**
      * This implementation overrides the superclass' method by encoding filename according to the page charset.
      * @see <a href="http://issues.apache.org/jira/browse/HTTPCLIENT-293">HTTPCLIENT-293</a>
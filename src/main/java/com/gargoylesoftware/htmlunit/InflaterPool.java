@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps the {@link Inflater}s and the input buffers used to decode compressed responses, so that they are
+ * reused instead of being allocated for each response. An <tt>Inflater</tt> holds native memory which is
+ * only freed by {@link Inflater#end()} or by finalization; pooling them avoids native memory pressure and
+ * finalizer work when many responses are decoded.
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+final class InflaterPool {
+
+    /** The size of the input buffers. */
+    static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final int MAX_POOLED = 32;
+
+    private static final Pool<Inflater> RAW_INFLATERS = new Pool<Inflater>();
+    private static final Pool<Inflater> ZLIB_INFLATERS = new Pool<Inflater>();
+    private static final Pool<byte[]> BUFFERS = new Pool<byte[]>();
+
+    /**
+     * A bounded pool of objects.
+     */
+    private static final class Pool<T> {
+        private final Queue<T> queue_ = new ConcurrentLinkedQueue<T>();
+        private final AtomicInteger size_ = new AtomicInteger();
+
+        T poll() {
+            final T t = queue_.poll();
+            if (t != null) {
+                size_.decrementAndGet();
+            }
+            return t;
+        }
+
+        boolean offer(final T t) {
+            if (size_.incrementAndGet() > MAX_POOLED) {
+                size_.decrementAndGet();
+                return false;
+            }
+            queue_.offer(t);
+            return true;
+        }
+    }
+
+    private InflaterPool() {
+        // nothing
+    }
+
+    /**
+     * Returns an inflater, reused if possible.
+     * @param nowrap <tt>true</tt> for raw deflate data (as in gzip), <tt>false</tt> for the zlib format
+     * @return the inflater
+     */
+    static Inflater acquireInflater(final boolean nowrap) {
+        final Inflater inflater = (nowrap ? RAW_INFLATERS : ZLIB_INFLATERS).poll();
+        if (inflater != null) {
+            return inflater;
+        }
+        return new Inflater(nowrap);
+    }
+
+    /**
+     * Gives back an inflater which is not used anymore.
+     * @param inflater the inflater
+     * @param nowrap the format the inflater has been {@link #acquireInflater(boolean) acquired} for
+     */
+    static void releaseInflater(final Inflater inflater, final boolean nowrap) {
+        inflater.reset();
+        if (!(nowrap ? RAW_INFLATERS : ZLIB_INFLATERS).offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Returns a buffer of {@link #BUFFER_SIZE} bytes, reused if possible.
+     * @return the buffer
+     */
+    static byte[] acquireBuffer() {
+        final byte[] buffer = BUFFERS.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Gives back a buffer which is not used anymore.
+     * @param buffer the buffer
+     */
+    static void releaseBuffer(final byte[] buffer) {
+        BUFFERS.offer(buffer);
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+
+/**
+ * Decodes <tt>gzip</tt> or <tt>deflate</tt> content incrementally, like {@link java.util.zip.GZIPInputStream}
+ * and {@link java.util.zip.InflaterInputStream}, but with an {@link Inflater} and an input buffer taken from
+ * the {@link InflaterPool}. They are given back once the end of the content has been reached or the stream
+ * is closed.
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+final class InflatingInputStream extends InputStream {
+
+    private static final Log LOG = LogFactory.getLog(InflatingInputStream.class);
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final InputStream in_;
+    private final boolean gzip_;
+    private final CRC32 crc_;
+    private Inflater inflater_;
+    private byte[] buffer_;
+    private int bufferLength_;
+    private boolean eof_;
+    private final byte[] singleByte_ = new byte[1];
+
+    private InflatingInputStream(final InputStream in, final boolean gzip) throws IOException {
+        in_ = in;
+        gzip_ = gzip;
+        if (gzip) {
+            crc_ = new CRC32();
+            readGzipHeader();
+        }
+        else {
+            crc_ = null;
+        }
+        inflater_ = InflaterPool.acquireInflater(gzip);
+        buffer_ = InflaterPool.acquireBuffer();
+    }
+
+    /**
+     * Wraps the specified stream according to the <tt>Content-Encoding</tt> response header, if any.
+     * Chained encodings like <tt>gzip, deflate</tt> are decoded in the reverse order of their application.
+     * @param stream the raw stream
+     * @param headers the response headers
+     * @return a stream providing the decoded content
+     * @throws IOException if a stream error occurs
+     */
+    static InputStream decode(final InputStream stream, final List<NameValuePair> headers) throws IOException {
+        return decode(stream, getContentEncoding(headers));
+    }
+
+    /**
+     * Wraps the specified stream according to the specified <tt>Content-Encoding</tt> header value.
+     * @param stream the raw stream
+     * @param contentEncoding the value of the <tt>Content-Encoding</tt> header, may be <tt>null</tt>
+     * @return a stream providing the decoded content
+     * @throws IOException if a stream error occurs
+     */
+    static InputStream decode(final InputStream stream, final String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return stream;
+        }
+        final String[] encodings = StringUtils.split(contentEncoding, ',');
+        InputStream decoded = stream;
+        try {
+            for (int i = encodings.length - 1; i >= 0; i--) {
+                final String encoding = encodings[i].trim().toLowerCase();
+                if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+                    decoded = new InflatingInputStream(decoded, true);
+                }
+                else if ("deflate".equals(encoding)) {
+                    decoded = new InflatingInputStream(decoded, false);
+                }
+                else if (!"identity".equals(encoding) && encoding.length() > 0) {
+                    LOG.warn("Unsupported content encoding '" + encoding + "', content left as is");
+                    break;
+                }
+            }
+        }
+        catch (final IOException e) {
+            // give back the inflaters of the layers already built
+            if (decoded != stream) {
+                IOUtils.closeQuietly(decoded);
+            }
+            throw e;
+        }
+        return decoded;
+    }
+
+    /**
+     * Indicates if the specified headers declare a supported <tt>Content-Encoding</tt>.
+     * @param headers the response headers
+     * @return <tt>true</tt> if the content has to be decoded
+     */
+    static boolean isEncoded(final List<NameValuePair> headers) {
+        return isEncoded(getContentEncoding(headers));
+    }
+
+    /**
+     * Indicates if the specified <tt>Content-Encoding</tt> header value declares a supported encoding.
+     * @param contentEncoding the header value, may be <tt>null</tt>
+     * @return <tt>true</tt> if the content has to be decoded
+     */
+    static boolean isEncoded(final String contentEncoding) {
+        return StringUtils.contains(contentEncoding, "gzip") || StringUtils.contains(contentEncoding, "deflate");
+    }
+
+    private static String getContentEncoding(final List<NameValuePair> headers) {
+        for (final NameValuePair header : headers) {
+            final String headerName = header.getName().trim();
+            if (headerName.equalsIgnoreCase("content-encoding")) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+        final int read = read(singleByte_, 0, 1);
+        if (read == -1) {
+            return -1;
+        }
+        return singleByte_[0] & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (eof_) {
+            return -1;
+        }
+        if (inflater_ == null) {
+            throw new IOException("Stream closed");
+        }
+        try {
+            while (true) {
+                final int inflated = inflater_.inflate(b, off, len);
+                if (inflated > 0) {
+                    if (crc_ != null) {
+                        crc_.update(b, off, inflated);
+                    }
+                    return inflated;
+                }
+                if (inflater_.finished()) {
+                    finish();
+                    return -1;
+                }
+                if (inflater_.needsDictionary()) {
+                    throw new ZipException("Unsupported deflate content with preset dictionary");
+                }
+                if (inflater_.needsInput()) {
+                    bufferLength_ = in_.read(buffer_, 0, buffer_.length);
+                    if (bufferLength_ == -1) {
+                        throw new EOFException("Unexpected end of " + (gzip_ ? "gzip" : "deflate") + " content");
+                    }
+                    inflater_.setInput(buffer_, 0, bufferLength_);
+                }
+            }
+        }
+        catch (final DataFormatException e) {
+            final String message = e.getMessage();
+            throw new ZipException(message != null ? message : "Invalid compressed data format");
+        }
+    }
+
+    private void finish() throws IOException {
+        if (gzip_) {
+            final long expectedCrc = readTrailerInt() & 0xffffffffL;
+            final long expectedSize = readTrailerInt() & 0xffffffffL;
+            if (expectedCrc != crc_.getValue() || expectedSize != (inflater_.getBytesWritten() & 0xffffffffL)) {
+                throw new ZipException("Corrupt gzip trailer");
+            }
+        }
+        eof_ = true;
+        release();
+    }
+
+    /**
+     * Reads a little endian int from the data following the compressed content, which is partly in
+     * the buffer and partly still in the underlying stream.
+     */
+    private int readTrailerInt() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            final int remaining = inflater_.getRemaining();
+            final int b;
+            if (remaining > 0) {
+                b = buffer_[bufferLength_ - remaining] & 0xff;
+                inflater_.setInput(buffer_, bufferLength_ - remaining + 1, remaining - 1);
+            }
+            else {
+                b = readUByte();
+            }
+            value |= b << (8 * i);
+        }
+        return value;
+    }
+
+    private void readGzipHeader() throws IOException {
+        if (readUShort() != GZIP_MAGIC) {
+            throw new ZipException("Not in gzip format");
+        }
+        if (readUByte() != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        final int flags = readUByte();
+        skipBytes(6); // modification time, extra flags, operating system
+        if ((flags & FEXTRA) == FEXTRA) {
+            skipBytes(readUShort());
+        }
+        if ((flags & FNAME) == FNAME) {
+            while (readUByte() != 0) {
+                // skip the file name
+            }
+        }
+        if ((flags & FCOMMENT) == FCOMMENT) {
+            while (readUByte() != 0) {
+                // skip the comment
+            }
+        }
+        if ((flags & FHCRC) == FHCRC) {
+            skipBytes(2);
+        }
+    }
+
+    private int readUShort() throws IOException {
+        final int b = readUByte();
+        return (readUByte() << 8) | b;
+    }
+
+    private int readUByte() throws IOException {
+        final int b = in_.read();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of gzip content");
+        }
+        return b;
+    }
+
+    private void skipBytes(final int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            readUByte();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int available() throws IOException {
+        if (eof_ || inflater_ == null) {
+            return 0;
+        }
+        return 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        release();
+        in_.close();
+    }
+
+    private void release() {
+        if (inflater_ != null) {
+            InflaterPool.releaseInflater(inflater_, gzip_);
+            InflaterPool.releaseBuffer(buffer_);
+            inflater_ = null;
+            buffer_ = null;
+        }
+    }
+}
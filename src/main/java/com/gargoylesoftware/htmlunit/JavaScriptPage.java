@@ -53,6 +53,7 @@ public class JavaScriptPage implements Page {
      * Cleans up this page.
      */
     public void cleanUp() {
+        enclosingWindow_.getWebClient().cleanUpWebResponse(webResponse_);
     }
 
     /**
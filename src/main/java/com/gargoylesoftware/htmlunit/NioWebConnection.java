@@ -0,0 +1,1975 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.NoHttpResponseException;
+import org.apache.commons.httpclient.auth.AuthChallengeParser;
+import org.apache.commons.httpclient.auth.AuthPolicy;
+import org.apache.commons.httpclient.auth.AuthScheme;
+import org.apache.commons.httpclient.auth.AuthenticationException;
+import org.apache.commons.httpclient.auth.CredentialsProvider;
+import org.apache.commons.httpclient.auth.MalformedChallengeException;
+import org.apache.commons.httpclient.cookie.CookiePolicy;
+import org.apache.commons.httpclient.cookie.CookieSpec;
+import org.apache.commons.httpclient.cookie.MalformedCookieException;
+import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.util.EncodingUtil;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.gargoylesoftware.htmlunit.ssl.InsecureSSLProtocolSocketFactory;
+import com.gargoylesoftware.htmlunit.ssl.InsecureTrustManager;
+import com.gargoylesoftware.htmlunit.util.AsynchronousWebConnection;
+import com.gargoylesoftware.htmlunit.util.Cookie;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+import com.gargoylesoftware.htmlunit.util.UrlUtils;
+
+/**
+ * <p>A {@link WebConnection} using non-blocking sockets: a single thread multiplexes the connections of all
+ * the requests in flight with a {@link Selector}, therefore a request waiting for the server holds no thread.
+ * Additionally to the synchronous {@link #getResponse(WebRequestSettings)}, requests can be issued with
+ * {@link #getResponseAsync(WebRequestSettings, AsynchronousWebConnection.Callback)}, which returns at once:
+ * thousands of requests can be in flight at the same time, for instance to load the resources of many
+ * windows in parallel.</p>
+ *
+ * <p>The HTTP/1.1 protocol is implemented by this class:</p>
+ * <ul>
+ *   <li>connections are kept alive and reused, with at most {@link #getMaxConnectionsPerHost()} connections
+ *   to a host and {@link #getMaxTotalConnections()} connections in total; further requests wait for a free
+ *   connection</li>
+ *   <li><tt>gzip</tt> and <tt>deflate</tt> encoded content is accepted, it is decoded by the
+ *   {@link WebResponseData} when accessed; large bodies are written to temporary files as with
+ *   {@link HttpWebConnection}</li>
+ *   <li>proxies are used as set in the request, <tt>https</tt> requests go through a <tt>CONNECT</tt>
+ *   tunnel</li>
+ *   <li>cookies are taken from and stored in the {@link CookieManager} of the web client</li>
+ *   <li>Basic and Digest authentication of servers and proxies use the credentials provider of the request
+ *   or of the web client</li>
+ *   <li>the timeout of the web client applies to the connection and to each wait for data from the server</li>
+ * </ul>
+ *
+ * <p>Compared to {@link HttpWebConnection}, NTLM authentication, which needs the same connection for
+ * the whole handshake, isn't supported. The host names are resolved by the thread issuing the request. The
+ * credentials provider is asked, large bodies are written to their files and the callbacks are notified
+ * from the I/O thread, therefore they should not block it.</p>
+ *
+ * <p>It is used with <code>webClient.setWebConnection(new NioWebConnection(webClient))</code>.
+ * {@link #shutdown()} closes the connections and stops the I/O thread.</p>
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+public class NioWebConnection implements WebConnection {
+
+    private static final Log LOG = LogFactory.getLog(NioWebConnection.class);
+
+    /** The default maximal number of connections to a host that are open at the same time. */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
+
+    /** The default maximal number of connections that are open at the same time. */
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 1000;
+
+    /** Time after which a connection kept alive is closed if it hasn't been used. */
+    private static final long IDLE_TIMEOUT = 30 * 1000;
+
+    /** Interval at which the timeouts are checked, in milliseconds. */
+    private static final long TIMEOUT_CHECK_INTERVAL = 100;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_AUTHENTICATIONS = 3;
+    private static final String HEADER_CHARSET = "ISO-8859-1";
+    private static final String SHUT_DOWN = "The connection has been shut down";
+
+    private static final Callable<WebResponse> NOT_CALLED = new Callable<WebResponse>() {
+        public WebResponse call() {
+            throw new IllegalStateException("The response is set by the I/O thread");
+        }
+    };
+
+    private final WebClient webClient_;
+    private volatile int maxInMemory_ = HttpWebConnection.MAX_IN_MEMORY;
+    private volatile int maxConnectionsPerHost_ = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private volatile int maxTotalConnections_ = DEFAULT_MAX_TOTAL_CONNECTIONS;
+    private volatile int openConnections_;
+
+    private final Queue<Runnable> tasks_ = new ConcurrentLinkedQueue<Runnable>();
+    private Selector selector_;
+    private Thread ioThread_;
+    private boolean shutdown_;
+
+    // the following fields are used by the I/O thread only
+    private final Map<String, Route> routes_ = new HashMap<String, Route>();
+    private final Set<Connection> connections_ = new HashSet<Connection>();
+    private boolean stopping_;
+    private boolean dispatching_;
+    private long lastTimeoutCheck_;
+    private SSLContext sslContext_;
+    private boolean insecureSslContext_;
+
+    /**
+     * Creates a new connection.
+     * @param webClient the web client using this connection
+     */
+    public NioWebConnection(final WebClient webClient) {
+        WebAssert.notNull("webClient", webClient);
+        webClient_ = webClient;
+    }
+
+    /**
+     * Performs the request and waits for its response. The calling thread waits, but no other thread is held.
+     * {@inheritDoc}
+     */
+    public WebResponse getResponse(final WebRequestSettings settings) throws IOException {
+        final Future<WebResponse> future = getResponseAsync(settings);
+        try {
+            return future.get();
+        }
+        catch (final InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + settings.getUrl());
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            final IOException exception = new IOException(cause.getMessage());
+            exception.initCause(cause);
+            throw exception;
+        }
+    }
+
+    /**
+     * Issues the request and returns at once.
+     * @param settings the request, which must not be modified until the response has been received
+     * @return the future response
+     */
+    public Future<WebResponse> getResponseAsync(final WebRequestSettings settings) {
+        return getResponseAsync(settings, null);
+    }
+
+    /**
+     * Issues the request, returns at once and notifies the callback once the response has been received.
+     * The callback is notified from the I/O thread: it should hand long running work to another thread.
+     * Cancelling the future closes the connection used by the request.
+     * @param settings the request, which must not be modified until the response has been received
+     * @param callback the callback to notify, may be <tt>null</tt>
+     * @return the future response
+     */
+    public Future<WebResponse> getResponseAsync(final WebRequestSettings settings,
+            final AsynchronousWebConnection.Callback callback) {
+        final ResponseFuture future = new ResponseFuture(settings, callback);
+        final Exchange exchange;
+        try {
+            exchange = new Exchange(new Request(settings, webClient_), future);
+        }
+        catch (final IOException e) {
+            future.fail(e);
+            return future;
+        }
+        future.exchange_ = exchange;
+        try {
+            final boolean accepted = execute(new Runnable() {
+                public void run() {
+                    dispatch(exchange);
+                }
+            });
+            if (!accepted) {
+                future.fail(new IOException(SHUT_DOWN));
+            }
+        }
+        catch (final IOException e) {
+            future.fail(e);
+        }
+        return future;
+    }
+
+    /**
+     * Closes all the connections, fails the requests in flight and stops the I/O thread. No request can be
+     * issued afterwards.
+     */
+    public synchronized void shutdown() {
+        shutdown_ = true;
+        if (selector_ != null) {
+            selector_.wakeup();
+        }
+    }
+
+    /**
+     * Returns the maximal number of connections to a host that are open at the same time.
+     * @return the maximal number of connections per host
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost_;
+    }
+
+    /**
+     * Sets the maximal number of connections to a host that are open at the same time. The default value is
+     * {@value #DEFAULT_MAX_CONNECTIONS_PER_HOST}, as in the browsers.
+     * @param maxConnections the maximal number of connections per host
+     */
+    public void setMaxConnectionsPerHost(final int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Illegal value for maxConnections: " + maxConnections);
+        }
+        maxConnectionsPerHost_ = maxConnections;
+    }
+
+    /**
+     * Returns the maximal number of connections that are open at the same time.
+     * @return the maximal number of connections
+     */
+    public int getMaxTotalConnections() {
+        return maxTotalConnections_;
+    }
+
+    /**
+     * Sets the maximal number of connections that are open at the same time. The default value is
+     * {@value #DEFAULT_MAX_TOTAL_CONNECTIONS}.
+     * @param maxConnections the maximal number of connections
+     */
+    public void setMaxTotalConnections(final int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Illegal value for maxConnections: " + maxConnections);
+        }
+        maxTotalConnections_ = maxConnections;
+    }
+
+    /**
+     * Returns the number of connections currently open, including the ones kept alive for later requests.
+     * @return the number of open connections
+     */
+    public int getOpenConnections() {
+        return openConnections_;
+    }
+
+    /**
+     * Sets the maximal number of bytes of a response body that are kept in memory. Larger
+     * response bodies are written to a temporary file and read from it when needed.
+     * @param maxInMemory the maximal number of bytes kept in memory (must be &gt;= 0)
+     */
+    public void setMaxInMemory(final int maxInMemory) {
+        if (maxInMemory < 0) {
+            throw new IllegalArgumentException("Illegal value for maxInMemory: " + maxInMemory);
+        }
+        maxInMemory_ = maxInMemory;
+    }
+
+    /**
+     * Returns the maximal number of bytes of a response body that are kept in memory.
+     * @return the maximal number of bytes kept in memory
+     */
+    public int getMaxInMemory() {
+        return maxInMemory_;
+    }
+
+    /**
+     * Returns the timeout applying to the connection to the server and to each wait for data from it.
+     * @return the timeout in milliseconds, <tt>0</tt> for none
+     */
+    protected int getTimeout() {
+        return webClient_.getTimeout();
+    }
+
+    /**
+     * Constructs an appropriate WebResponse. It is called from the I/O thread.
+     * May be overridden by subclasses to return a specialized WebResponse.
+     * @param responseData Data that was send back
+     * @param loadTime How long the response took to be sent
+     * @param requestSettings the request settings used to get this response
+     * @return the new WebResponse
+     */
+    protected WebResponse newWebResponseInstance(final WebResponseData responseData, final long loadTime,
+            final WebRequestSettings requestSettings) {
+        return new WebResponseImpl(responseData, requestSettings, loadTime);
+    }
+
+    /**
+     * Has the specified task run by the I/O thread, starting it if needed.
+     * @param task the task
+     * @return <tt>false</tt> if this connection has been shut down
+     * @throws IOException if the selector can't be opened
+     */
+    private synchronized boolean execute(final Runnable task) throws IOException {
+        if (shutdown_) {
+            return false;
+        }
+        if (ioThread_ == null) {
+            selector_ = Selector.open();
+            ioThread_ = new Thread(new Runnable() {
+                public void run() {
+                    runIoLoop();
+                }
+            }, "HtmlUnit NIO connection");
+            ioThread_.setDaemon(true);
+            ioThread_.start();
+        }
+        tasks_.add(task);
+        selector_.wakeup();
+        return true;
+    }
+
+    private void runIoLoop() {
+        try {
+            while (runTasks()) {
+                selector_.select(connections_.isEmpty() ? 0 : TIMEOUT_CHECK_INTERVAL);
+                final Iterator<SelectionKey> keys = selector_.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    ((Connection) key.attachment()).selected(key);
+                }
+                checkTimeouts();
+            }
+        }
+        catch (final IOException e) {
+            LOG.error("The I/O thread failed", e);
+        }
+        catch (final RuntimeException e) {
+            LOG.error("The I/O thread failed", e);
+        }
+        finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Runs the tasks submitted to the I/O thread.
+     * @return <tt>false</tt> if this connection has been shut down
+     */
+    private boolean runTasks() {
+        Runnable task = tasks_.poll();
+        while (task != null) {
+            try {
+                task.run();
+            }
+            catch (final RuntimeException e) {
+                LOG.error("Task of the I/O thread failed", e);
+            }
+            task = tasks_.poll();
+        }
+        synchronized (this) {
+            return !shutdown_;
+        }
+    }
+
+    private void closeAll() {
+        synchronized (this) {
+            shutdown_ = true;
+        }
+        stopping_ = true;
+        runTasks();
+        final IOException exception = new IOException(SHUT_DOWN);
+        for (final Connection connection : new ArrayList<Connection>(connections_)) {
+            connection.failed(exception, false);
+        }
+        for (final Route route : routes_.values()) {
+            for (final Exchange exchange : route.waiting_) {
+                exchange.fail(exception);
+            }
+        }
+        routes_.clear();
+        try {
+            selector_.close();
+        }
+        catch (final IOException e) {
+            LOG.debug("Failed to close the selector", e);
+        }
+    }
+
+    private void checkTimeouts() {
+        final long now = System.currentTimeMillis();
+        if (now - lastTimeoutCheck_ < TIMEOUT_CHECK_INTERVAL) {
+            return;
+        }
+        lastTimeoutCheck_ = now;
+        final int timeout = getTimeout();
+        for (final Connection connection : new ArrayList<Connection>(connections_)) {
+            connection.checkTimeout(now, timeout);
+        }
+    }
+
+    /**
+     * Sends the request of the exchange through a connection of its route, or has it wait for one.
+     * @param exchange the exchange
+     */
+    private void dispatch(final Exchange exchange) {
+        if (exchange.future_.isDone()) {
+            return;
+        }
+        if (stopping_) {
+            exchange.fail(new IOException(SHUT_DOWN));
+            return;
+        }
+        exchange.queued_ = System.nanoTime();
+        Route route = routes_.get(exchange.request_.routeKey_);
+        if (route == null) {
+            route = new Route(exchange.request_.routeKey_);
+            routes_.put(route.key_, route);
+        }
+        if (route.waiting_.isEmpty() && canStart(route)) {
+            start(route, exchange);
+        }
+        else {
+            route.waiting_.add(exchange);
+        }
+    }
+
+    private boolean canStart(final Route route) {
+        if (!route.idle_.isEmpty()) {
+            return true;
+        }
+        if (route.open_ >= maxConnectionsPerHost_) {
+            return false;
+        }
+        return connections_.size() < maxTotalConnections_ || closeIdleConnection();
+    }
+
+    private void start(final Route route, final Exchange exchange) {
+        if (!route.idle_.isEmpty()) {
+            // the most recently used connection is the least likely to have been closed by the server
+            route.idle_.removeLast().send(exchange, true);
+            return;
+        }
+        final Connection connection;
+        try {
+            connection = new Connection(route, exchange.request_);
+        }
+        catch (final IOException e) {
+            exchange.fail(e);
+            removeIfUnused(route);
+            return;
+        }
+        connection.send(exchange, false);
+    }
+
+    /**
+     * Closes the connection kept alive the longest, to open one to another host.
+     * @return <tt>true</tt> if a connection has been closed
+     */
+    private boolean closeIdleConnection() {
+        Connection oldest = null;
+        for (final Route route : routes_.values()) {
+            if (!route.idle_.isEmpty()) {
+                final Connection connection = route.idle_.getFirst();
+                if (oldest == null || connection.idleSince_ < oldest.idleSince_) {
+                    oldest = connection;
+                }
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        final boolean dispatching = dispatching_;
+        dispatching_ = true;
+        try {
+            oldest.close();
+        }
+        finally {
+            dispatching_ = dispatching;
+        }
+        return true;
+    }
+
+    /**
+     * Starts the waiting requests which can get a connection, after one has been closed.
+     * @param route the route of the closed connection
+     */
+    private void connectionClosed(final Route route) {
+        if (stopping_ || dispatching_) {
+            return;
+        }
+        dispatching_ = true;
+        try {
+            dispatchWaiting(route);
+            for (final Route other : new ArrayList<Route>(routes_.values())) {
+                if (other != route) {
+                    dispatchWaiting(other);
+                }
+            }
+        }
+        finally {
+            dispatching_ = false;
+        }
+        removeIfUnused(route);
+    }
+
+    private void dispatchWaiting(final Route route) {
+        while (!route.waiting_.isEmpty()) {
+            final Exchange exchange = route.waiting_.getFirst();
+            if (!exchange.future_.isDone() && !canStart(route)) {
+                return;
+            }
+            route.waiting_.removeFirst();
+            if (!exchange.future_.isDone()) {
+                start(route, exchange);
+            }
+        }
+    }
+
+    private void removeIfUnused(final Route route) {
+        if (route.open_ == 0 && route.waiting_.isEmpty()) {
+            routes_.remove(route.key_);
+        }
+    }
+
+    /**
+     * Called when the response to the request of the exchange has been read, the connection being released.
+     * Either sends the request again with credentials or completes the exchange.
+     * @param exchange the exchange
+     */
+    private void responseReceived(final Exchange exchange) {
+        final ResponseParser parser = exchange.parser_;
+        final Request request = exchange.request_;
+        updateCookies(request, parser.headers_);
+
+        final int statusCode = parser.statusCode_;
+        final boolean retry;
+        if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
+            retry = authenticate(exchange, parser.headers_, false);
+        }
+        else if (statusCode == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED && !request.secure_) {
+            retry = authenticate(exchange, parser.headers_, true);
+        }
+        else {
+            retry = false;
+        }
+        if (retry || exchange.future_.isDone()) {
+            parser.discard();
+            exchange.parser_ = null;
+            exchange.received_ = false;
+            if (retry) {
+                dispatch(exchange);
+            }
+            return;
+        }
+
+        final WebResponse response;
+        try {
+            response = makeWebResponse(exchange);
+        }
+        catch (final IOException e) {
+            exchange.fail(e);
+            return;
+        }
+        catch (final RuntimeException e) {
+            exchange.fail(e);
+            return;
+        }
+        exchange.future_.complete(response);
+    }
+
+    private WebResponse makeWebResponse(final Exchange exchange) throws IOException {
+        final ResponseParser parser = exchange.parser_;
+        final int statusCode = parser.statusCode_;
+        String statusMessage = parser.statusMessage_;
+        if (statusMessage == null || statusMessage.length() == 0) {
+            statusMessage = HttpStatus.getStatusText(statusCode);
+        }
+        if (statusMessage == null) {
+            statusMessage = "Unknown status code";
+        }
+        final DownloadedContent content = parser.finish();
+        final WebResponseTimings timings = exchange.timings_;
+        timings.setBodyComplete(TimingConnectionManager.toMillis(System.nanoTime() - exchange.start_));
+
+        final WebResponseData responseData = new WebResponseData(content, statusCode, statusMessage, parser.headers_);
+        responseData.setTimings(timings);
+        final Request request = exchange.request_;
+        responseData.setRequestCredentials(request.getHeader("Authorization") != null, request.withCookies_);
+        final long loadTime = System.currentTimeMillis() - exchange.startTime_;
+        return newWebResponseInstance(responseData, loadTime, request.settings_);
+    }
+
+    /**
+     * Returns the value of the <tt>Cookie</tt> header to send with the request.
+     * @param request the request
+     * @return the header value, <tt>null</tt> if no cookie applies
+     */
+    private String getCookieHeader(final Request request) {
+        final CookieManager cookieManager = webClient_.getCookieManager();
+        if (!cookieManager.isCookiesEnabled()) {
+            return null;
+        }
+        final Set<Cookie> cookies = cookieManager.getCookies(request.cookieUrl_);
+        if (cookies.isEmpty()) {
+            return null;
+        }
+        return getCookieSpec().formatCookies(Cookie.toHttpClient(cookies));
+    }
+
+    /**
+     * Adds to the cookie manager the cookies set by a response, and removes the ones it expires.
+     * @param request the request
+     * @param headers the headers of the response
+     */
+    private void updateCookies(final Request request, final List<NameValuePair> headers) {
+        final CookieManager cookieManager = webClient_.getCookieManager();
+        if (!cookieManager.isCookiesEnabled()) {
+            return;
+        }
+        final CookieSpec spec = getCookieSpec();
+        final String path = request.cookieUrl_.getPath();
+        final List<org.apache.commons.httpclient.Cookie> received
+            = new ArrayList<org.apache.commons.httpclient.Cookie>();
+        for (final NameValuePair header : headers) {
+            if (!"Set-Cookie".equalsIgnoreCase(header.getName())) {
+                continue;
+            }
+            try {
+                final org.apache.commons.httpclient.Cookie[] cookies = spec.parse(request.host_, request.port_,
+                    path, request.secure_, new Header(header.getName(), header.getValue()));
+                for (final org.apache.commons.httpclient.Cookie cookie : cookies) {
+                    spec.validate(request.host_, request.port_, path, request.secure_, cookie);
+                    received.add(cookie);
+                }
+            }
+            catch (final MalformedCookieException e) {
+                LOG.warn("Cookie rejected: \"" + header.getValue() + "\". " + e.getMessage());
+            }
+        }
+        HttpWebConnection.updateCookies(cookieManager, received);
+    }
+
+    private static CookieSpec getCookieSpec() {
+        return CookiePolicy.getCookieSpec(CookieManager.HTMLUNIT_COOKIE_POLICY);
+    }
+
+    /**
+     * Answers the authentication challenges of a <tt>401</tt> or <tt>407</tt> response, giving to the request
+     * the header to send it again with.
+     * @param exchange the exchange
+     * @param headers the headers of the response
+     * @param proxy whether the proxy or the server requires the authentication
+     * @return <tt>true</tt> if the request should be sent again
+     */
+    private boolean authenticate(final Exchange exchange, final List<NameValuePair> headers, final boolean proxy) {
+        if (++exchange.authentications_ > MAX_AUTHENTICATIONS) {
+            return false;
+        }
+        final Request request = exchange.request_;
+        CredentialsProvider provider = request.settings_.getCredentialsProvider();
+        if (provider == null) {
+            provider = webClient_.getCredentialsProvider();
+        }
+        if (provider == null) {
+            return false;
+        }
+        final String challengeName = proxy ? "Proxy-Authenticate" : "WWW-Authenticate";
+        final List<Header> challengeHeaders = new ArrayList<Header>();
+        for (final NameValuePair header : headers) {
+            if (challengeName.equalsIgnoreCase(header.getName())) {
+                challengeHeaders.add(new Header(header.getName(), header.getValue()));
+            }
+        }
+        final Map< ? , ? > challenges;
+        try {
+            challenges = AuthChallengeParser.parseChallenges(
+                challengeHeaders.toArray(new Header[challengeHeaders.size()]));
+        }
+        catch (final MalformedChallengeException e) {
+            LOG.warn("Invalid authentication challenge: " + e.getMessage());
+            return false;
+        }
+        final String host = proxy ? request.proxyHost_ : request.host_;
+        final int port = proxy ? request.proxyPort_ : request.port_;
+        for (final Object id : AuthPolicy.getDefaultAuthPrefs()) {
+            final String challenge = (String) challenges.get(((String) id).toLowerCase());
+            if (challenge == null) {
+                continue;
+            }
+            final AuthScheme scheme = AuthPolicy.getAuthScheme((String) id);
+            if (scheme.isConnectionBased()) {
+                LOG.warn("Authentication scheme " + id + " isn't supported by " + getClass().getSimpleName());
+                continue;
+            }
+            try {
+                scheme.processChallenge(challenge);
+                final Credentials credentials = provider.getCredentials(scheme, host, port, proxy);
+                if (credentials != null) {
+                    final String value = scheme.authenticate(credentials, request.toHttpMethod(proxy));
+                    if (proxy) {
+                        request.proxyAuthorization_ = value;
+                    }
+                    else {
+                        request.setHeader("Authorization", value);
+                    }
+                    return true;
+                }
+            }
+            catch (final MalformedChallengeException e) {
+                LOG.warn("Invalid authentication challenge: " + e.getMessage());
+            }
+            catch (final AuthenticationException e) {
+                LOG.warn("Failed to authenticate: " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    private SSLContext getSslContext() throws IOException {
+        // WebClient.setUseInsecureSSL() registers its socket factory for https
+        final boolean insecure =
+            Protocol.getProtocol("https").getSocketFactory() instanceof InsecureSSLProtocolSocketFactory;
+        if (sslContext_ == null || insecure != insecureSslContext_) {
+            try {
+                final SSLContext context = SSLContext.getInstance("TLS");
+                if (insecure) {
+                    context.init(null, new TrustManager[] {new InsecureTrustManager()}, null);
+                }
+                else {
+                    context.init(null, null, null);
+                }
+                sslContext_ = context;
+                insecureSslContext_ = insecure;
+            }
+            catch (final GeneralSecurityException e) {
+                final IOException exception = new IOException("Unable to initialize SSL: " + e.getMessage());
+                exception.initCause(e);
+                throw exception;
+            }
+        }
+        return sslContext_;
+    }
+
+    /**
+     * Returns a buffer in write mode with at least the specified capacity, holding the content of the
+     * provided buffer.
+     */
+    private static ByteBuffer ensureCapacity(final ByteBuffer buffer, final int capacity) {
+        if (buffer.capacity() >= capacity) {
+            return buffer;
+        }
+        final ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    /**
+     * The connections to a host (or through a proxy) and the requests waiting for one.
+     */
+    private static final class Route {
+        private final String key_;
+        private final LinkedList<Connection> idle_ = new LinkedList<Connection>();
+        private final LinkedList<Exchange> waiting_ = new LinkedList<Exchange>();
+        private int open_;
+
+        private Route(final String key) {
+            key_ = key;
+        }
+    }
+
+    /**
+     * A request issued through this connection, until its response has been received.
+     */
+    private static final class Exchange {
+        private final Request request_;
+        private final ResponseFuture future_;
+        private final WebResponseTimings timings_ = new WebResponseTimings();
+        private final long startTime_ = System.currentTimeMillis();
+        private final long start_ = System.nanoTime();
+        private long queued_;
+        private ResponseParser parser_;
+        private boolean received_;
+        private boolean retried_;
+        private int authentications_;
+
+        private Exchange(final Request request, final ResponseFuture future) {
+            request_ = request;
+            future_ = future;
+        }
+
+        private void fail(final Throwable cause) {
+            if (parser_ != null) {
+                parser_.discard();
+            }
+            future_.fail(cause);
+        }
+    }
+
+    /**
+     * The future response of a request.
+     */
+    private final class ResponseFuture extends FutureTask<WebResponse> {
+        private final WebRequestSettings settings_;
+        private final AsynchronousWebConnection.Callback callback_;
+        private volatile Exchange exchange_;
+
+        private ResponseFuture(final WebRequestSettings settings, final AsynchronousWebConnection.Callback callback) {
+            super(NOT_CALLED);
+            settings_ = settings;
+            callback_ = callback;
+        }
+
+        private void complete(final WebResponse response) {
+            set(response);
+        }
+
+        private void fail(final Throwable cause) {
+            setException(cause);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                final Exchange exchange = exchange_;
+                if (exchange != null) {
+                    try {
+                        execute(new Runnable() {
+                            public void run() {
+                                abort(exchange);
+                            }
+                        });
+                    }
+                    catch (final IOException e) {
+                        LOG.debug("Failed to abort " + settings_.getUrl(), e);
+                    }
+                }
+            }
+            else if (callback_ != null) {
+                notifyCallback();
+            }
+        }
+
+        private void notifyCallback() {
+            try {
+                final WebResponse response;
+                try {
+                    response = get();
+                }
+                catch (final ExecutionException e) {
+                    callback_.failed(settings_, e.getCause());
+                    return;
+                }
+                catch (final InterruptedException e) {
+                    callback_.failed(settings_, e);
+                    return;
+                }
+                callback_.completed(settings_, response);
+            }
+            catch (final RuntimeException e) {
+                LOG.error("Callback failed for " + settings_.getUrl(), e);
+            }
+        }
+    }
+
+    /**
+     * Stops the exchange of a cancelled request.
+     * @param exchange the exchange
+     */
+    private void abort(final Exchange exchange) {
+        for (final Connection connection : connections_) {
+            if (connection.exchange_ == exchange) {
+                connection.exchange_ = null;
+                connection.close();
+                break;
+            }
+        }
+        if (exchange.parser_ != null) {
+            exchange.parser_.discard();
+        }
+    }
+
+    /**
+     * A non-blocking connection to a server or a proxy, carrying one request at a time.
+     */
+    private final class Connection {
+        private final Route route_;
+        private final SocketChannel channel_;
+        private final SelectionKey key_;
+        private final boolean tunnel_;
+        private final String host_;
+        private final int port_;
+        private final long connectStart_ = System.nanoTime();
+        private boolean connected_;
+        private boolean secure_;
+        private boolean closed_;
+        private boolean inputClosed_;
+        private boolean pumping_;
+        private boolean reused_;
+        private long lastActivity_ = System.currentTimeMillis();
+        private long idleSince_;
+        private Exchange exchange_;
+
+        /** The received bytes, not yet decrypted when secure. */
+        private ByteBuffer netIn_ = ByteBuffer.allocate(BUFFER_SIZE);
+        /** The decrypted received bytes. */
+        private ByteBuffer appIn_;
+        /** The bytes to write to the socket, in read mode. */
+        private ByteBuffer netOut_ = ByteBuffer.allocate(0);
+        /** The bytes to encrypt, in read mode. */
+        private ByteBuffer out_ = ByteBuffer.allocate(0);
+        private SSLEngine engine_;
+
+        private Connection(final Route route, final Request request) throws IOException {
+            route_ = route;
+            host_ = request.host_;
+            port_ = request.port_;
+            secure_ = request.secure_;
+            tunnel_ = request.secure_ && request.proxyHost_ != null;
+            channel_ = SocketChannel.open();
+            try {
+                channel_.configureBlocking(false);
+                channel_.socket().setTcpNoDelay(true);
+                channel_.connect(request.address_);
+                key_ = channel_.register(selector_, SelectionKey.OP_CONNECT, this);
+            }
+            catch (final IOException e) {
+                closeChannel();
+                throw e;
+            }
+            route.open_++;
+            connections_.add(this);
+            openConnections_ = connections_.size();
+        }
+
+        /**
+         * Starts sending the request of the exchange.
+         * @param exchange the exchange
+         * @param reused whether the connection has already been used by another request
+         */
+        private void send(final Exchange exchange, final boolean reused) {
+            exchange_ = exchange;
+            reused_ = reused;
+            lastActivity_ = System.currentTimeMillis();
+            final WebResponseTimings timings = exchange.timings_;
+            timings.setQueueWait(TimingConnectionManager.toMillis(System.nanoTime() - exchange.queued_));
+            timings.setConnectionReused(reused);
+            try {
+                if (connected_) {
+                    sendRequest();
+                    pump(false);
+                }
+                else if (channel_.finishConnect()) {
+                    connected();
+                    pump(false);
+                }
+            }
+            catch (final IOException e) {
+                failed(e, true);
+            }
+        }
+
+        private void selected(final SelectionKey key) {
+            try {
+                if (!key.isValid()) {
+                    return;
+                }
+                if (key.isConnectable()) {
+                    if (!channel_.finishConnect()) {
+                        return;
+                    }
+                    connected();
+                }
+                pump(key.isReadable());
+            }
+            catch (final IOException e) {
+                failed(e, true);
+            }
+            catch (final RuntimeException e) {
+                failed(e, false);
+            }
+        }
+
+        private void connected() throws IOException {
+            connected_ = true;
+            lastActivity_ = System.currentTimeMillis();
+            if (exchange_ != null) {
+                exchange_.timings_.setConnect(TimingConnectionManager.toMillis(System.nanoTime() - connectStart_));
+            }
+            if (tunnel_) {
+                exchange_.parser_ = new ResponseParser("CONNECT", maxInMemory_);
+                netOut_ = exchange_.request_.encodeConnect();
+            }
+            else {
+                if (secure_) {
+                    startTls();
+                }
+                sendRequest();
+            }
+        }
+
+        private void startTls() throws IOException {
+            engine_ = getSslContext().createSSLEngine(host_, port_);
+            engine_.setUseClientMode(true);
+            final int packetSize = engine_.getSession().getPacketBufferSize();
+            netIn_ = ensureCapacity(netIn_, packetSize);
+            appIn_ = ByteBuffer.allocate(engine_.getSession().getApplicationBufferSize());
+            netOut_ = ByteBuffer.allocate(packetSize);
+            netOut_.flip();
+            engine_.beginHandshake();
+        }
+
+        private void sendRequest() {
+            final Exchange exchange = exchange_;
+            final Request request = exchange.request_;
+            exchange.parser_ = new ResponseParser(request.method_, maxInMemory_);
+            final ByteBuffer data = request.encode(getCookieHeader(request));
+            if (engine_ == null) {
+                netOut_ = data;
+            }
+            else {
+                out_ = data;
+            }
+        }
+
+        /**
+         * Moves the data between the socket, the SSL engine and the response parser as far as possible.
+         * @param readable whether the socket has data to read
+         * @throws IOException if an I/O error occurs
+         */
+        private void pump(final boolean readable) throws IOException {
+            if (pumping_) {
+                // a request has been sent from the loop below, which will write it
+                return;
+            }
+            pumping_ = true;
+            try {
+                if (readable) {
+                    read();
+                }
+                boolean progress = true;
+                while (progress && !closed_) {
+                    progress = engine_ != null && unwrap();
+                    progress = deliver() || progress;
+                    progress = !closed_ && write() || progress;
+                }
+            }
+            finally {
+                pumping_ = false;
+            }
+            if (closed_) {
+                return;
+            }
+            if (inputClosed_) {
+                endOfInput();
+                return;
+            }
+            int ops = SelectionKey.OP_READ;
+            if (netOut_.hasRemaining()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key_.interestOps(ops);
+        }
+
+        private void read() throws IOException {
+            if (!netIn_.hasRemaining()) {
+                return;
+            }
+            final int read = channel_.read(netIn_);
+            if (read < 0) {
+                inputClosed_ = true;
+            }
+            else if (read > 0) {
+                lastActivity_ = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Decrypts the received bytes.
+         * @return whether some bytes have been consumed or produced
+         * @throws IOException if the data can't be decrypted
+         */
+        private boolean unwrap() throws IOException {
+            boolean progress = false;
+            boolean underflow = false;
+            netIn_.flip();
+            try {
+                while (netIn_.hasRemaining()) {
+                    progress = runDelegatedTasks() || progress;
+                    if (engine_.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                        break;
+                    }
+                    final SSLEngineResult result = engine_.unwrap(netIn_, appIn_);
+                    final boolean moved = result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+                    progress = moved || progress;
+                    final SSLEngineResult.Status status = result.getStatus();
+                    if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        if (appIn_.position() > 0) {
+                            break; // the parser has to consume the decrypted bytes first
+                        }
+                        appIn_ = ByteBuffer.allocate(
+                            Math.max(2 * appIn_.capacity(), engine_.getSession().getApplicationBufferSize()));
+                    }
+                    else if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        underflow = true;
+                        break;
+                    }
+                    else if (status == SSLEngineResult.Status.CLOSED) {
+                        inputClosed_ = true;
+                        break;
+                    }
+                    else if (!moved) {
+                        break;
+                    }
+                }
+            }
+            finally {
+                netIn_.compact();
+            }
+            if (underflow) {
+                netIn_ = ensureCapacity(netIn_, engine_.getSession().getPacketBufferSize());
+            }
+            return progress;
+        }
+
+        /**
+         * Writes the pending bytes to the socket, encrypting them first when secure.
+         * @return whether some bytes have been written or encrypted
+         * @throws IOException if the bytes can't be written
+         */
+        private boolean write() throws IOException {
+            boolean progress = false;
+            while (true) {
+                if (netOut_.hasRemaining()) {
+                    if (channel_.write(netOut_) > 0) {
+                        progress = true;
+                        lastActivity_ = System.currentTimeMillis();
+                    }
+                    if (netOut_.hasRemaining()) {
+                        return progress; // the socket buffer is full, wait until it is writable
+                    }
+                }
+                if (engine_ == null || !wrap()) {
+                    return progress;
+                }
+                progress = true;
+            }
+        }
+
+        /**
+         * Encrypts the pending handshake or application data, the previously encrypted bytes having been written.
+         * @return whether something has been done
+         * @throws IOException if the data can't be encrypted
+         */
+        private boolean wrap() throws IOException {
+            if (runDelegatedTasks()) {
+                return true;
+            }
+            final HandshakeStatus handshakeStatus = engine_.getHandshakeStatus();
+            if (handshakeStatus == HandshakeStatus.NEED_UNWRAP
+                    || (handshakeStatus != HandshakeStatus.NEED_WRAP && !out_.hasRemaining())) {
+                return false;
+            }
+            netOut_.clear();
+            final SSLEngineResult result = engine_.wrap(out_, netOut_);
+            netOut_.flip();
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut_ = ByteBuffer.allocate(2 * netOut_.capacity());
+                netOut_.flip();
+                return true;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("The SSL connection to " + host_ + " has been closed");
+            }
+            return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+
+        private boolean runDelegatedTasks() {
+            if (engine_.getHandshakeStatus() != HandshakeStatus.NEED_TASK) {
+                return false;
+            }
+            Runnable task = engine_.getDelegatedTask();
+            while (task != null) {
+                task.run();
+                task = engine_.getDelegatedTask();
+            }
+            return true;
+        }
+
+        /**
+         * Hands the received bytes to the parser of the current response.
+         * @return whether some bytes have been consumed
+         * @throws IOException if the response is invalid
+         */
+        private boolean deliver() throws IOException {
+            final ByteBuffer input = engine_ == null ? netIn_ : appIn_;
+            if (input.position() == 0) {
+                return false;
+            }
+            final Exchange exchange = exchange_;
+            if (exchange == null || exchange.parser_ == null) {
+                // the server sends data without having been asked to, don't trust this connection anymore
+                input.clear();
+                close();
+                return false;
+            }
+            input.flip();
+            exchange.received_ = true;
+            final ResponseParser parser = exchange.parser_;
+            final boolean complete = parser.parse(input);
+            if (parser.headersComplete_ && exchange.timings_.getFirstByte() < 0) {
+                exchange.timings_.setFirstByte(TimingConnectionManager.toMillis(System.nanoTime() - exchange.start_));
+            }
+            final boolean unexpectedData = input.hasRemaining();
+            input.clear();
+            if (complete) {
+                responseReceived(exchange, parser.isKeepAlive() && !unexpectedData);
+            }
+            return true;
+        }
+
+        /**
+         * Called when the response has been read.
+         * @param exchange the exchange
+         * @param reusable whether the connection can be used by another request
+         */
+        private void responseReceived(final Exchange exchange, final boolean reusable) {
+            if (tunnel_ && engine_ == null) {
+                tunnelResponseReceived(exchange, reusable);
+                return;
+            }
+            exchange_ = null;
+            if (reusable) {
+                release();
+            }
+            else {
+                close();
+            }
+            NioWebConnection.this.responseReceived(exchange);
+        }
+
+        private void tunnelResponseReceived(final Exchange exchange, final boolean reusable) {
+            final ResponseParser parser = exchange.parser_;
+            parser.discard();
+            if (parser.statusCode_ / 100 == 2) {
+                try {
+                    startTls();
+                }
+                catch (final IOException e) {
+                    failed(e, false);
+                    return;
+                }
+                sendRequest();
+                return;
+            }
+            if (parser.statusCode_ == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED
+                    && authenticate(exchange, parser.headers_, true)) {
+                if (reusable) {
+                    exchange.parser_ = new ResponseParser("CONNECT", maxInMemory_);
+                    netOut_ = exchange.request_.encodeConnect();
+                }
+                else {
+                    exchange_ = null;
+                    close();
+                    exchange.parser_ = null;
+                    exchange.received_ = false;
+                    dispatch(exchange);
+                }
+                return;
+            }
+            exchange_ = null;
+            close();
+            exchange.fail(new IOException("Unable to tunnel through proxy. Proxy returns \""
+                + parser.statusCode_ + " " + parser.statusMessage_ + "\""));
+        }
+
+        private void endOfInput() {
+            final Exchange exchange = exchange_;
+            if (exchange == null) {
+                close(); // a connection kept alive has been closed by the server
+                return;
+            }
+            if (exchange.parser_ != null && exchange.parser_.endOfInput()) {
+                responseReceived(exchange, false);
+                return;
+            }
+            if (exchange.received_) {
+                failed(new IOException("The server " + host_ + " closed the connection before the end of the "
+                    + "response"), false);
+            }
+            else {
+                failed(new NoHttpResponseException("The server " + host_ + " failed to respond"), true);
+            }
+        }
+
+        /**
+         * Puts the connection back in the pool or hands it to a waiting request.
+         */
+        private void release() {
+            while (!route_.waiting_.isEmpty()) {
+                final Exchange next = route_.waiting_.removeFirst();
+                if (!next.future_.isDone()) {
+                    send(next, true);
+                    return;
+                }
+            }
+            idleSince_ = System.currentTimeMillis();
+            route_.idle_.add(this);
+        }
+
+        private void checkTimeout(final long now, final int timeout) {
+            if (exchange_ == null) {
+                if (now - idleSince_ > IDLE_TIMEOUT) {
+                    close();
+                }
+            }
+            else if (timeout > 0 && now - lastActivity_ > timeout) {
+                final String message = connected_ ? "Read timed out" : "connect timed out";
+                failed(new SocketTimeoutException(message), false);
+            }
+        }
+
+        /**
+         * Closes the connection after a failure, sending the request again on a new connection if the
+         * connection has been kept alive and closed by the server before it could answer.
+         * @param cause the failure
+         * @param retryable whether the request can be sent again
+         */
+        private void failed(final Exception cause, final boolean retryable) {
+            final Exchange exchange = exchange_;
+            exchange_ = null;
+            close();
+            if (exchange == null) {
+                return;
+            }
+            if (retryable && reused_ && !exchange.received_ && !exchange.retried_) {
+                LOG.debug("Connection kept alive has been closed, sending " + exchange.request_.settings_.getUrl()
+                    + " again", cause);
+                exchange.retried_ = true;
+                if (exchange.parser_ != null) {
+                    exchange.parser_.discard();
+                    exchange.parser_ = null;
+                }
+                dispatch(exchange);
+            }
+            else {
+                exchange.fail(cause);
+            }
+        }
+
+        private void close() {
+            if (closed_) {
+                return;
+            }
+            closed_ = true;
+            key_.cancel();
+            closeChannel();
+            if (exchange_ != null && exchange_.parser_ != null) {
+                exchange_.parser_.discard();
+            }
+            exchange_ = null;
+            route_.idle_.remove(this);
+            route_.open_--;
+            connections_.remove(this);
+            openConnections_ = connections_.size();
+            connectionClosed(route_);
+        }
+
+        private void closeChannel() {
+            try {
+                channel_.close();
+            }
+            catch (final IOException e) {
+                LOG.debug("Failed to close the connection to " + host_, e);
+            }
+        }
+    }
+
+    /**
+     * A request as sent on the wire.
+     */
+    private static final class Request {
+        private final WebRequestSettings settings_;
+        private final String method_;
+        private final boolean secure_;
+        private final String host_;
+        private final int port_;
+        private final String hostHeader_;
+        private final String path_;
+        private final String query_;
+        private final String proxyHost_;
+        private final int proxyPort_;
+        private final InetSocketAddress address_;
+        private final String routeKey_;
+        private final URL cookieUrl_;
+        private final List<NameValuePair> headers_ = new ArrayList<NameValuePair>();
+        private final byte[] body_;
+        private String proxyAuthorization_;
+        private boolean withCookies_;
+
+        /**
+         * Prepares the request. The host name (of the proxy, if any) is resolved here, in the calling thread.
+         * @param settings the request settings
+         * @param webClient the web client
+         * @throws IOException if the request can't be prepared
+         */
+        private Request(final WebRequestSettings settings, final WebClient webClient) throws IOException {
+            settings_ = settings;
+            final URL url = UrlUtils.encodeUrl(settings.getUrl(), false);
+            secure_ = "https".equals(url.getProtocol());
+            if (!secure_ && !"http".equals(url.getProtocol())) {
+                throw new IOException("Unsupported protocol: " + url.getProtocol());
+            }
+            host_ = url.getHost();
+            if (url.getPort() == -1) {
+                port_ = url.getDefaultPort();
+                hostHeader_ = host_;
+            }
+            else {
+                port_ = url.getPort();
+                hostHeader_ = host_ + ':' + port_;
+            }
+            path_ = url.getPath().length() == 0 ? "/" : url.getPath();
+            final HttpMethod method = settings.getHttpMethod();
+            method_ = method.name();
+            final boolean enclosingEntity = method == HttpMethod.POST || method == HttpMethod.PUT;
+            if (!enclosingEntity && !settings.getRequestParameters().isEmpty()) {
+                query_ = EncodingUtil.formUrlEncode(NameValuePair.toHttpClient(settings.getRequestParameters()),
+                    "UTF-8");
+            }
+            else {
+                query_ = url.getQuery();
+            }
+
+            proxyHost_ = settings.getProxyHost();
+            proxyPort_ = settings.getProxyPort();
+            if (proxyHost_ == null) {
+                address_ = new InetSocketAddress(host_, port_);
+                routeKey_ = url.getProtocol() + "://" + hostHeader_;
+            }
+            else {
+                address_ = new InetSocketAddress(proxyHost_, proxyPort_);
+                routeKey_ = url.getProtocol() + "://" + hostHeader_ + " via " + proxyHost_ + ':' + proxyPort_;
+            }
+            if (address_.isUnresolved()) {
+                throw new UnknownHostException(address_.getHostName());
+            }
+            cookieUrl_ = HttpWebConnection.getCookieUrl(settings);
+
+            headers_.add(new NameValuePair("Host", hostHeader_));
+            headers_.add(new NameValuePair("User-Agent", webClient.getBrowserVersion().getUserAgent()));
+            final Map<String, String> additionalHeaders = settings.getAdditionalHeaders();
+            synchronized (additionalHeaders) {
+                for (final Map.Entry<String, String> entry : additionalHeaders.entrySet()) {
+                    setHeader(entry.getKey(), entry.getValue());
+                }
+            }
+            if (getHeader("Accept-Encoding") == null) {
+                headers_.add(new NameValuePair("Accept-Encoding", "gzip, deflate"));
+            }
+            body_ = enclosingEntity ? buildBody(webClient) : null;
+        }
+
+        private byte[] buildBody(final WebClient webClient) throws IOException {
+            final String charset = settings_.getCharset();
+            final List<NameValuePair> parameters = settings_.getRequestParameters();
+            final FormEncodingType encodingType = settings_.getEncodingType();
+            if (FormEncodingType.URL_ENCODED == encodingType && "POST".equals(method_) && !parameters.isEmpty()) {
+                if (getHeader("Content-Type") == null) {
+                    headers_.add(new NameValuePair("Content-Type", "application/x-www-form-urlencoded"));
+                }
+                return EncodingUtil.getAsciiBytes(
+                    EncodingUtil.formUrlEncode(NameValuePair.toHttpClient(parameters), charset));
+            }
+            if (FormEncodingType.MULTIPART == encodingType) {
+                final MultipartRequestEntity entity = new MultipartRequestEntity(
+                    HttpWebConnection.buildParts(settings_, webClient), new HttpMethodParams());
+                if (getHeader("Content-Type") == null) {
+                    headers_.add(new NameValuePair("Content-Type", entity.getContentType()));
+                }
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                entity.writeRequest(out);
+                return out.toByteArray();
+            }
+            if (settings_.getRequestBody() != null) {
+                return EncodingUtil.getBytes(settings_.getRequestBody(), charset);
+            }
+            return new byte[0];
+        }
+
+        private String getHeader(final String name) {
+            for (final NameValuePair header : headers_) {
+                if (name.equalsIgnoreCase(header.getName())) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+
+        private void setHeader(final String name, final String value) {
+            for (int i = 0; i < headers_.size(); i++) {
+                if (name.equalsIgnoreCase(headers_.get(i).getName())) {
+                    headers_.set(i, new NameValuePair(name, value));
+                    return;
+                }
+            }
+            headers_.add(new NameValuePair(name, value));
+        }
+
+        /**
+         * Encodes the request.
+         * @param cookieHeader the value of the <tt>Cookie</tt> header, <tt>null</tt> for none
+         * @return the bytes to send, in a buffer in read mode
+         */
+        private ByteBuffer encode(final String cookieHeader) {
+            final StringBuilder head = new StringBuilder();
+            head.append(method_).append(' ');
+            if (proxyHost_ != null && !secure_) {
+                head.append("http://").append(hostHeader_);
+            }
+            head.append(path_);
+            if (query_ != null) {
+                head.append('?').append(query_);
+            }
+            head.append(" HTTP/1.1\r\n");
+            for (final NameValuePair header : headers_) {
+                appendHeader(head, header.getName(), header.getValue());
+            }
+            withCookies_ = getHeader("Cookie") != null;
+            if (cookieHeader != null && !withCookies_) {
+                appendHeader(head, "Cookie", cookieHeader);
+                withCookies_ = true;
+            }
+            if (proxyAuthorization_ != null && !secure_) {
+                appendHeader(head, "Proxy-Authorization", proxyAuthorization_);
+            }
+            if (body_ != null) {
+                appendHeader(head, "Content-Length", String.valueOf(body_.length));
+            }
+            head.append("\r\n");
+            final byte[] headBytes = EncodingUtil.getBytes(head.toString(), HEADER_CHARSET);
+            final ByteBuffer buffer = ByteBuffer.allocate(headBytes.length + (body_ == null ? 0 : body_.length));
+            buffer.put(headBytes);
+            if (body_ != null) {
+                buffer.put(body_);
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * Encodes the request opening a tunnel through the proxy to the server.
+         * @return the bytes to send, in a buffer in read mode
+         */
+        private ByteBuffer encodeConnect() {
+            final String authority = host_ + ':' + port_;
+            final StringBuilder head = new StringBuilder();
+            head.append("CONNECT ").append(authority).append(" HTTP/1.1\r\n");
+            appendHeader(head, "Host", authority);
+            appendHeader(head, "User-Agent", getHeader("User-Agent"));
+            if (proxyAuthorization_ != null) {
+                appendHeader(head, "Proxy-Authorization", proxyAuthorization_);
+            }
+            head.append("\r\n");
+            return ByteBuffer.wrap(EncodingUtil.getBytes(head.toString(), HEADER_CHARSET));
+        }
+
+        private static void appendHeader(final StringBuilder head, final String name, final String value) {
+            head.append(name).append(": ").append(value).append("\r\n");
+        }
+
+        /**
+         * Returns an HttpClient method describing this request, as needed by the authentication schemes.
+         * @param proxy whether the method is used to authenticate with the proxy
+         * @return the method
+         */
+        private HttpMethodBase toHttpMethod(final boolean proxy) {
+            final boolean connect = proxy && secure_;
+            final String name = connect ? "CONNECT" : method_;
+            final HttpMethodBase method = new HttpMethodBase() {
+                @Override
+                public String getName() {
+                    return name;
+                }
+            };
+            if (connect) {
+                method.setPath(host_ + ':' + port_);
+            }
+            else {
+                method.setPath(path_);
+                method.setQueryString(query_);
+            }
+            return method;
+        }
+    }
+
+    /**
+     * Reads a response incrementally, as its bytes are received.
+     */
+    private static final class ResponseParser {
+        private static final int STATUS_LINE = 0;
+        private static final int HEADERS = 1;
+        private static final int BODY = 2;
+        private static final int BODY_UNTIL_CLOSE = 3;
+        private static final int CHUNK_SIZE = 4;
+        private static final int CHUNK_DATA = 5;
+        private static final int CHUNK_END = 6;
+        private static final int TRAILERS = 7;
+        private static final int DONE = 8;
+
+        private final String method_;
+        private final int maxInMemory_;
+        private final ByteArrayOutputStream line_ = new ByteArrayOutputStream();
+        private int state_ = STATUS_LINE;
+        private String protocol_;
+        private int statusCode_;
+        private String statusMessage_;
+        private List<NameValuePair> headers_ = new ArrayList<NameValuePair>();
+        private boolean headersComplete_;
+        private boolean closeDelimited_;
+        private long remaining_;
+        private BodySink body_;
+
+        private ResponseParser(final String method, final int maxInMemory) {
+            method_ = method;
+            maxInMemory_ = maxInMemory;
+        }
+
+        /**
+         * Consumes the provided bytes.
+         * @param input the received bytes, in read mode
+         * @return <tt>true</tt> if the response is complete, the remaining bytes not belonging to it
+         * @throws IOException if the response is invalid or its body can't be stored
+         */
+        private boolean parse(final ByteBuffer input) throws IOException {
+            while (state_ != DONE && input.hasRemaining()) {
+                switch (state_) {
+                    case STATUS_LINE:
+                        final String statusLine = readLine(input);
+                        if (statusLine != null && statusLine.length() > 0) {
+                            parseStatusLine(statusLine);
+                            state_ = HEADERS;
+                        }
+                        break;
+
+                    case HEADERS:
+                        final String headerLine = readLine(input);
+                        if (headerLine != null) {
+                            if (headerLine.length() == 0) {
+                                headersRead();
+                            }
+                            else {
+                                addHeader(headerLine);
+                            }
+                        }
+                        break;
+
+                    case BODY:
+                    case CHUNK_DATA:
+                        final int length = (int) Math.min(remaining_, input.remaining());
+                        body_.write(input, length);
+                        remaining_ -= length;
+                        if (remaining_ == 0) {
+                            state_ = state_ == BODY ? DONE : CHUNK_END;
+                        }
+                        break;
+
+                    case BODY_UNTIL_CLOSE:
+                        body_.write(input, input.remaining());
+                        break;
+
+                    case CHUNK_SIZE:
+                        final String sizeLine = readLine(input);
+                        if (sizeLine != null) {
+                            remaining_ = parseChunkSize(sizeLine);
+                            state_ = remaining_ == 0 ? TRAILERS : CHUNK_DATA;
+                        }
+                        break;
+
+                    case CHUNK_END:
+                        if (readLine(input) != null) {
+                            state_ = CHUNK_SIZE;
+                        }
+                        break;
+
+                    case TRAILERS:
+                        final String trailer = readLine(input);
+                        if (trailer != null && trailer.length() == 0) {
+                            state_ = DONE;
+                        }
+                        break;
+
+                    default:
+                        throw new IllegalStateException("Unknown state: " + state_);
+                }
+            }
+            return state_ == DONE;
+        }
+
+        /**
+         * Called when the server has closed the connection.
+         * @return <tt>true</tt> if this completes the response, whose body was delimited by the end of the connection
+         */
+        private boolean endOfInput() {
+            if (state_ == BODY_UNTIL_CLOSE) {
+                state_ = DONE;
+                return true;
+            }
+            return false;
+        }
+
+        private String readLine(final ByteBuffer input) throws IOException {
+            while (input.hasRemaining()) {
+                final byte b = input.get();
+                if (b == '\n') {
+                    final String line = line_.toString(HEADER_CHARSET);
+                    line_.reset();
+                    if (line.endsWith("\r")) {
+                        return line.substring(0, line.length() - 1);
+                    }
+                    return line;
+                }
+                if (line_.size() >= MAX_LINE_LENGTH) {
+                    throw new IOException("Response line longer than " + MAX_LINE_LENGTH + " bytes");
+                }
+                line_.write(b);
+            }
+            return null;
+        }
+
+        private void parseStatusLine(final String line) throws IOException {
+            final int firstSpace = line.indexOf(' ');
+            if (!line.startsWith("HTTP/") || firstSpace == -1) {
+                throw new IOException("Invalid status line: " + line);
+            }
+            protocol_ = line.substring(0, firstSpace);
+            final String rest = line.substring(firstSpace + 1).trim();
+            final int secondSpace = rest.indexOf(' ');
+            final String code = secondSpace == -1 ? rest : rest.substring(0, secondSpace);
+            statusCode_ = NumberUtils.toInt(code, -1);
+            if (statusCode_ < 0) {
+                throw new IOException("Invalid status line: " + line);
+            }
+            statusMessage_ = secondSpace == -1 ? "" : rest.substring(secondSpace + 1).trim();
+        }
+
+        private void addHeader(final String line) {
+            final char first = line.charAt(0);
+            if ((first == ' ' || first == '\t') && !headers_.isEmpty()) {
+                // continuation of the previous header
+                final NameValuePair previous = headers_.remove(headers_.size() - 1);
+                headers_.add(new NameValuePair(previous.getName(), previous.getValue() + ' ' + line.trim()));
+                return;
+            }
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers_.add(new NameValuePair(line.substring(0, colon).trim(), line.substring(colon + 1).trim()));
+            }
+            else {
+                LOG.debug("Ignoring invalid header line: " + line);
+            }
+        }
+
+        private void headersRead() {
+            if (statusCode_ / 100 == 1 && statusCode_ != HttpStatus.SC_SWITCHING_PROTOCOLS) {
+                // interim response, the final one follows
+                headers_ = new ArrayList<NameValuePair>();
+                state_ = STATUS_LINE;
+                return;
+            }
+            headersComplete_ = true;
+            if (!hasBody()) {
+                state_ = DONE;
+                return;
+            }
+            body_ = new BodySink(maxInMemory_);
+            final String transferEncoding = getHeader("Transfer-Encoding");
+            if (transferEncoding != null && !"identity".equalsIgnoreCase(transferEncoding)) {
+                state_ = CHUNK_SIZE;
+                return;
+            }
+            remaining_ = NumberUtils.toLong(getHeader("Content-Length"), -1);
+            if (remaining_ == 0) {
+                state_ = DONE;
+            }
+            else if (remaining_ > 0) {
+                state_ = BODY;
+            }
+            else {
+                closeDelimited_ = true;
+                state_ = BODY_UNTIL_CLOSE;
+            }
+        }
+
+        private boolean hasBody() {
+            if ("HEAD".equals(method_) || statusCode_ == HttpStatus.SC_NO_CONTENT
+                    || statusCode_ == HttpStatus.SC_NOT_MODIFIED) {
+                return false;
+            }
+            return !"CONNECT".equals(method_) || statusCode_ / 100 != 2;
+        }
+
+        private static long parseChunkSize(final String line) throws IOException {
+            final int extension = line.indexOf(';');
+            final String size = (extension == -1 ? line : line.substring(0, extension)).trim();
+            try {
+                return Long.parseLong(size, 16);
+            }
+            catch (final NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+        }
+
+        private String getHeader(final String name) {
+            for (final NameValuePair header : headers_) {
+                if (name.equalsIgnoreCase(header.getName())) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Indicates if the connection can carry another request once this response has been read.
+         * @return <tt>true</tt> if the connection can be kept alive
+         */
+        private boolean isKeepAlive() {
+            if (closeDelimited_) {
+                return false;
+            }
+            final String connection = getHeader("Connection");
+            if ("HTTP/1.0".equals(protocol_)) {
+                return connection != null && connection.toLowerCase().indexOf("keep-alive") != -1;
+            }
+            return connection == null || connection.toLowerCase().indexOf("close") == -1;
+        }
+
+        /**
+         * Returns the received body.
+         * @return the body, <tt>null</tt> if the response has none
+         * @throws IOException if the body can't be stored
+         */
+        private DownloadedContent finish() throws IOException {
+            if (body_ == null) {
+                return null;
+            }
+            final BodySink body = body_;
+            body_ = null;
+            return body.finish();
+        }
+
+        /**
+         * Releases the body received so far, which isn't needed.
+         */
+        private void discard() {
+            if (body_ != null) {
+                body_.discard();
+                body_ = null;
+            }
+        }
+    }
+
+    /**
+     * Stores a response body, in memory while small, in a temporary file otherwise.
+     */
+    private static final class BodySink {
+        private final int maxInMemory_;
+        private ByteArrayOutputStream memory_ = new ByteArrayOutputStream();
+        private File file_;
+        private OutputStream fileStream_;
+
+        private BodySink(final int maxInMemory) {
+            maxInMemory_ = maxInMemory;
+        }
+
+        private void write(final ByteBuffer input, final int length) throws IOException {
+            if (file_ == null && memory_.size() + length > maxInMemory_) {
+                // too large to be kept in memory, write everything to a temporary file
+                // which is deleted when the response is cleaned up, as by HttpWebConnection
+                file_ = File.createTempFile("htmlunit", ".tmp");
+                file_.deleteOnExit();
+                try {
+                    fileStream_ = new FileOutputStream(file_);
+                    memory_.writeTo(fileStream_);
+                }
+                catch (final IOException e) {
+                    discard();
+                    throw e;
+                }
+                memory_ = null;
+            }
+            final OutputStream out = file_ == null ? memory_ : fileStream_;
+            out.write(input.array(), input.arrayOffset() + input.position(), length);
+            input.position(input.position() + length);
+        }
+
+        private DownloadedContent finish() throws IOException {
+            if (file_ == null) {
+                return new DownloadedContent.InMemory(memory_.toByteArray());
+            }
+            try {
+                fileStream_.close();
+            }
+            catch (final IOException e) {
+                file_.delete();
+                throw e;
+            }
+            return new DownloadedContent.OnFile(file_, true);
+        }
+
+        private void discard() {
+            memory_ = null;
+            if (file_ != null) {
+                IOUtils.closeQuietly(fileStream_);
+                file_.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.css.CSSStyleSheet;
+
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+
+/**
+ * <p>A {@link Cache} with a second tier on the file system, allowing to reuse cached responses across
+ * JVM runs. Responses are stored with their headers (including the validators used for revalidation),
+ * their decoded body and, for stylesheets, the parsed stylesheet in serialized form. Entries found on
+ * disk are promoted into the in-memory cache when they are requested. CSS snippets are only cached in
+ * memory.</p>
+ *
+ * <p>Compiled scripts are not stored: they are compiled again from the stored response body.</p>
+ *
+ * <p>Each body is written to a file of its own which is never modified afterwards. The entry itself is
+ * described by a file named after the MD5 hash of its URL which references the body file; it is written
+ * last, so that an entry is either complete or absent. The directory is bounded in size
+ * (see {@link #setMaxDiskSize(long)}), the least recently used entries being deleted first.</p>
+ *
+ * <p>A directory must be used by only one cache at a time: neither several caches of the same JVM nor
+ * several JVMs may use the same directory concurrently.</p>
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+public class PersistentCache extends Cache {
+
+    private static final long serialVersionUID = 4209817387407370484L;
+    private static final Log LOG = LogFactory.getLog(PersistentCache.class);
+
+    private static final int FORMAT_VERSION = 2;
+    private static final String META_SUFFIX = ".meta";
+    private static final String BODY_SUFFIX = ".body";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory_;
+
+    /** The maximum number of bytes used in the directory. */
+    private long maxDiskSize_ = 50 * 1024 * 1024;
+
+    /** The approximate number of bytes used in the directory, <tt>-1</tt> if unknown. */
+    private long diskSize_ = -1;
+
+    /**
+     * The names of the body files written for or read by the responses which may still be in use, so that
+     * a body isn't written again when only the freshness of its entry changes. All accesses have to be
+     * synchronized on this cache.
+     */
+    private transient Map<WebResponse, String> bodyFiles_;
+
+    /**
+     * The names of the body files read by the responses promoted from disk which may still be in use.
+     * These files are not deleted, even if their entry is. All accesses have to be synchronized on this cache.
+     */
+    private transient Map<WebResponse, String> liveBodyFiles_;
+
+    /**
+     * The content of an entry file.
+     */
+    private static final class Meta {
+        private long freshUntil_;
+        private String key_;
+        private int statusCode_;
+        private String statusMessage_;
+        private List<NameValuePair> headers_;
+        private String bodyFile_;
+        private CSSStyleSheet styleSheet_;
+    }
+
+    /**
+     * Creates a new cache storing its entries in the specified directory.
+     * @param directory the directory to use, created if it doesn't exist
+     * @throws IOException if the directory can't be created
+     */
+    public PersistentCache(final File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + directory);
+        }
+        directory_ = directory;
+    }
+
+    /**
+     * Returns the directory in which the entries are stored.
+     * @return the directory
+     */
+    public File getDirectory() {
+        return directory_;
+    }
+
+    /**
+     * Returns the maximum number of bytes used in the directory. The default is 50 MB.
+     * @return the maximum number of bytes used in the directory
+     */
+    public synchronized long getMaxDiskSize() {
+        return maxDiskSize_;
+    }
+
+    /**
+     * Sets the maximum number of bytes used in the directory. When a stored entry makes the directory
+     * exceed this size, the least recently used entries are deleted.
+     * @param maxDiskSize the maximum number of bytes (must be &gt;= 0)
+     */
+    public synchronized void setMaxDiskSize(final long maxDiskSize) {
+        if (maxDiskSize < 0) {
+            throw new IllegalArgumentException("Illegal value for maxDiskSize: " + maxDiskSize);
+        }
+        maxDiskSize_ = maxDiskSize;
+        trimIfNeeded();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected synchronized void entryStored(final String key, final WebResponse response, final Object value,
+            final long freshUntil) {
+        if (response == null) {
+            // a CSS snippet, only cached in memory
+            return;
+        }
+        final String name = DigestUtils.md5Hex(key);
+        try {
+            String bodyFile = getBodyFiles().get(response);
+            if (bodyFile == null || !new File(directory_, bodyFile).exists()) {
+                bodyFile = writeBody(name, response);
+            }
+            final CSSStyleSheet styleSheet;
+            if (value instanceof CSSStyleSheet && value instanceof Serializable) {
+                styleSheet = (CSSStyleSheet) value;
+            }
+            else {
+                styleSheet = null;
+            }
+            writeMeta(name, key, response, freshUntil, bodyFile, styleSheet);
+        }
+        catch (final IOException e) {
+            LOG.warn("Unable to store cache entry for " + key, e);
+        }
+        trimIfNeeded();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected synchronized void loadMissingEntry(final String key) {
+        final File metaFile = new File(directory_, DigestUtils.md5Hex(key) + META_SUFFIX);
+        if (!metaFile.exists()) {
+            return;
+        }
+        try {
+            final Meta meta = readMeta(metaFile, true);
+            if (meta == null || !key.equals(meta.key_)) {
+                return;
+            }
+            final File bodyFile = new File(directory_, meta.bodyFile_);
+            if (!bodyFile.exists()) {
+                return;
+            }
+            final DownloadedContent content = new DownloadedContent.OnFile(bodyFile);
+            final WebResponseData data = new WebResponseData(content, meta.statusCode_, meta.statusMessage_,
+                meta.headers_);
+            final WebResponse response = new WebResponseImpl(data, new WebRequestSettings(new URL(key)), 0);
+            getBodyFiles().put(response, meta.bodyFile_);
+            getLiveBodyFiles().put(response, meta.bodyFile_);
+            // the modification date of the entry file is used as last access date
+            metaFile.setLastModified(System.currentTimeMillis());
+
+            final Object value;
+            if (meta.styleSheet_ != null) {
+                value = meta.styleSheet_;
+            }
+            else {
+                value = response;
+            }
+            putEntry(key, response, value, meta.freshUntil_);
+        }
+        catch (final IOException e) {
+            LOG.warn("Unable to read cache entry for " + key, e);
+        }
+        catch (final ClassNotFoundException e) {
+            LOG.warn("Unable to read cache entry for " + key, e);
+        }
+    }
+
+    /**
+     * Clears the cache, in memory as well as on disk. The body files still read by responses in use are
+     * kept until they are not used anymore.
+     */
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        final File[] files = directory_.listFiles();
+        if (files != null) {
+            final Set<String> liveBodies = new HashSet<String>(getLiveBodyFiles().values());
+            for (final File file : files) {
+                final String fileName = file.getName();
+                if (fileName.endsWith(META_SUFFIX) || fileName.endsWith(TEMP_SUFFIX)
+                        || (fileName.endsWith(BODY_SUFFIX) && !liveBodies.contains(fileName))) {
+                    file.delete();
+                }
+            }
+        }
+        diskSize_ = -1;
+    }
+
+    private Map<WebResponse, String> getBodyFiles() {
+        if (bodyFiles_ == null) {
+            bodyFiles_ = new WeakHashMap<WebResponse, String>();
+        }
+        return bodyFiles_;
+    }
+
+    private Map<WebResponse, String> getLiveBodyFiles() {
+        if (liveBodyFiles_ == null) {
+            liveBodyFiles_ = new WeakHashMap<WebResponse, String>();
+        }
+        return liveBodyFiles_;
+    }
+
+    /**
+     * Writes the body of the specified response to a new file.
+     * @return the name of the file
+     */
+    private String writeBody(final String name, final WebResponse response) throws IOException {
+        final File bodyFile = File.createTempFile(name + '-', BODY_SUFFIX, directory_);
+        final InputStream body = response.getContentAsStream();
+        try {
+            final OutputStream bodyOut = new BufferedOutputStream(new FileOutputStream(bodyFile));
+            try {
+                if (body != null) {
+                    IOUtils.copy(body, bodyOut);
+                }
+            }
+            finally {
+                bodyOut.close();
+            }
+        }
+        catch (final IOException e) {
+            bodyFile.delete();
+            throw e;
+        }
+        finally {
+            IOUtils.closeQuietly(body);
+        }
+        getBodyFiles().put(response, bodyFile.getName());
+        addDiskSize(bodyFile.length());
+        return bodyFile.getName();
+    }
+
+    /**
+     * Writes the entry file, which makes the entry visible.
+     */
+    private void writeMeta(final String name, final String key, final WebResponse response, final long freshUntil,
+            final String bodyFile, final CSSStyleSheet styleSheet) throws IOException {
+        final File tempFile = File.createTempFile(name, TEMP_SUFFIX, directory_);
+        try {
+            final ObjectOutputStream out =
+                new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(freshUntil);
+                out.writeUTF(key);
+                out.writeInt(response.getStatusCode());
+                out.writeUTF(response.getStatusMessage());
+                final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+                for (final NameValuePair header : response.getResponseHeaders()) {
+                    // the body is stored decoded
+                    final String headerName = header.getName().trim();
+                    if (!"Content-Encoding".equalsIgnoreCase(headerName)
+                            && !"Content-Length".equalsIgnoreCase(headerName)) {
+                        headers.add(header);
+                    }
+                }
+                out.writeInt(headers.size());
+                for (final NameValuePair header : headers) {
+                    out.writeUTF(header.getName());
+                    out.writeUTF(header.getValue());
+                }
+                out.writeUTF(bodyFile);
+                out.writeObject(styleSheet);
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (final IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+
+        final File metaFile = new File(directory_, name + META_SUFFIX);
+        final long previousLength = metaFile.length();
+        if (tempFile.renameTo(metaFile)) {
+            addDiskSize(metaFile.length() - previousLength);
+        }
+        else {
+            // some platforms don't allow to rename over an existing file: drop the outdated entry
+            // instead, the next response stored for this URL will be written
+            tempFile.delete();
+            metaFile.delete();
+            addDiskSize(-previousLength);
+            LOG.debug("Unable to replace cache entry for " + key);
+        }
+    }
+
+    /**
+     * Reads an entry file.
+     * @param metaFile the entry file
+     * @param withStyleSheet whether the stylesheet has to be read as well
+     * @return the content of the file, <tt>null</tt> if it has been written in an other format
+     */
+    private static Meta readMeta(final File metaFile, final boolean withStyleSheet)
+        throws IOException, ClassNotFoundException {
+        final ObjectInputStream in =
+            new ObjectInputStream(new BufferedInputStream(new FileInputStream(metaFile)));
+        try {
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            final Meta meta = new Meta();
+            meta.freshUntil_ = in.readLong();
+            meta.key_ = in.readUTF();
+            meta.statusCode_ = in.readInt();
+            meta.statusMessage_ = in.readUTF();
+            final int headerCount = in.readInt();
+            meta.headers_ = new ArrayList<NameValuePair>(headerCount);
+            for (int i = 0; i < headerCount; i++) {
+                meta.headers_.add(new NameValuePair(in.readUTF(), in.readUTF()));
+            }
+            meta.bodyFile_ = in.readUTF();
+            if (withStyleSheet) {
+                meta.styleSheet_ = (CSSStyleSheet) in.readObject();
+            }
+            return meta;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private void addDiskSize(final long bytes) {
+        if (diskSize_ != -1) {
+            diskSize_ += bytes;
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries if the directory exceeds its maximum size. The directory
+     * is trimmed to three quarters of its maximum size, so that this doesn't happen for each stored entry.
+     */
+    private void trimIfNeeded() {
+        if (diskSize_ == -1) {
+            diskSize_ = 0;
+            final File[] files = directory_.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    diskSize_ += file.length();
+                }
+            }
+        }
+        if (diskSize_ <= maxDiskSize_) {
+            return;
+        }
+        final File[] files = directory_.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        final Map<File, String> metaFiles = new HashMap<File, String>();
+        final Set<String> liveBodies = new HashSet<String>(getLiveBodyFiles().values());
+        final Set<String> referencedBodies = new HashSet<String>(liveBodies);
+        for (final File file : files) {
+            if (file.getName().endsWith(META_SUFFIX)) {
+                String bodyFile = null;
+                try {
+                    final Meta meta = readMeta(file, false);
+                    if (meta != null) {
+                        bodyFile = meta.bodyFile_;
+                        referencedBodies.add(bodyFile);
+                    }
+                }
+                catch (final Exception e) {
+                    // unreadable, delete it as well
+                }
+                metaFiles.put(file, bodyFile);
+            }
+        }
+
+        long size = 0;
+        for (final File file : files) {
+            final String fileName = file.getName();
+            // the temporary files are leftovers of a crash, all writes are done while holding the lock
+            if (fileName.endsWith(TEMP_SUFFIX)
+                    || (fileName.endsWith(BODY_SUFFIX) && !referencedBodies.contains(fileName))) {
+                file.delete();
+            }
+            else {
+                size += file.length();
+            }
+        }
+
+        final List<File> leastRecentlyUsedFirst = new ArrayList<File>(metaFiles.keySet());
+        Collections.sort(leastRecentlyUsedFirst, new Comparator<File>() {
+            public int compare(final File file1, final File file2) {
+                return NumberUtils.compare(file1.lastModified(), file2.lastModified());
+            }
+        });
+        for (final File metaFile : leastRecentlyUsedFirst) {
+            if (size <= maxDiskSize_ / 4 * 3) {
+                break;
+            }
+            size -= metaFile.length();
+            metaFile.delete();
+            final String bodyFile = metaFiles.get(metaFile);
+            if (bodyFile != null && !liveBodies.contains(bodyFile)) {
+                final File file = new File(directory_, bodyFile);
+                size -= file.length();
+                file.delete();
+            }
+        }
+        diskSize_ = size;
+    }
+}
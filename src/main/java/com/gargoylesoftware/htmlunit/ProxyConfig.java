@@ -19,6 +19,8 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Pattern;
 
+import com.gargoylesoftware.htmlunit.javascript.ProxyAutoConfig;
+
 /**
  * Class which centralizes proxy configuration, in an effort to reduce clutter in the {@link WebClient}
  * class. One instance of this class exists for each <tt>WebClient</tt> instance.
@@ -36,6 +38,7 @@ public class ProxyConfig implements Serializable {
     private final Map<String, Pattern> proxyBypassHosts_;
     private String proxyAutoConfigUrl_;
     private String proxyAutoConfigContent_;
+    private transient ProxyAutoConfig proxyAutoConfig_;
 
     /**
      * Creates a new instance.
@@ -153,7 +156,20 @@ public class ProxyConfig implements Serializable {
      * Sets the proxy auto-config content.
      * @param proxyAutoConfigContent the proxy auto-config content
      */
-    protected void setProxyAutoConfigContent(final String proxyAutoConfigContent) {
+    protected synchronized void setProxyAutoConfigContent(final String proxyAutoConfigContent) {
         proxyAutoConfigContent_ = proxyAutoConfigContent;
+        proxyAutoConfig_ = null;
+    }
+
+    /**
+     * Returns the compiled proxy auto-config, which is compiled once for its content and remembers
+     * the proxies recently found.
+     * @return the compiled proxy auto-config, or <tt>null</tt> if the content hasn't been set
+     */
+    protected synchronized ProxyAutoConfig getProxyAutoConfig() {
+        if (proxyAutoConfig_ == null && proxyAutoConfigContent_ != null) {
+            proxyAutoConfig_ = ProxyAutoConfig.compile(proxyAutoConfigContent_);
+        }
+        return proxyAutoConfig_;
     }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Joins concurrent identical GET requests onto a single network request. This happens when several
+ * frames, windows or the {@link ResourcePrefetcher} request the same resource before the first response
+ * has been received and stored in the {@link Cache}.
+ *
+ * <p>The first request (the leader) is performed as usual; the requests arriving meanwhile wait for its
+ * response and reuse it if it is {@link Cache#isCacheable cacheable} for them. Otherwise, or if the
+ * leader failed, they are performed on their own.</p>
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+final class RequestCoalescer {
+
+    private static final Log LOG = LogFactory.getLog(RequestCoalescer.class);
+
+    private final ConcurrentMap<String, FutureTask<WebResponse>> inFlight_ =
+        new ConcurrentHashMap<String, FutureTask<WebResponse>>();
+
+    /**
+     * Retrieves the response for the specified request through the connection, sharing it with the
+     * identical requests performed at the same time.
+     * @param request the request
+     * @param connection the connection performing the request
+     * @param cache the cache, deciding if a response can be shared
+     * @return the response
+     * @throws IOException if an IO problem occurs
+     */
+    WebResponse getResponse(final WebRequestSettings request, final WebConnection connection, final Cache cache)
+        throws IOException {
+
+        if (request.getHttpMethod() != HttpMethod.GET || cache.isRevalidationRequested(request)) {
+            return connection.getResponse(request);
+        }
+
+        final String key = getKey(request);
+        final FutureTask<WebResponse> task = new FutureTask<WebResponse>(new Callable<WebResponse>() {
+            public WebResponse call() throws IOException {
+                return connection.getResponse(request);
+            }
+        });
+        final FutureTask<WebResponse> leader = inFlight_.putIfAbsent(key, task);
+        if (leader == null) {
+            try {
+                task.run();
+                return get(task);
+            }
+            finally {
+                inFlight_.remove(key, task);
+            }
+        }
+
+        LOG.debug("Joining in-flight request for " + request.getUrl());
+        WebResponse shared = null;
+        try {
+            shared = get(leader);
+        }
+        catch (final IOException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw e;
+            }
+            LOG.debug("Joined request failed, retrying " + request.getUrl(), e);
+        }
+        if (shared != null && cache.isCacheable(request, shared)) {
+            final WebResponse response = WebResponseFromCache.wrap(shared, request);
+            if (response != null) {
+                return response;
+            }
+        }
+        return connection.getResponse(request);
+    }
+
+    /**
+     * Returns the key identifying identical requests: the URL without fragment, the proxy, the credentials
+     * provider and the headers. The <tt>Referer</tt> header is ignored, as it differs between the frames
+     * referencing the same resource without affecting the response.
+     */
+    private static String getKey(final WebRequestSettings request) {
+        final StringBuilder key = new StringBuilder();
+        final String url = request.getUrl().toExternalForm();
+        final int hashIndex = url.indexOf('#');
+        key.append(hashIndex == -1 ? url : url.substring(0, hashIndex));
+        key.append('\n').append(request.getProxyHost()).append(':').append(request.getProxyPort());
+        key.append('\n').append(System.identityHashCode(request.getCredentialsProvider()));
+
+        final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        headers.putAll(request.getAdditionalHeaders());
+        headers.remove("Referer");
+        for (final Map.Entry<String, String> header : headers.entrySet()) {
+            key.append('\n').append(header.getKey().toLowerCase()).append(": ").append(header.getValue());
+        }
+        return key.toString();
+    }
+
+    private static WebResponse get(final FutureTask<WebResponse> task) throws IOException {
+        try {
+            return task.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
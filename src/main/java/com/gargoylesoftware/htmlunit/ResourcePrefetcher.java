@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Downloads in background threads the resources (scripts, stylesheets, frames) referenced by a page
+ * being parsed, so that the network round-trips overlap instead of being performed one after the other
+ * on the parser thread.
+ *
+ * <p>Prefetched responses are only handed out: the consumer still decides when (and if) the resource
+ * is used, so that the execution order is not affected. Responses that haven't been claimed
+ * when the page is {@link #discard(Page) discarded} are dropped; if they were cacheable, they
+ * remain available from the {@link Cache}.</p>
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+final class ResourcePrefetcher {
+
+    private static final Log LOG = LogFactory.getLog(ResourcePrefetcher.class);
+
+    private final WebClient webClient_;
+    private final ExecutorService executor_;
+    private final ConcurrentMap<String, Prefetch> pending_ = new ConcurrentHashMap<String, Prefetch>();
+
+    /**
+     * Creates a prefetcher using the specified number of threads.
+     * @param webClient the web client used to perform the requests
+     * @param threads the number of threads
+     */
+    ResourcePrefetcher(final WebClient webClient, final int threads) {
+        webClient_ = webClient;
+        executor_ = Executors.newFixedThreadPool(threads, new PrefetchThreadFactory());
+    }
+
+    /**
+     * Starts the download of the resource for the specified request, unless it is already being downloaded.
+     * @param request the request, which must not be modified afterwards
+     * @param page the page referencing the resource
+     */
+    void prefetch(final WebRequestSettings request, final Page page) {
+        final String key = request.getUrl().toExternalForm();
+        if (pending_.containsKey(key) || webClient_.getCache().getCachedResponse(request) != null) {
+            return;
+        }
+        final Prefetch prefetch = new Prefetch(copy(request), webClient_.getEffectiveHeaders(request), page);
+        if (pending_.putIfAbsent(key, prefetch) == null) {
+            LOG.debug("Prefetching " + key);
+            executor_.execute(prefetch);
+        }
+    }
+
+    /**
+     * Returns the prefetched response for the specified request, waiting for the download to
+     * complete if needed. A prefetched response is handed out only once, and only for a request
+     * with the same method and headers as the prefetch request, once both are completed with the
+     * headers sent with every request.
+     * @param request the request
+     * @return the response, or <tt>null</tt> if the resource hasn't been prefetched or if its download failed
+     */
+    WebResponse getResponse(final WebRequestSettings request) {
+        if (request.getHttpMethod() != HttpMethod.GET || pending_.isEmpty()) {
+            return null;
+        }
+        final String key = request.getUrl().toExternalForm();
+        final Prefetch prefetch = pending_.get(key);
+        if (prefetch == null || !prefetch.headers_.equals(webClient_.getEffectiveHeaders(request))
+                || !pending_.remove(key, prefetch)) {
+            return null;
+        }
+        try {
+            return prefetch.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (final ExecutionException e) {
+            // the resource will be requested again by the consumer which will handle the problem
+            LOG.debug("Prefetching of " + request.getUrl() + " failed", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the pending downloads started for the specified page.
+     * @param page the page
+     */
+    void discard(final Page page) {
+        for (final Iterator<Prefetch> iter = pending_.values().iterator(); iter.hasNext();) {
+            final Prefetch prefetch = iter.next();
+            if (prefetch.page_ == page) {
+                iter.remove();
+                prefetch.discard();
+            }
+        }
+    }
+
+    /**
+     * Stops the threads and forgets all pending downloads.
+     */
+    void shutdown() {
+        executor_.shutdownNow();
+        pending_.clear();
+    }
+
+    /**
+     * Returns a copy of the specified GET request, which the download can modify (for instance by adding the
+     * default headers) while the original one is compared with the requests of the consumers.
+     */
+    private static WebRequestSettings copy(final WebRequestSettings request) {
+        final WebRequestSettings copy = new WebRequestSettings(request, request.getUrl());
+        copy.setAdditionalHeaders(new HashMap<String, String>(request.getAdditionalHeaders()));
+        copy.setCredentialsProvider(request.getCredentialsProvider());
+        copy.setCharset(request.getCharset());
+        return copy;
+    }
+
+    /**
+     * A pending download.
+     */
+    private final class Prefetch extends FutureTask<WebResponse> {
+        private final Map<String, String> headers_;
+        private final Page page_;
+        private volatile boolean discarded_;
+
+        Prefetch(final WebRequestSettings request, final Map<String, String> headers, final Page page) {
+            super(new Callable<WebResponse>() {
+                public WebResponse call() throws Exception {
+                    return webClient_.loadWebResponseDirectly(request);
+                }
+            });
+            headers_ = headers;
+            page_ = page;
+        }
+
+        /**
+         * Indicates that nobody will claim the response, which is released as soon as it is available.
+         */
+        void discard() {
+            discarded_ = true;
+            if (isDone()) {
+                releaseResponse();
+            }
+        }
+
+        @Override
+        protected void set(final WebResponse response) {
+            super.set(response);
+            if (discarded_) {
+                releaseResponse();
+            }
+        }
+
+        private void releaseResponse() {
+            try {
+                webClient_.cleanUpWebResponse(get());
+            }
+            catch (final Exception e) {
+                // cancelled or failed, there is nothing to release
+            }
+        }
+    }
+
+    /**
+     * Creates daemon threads, so that pending downloads don't prevent the JVM from exiting.
+     */
+    private static final class PrefetchThreadFactory implements ThreadFactory {
+        private final AtomicInteger count_ = new AtomicInteger();
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "HtmlUnit prefetch " + count_.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit;
+
+/**
+ * A listener notified of the timings of each response loaded by a {@link WebClient}, for instance to
+ * export them to a monitoring system. It may be called from other threads than the one which created
+ * the web client, for instance when resources are prefetched.
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ * @see WebClient#addResponseTimingListener(ResponseTimingListener)
+ */
+public interface ResponseTimingListener {
+
+    /**
+     * A response has been loaded, either from the network or from the cache. The decoding information
+     * of the timings is only filled once the content has been accessed.
+     * @param response the response
+     * @param timings the timings of the response
+     */
+    void responseLoaded(final WebResponse response, final WebResponseTimings timings);
+}
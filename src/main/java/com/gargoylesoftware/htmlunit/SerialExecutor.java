@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs tasks one after the other, in submission order, using the threads of another (possibly shared)
+ * executor. This allows many {@link WebClient}s to share a bounded pool of threads, while the tasks of
+ * one web client never run concurrently.
+ *
+ * <p>If the underlying executor rejects a task, the {@link RejectedExecutionException} is propagated to
+ * the caller of {@link #execute(Runnable)}, which provides back pressure when the pool is saturated.</p>
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+final class SerialExecutor implements Executor {
+
+    private static final Log LOG = LogFactory.getLog(SerialExecutor.class);
+
+    /** The number of threads of the default executor. */
+    static final int DEFAULT_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+
+    /** The maximum number of web clients waiting for a thread of the default executor. */
+    static final int MAX_QUEUED_CLIENTS = 1000;
+
+    /**
+     * The executor used when none has been configured: a fixed number of daemon threads, and a bounded
+     * queue which causes a {@link RejectedExecutionException} when full.
+     */
+    static final ExecutorService DEFAULT_EXECUTOR = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS,
+        0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_CLIENTS), new ThreadFactory() {
+            private final AtomicInteger count_ = new AtomicInteger();
+
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "HtmlUnit async " + count_.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private final Executor executor_;
+    private final Queue<Runnable> tasks_ = new LinkedList<Runnable>();
+    private boolean running_;
+
+    /**
+     * Creates a new instance.
+     * @param executor the executor providing the threads
+     */
+    SerialExecutor(final Executor executor) {
+        executor_ = executor;
+    }
+
+    /**
+     * Returns the executor providing the threads.
+     * @return the executor
+     */
+    Executor getExecutor() {
+        return executor_;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void execute(final Runnable task) {
+        tasks_.add(task);
+        if (!running_) {
+            running_ = true;
+            try {
+                executor_.execute(new Runnable() {
+                    public void run() {
+                        runTasks();
+                    }
+                });
+            }
+            catch (final RejectedExecutionException e) {
+                running_ = false;
+                tasks_.remove(task);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Runs the queued tasks until the queue is empty. Tasks submitted meanwhile are run by the same thread
+     * rather than being submitted again to the underlying executor, so that they can't be rejected.
+     */
+    private void runTasks() {
+        while (true) {
+            final Runnable task;
+            synchronized (this) {
+                task = tasks_.poll();
+                if (task == null) {
+                    running_ = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            }
+            catch (final RuntimeException e) {
+                LOG.error("Task failed", e);
+            }
+        }
+    }
+}
@@ -58,6 +58,7 @@ public abstract class SgmlPage extends DomNode implements Page, Document {
      * {@inheritDoc}
      */
     public void cleanUp() throws IOException {
+        webClient_.cleanUpWebResponse(webResponse_);
     }
 
     /**
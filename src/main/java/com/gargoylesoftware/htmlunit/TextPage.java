@@ -53,6 +53,7 @@ public class TextPage implements Page {
      * Cleans up this page.
      */
     public void cleanUp() {
+        enclosingWindow_.getWebClient().cleanUpWebResponse(webResponse_);
     }
 
     /**
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit;
+
+import java.io.IOException;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+/**
+ * Wraps the connection manager of a {@link ConnectionPool} to measure, for the {@link WebResponseTimings}
+ * of the request performed by the current thread, the time spent waiting for a connection and the time
+ * needed to open it.
+ *
+ * <p>A new direct connection is opened here rather than by HttpClient, which would open it right after
+ * anyway. If it can't be opened, the connection is released and the failure is thrown by
+ * {@link HttpWebConnection} without retry. Connections through a proxy are left to HttpClient, as a tunnel
+ * may have to be created for them once opened.</p>
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+final class TimingConnectionManager implements HttpConnectionManager {
+
+    private static final ThreadLocal<WebResponseTimings> CURRENT_TIMINGS = new ThreadLocal<WebResponseTimings>();
+
+    private final HttpConnectionManager connectionManager_;
+
+    /**
+     * Creates a new instance.
+     * @param connectionManager the connection manager providing the connections
+     */
+    TimingConnectionManager(final HttpConnectionManager connectionManager) {
+        connectionManager_ = connectionManager;
+    }
+
+    /**
+     * Sets the timings of the request performed by the current thread.
+     * @param timings the timings to fill, <tt>null</tt> once the request is done
+     */
+    static void setCurrentTimings(final WebResponseTimings timings) {
+        if (timings == null) {
+            CURRENT_TIMINGS.remove();
+        }
+        else {
+            CURRENT_TIMINGS.set(timings);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public HttpConnection getConnection(final HostConfiguration hostConfiguration) {
+        try {
+            return getConnectionWithTimeout(hostConfiguration, 0);
+        }
+        catch (final ConnectionPoolTimeoutException e) {
+            // can't happen without timeout
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @deprecated As of HttpClient 3.0, use {@link #getConnectionWithTimeout(HostConfiguration, long)}
+     */
+    @Deprecated
+    public HttpConnection getConnection(final HostConfiguration hostConfiguration, final long timeout)
+        throws HttpException {
+        return connectionManager_.getConnection(hostConfiguration, timeout);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public HttpConnection getConnectionWithTimeout(final HostConfiguration hostConfiguration, final long timeout)
+        throws ConnectionPoolTimeoutException {
+        final WebResponseTimings timings = CURRENT_TIMINGS.get();
+        if (timings == null) {
+            return connectionManager_.getConnectionWithTimeout(hostConfiguration, timeout);
+        }
+
+        final long start = System.nanoTime();
+        final HttpConnection connection = connectionManager_.getConnectionWithTimeout(hostConfiguration, timeout);
+        final long acquired = System.nanoTime();
+        timings.setQueueWait(toMillis(acquired - start));
+        timings.setConnectionReused(connection.isOpen());
+        if (!connection.isOpen() && !connection.isProxied()) {
+            try {
+                connection.open();
+                timings.setConnect(toMillis(System.nanoTime() - acquired));
+            }
+            catch (final IOException e) {
+                connection.close();
+                connectionManager_.releaseConnection(connection);
+                throw new ConnectFailedException(e);
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void releaseConnection(final HttpConnection connection) {
+        connectionManager_.releaseConnection(connection);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void closeIdleConnections(final long idleTimeout) {
+        connectionManager_.closeIdleConnections(idleTimeout);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public HttpConnectionManagerParams getParams() {
+        return connectionManager_.getParams();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setParams(final HttpConnectionManagerParams params) {
+        connectionManager_.setParams(params);
+    }
+
+    /**
+     * Carries the failure to open a connection through HttpClient, which expects no other exception than
+     * {@link ConnectionPoolTimeoutException} from a connection manager. {@link HttpWebConnection} throws
+     * the original exception again.
+     */
+    static final class ConnectFailedException extends RuntimeException {
+
+        private static final long serialVersionUID = -5287516098412839274L;
+
+        ConnectFailedException(final IOException cause) {
+            super(cause);
+        }
+
+        /**
+         * Returns the exception thrown while opening the connection.
+         * @return the original exception
+         */
+        IOException getIOException() {
+            return (IOException) getCause();
+        }
+    }
+
+    static long toMillis(final long nanos) {
+        return nanos / 1000000;
+    }
+}
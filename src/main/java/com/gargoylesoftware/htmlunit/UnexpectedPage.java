@@ -54,6 +54,7 @@ public class UnexpectedPage implements Page {
      * Cleans up this page.
      */
     public void cleanUp() {
+        enclosingWindow_.getWebClient().cleanUpWebResponse(webResponse_);
     }
 
     /**
@@ -39,6 +39,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import net.sourceforge.htmlunit.corejs.javascript.ScriptableObject;
 
@@ -61,7 +66,6 @@ import com.gargoylesoftware.htmlunit.html.HTMLParserListener;
 import com.gargoylesoftware.htmlunit.html.HtmlElement;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
 import com.gargoylesoftware.htmlunit.javascript.JavaScriptEngine;
-import com.gargoylesoftware.htmlunit.javascript.ProxyAutoConfig;
 import com.gargoylesoftware.htmlunit.javascript.host.Event;
 import com.gargoylesoftware.htmlunit.javascript.host.Window;
 import com.gargoylesoftware.htmlunit.javascript.host.css.ComputedCSSStyleDeclaration;
@@ -144,6 +148,8 @@ public class WebClient implements Serializable {
     private PageCreator pageCreator_ = new DefaultPageCreator();
 
     private final Set<WebWindowListener> webWindowListeners_ = new HashSet<WebWindowListener>(5);
+    private final List<ResponseTimingListener> responseTimingListeners_ =
+        new CopyOnWriteArrayList<ResponseTimingListener>();
     private final Stack<TopLevelWindow> topLevelWindows_ = new Stack<TopLevelWindow>(); // top-level windows
     private final List<WebWindow> windows_ = Collections.synchronizedList(new ArrayList<WebWindow>()); // all windows
     private WebWindow currentWindow_;
@@ -153,6 +159,10 @@ public class WebClient implements Serializable {
     private ErrorHandler cssErrorHandler_ = new DefaultCssErrorHandler();
     private OnbeforeunloadHandler onbeforeunloadHandler_;
     private Cache cache_ = new Cache();
+    private int prefetchThreads_;
+    private transient volatile ResourcePrefetcher prefetcher_;
+    private transient RequestCoalescer requestCoalescer_ = new RequestCoalescer();
+    private transient SerialExecutor asyncExecutor_;
 
     /** URL for "about:blank". */
     public static final URL URL_ABOUT_BLANK = UrlUtils.toUrlSafe("about:blank");
@@ -375,6 +385,70 @@ public class WebClient implements Serializable {
         return (P) getPage(getCurrentWindow().getTopWindow(), request);
     }
 
+    /**
+     * Loads a web request into the specified window in the background, as {@link #getPage(WebWindow,
+     * WebRequestSettings)} would do. Pages are loaded (and their scripts executed) one after the other for
+     * a given web client, using the threads of the executor configured with {@link #setAsyncExecutor(Executor)}.
+     * @param webWindow the WebWindow to load the result of the request into
+     * @param request the request parameters, which must not be modified until the page has been loaded
+     * @param <P> the page type
+     * @return the future page; its <tt>get()</tt> method throws an <tt>ExecutionException</tt> wrapping
+     *         the exception which {@link #getPage(WebWindow, WebRequestSettings)} would have thrown
+     * @throws java.util.concurrent.RejectedExecutionException if the executor doesn't accept more tasks
+     */
+    public <P extends Page> Future<P> getPageAsync(final WebWindow webWindow, final WebRequestSettings request) {
+        final FutureTask<P> task = new FutureTask<P>(new Callable<P>() {
+            public P call() throws Exception {
+                return WebClient.this.<P>getPage(webWindow, request);
+            }
+        });
+        getSerialExecutor().execute(task);
+        return task;
+    }
+
+    /**
+     * Loads a web request into the current top WebWindow in the background.
+     * @param request the request parameters, which must not be modified until the page has been loaded
+     * @param <P> the page type
+     * @return the future page
+     * @see #getPageAsync(WebWindow, WebRequestSettings)
+     */
+    public <P extends Page> Future<P> getPageAsync(final WebRequestSettings request) {
+        return getPageAsync(getCurrentWindow().getTopWindow(), request);
+    }
+
+    /**
+     * Sets the executor providing the threads used by {@link #getPageAsync(WebWindow, WebRequestSettings)}.
+     * The same executor may be used by many web clients: the pages of a given web client are still loaded
+     * one after the other, and a bounded executor limits the number of pages loaded at the same time.
+     * By default, a shared pool of twice as many daemon threads as available processors is used; it
+     * queues at most 1000 web clients and then rejects new tasks.
+     * @param executor the executor, <tt>null</tt> to use the default one
+     */
+    public synchronized void setAsyncExecutor(final Executor executor) {
+        if (executor == null) {
+            asyncExecutor_ = null;
+        }
+        else {
+            asyncExecutor_ = new SerialExecutor(executor);
+        }
+    }
+
+    /**
+     * Returns the executor providing the threads used by {@link #getPageAsync(WebWindow, WebRequestSettings)}.
+     * @return the executor
+     */
+    public Executor getAsyncExecutor() {
+        return getSerialExecutor().getExecutor();
+    }
+
+    private synchronized SerialExecutor getSerialExecutor() {
+        if (asyncExecutor_ == null) {
+            asyncExecutor_ = new SerialExecutor(SerialExecutor.DEFAULT_EXECUTOR);
+        }
+        return asyncExecutor_;
+    }
+
     /**
      * <p>Creates a page based on the specified response and inserts it into the specified window. All page
      * initialization and event notification is handled here.</p>
@@ -839,6 +913,50 @@ public class WebClient implements Serializable {
         webWindowListeners_.remove(listener);
     }
 
+    /**
+     * Adds a listener notified of the {@link WebResponseTimings timings} of each loaded response. When
+     * redirects are followed, the listener is notified for each hop.
+     * @param listener a listener
+     */
+    public void addResponseTimingListener(final ResponseTimingListener listener) {
+        WebAssert.notNull("listener", listener);
+        responseTimingListeners_.add(listener);
+    }
+
+    /**
+     * Removes a listener for the timings of the loaded responses.
+     * @param listener a listener
+     */
+    public void removeResponseTimingListener(final ResponseTimingListener listener) {
+        WebAssert.notNull("listener", listener);
+        responseTimingListeners_.remove(listener);
+    }
+
+    private void fireResponseLoaded(final WebResponse response, final WebResponse networkResponse,
+            final boolean cacheHit) {
+        if (responseTimingListeners_.isEmpty()) {
+            return;
+        }
+        WebResponse timedResponse = networkResponse;
+        if (timedResponse instanceof WebResponseFromCache) {
+            // the response of a concurrent identical request, shared by the RequestCoalescer
+            timedResponse = ((WebResponseFromCache) timedResponse).getCachedResponse();
+        }
+        WebResponseTimings timings = null;
+        if (timedResponse instanceof WebResponseImpl) {
+            timings = ((WebResponseImpl) timedResponse).getTimings();
+        }
+        if (timings == null) {
+            timings = new WebResponseTimings();
+        }
+        if (cacheHit) {
+            timings = timings.asCacheHit();
+        }
+        for (final ResponseTimingListener listener : responseTimingListeners_) {
+            listener.responseLoaded(response, timings);
+        }
+    }
+
     private void fireWindowContentChanged(final WebWindowEvent event) {
         for (final WebWindowListener listener : new ArrayList<WebWindowListener>(webWindowListeners_)) {
             listener.webWindowContentChanged(event);
@@ -1319,6 +1437,25 @@ public class WebClient implements Serializable {
     public WebResponse loadWebResponse(final WebRequestSettings webRequestSettings)
         throws IOException {
 
+        final ResourcePrefetcher prefetcher = prefetcher_;
+        if (prefetcher != null) {
+            final WebResponse prefetched = prefetcher.getResponse(webRequestSettings);
+            if (prefetched != null) {
+                return prefetched;
+            }
+        }
+        return loadWebResponseDirectly(webRequestSettings);
+    }
+
+    /**
+     * Loads a {@link WebResponse} from the server, ignoring the responses which may have been prefetched.
+     * @param webRequestSettings settings to use when making the request
+     * @throws IOException if an IO problem occurs
+     * @return the WebResponse
+     */
+    WebResponse loadWebResponseDirectly(final WebRequestSettings webRequestSettings)
+        throws IOException {
+
         final WebResponse response;
         final String protocol = webRequestSettings.getUrl().getProtocol();
         if (protocol.equals("about")) {
@@ -1343,79 +1480,73 @@ public class WebClient implements Serializable {
     }
 
     /**
-     * Loads a {@link WebResponse} from the server through the WebConnection.
+     * Loads a {@link WebResponse} from the server through the WebConnection, following the redirects if
+     * enabled. The redirects are followed iteratively and the targets of permanent redirects are remembered
+     * by the {@link Cache}. The proxy selected for a hop is reused for the next hops to the same server,
+     * except with a proxy auto-config which may depend on the whole URL (and caches its own results).
      * @param webRequestSettings settings to use when making the request
-     * @param allowedRedirects the number of allowed redirects remaining
+     * @param allowedRedirects the number of allowed redirects
      * @throws IOException if an IO problem occurs
      * @return the resultant {@link WebResponse}
      */
     private WebResponse loadWebResponseFromWebConnection(final WebRequestSettings webRequestSettings,
         final int allowedRedirects) throws IOException {
 
-        URL url = webRequestSettings.getUrl();
-        final HttpMethod method = webRequestSettings.getHttpMethod();
-        final List<NameValuePair> parameters = webRequestSettings.getRequestParameters();
-
-        WebAssert.notNull("url", url);
-        WebAssert.notNull("method", method);
-        WebAssert.notNull("parameters", parameters);
-
-        url = UrlUtils.encodeUrl(url, getBrowserVersion().isIE());
-        webRequestSettings.setUrl(url);
-
-        LOG.debug("Load response for " + url.toExternalForm());
-
-        // If the request settings don't specify a custom proxy, use the default client proxy...
-        if (webRequestSettings.getProxyHost() == null) {
-            if (proxyConfig_.getProxyAutoConfigUrl() != null) {
-                if (!proxyConfig_.getProxyAutoConfigUrl().equals(url.toExternalForm())) {
-                    String content = proxyConfig_.getProxyAutoConfigContent();
-                    if (content == null) {
-                        content = this.<Page>getPage(proxyConfig_.getProxyAutoConfigUrl())
-                            .getWebResponse().getContentAsString();
-                        proxyConfig_.setProxyAutoConfigContent(content);
-                    }
-                    final String allValue = ProxyAutoConfig.evaluate(content, url);
-                    LOG.debug("Proxy Auto-Config: value '" + allValue + "' for URL " + url);
-                    String value = allValue.split(";")[0].trim();
-                    if (value.startsWith("PROXY")) {
-                        value = value.substring(6);
-                        final int colonIndex = value.indexOf(':');
-                        webRequestSettings.setProxyHost(value.substring(0, colonIndex));
-                        webRequestSettings.setProxyPort(Integer.parseInt(value.substring(colonIndex + 1)));
-                    }
+        WebRequestSettings settings = webRequestSettings;
+        WebRequestSettings proxySelection = null;
+        int redirectsLeft = allowedRedirects;
+        while (true) {
+            final HttpMethod method = settings.getHttpMethod();
+            WebAssert.notNull("url", settings.getUrl());
+            WebAssert.notNull("method", method);
+            WebAssert.notNull("parameters", settings.getRequestParameters());
+
+            final URL url = UrlUtils.encodeUrl(settings.getUrl(), getBrowserVersion().isIE());
+            settings.setUrl(url);
+
+            if (isRedirectEnabled() && redirectsLeft > 0) {
+                final URL target = getCache().getPermanentRedirect(settings);
+                if (target != null) {
+                    LOG.debug("Following cached permanent redirect from " + url + " to " + target);
+                    settings = createRedirectSettings(settings, target, true);
+                    redirectsLeft--;
+                    continue;
                 }
             }
-            // ...unless the host needs to bypass the configured client proxy!
-            else if (!proxyConfig_.shouldBypassProxy(webRequestSettings.getUrl().getHost())) {
-                webRequestSettings.setProxyHost(proxyConfig_.getProxyHost());
-                webRequestSettings.setProxyPort(proxyConfig_.getProxyPort());
+
+            LOG.debug("Load response for " + url.toExternalForm());
+
+            // If the request settings don't specify a custom proxy, use the default client proxy...
+            if (settings.getProxyHost() == null) {
+                if (proxySelection != null && proxyConfig_.getProxyAutoConfigUrl() == null
+                    && isSameServer(proxySelection.getUrl(), url)) {
+                    settings.setProxyHost(proxySelection.getProxyHost());
+                    settings.setProxyPort(proxySelection.getProxyPort());
+                }
+                else {
+                    selectProxy(settings);
+                    proxySelection = settings;
+                }
             }
-        }
 
-        // Add the headers that are sent with every request.
-        addDefaultHeaders(webRequestSettings);
+            // Add the headers that are sent with every request.
+            addDefaultHeaders(settings);
 
-        // Retrieve the response, either from the cache or from the server.
-        final Object fromCache = getCache().getCachedObject(webRequestSettings);
-        final WebResponse webResponse;
-        if (fromCache != null && fromCache instanceof WebResponse) {
-            webResponse = new WebResponseFromCache((WebResponse) fromCache, webRequestSettings);
-        }
-        else {
-            webResponse = getWebConnection().getResponse(webRequestSettings);
-            getCache().cacheIfPossible(webRequestSettings, webResponse, webResponse);
-        }
+            // Retrieve the response, either from the cache or from the server.
+            final WebResponse webResponse = getResponseUsingCache(settings);
 
-        // Continue according to the HTTP status code.
-        final int status = webResponse.getStatusCode();
-        if (status == HttpStatus.SC_USE_PROXY) {
-            getIncorrectnessListener().notify("Ignoring HTTP status code [305] 'Use Proxy'", this);
-        }
-        else if (status >= HttpStatus.SC_MOVED_PERMANENTLY
-            && status <= HttpStatus.SC_TEMPORARY_REDIRECT
-            && status != HttpStatus.SC_NOT_MODIFIED
-            && isRedirectEnabled()) {
+            // Continue according to the HTTP status code.
+            final int status = webResponse.getStatusCode();
+            if (status == HttpStatus.SC_USE_PROXY) {
+                getIncorrectnessListener().notify("Ignoring HTTP status code [305] 'Use Proxy'", this);
+                return webResponse;
+            }
+            if (status < HttpStatus.SC_MOVED_PERMANENTLY
+                || status > HttpStatus.SC_TEMPORARY_REDIRECT
+                || status == HttpStatus.SC_NOT_MODIFIED
+                || !isRedirectEnabled()) {
+                return webResponse;
+            }
 
             final URL newUrl;
             String locationString = null;
@@ -1431,34 +1562,195 @@ public class WebClient implements Serializable {
                 return webResponse;
             }
 
-            LOG.debug("Got a redirect status code [" + status + "] new location = [" + locationString + "]");
+            LOG.debug("Got a redirect status code [" + status + "] new location = [" + locationString
+                + "] after " + webResponse.getLoadTime() + " ms");
 
-            if (allowedRedirects == 0) {
+            if (redirectsLeft == 0) {
                 throw new FailingHttpStatusCodeException("Too much redirect for "
                     + webResponse.getRequestSettings().getUrl(), webResponse);
             }
-            else if ((status == HttpStatus.SC_MOVED_PERMANENTLY || status == HttpStatus.SC_TEMPORARY_REDIRECT)
-                && method.equals(HttpMethod.GET)) {
-                final WebRequestSettings wrs = new WebRequestSettings(newUrl);
-                wrs.setRequestParameters(parameters);
-                for (Map.Entry<String, String> entry : webRequestSettings.getAdditionalHeaders().entrySet()) {
-                    wrs.setAdditionalHeader(entry.getKey(), entry.getValue());
-                }
-                return loadWebResponseFromWebConnection(wrs, allowedRedirects - 1);
+            final boolean keepMethod = (status == HttpStatus.SC_MOVED_PERMANENTLY
+                || status == HttpStatus.SC_TEMPORARY_REDIRECT) && method.equals(HttpMethod.GET);
+            if (!keepMethod && status > HttpStatus.SC_SEE_OTHER) {
+                return webResponse;
+            }
+            if (status == HttpStatus.SC_MOVED_PERMANENTLY) {
+                getCache().cachePermanentRedirect(settings, webResponse, newUrl);
             }
-            else if (status <= HttpStatus.SC_SEE_OTHER) {
-                final WebRequestSettings wrs = new WebRequestSettings(newUrl);
-                wrs.setHttpMethod(HttpMethod.GET);
-                for (Map.Entry<String, String> entry : webRequestSettings.getAdditionalHeaders().entrySet()) {
-                    wrs.setAdditionalHeader(entry.getKey(), entry.getValue());
+            settings = createRedirectSettings(settings, newUrl, keepMethod);
+            redirectsLeft--;
+        }
+    }
+
+    /**
+     * Creates the request to perform to follow a redirect.
+     * @param webRequestSettings the redirected request
+     * @param newUrl the URL to go to
+     * @param keepMethod whether the method and the parameters of the redirected request have to be kept,
+     *        otherwise a GET request is made
+     * @return the new request
+     */
+    private static WebRequestSettings createRedirectSettings(final WebRequestSettings webRequestSettings,
+            final URL newUrl, final boolean keepMethod) {
+        final WebRequestSettings wrs = new WebRequestSettings(newUrl);
+        if (keepMethod) {
+            wrs.setHttpMethod(webRequestSettings.getHttpMethod());
+            wrs.setRequestParameters(webRequestSettings.getRequestParameters());
+        }
+        else {
+            wrs.setHttpMethod(HttpMethod.GET);
+        }
+        for (Map.Entry<String, String> entry : webRequestSettings.getAdditionalHeaders().entrySet()) {
+            wrs.setAdditionalHeader(entry.getKey(), entry.getValue());
+        }
+        return wrs;
+    }
+
+    /**
+     * Sets the proxy to use for the specified request according to the {@link ProxyConfig}.
+     * @param webRequestSettings the request without custom proxy
+     * @throws IOException if the proxy auto-config file can't be loaded
+     */
+    private void selectProxy(final WebRequestSettings webRequestSettings) throws IOException {
+        final URL url = webRequestSettings.getUrl();
+        if (proxyConfig_.getProxyAutoConfigUrl() != null) {
+            if (!proxyConfig_.getProxyAutoConfigUrl().equals(url.toExternalForm())) {
+                if (proxyConfig_.getProxyAutoConfigContent() == null) {
+                    final String content = this.<Page>getPage(proxyConfig_.getProxyAutoConfigUrl())
+                        .getWebResponse().getContentAsString();
+                    proxyConfig_.setProxyAutoConfigContent(content);
                 }
-                return loadWebResponseFromWebConnection(wrs, allowedRedirects - 1);
+                final String allValue = proxyConfig_.getProxyAutoConfig().findProxyForUrl(url);
+                LOG.debug("Proxy Auto-Config: value '" + allValue + "' for URL " + url);
+                String value = allValue.split(";")[0].trim();
+                if (value.startsWith("PROXY")) {
+                    value = value.substring(6);
+                    final int colonIndex = value.indexOf(':');
+                    webRequestSettings.setProxyHost(value.substring(0, colonIndex));
+                    webRequestSettings.setProxyPort(Integer.parseInt(value.substring(colonIndex + 1)));
+                }
+            }
+        }
+        // ...unless the host needs to bypass the configured client proxy!
+        else if (!proxyConfig_.shouldBypassProxy(url.getHost())) {
+            webRequestSettings.setProxyHost(proxyConfig_.getProxyHost());
+            webRequestSettings.setProxyPort(proxyConfig_.getProxyPort());
+        }
+    }
+
+    /**
+     * Indicates if both URLs designate the same server, in which case the same proxy is used for them.
+     */
+    private static boolean isSameServer(final URL url1, final URL url2) {
+        return url1.getProtocol().equals(url2.getProtocol())
+            && url1.getHost().equalsIgnoreCase(url2.getHost())
+            && getEffectivePort(url1) == getEffectivePort(url2);
+    }
+
+    private static int getEffectivePort(final URL url) {
+        final int port = url.getPort();
+        if (port == -1) {
+            return url.getDefaultPort();
+        }
+        return port;
+    }
+
+    /**
+     * Retrieves the response for the specified request from the cache if it is fresh enough, otherwise from
+     * the server. If the cache holds a stale response with validators, a conditional request is sent and a
+     * <tt>304 Not Modified</tt> answer is turned into the cached response. Identical GET requests performed
+     * at the same time are joined onto a single network request.
+     * @param webRequestSettings the request
+     * @return the response
+     * @throws IOException if an IO problem occurs
+     */
+    private WebResponse getResponseUsingCache(final WebRequestSettings webRequestSettings) throws IOException {
+        final Cache cache = getCache();
+        final WebResponse fromCache = cache.getCachedResponse(webRequestSettings);
+        final WebResponse wrappedFromCache;
+        if (fromCache != null) {
+            wrappedFromCache = WebResponseFromCache.wrap(fromCache, webRequestSettings);
+        }
+        else {
+            wrappedFromCache = null;
+        }
+        if (wrappedFromCache != null) {
+            fireResponseLoaded(wrappedFromCache, null, true);
+            return wrappedFromCache;
+        }
+
+        final List<String> conditionalHeaders = new ArrayList<String>(2);
+        final WebResponse staleResponse = cache.getStaleResponse(webRequestSettings);
+        if (staleResponse != null) {
+            addConditionalHeader(webRequestSettings, "If-None-Match",
+                staleResponse.getResponseHeaderValue("ETag"), conditionalHeaders);
+            addConditionalHeader(webRequestSettings, "If-Modified-Since",
+                staleResponse.getResponseHeaderValue("Last-Modified"), conditionalHeaders);
+        }
+
+        final WebResponse webResponse;
+        try {
+            if (conditionalHeaders.isEmpty()) {
+                webResponse = requestCoalescer_.getResponse(webRequestSettings, getWebConnection(), cache);
+            }
+            else {
+                webResponse = getWebConnection().getResponse(webRequestSettings);
+            }
+        }
+        finally {
+            for (final String header : conditionalHeaders) {
+                webRequestSettings.removeAdditionalHeader(header);
             }
         }
 
+        if (!conditionalHeaders.isEmpty() && webResponse.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+            final WebResponse revalidated = cache.revalidated(webRequestSettings, webResponse);
+            final WebResponse response;
+            if (revalidated != null) {
+                response = WebResponseFromCache.wrap(revalidated, webRequestSettings);
+            }
+            else {
+                response = null;
+            }
+            if (response != null) {
+                LOG.debug("Cached response revalidated for " + webRequestSettings.getUrl());
+                fireResponseLoaded(response, webResponse, true);
+                return response;
+            }
+        }
+        cache.cacheIfPossible(webRequestSettings, webResponse, webResponse);
+        fireResponseLoaded(webResponse, webResponse, webResponse instanceof WebResponseFromCache);
         return webResponse;
     }
 
+    private static void addConditionalHeader(final WebRequestSettings webRequestSettings, final String name,
+            final String value, final List<String> addedHeaders) {
+        if (value != null && !webRequestSettings.isAdditionalHeader(name)) {
+            webRequestSettings.setAdditionalHeader(name, value);
+            addedHeaders.add(name);
+        }
+    }
+
+    /**
+     * Returns the headers sent for the specified request once completed by
+     * {@link #addDefaultHeaders(WebRequestSettings)}, with lower case names, without modifying the request.
+     * @param wrs the request
+     * @return the headers
+     */
+    Map<String, String> getEffectiveHeaders(final WebRequestSettings wrs) {
+        final Map<String, String> headers = new HashMap<String, String>();
+        for (final Map.Entry<String, String> header : wrs.getAdditionalHeaders().entrySet()) {
+            headers.put(header.getKey().toLowerCase(), header.getValue());
+        }
+        if (!headers.containsKey("accept-language")) {
+            headers.put("accept-language", getBrowserVersion().getBrowserLanguage());
+        }
+        for (final Map.Entry<String, String> header : requestHeaders_.entrySet()) {
+            headers.put(header.getKey().toLowerCase(), header.getValue());
+        }
+        return headers;
+    }
+
     /**
      * Adds the headers that are sent with every request to the specified {@link WebRequestSettings} instance.
      * @param wrs the <tt>WebRequestSettings</tt> instance to modify
@@ -1746,7 +2038,8 @@ public class WebClient implements Serializable {
     }
 
     /**
-     * Sets the cache to use.
+     * Sets the cache to use. The same cache may be used by several web clients, in which case it
+     * should be marked as {@link Cache#setShared(boolean) shared}.
      * @param cache the new cache (must not be <code>null</code>)
      */
     public void setCache(final Cache cache) {
@@ -1756,6 +2049,94 @@ public class WebClient implements Serializable {
         cache_ = cache;
     }
 
+    /**
+     * Sets the number of threads used to download in advance the scripts, stylesheets and frames referenced
+     * by the HTML pages being loaded. The resources are requested while the page is being parsed; scripts are
+     * still executed in document order. By default, this is <tt>0</tt> and resources are downloaded one after
+     * the other when they are needed. The threads are started when the first resource is prefetched and
+     * stopped by {@link #closeAllWindows()}.
+     * @param threads the number of threads, <tt>0</tt> to disable prefetching
+     */
+    public synchronized void setPrefetchThreads(final int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("threads should not be negative!");
+        }
+        stopPrefetching();
+        prefetchThreads_ = threads;
+    }
+
+    /**
+     * Stops the threads of the prefetcher, if any, and forgets the pending downloads.
+     */
+    private synchronized void stopPrefetching() {
+        if (prefetcher_ != null) {
+            prefetcher_.shutdown();
+            prefetcher_ = null;
+        }
+    }
+
+    /**
+     * Returns the number of threads used to download in advance the resources referenced by HTML pages.
+     * @return the number of threads, <tt>0</tt> if prefetching is disabled
+     * @see #setPrefetchThreads(int)
+     */
+    public int getPrefetchThreads() {
+        return prefetchThreads_;
+    }
+
+    /**
+     * <span style="color:red">INTERNAL API - SUBJECT TO CHANGE AT ANY TIME - USE AT YOUR OWN RISK.</span><br/>
+     *
+     * Starts to download in the background the resource for the specified request, if prefetching is enabled.
+     * The response will be returned by the next call to {@link #loadWebResponse(WebRequestSettings)} for the
+     * same URL.
+     * @param webRequestSettings the request, which must not be modified afterwards
+     * @param page the page referencing the resource
+     * @see #setPrefetchThreads(int)
+     */
+    public void prefetch(final WebRequestSettings webRequestSettings, final Page page) {
+        final ResourcePrefetcher prefetcher;
+        synchronized (this) {
+            if (prefetcher_ == null && prefetchThreads_ > 0) {
+                prefetcher_ = new ResourcePrefetcher(this, prefetchThreads_);
+            }
+            prefetcher = prefetcher_;
+        }
+        if (prefetcher != null) {
+            prefetcher.prefetch(webRequestSettings, page);
+        }
+    }
+
+    /**
+     * <span style="color:red">INTERNAL API - SUBJECT TO CHANGE AT ANY TIME - USE AT YOUR OWN RISK.</span><br/>
+     *
+     * Forgets the prefetched responses of the specified page that haven't been used.
+     * @param page the page
+     */
+    public void discardPrefetchedResponses(final Page page) {
+        final ResourcePrefetcher prefetcher = prefetcher_;
+        if (prefetcher != null) {
+            prefetcher.discard(page);
+        }
+    }
+
+    /**
+     * <span style="color:red">INTERNAL API - SUBJECT TO CHANGE AT ANY TIME - USE AT YOUR OWN RISK.</span><br/>
+     *
+     * Indicates that the specified response isn't used anymore by its receiver, like the page built on it.
+     * Its resources, like the temporary file holding a large body, are released once its other users,
+     * like the cache, don't need it either.
+     * @param webResponse the response
+     */
+    public void cleanUpWebResponse(final WebResponse webResponse) {
+        if (webResponse instanceof WebResponseImpl) {
+            ((WebResponseImpl) webResponse).cleanUp();
+        }
+        else if (webResponse instanceof WebResponseFromCache) {
+            ((WebResponseFromCache) webResponse).cleanUp();
+        }
+    }
+
     /**
      * Keeps track of the current window. Inspired by WebTest's logic to track the current response.
      */
@@ -1850,6 +2231,8 @@ public class WebClient implements Serializable {
                 topWindow.close();
             }
         }
+        // the threads are started again if needed
+        stopPrefetching();
     }
 
     /**
@@ -1970,6 +2353,7 @@ public class WebClient implements Serializable {
         in.defaultReadObject();
         webConnection_ = new HttpWebConnection(this);
         scriptEngine_ = new JavaScriptEngine(this);
+        requestCoalescer_ = new RequestCoalescer();
     }
 
     private static class LoadJob {
@@ -17,16 +17,19 @@ package com.gargoylesoftware.htmlunit;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.Serializable;
-import java.util.Collections;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.SoftReference;
+import java.nio.charset.Charset;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringUtils;
+import org.apache.commons.io.input.CountingInputStream;
 
 import com.gargoylesoftware.htmlunit.util.NameValuePair;
+import com.gargoylesoftware.htmlunit.util.ResponseHeaders;
 
 /**
  * Simple data object to simplify WebResponse creation.
@@ -41,9 +44,16 @@ public class WebResponseData implements Serializable {
     private static final long serialVersionUID = 2979956380280496543L;
 
     private byte[] body_;
+    private DownloadedContent downloadedContent_;
     private int statusCode_;
     private String statusMessage_;
-    private List<NameValuePair> responseHeaders_;
+    private ResponseHeaders responseHeaders_;
+    private WebResponseTimings timings_;
+    private boolean requestAuthenticated_;
+    private boolean requestWithCookies_;
+
+    /** The body read from a file or decompressed, softly referenced as it can be read again at any time. */
+    private transient volatile SoftReference<byte[]> readBody_;
 
     /**
      * Constructs with a raw byte[] (mostly for testing).
@@ -57,7 +67,7 @@ public class WebResponseData implements Serializable {
             final List<NameValuePair> responseHeaders) {
         statusCode_ = statusCode;
         statusMessage_ = statusMessage;
-        responseHeaders_ = Collections.unmodifiableList(responseHeaders);
+        responseHeaders_ = new ResponseHeaders(responseHeaders);
 
         if (body != null) {
             try {
@@ -83,10 +93,63 @@ public class WebResponseData implements Serializable {
             final String statusMessage, final List<NameValuePair> responseHeaders) throws IOException {
         statusCode_ = statusCode;
         statusMessage_ = statusMessage;
-        responseHeaders_ = Collections.unmodifiableList(responseHeaders);
+        responseHeaders_ = new ResponseHeaders(responseHeaders);
         body_ = getBody(bodyStream, responseHeaders);
     }
 
+    /**
+     * Constructs with downloaded content whose body is read lazily. The content is kept as received
+     * from the server and decompressed only when it is accessed. Subclasses overriding
+     * {@link #getBody(InputStream, List)} get their body through this method, as with the other constructors.
+     *
+     * @param downloadedContent the raw content of this response, may be <tt>null</tt>
+     * @param statusCode        Status code from the server
+     * @param statusMessage     Status message from the server
+     * @param responseHeaders   Headers in this response
+     */
+    public WebResponseData(final DownloadedContent downloadedContent, final int statusCode,
+            final String statusMessage, final List<NameValuePair> responseHeaders) {
+        statusCode_ = statusCode;
+        statusMessage_ = statusMessage;
+        responseHeaders_ = new ResponseHeaders(responseHeaders);
+        downloadedContent_ = downloadedContent;
+
+        if (downloadedContent != null && overridesGetBody()) {
+            InputStream stream = null;
+            try {
+                stream = downloadedContent.getInputStream();
+                body_ = getBody(stream, responseHeaders);
+                downloadedContent_ = null;
+            }
+            catch (final IOException e) {
+                // keep the raw content, it will be decoded by this class when accessed
+            }
+            finally {
+                IOUtils.closeQuietly(stream);
+            }
+            if (downloadedContent_ == null) {
+                downloadedContent.cleanUp();
+            }
+        }
+    }
+
+    /**
+     * Indicates if the class of this instance overrides {@link #getBody(InputStream, List)}.
+     * @return <code>true</code> if a subclass customizes the way the body is read
+     */
+    private boolean overridesGetBody() {
+        for (Class<?> c = getClass(); c != WebResponseData.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("getBody", InputStream.class, List.class);
+                return true;
+            }
+            catch (final NoSuchMethodException e) {
+                // not declared here, try the superclass
+            }
+        }
+        return false;
+    }
+
     /**
      * Constructs without data stream for subclasses that override getBody().
      *
@@ -100,7 +163,7 @@ public class WebResponseData implements Serializable {
             final String statusMessage, final List<NameValuePair> responseHeaders) throws IOException {
         statusCode_ = statusCode;
         statusMessage_ = statusMessage;
-        responseHeaders_ = Collections.unmodifiableList(responseHeaders);
+        responseHeaders_ = new ResponseHeaders(responseHeaders);
     }
 
     /**
@@ -113,39 +176,254 @@ public class WebResponseData implements Serializable {
      * @return the specified body stream, as a byte array
      * @throws IOException if a stream error occurs
      */
-    protected byte[] getBody(InputStream stream, final List<NameValuePair> headers) throws IOException {
+    protected byte[] getBody(final InputStream stream, final List<NameValuePair> headers) throws IOException {
         if (stream == null) {
             return null;
         }
-        String encoding = null;
-        for (final NameValuePair header : headers) {
-            final String headerName = header.getName().trim();
-            if (headerName.equalsIgnoreCase("content-encoding")) {
-                encoding = header.getValue();
-                break;
+        return IOUtils.toByteArray(decode(stream, headers));
+    }
+
+    /**
+     * Wraps the specified stream according to the <tt>Content-Encoding</tt> response header, if any.
+     * The content is decoded incrementally while it is read, with pooled inflaters and buffers.
+     * @param stream the raw stream
+     * @param headers the response headers
+     * @return a stream providing the decoded content
+     * @throws IOException if a stream error occurs
+     */
+    private static InputStream decode(final InputStream stream, final List<NameValuePair> headers)
+        throws IOException {
+        return InflatingInputStream.decode(stream, headers);
+    }
+
+    /**
+     * Returns the response body. A body which has been downloaded to a temporary file or which
+     * has to be decompressed is kept in memory as long as there is no memory shortage, so prefer
+     * {@link #getInputStream()} for large contents.
+     * @return response body
+     */
+    public byte[] getBody() {
+        if (downloadedContent_ == null) {
+            return body_;
+        }
+        if (downloadedContent_ instanceof DownloadedContent.InMemory && !isEncoded()) {
+            return ((DownloadedContent.InMemory) downloadedContent_).getBytes();
+        }
+        final SoftReference<byte[]> readBody = readBody_;
+        if (readBody != null) {
+            final byte[] body = readBody.get();
+            if (body != null) {
+                return body;
             }
         }
-        if (encoding != null && StringUtils.contains(encoding, "gzip")) {
-            stream = new GZIPInputStream(stream);
+        InputStream stream = null;
+        try {
+            final long start = System.nanoTime();
+            stream = getInputStream();
+            final byte[] body = IOUtils.toByteArray(stream);
+            final WebResponseTimings timings = timings_;
+            if (timings != null && timings.getDecodedBytes() == -1) {
+                timings.setDecoded(TimingConnectionManager.toMillis(System.nanoTime() - start), body.length);
+            }
+            readBody_ = new SoftReference<byte[]>(body);
+            return body;
         }
-        else if (encoding != null && StringUtils.contains(encoding, "deflate")) {
-            stream = new InflaterInputStream(stream);
+        catch (final IOException e) {
+            throw new RuntimeException("Failed to read response body", e);
+        }
+        finally {
+            IOUtils.closeQuietly(stream);
         }
-        return IOUtils.toByteArray(stream);
     }
 
     /**
-     * Returns the response body.
-     * @return response body
+     * Returns the expected number of bytes of the decoded body, used to size the buffers receiving it: the
+     * decoded size if already known from the timings, otherwise the size of the downloaded content, which
+     * is then only a lower bound for compressed content.
+     * @return the expected number of bytes
      */
-    public byte[] getBody() {
-        return body_;
+    private long getExpectedDecodedLength() {
+        final WebResponseTimings timings = timings_;
+        if (timings != null && timings.getDecodedBytes() >= 0) {
+            return timings.getDecodedBytes();
+        }
+        return downloadedContent_.length();
+    }
+
+    /**
+     * Returns the response body decoded with the specified charset. A body which isn't available as a byte
+     * array, because it has been downloaded to a temporary file or has to be decompressed, is decoded while
+     * it is read rather than being copied to a byte array first.
+     * @param encoding the charset to use
+     * @return the decoded body, <tt>null</tt> if this response has no body
+     * @throws UnsupportedEncodingException if the charset isn't supported
+     */
+    String getBodyAsString(final String encoding) throws UnsupportedEncodingException {
+        if (downloadedContent_ == null
+                || (downloadedContent_ instanceof DownloadedContent.InMemory && !isEncoded())) {
+            final byte[] body = getBody();
+            if (body == null) {
+                return null;
+            }
+            return new String(body, encoding);
+        }
+
+        final Charset charset;
+        try {
+            charset = Charset.forName(encoding);
+        }
+        catch (final IllegalArgumentException e) {
+            // IllegalCharsetNameException or UnsupportedCharsetException
+            throw new UnsupportedEncodingException(encoding);
+        }
+
+        CountingInputStream stream = null;
+        try {
+            final long start = System.nanoTime();
+            stream = new CountingInputStream(getInputStream());
+            final Reader reader = new InputStreamReader(stream, charset);
+            final StringBuilder builder = new StringBuilder((int) Math.min(getExpectedDecodedLength(),
+                Integer.MAX_VALUE));
+            final char[] buffer = new char[InflaterPool.BUFFER_SIZE];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, read);
+            }
+            final WebResponseTimings timings = timings_;
+            if (timings != null && timings.getDecodedBytes() == -1) {
+                timings.setDecoded(TimingConnectionManager.toMillis(System.nanoTime() - start),
+                    stream.getByteCount());
+            }
+            return builder.toString();
+        }
+        catch (final IOException e) {
+            throw new RuntimeException("Failed to read response body", e);
+        }
+        finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Returns a new stream providing the (decompressed) response body, without copying
+     * the whole body in memory first.
+     * @return the response body as a stream, or <tt>null</tt> if this response has no body
+     * @throws IOException if a stream error occurs
+     */
+    public InputStream getInputStream() throws IOException {
+        if (downloadedContent_ == null) {
+            final byte[] body = getBody();
+            if (body == null) {
+                return null;
+            }
+            return new ByteArrayInputStream(body);
+        }
+        final InputStream stream = downloadedContent_.getInputStream();
+        if (downloadedContent_.length() == 0) {
+            return stream;
+        }
+        return InflatingInputStream.decode(stream, responseHeaders_.getValue("Content-Encoding"));
+    }
+
+    /**
+     * Releases the resources held by this data, like the temporary file holding a large body.
+     * The body can't be read anymore afterwards.
+     */
+    public void cleanUp() {
+        if (downloadedContent_ != null) {
+            downloadedContent_.cleanUp();
+        }
+        readBody_ = null;
+    }
+
+    /**
+     * Returns the number of bytes of the body held in memory. Bodies stored in a temporary file
+     * don't count.
+     * @return the number of bytes of the body held in memory
+     */
+    long getContentLengthInMemory() {
+        if (downloadedContent_ instanceof DownloadedContent.InMemory) {
+            return downloadedContent_.length();
+        }
+        if (downloadedContent_ == null && body_ != null) {
+            return body_.length;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the timings of the request which produced this data.
+     * @return the timings, <tt>null</tt> if this data hasn't been received through {@link HttpWebConnection}
+     */
+    public WebResponseTimings getTimings() {
+        return timings_;
+    }
+
+    /**
+     * Indicates if the request which produced this data has been sent with credentials, added by the
+     * web connection or set explicitly.
+     * @return <code>true</code> if the request carried an <tt>Authorization</tt> header
+     */
+    boolean isRequestAuthenticated() {
+        return requestAuthenticated_;
+    }
+
+    /**
+     * Indicates if the request which produced this data has been sent with cookies.
+     * @return <code>true</code> if the request carried a <tt>Cookie</tt> header
+     */
+    boolean isRequestWithCookies() {
+        return requestWithCookies_;
+    }
+
+    /**
+     * Records the headers of the request which produced this data that make the response specific to a user.
+     * @param authenticated whether the request carried an <tt>Authorization</tt> header
+     * @param withCookies whether the request carried a <tt>Cookie</tt> header
+     */
+    void setRequestCredentials(final boolean authenticated, final boolean withCookies) {
+        requestAuthenticated_ = authenticated;
+        requestWithCookies_ = withCookies;
+    }
+
+    /**
+     * Attaches the timings of the request which produced this data and records the size of the content.
+     * @param timings the timings
+     */
+    void setTimings(final WebResponseTimings timings) {
+        final long length;
+        if (downloadedContent_ != null) {
+            length = downloadedContent_.length();
+        }
+        else if (body_ != null) {
+            length = body_.length;
+        }
+        else {
+            length = 0;
+        }
+        timings.setWireBytes(length);
+        if (!isEncoded()) {
+            timings.setDecoded(-1, length);
+        }
+        timings_ = timings;
+    }
+
+    private boolean isEncoded() {
+        return InflatingInputStream.isEncoded(responseHeaders_.getValue("Content-Encoding"));
     }
 
     /**
      * @return response headers
      */
     public List<NameValuePair> getResponseHeaders() {
+        return responseHeaders_.getHeaders();
+    }
+
+    /**
+     * Returns the response headers indexed by name, with the values derived from them.
+     * @return the response headers
+     */
+    public ResponseHeaders getHeaders() {
         return responseHeaders_;
     }
 
@@ -14,6 +14,8 @@
  */
 package com.gargoylesoftware.htmlunit;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import com.gargoylesoftware.htmlunit.util.WebResponseWrapper;
 
 /**
@@ -27,18 +29,54 @@ class WebResponseFromCache extends WebResponseWrapper {
 
     private static final long serialVersionUID = 450330231180187171L;
 
+    private final WebResponse cachedResponse_;
     private final WebRequestSettings settings_;
+    private final AtomicBoolean cleanedUp_ = new AtomicBoolean();
 
     /**
      * Wraps the provide response for the given request
      * @param cachedResponse the response from cache
      * @param currentRequest the new request
      */
-    WebResponseFromCache(final WebResponse cachedResponse, final WebRequestSettings currentRequest) {
+    private WebResponseFromCache(final WebResponse cachedResponse, final WebRequestSettings currentRequest) {
         super(cachedResponse);
+        cachedResponse_ = cachedResponse;
         settings_ = currentRequest;
     }
 
+    /**
+     * Wraps the provided response for the given request. The wrapper is a user of the response,
+     * which keeps the resources of the response until {@link #cleanUp()} is called, even if the
+     * response is evicted from the cache meanwhile.
+     * @param cachedResponse the response from cache
+     * @param currentRequest the new request
+     * @return the wrapper, <tt>null</tt> if the resources of the response have already been released
+     */
+    static WebResponseFromCache wrap(final WebResponse cachedResponse, final WebRequestSettings currentRequest) {
+        if (cachedResponse instanceof WebResponseImpl && !((WebResponseImpl) cachedResponse).retain()) {
+            return null;
+        }
+        return new WebResponseFromCache(cachedResponse, currentRequest);
+    }
+
+    /**
+     * Indicates that this wrapper isn't used anymore. The resources of the wrapped response are released
+     * once it has no other user. Calling this method more than once has no effect.
+     */
+    void cleanUp() {
+        if (cleanedUp_.compareAndSet(false, true) && cachedResponse_ instanceof WebResponseImpl) {
+            ((WebResponseImpl) cachedResponse_).release();
+        }
+    }
+
+    /**
+     * Returns the response as stored in the cache.
+     * @return the cached response
+     */
+    WebResponse getCachedResponse() {
+        return cachedResponse_;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -14,13 +14,16 @@
  */
 package com.gargoylesoftware.htmlunit;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.ref.SoftReference;
 import java.net.URL;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -39,10 +42,34 @@ public class WebResponseImpl implements WebResponse {
     private static final long serialVersionUID = 2842434739251092348L;
     private static final Log LOG = LogFactory.getLog(WebResponseImpl.class);
 
-    private long loadTime_;
+    private volatile long loadTime_;
     private WebResponseData responseData_;
     private WebRequestSettings requestSettings_;
 
+    /** The number of users of this response which haven't released it yet, see {@link #retain()}. */
+    private final AtomicInteger users_ = new AtomicInteger(1);
+
+    /** Whether the user which received this response first has released it, see {@link #cleanUp()}. */
+    private final AtomicBoolean cleanedUp_ = new AtomicBoolean();
+
+    private transient volatile boolean charsetSniffed_;
+    private transient volatile String sniffedCharset_;
+    private transient volatile DecodedContent decodedContent_;
+
+    /**
+     * The content decoded with a given encoding. The string is softly referenced as it may be large and
+     * can be decoded again at any time.
+     */
+    private static final class DecodedContent {
+        private final String encoding_;
+        private final SoftReference<String> content_;
+
+        DecodedContent(final String encoding, final String content) {
+            encoding_ = encoding;
+            content_ = new SoftReference<String>(content);
+        }
+    }
+
     /**
      * Constructs with all data.
      *
@@ -77,6 +104,72 @@ public class WebResponseImpl implements WebResponse {
         return requestSettings_;
     }
 
+    /**
+     * Returns the data of this response.
+     * @return the response data
+     */
+    WebResponseData getResponseData() {
+        return responseData_;
+    }
+
+    /**
+     * Indicates that the user which received this response first, usually the page built on it, doesn't
+     * need it anymore. The resources held by this response, like the temporary file holding a large body,
+     * are released once all its other users (see {@link #retain()}) have released it as well; the content
+     * can't be read anymore afterwards. Calling this method more than once has no effect.
+     */
+    public void cleanUp() {
+        if (cleanedUp_.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    /**
+     * Registers an additional user of this response, like a cache holding it or a page built on a copy
+     * handed out by a cache. Each successful call has to be balanced by a call to {@link #release()}.
+     * @return <code>false</code> if the resources of this response have already been released, in which
+     *         case its content can't be read anymore
+     */
+    boolean retain() {
+        while (true) {
+            final int users = users_.get();
+            if (users == 0) {
+                return false;
+            }
+            if (users_.compareAndSet(users, users + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Indicates that a user registered with {@link #retain()} doesn't need this response anymore.
+     * The resources held by this response are released when it has no user left.
+     */
+    void release() {
+        while (true) {
+            final int users = users_.get();
+            if (users == 0) {
+                return;
+            }
+            if (users_.compareAndSet(users, users - 1)) {
+                if (users == 1) {
+                    decodedContent_ = null;
+                    responseData_.cleanUp();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the breakdown of the time spent and of the bytes received to get this response.
+     * @return the timings, <tt>null</tt> if this response hasn't been received through {@link HttpWebConnection}
+     */
+    public WebResponseTimings getTimings() {
+        return responseData_.getTimings();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -88,12 +181,7 @@ public class WebResponseImpl implements WebResponse {
      * {@inheritDoc}
      */
     public String getResponseHeaderValue(final String headerName) {
-        for (final NameValuePair pair : responseData_.getResponseHeaders()) {
-            if (pair.getName().equalsIgnoreCase(headerName)) {
-                return pair.getValue();
-            }
-        }
-        return null;
+        return responseData_.getHeaders().getValue(headerName);
     }
 
     /**
@@ -114,29 +202,33 @@ public class WebResponseImpl implements WebResponse {
      * {@inheritDoc}
      */
     public String getContentType() {
-        final String contentTypeHeader = getResponseHeaderValue("content-type");
-        if (contentTypeHeader == null) {
-            // Not technically legal but some servers don't return a content-type
-            return "";
-        }
-        final int index = contentTypeHeader.indexOf(';');
-        if (index == -1) {
-            return contentTypeHeader;
-        }
-        return contentTypeHeader.substring(0, index);
+        return responseData_.getHeaders().getContentType();
     }
 
     /**
      * {@inheritDoc}
      */
     public String getContentCharsetOrNull() {
-        try {
-            return EncodingSniffer.sniffEncoding(getResponseHeaders(), getContentAsStream());
-        }
-        catch (final IOException e) {
-            LOG.warn("Error trying to sniff encoding.", e);
-            return null;
+        if (!charsetSniffed_) {
+            String charset = responseData_.getHeaders().getCharset();
+            if (charset == null) {
+                InputStream content = null;
+                try {
+                    content = getContentAsStream();
+                    charset = EncodingSniffer.sniffEncoding(responseData_.getHeaders(), content);
+                }
+                catch (final IOException e) {
+                    LOG.warn("Error trying to sniff encoding.", e);
+                    return null;
+                }
+                finally {
+                    IOUtils.closeQuietly(content);
+                }
+            }
+            sniffedCharset_ = charset;
+            charsetSniffed_ = true;
         }
+        return sniffedCharset_;
     }
 
     /**
@@ -164,28 +256,34 @@ public class WebResponseImpl implements WebResponse {
      * {@inheritDoc}
      */
     public String getContentAsString(final String encoding) {
-        final byte[] body = responseData_.getBody();
-        if (body != null) {
-            try {
-                return new String(body, encoding);
-            }
-            catch (final UnsupportedEncodingException e) {
-                LOG.warn("Attempted to use unsupported encoding '" + encoding + "'; using default system encoding.");
-                return new String(body);
+        final DecodedContent decoded = decodedContent_;
+        if (decoded != null && decoded.encoding_.equals(encoding)) {
+            final String content = decoded.content_.get();
+            if (content != null) {
+                return content;
             }
         }
-        return null;
+        String content;
+        try {
+            content = responseData_.getBodyAsString(encoding);
+        }
+        catch (final UnsupportedEncodingException e) {
+            LOG.warn("Attempted to use unsupported encoding '" + encoding + "'; using default system encoding.");
+            final byte[] body = responseData_.getBody();
+            content = new String(body);
+        }
+        if (content == null) {
+            return null;
+        }
+        decodedContent_ = new DecodedContent(encoding, content);
+        return content;
     }
 
     /**
      * {@inheritDoc}
      */
     public InputStream getContentAsStream() throws IOException {
-        final byte[] body = responseData_.getBody();
-        if (body != null) {
-            return new ByteArrayInputStream(body);
-        }
-        return null;
+        return responseData_.getInputStream();
     }
 
     /**
@@ -202,6 +300,15 @@ public class WebResponseImpl implements WebResponse {
         return loadTime_;
     }
 
+    /**
+     * Sets the time it took to load this response, for instance to include the delays added by a
+     * {@link com.gargoylesoftware.htmlunit.util.NetworkEmulatingWebConnection}.
+     * @param loadTime the load time in milliseconds
+     */
+    public void setLoadTime(final long loadTime) {
+        loadTime_ = loadTime;
+    }
+
     /**
      * {@inheritDoc}
      */
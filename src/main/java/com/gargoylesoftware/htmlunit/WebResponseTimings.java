@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit;
+
+import java.io.Serializable;
+
+/**
+ * The breakdown of the time spent and of the bytes received to get a {@link WebResponse}. All durations
+ * are in milliseconds; the ones measured from the start of the request are cumulative. A value of
+ * <tt>-1</tt> means that the information isn't available, for instance the connect time when a pooled
+ * connection has been reused or any network timing when the response came from the {@link Cache}.
+ *
+ * <p>The network timings are only available for the responses received through {@link HttpWebConnection}
+ * or {@link NioWebConnection}. For <tt>https</tt>, the TLS handshake is performed when the request is
+ * written and is therefore part of the time to first byte. The decoding of a compressed body happens when the content
+ * is accessed the first time: the decoding time and the decoded size are filled in at that point.</p>
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ * @see WebClient#addResponseTimingListener(ResponseTimingListener)
+ */
+public class WebResponseTimings implements Serializable {
+
+    private static final long serialVersionUID = 4150226108063924352L;
+
+    private volatile long queueWait_ = -1;
+    private volatile long connect_ = -1;
+    private volatile boolean connectionReused_;
+    private volatile long firstByte_ = -1;
+    private volatile long bodyComplete_ = -1;
+    private volatile long wireBytes_ = -1;
+    private volatile long decodeTime_ = -1;
+    private volatile long decodedBytes_ = -1;
+    private volatile boolean cacheHit_;
+
+    /**
+     * Returns the time spent waiting for a connection from the {@link ConnectionPool}.
+     * @return the time in milliseconds
+     */
+    public long getQueueWait() {
+        return queueWait_;
+    }
+
+    void setQueueWait(final long queueWait) {
+        queueWait_ = queueWait;
+    }
+
+    /**
+     * Returns the time needed to open the connection to the server (or to the proxy).
+     * @return the time in milliseconds, <tt>-1</tt> if an open connection has been reused
+     */
+    public long getConnect() {
+        return connect_;
+    }
+
+    void setConnect(final long connect) {
+        connect_ = connect;
+    }
+
+    /**
+     * Indicates if an already open connection has been used.
+     * @return <tt>true</tt> if the connection has been kept alive from a previous request
+     */
+    public boolean isConnectionReused() {
+        return connectionReused_;
+    }
+
+    void setConnectionReused(final boolean connectionReused) {
+        connectionReused_ = connectionReused;
+    }
+
+    /**
+     * Returns the time from the start of the request until the response headers have been received.
+     * @return the time in milliseconds
+     */
+    public long getFirstByte() {
+        return firstByte_;
+    }
+
+    void setFirstByte(final long firstByte) {
+        firstByte_ = firstByte;
+    }
+
+    /**
+     * Returns the time from the start of the request until the body has been completely received.
+     * @return the time in milliseconds
+     */
+    public long getBodyComplete() {
+        return bodyComplete_;
+    }
+
+    void setBodyComplete(final long bodyComplete) {
+        bodyComplete_ = bodyComplete;
+    }
+
+    /**
+     * Returns the time spent decoding the body according to its <tt>Content-Encoding</tt>.
+     * @return the time in milliseconds, <tt>-1</tt> if the body isn't encoded or hasn't been decoded yet
+     */
+    public long getDecodeTime() {
+        return decodeTime_;
+    }
+
+    /**
+     * Returns the number of bytes of the body as received, before decoding.
+     * @return the number of bytes
+     */
+    public long getWireBytes() {
+        return wireBytes_;
+    }
+
+    void setWireBytes(final long wireBytes) {
+        wireBytes_ = wireBytes;
+    }
+
+    /**
+     * Returns the number of bytes of the decoded body.
+     * @return the number of bytes, <tt>-1</tt> if the body hasn't been decoded yet
+     */
+    public long getDecodedBytes() {
+        return decodedBytes_;
+    }
+
+    /**
+     * Records the decoding of the body.
+     * @param decodeTime the time spent decoding, <tt>-1</tt> if the body isn't encoded
+     * @param decodedBytes the number of bytes after decoding
+     */
+    void setDecoded(final long decodeTime, final long decodedBytes) {
+        decodeTime_ = decodeTime;
+        decodedBytes_ = decodedBytes;
+    }
+
+    /**
+     * Indicates if the response has been served from the {@link Cache}, either directly or after a
+     * successful revalidation.
+     * @return <tt>true</tt> for a cached response
+     */
+    public boolean isCacheHit() {
+        return cacheHit_;
+    }
+
+    void setCacheHit(final boolean cacheHit) {
+        cacheHit_ = cacheHit;
+    }
+
+    /**
+     * Returns a copy of these timings, flagged as cache hit.
+     * @return the copy
+     */
+    WebResponseTimings asCacheHit() {
+        final WebResponseTimings copy = new WebResponseTimings();
+        copy.queueWait_ = queueWait_;
+        copy.connect_ = connect_;
+        copy.connectionReused_ = connectionReused_;
+        copy.firstByte_ = firstByte_;
+        copy.bodyComplete_ = bodyComplete_;
+        copy.wireBytes_ = wireBytes_;
+        copy.decodeTime_ = decodeTime_;
+        copy.decodedBytes_ = decodedBytes_;
+        copy.cacheHit_ = true;
+        return copy;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "WebResponseTimings[queueWait=" + queueWait_ + ", connect=" + connect_
+            + ", connectionReused=" + connectionReused_ + ", firstByte=" + firstByte_
+            + ", bodyComplete=" + bodyComplete_ + ", decodeTime=" + decodeTime_
+            + ", wireBytes=" + wireBytes_ + ", decodedBytes=" + decodedBytes_ + ", cacheHit=" + cacheHit_ + "]";
+    }
+}
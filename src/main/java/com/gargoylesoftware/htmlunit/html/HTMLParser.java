@@ -303,6 +303,10 @@ public final class HTMLParser {
             }
         }
 
+        if (webWindow.getWebClient().getPrefetchThreads() > 0) {
+            PreloadScanner.scan(page, webResponse, charset);
+        }
+
         final InputStream content = webResponse.getContentAsStream();
         final XMLInputSource in = new XMLInputSource(null, url.toString(), null, content, charset);
 
@@ -506,7 +510,7 @@ public final class HTMLParser {
          * @param webClient the current WebClient
          * @return the configuration
          */
-        private static XMLParserConfiguration createConfiguration(final WebClient webClient) {
+        static XMLParserConfiguration createConfiguration(final WebClient webClient) {
             final BrowserVersion browserVersion = webClient.getBrowserVersion();
             // for IE we need a special scanner that will be able to understand conditional comments
             if (browserVersion.isIE()) {
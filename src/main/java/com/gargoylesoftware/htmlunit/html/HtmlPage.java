@@ -53,6 +53,7 @@ import org.w3c.dom.ProcessingInstruction;
 import org.w3c.dom.Text;
 import org.w3c.dom.ranges.Range;
 
+import com.gargoylesoftware.htmlunit.BrowserVersion;
 import com.gargoylesoftware.htmlunit.BrowserVersionFeatures;
 import com.gargoylesoftware.htmlunit.Cache;
 import com.gargoylesoftware.htmlunit.ElementNotFoundException;
@@ -60,6 +61,7 @@ import com.gargoylesoftware.htmlunit.FailingHttpStatusCodeException;
 import com.gargoylesoftware.htmlunit.OnbeforeunloadHandler;
 import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.ScriptException;
+import com.gargoylesoftware.htmlunit.ScriptPreProcessor;
 import com.gargoylesoftware.htmlunit.ScriptResult;
 import com.gargoylesoftware.htmlunit.SgmlPage;
 import com.gargoylesoftware.htmlunit.TextUtil;
@@ -215,6 +217,7 @@ public class HtmlPage extends SgmlPage {
         catch (final Exception e) {
             throw new RuntimeException(e);
         }
+        getWebClient().discardPrefetchedResponses(this);
         executeRefreshIfNeeded();
     }
 
@@ -238,6 +241,8 @@ public class HtmlPage extends SgmlPage {
         cleaning_ = true;
         executeEventHandlersIfNeeded(Event.TYPE_UNLOAD);
         deregisterFramesIfNeeded();
+        getWebClient().discardPrefetchedResponses(this);
+        getWebClient().cleanUpWebResponse(getWebResponse());
         cleaning_ = false;
     }
 
@@ -984,7 +989,6 @@ public class HtmlPage extends SgmlPage {
     private Script loadJavaScriptFromUrl(final URL url, final String charset) throws IOException,
         FailingHttpStatusCodeException {
 
-        String scriptEncoding = charset;
         final String pageEncoding = getPageEncoding();
         final WebRequestSettings referringRequest = getWebResponse().getRequestSettings();
 
@@ -995,12 +999,34 @@ public class HtmlPage extends SgmlPage {
         request.setAdditionalHeaders(new HashMap<String, String>(referringRequest.getAdditionalHeaders()));
         request.setAdditionalHeader("Referer", referringRequest.getUrl().toString());
 
-        final Object cachedScript = cache.getCachedObject(request);
-        if (cachedScript instanceof Script) {
-            return (Script) cachedScript;
+        final Script cachedScript = CompiledScript.getScript(cache.getCachedObject(request), client);
+        if (cachedScript != null) {
+            return cachedScript;
         }
 
         final WebResponse response = client.loadWebResponse(request);
+        try {
+            return loadJavaScriptFromResponse(url, request, response, charset, pageEncoding);
+        }
+        finally {
+            // the content isn't needed anymore once compiled, unless the response is now cached
+            client.cleanUpWebResponse(response);
+        }
+    }
+
+    /**
+     * Compiles the script of the specified response, once loaded by {@link #loadJavaScriptFromUrl(URL, String)}.
+     */
+    private Script loadJavaScriptFromResponse(final URL url, final WebRequestSettings request,
+        final WebResponse response, final String charset, final String pageEncoding) throws IOException {
+
+        String scriptEncoding = charset;
+        final WebClient client = getWebClient();
+        final Cache cache = client.getCache();
+        final Script revalidatedScript = CompiledScript.getScript(cache.getCachedObject(response), client);
+        if (revalidatedScript != null) {
+            return revalidatedScript;
+        }
         client.printContentIfNecessary(response);
         client.throwFailingHttpStatusCodeExceptionIfNecessary(response);
 
@@ -1044,12 +1070,46 @@ public class HtmlPage extends SgmlPage {
         final JavaScriptEngine javaScriptEngine = client.getJavaScriptEngine();
         final Script script = javaScriptEngine.compile(this, scriptCode, url.toExternalForm(), 1);
         if (script != null) {
-            cache.cacheIfPossible(request, response, script);
+            cache.cacheIfPossible(request, response, new CompiledScript(script, client));
         }
 
         return script;
     }
 
+    /**
+     * A compiled script as stored in the cache. As the cache may be shared between web clients, the
+     * settings influencing the compilation are stored as well to reuse the script only when it's safe.
+     */
+    private static final class CompiledScript {
+        private final Script script_;
+        private final BrowserVersion browserVersion_;
+        private final ScriptPreProcessor scriptPreProcessor_;
+
+        private CompiledScript(final Script script, final WebClient client) {
+            script_ = script;
+            browserVersion_ = client.getBrowserVersion();
+            scriptPreProcessor_ = client.getScriptPreProcessor();
+        }
+
+        /**
+         * Returns the compiled script held by the specified cached object if it has been compiled
+         * with the same settings as the ones of the specified web client.
+         * @param cached the object from the cache, may be <tt>null</tt>
+         * @param client the web client which wants to execute the script
+         * @return the compiled script, <tt>null</tt> if none can be used
+         */
+        static Script getScript(final Object cached, final WebClient client) {
+            if (cached instanceof CompiledScript) {
+                final CompiledScript compiledScript = (CompiledScript) cached;
+                if (compiledScript.browserVersion_.equals(client.getBrowserVersion())
+                        && compiledScript.scriptPreProcessor_ == client.getScriptPreProcessor()) {
+                    return compiledScript.script_;
+                }
+            }
+            return null;
+        }
+    }
+
     /**
      * Returns the title of this page or an empty string if the title wasn't specified.
      *
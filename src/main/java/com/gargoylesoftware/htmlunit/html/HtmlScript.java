@@ -449,11 +449,23 @@ public class HtmlScript extends HtmlElement {
      * @return true if the script is JavaScript
      */
     boolean isJavaScript(final String typeAttribute, final String languageAttribute) {
+        return isJavaScript(typeAttribute, languageAttribute, getPage().getWebClient().getBrowserVersion());
+    }
+
+    /**
+     * Returns true if a script with the specified type and language attributes is actually JavaScript
+     * for the specified browser version.
+     * @param typeAttribute the type attribute specified in the script tag
+     * @param languageAttribute the language attribute specified in the script tag
+     * @param browserVersion the simulated browser version
+     * @return true if the script is JavaScript
+     */
+    static boolean isJavaScript(final String typeAttribute, final String languageAttribute,
+            final BrowserVersion browserVersion) {
         final boolean isJavaScript;
         if (typeAttribute != null && typeAttribute.length() != 0) {
             isJavaScript = typeAttribute.equalsIgnoreCase("text/javascript")
-                || (typeAttribute.equalsIgnoreCase("application/javascript")
-                        && getPage().getWebClient().getBrowserVersion().isFirefox());
+                || (typeAttribute.equalsIgnoreCase("application/javascript") && browserVersion.isFirefox());
         }
         else if (languageAttribute != null && languageAttribute.length() != 0) {
             isJavaScript = TextUtil.startsWithIgnoreCase(languageAttribute, "javascript");
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit.html;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.xerces.xni.Augmentations;
+import org.apache.xerces.xni.QName;
+import org.apache.xerces.xni.XMLAttributes;
+import org.apache.xerces.xni.XNIException;
+import org.apache.xerces.xni.parser.XMLInputSource;
+import org.apache.xerces.xni.parser.XMLParserConfiguration;
+import org.cyberneko.html.filters.DefaultFilter;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequestSettings;
+import com.gargoylesoftware.htmlunit.WebResponse;
+
+/**
+ * Looks ahead in the content of a page for the external scripts, stylesheets and frames it references
+ * and asks the {@link WebClient} to {@link WebClient#prefetch prefetch} them. The content is only
+ * tokenized (no DOM is built and no script is executed), which is cheap compared to the network
+ * round-trips it allows to overlap.
+ *
+ * <p>Resources added later by scripts (for instance through <tt>document.write</tt>) aren't discovered;
+ * they are loaded as usual when needed.</p>
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+final class PreloadScanner extends DefaultFilter {
+
+    private static final Log LOG = LogFactory.getLog(PreloadScanner.class);
+
+    private final HtmlPage page_;
+    private final WebClient webClient_;
+    private final WebRequestSettings referringRequest_;
+    private URL baseUrl_;
+    private boolean baseFound_;
+
+    private PreloadScanner(final HtmlPage page) {
+        page_ = page;
+        webClient_ = page.getWebClient();
+        referringRequest_ = page.getWebResponse().getRequestSettings();
+        baseUrl_ = referringRequest_.getUrl();
+    }
+
+    /**
+     * Scans the content of the specified response and starts the download of the resources it references.
+     * @param page the page being loaded
+     * @param webResponse the response containing the page's content
+     * @param charset the charset to use to read the content, may be <tt>null</tt>
+     */
+    static void scan(final HtmlPage page, final WebResponse webResponse, final String charset) {
+        final URL url = webResponse.getRequestSettings().getUrl();
+        if (!isHttp(url)) {
+            return;
+        }
+
+        final PreloadScanner scanner = new PreloadScanner(page);
+        final XMLParserConfiguration configuration =
+            HTMLParser.HtmlUnitDOMBuilder.createConfiguration(page.getWebClient());
+        InputStream content = null;
+        try {
+            configuration.setFeature("http://cyberneko.org/html/features/balance-tags", false);
+            configuration.setProperty("http://cyberneko.org/html/properties/names/elems", "lower");
+            configuration.setDocumentHandler(scanner);
+            content = webResponse.getContentAsStream();
+            configuration.parse(new XMLInputSource(null, url.toString(), null, content, charset));
+        }
+        catch (final IOException e) {
+            LOG.debug("Preload scanning of " + url + " failed", e);
+        }
+        catch (final XNIException e) {
+            LOG.debug("Preload scanning of " + url + " failed", e);
+        }
+        finally {
+            IOUtils.closeQuietly(content);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startElement(final QName element, final XMLAttributes attributes, final Augmentations augs) {
+        handleElement(element, attributes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void emptyElement(final QName element, final XMLAttributes attributes, final Augmentations augs) {
+        handleElement(element, attributes);
+    }
+
+    private void handleElement(final QName element, final XMLAttributes attributes) {
+        final String name = element.rawname;
+        if ("base".equals(name)) {
+            handleBase(attributes.getValue("href"));
+        }
+        else if ("script".equals(name)) {
+            if (webClient_.isJavaScriptEnabled() && HtmlScript.isJavaScript(attributes.getValue("type"),
+                    attributes.getValue("language"), webClient_.getBrowserVersion())) {
+                // same headers as HtmlPage.loadJavaScriptFromUrl(), otherwise the prefetched response isn't used
+                prefetch(createRequest(attributes.getValue("src"), referringRequest_.getAdditionalHeaders()));
+            }
+        }
+        else if ("link".equals(name)) {
+            final String rel = attributes.getValue("rel");
+            if (webClient_.isJavaScriptEnabled() && webClient_.isCssEnabled()
+                    && rel != null && rel.trim().equalsIgnoreCase("stylesheet")) {
+                prefetch(createRequest(attributes.getValue("href"), null));
+            }
+        }
+        else if ("frame".equals(name) || "iframe".equals(name)) {
+            prefetch(createRequest(attributes.getValue("src"), null));
+        }
+    }
+
+    private void handleBase(final String href) {
+        // as HtmlPage, only consider the first base element
+        if (baseFound_) {
+            return;
+        }
+        baseFound_ = true;
+        if (StringUtils.isNotEmpty(href)) {
+            try {
+                baseUrl_ = WebClient.expandUrl(baseUrl_, href.trim());
+            }
+            catch (final MalformedURLException e) {
+                // keep the page's URL
+            }
+        }
+    }
+
+    private WebRequestSettings createRequest(final String src, final Map<String, String> headers) {
+        if (StringUtils.isBlank(src)) {
+            return null;
+        }
+        final URL url;
+        try {
+            url = WebClient.expandUrl(baseUrl_, src.trim());
+        }
+        catch (final MalformedURLException e) {
+            return null;
+        }
+        if (!isHttp(url)) {
+            return null;
+        }
+        final WebRequestSettings request = new WebRequestSettings(url);
+        if (headers != null) {
+            request.setAdditionalHeaders(new HashMap<String, String>(headers));
+        }
+        request.setAdditionalHeader("Referer", referringRequest_.getUrl().toExternalForm());
+        return request;
+    }
+
+    private void prefetch(final WebRequestSettings request) {
+        if (request != null) {
+            webClient_.prefetch(request, page_);
+        }
+    }
+
+    private static boolean isHttp(final URL url) {
+        final String protocol = url.getProtocol();
+        return "http".equals(protocol) || "https".equals(protocol);
+    }
+}
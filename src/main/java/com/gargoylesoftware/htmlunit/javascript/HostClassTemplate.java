@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit.javascript;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import net.sourceforge.htmlunit.corejs.javascript.Context;
+import net.sourceforge.htmlunit.corejs.javascript.FunctionObject;
+import net.sourceforge.htmlunit.corejs.javascript.ScriptableObject;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.gargoylesoftware.htmlunit.javascript.configuration.ClassConfiguration;
+import com.gargoylesoftware.htmlunit.javascript.configuration.JavaScriptConfiguration;
+import com.gargoylesoftware.htmlunit.javascript.host.Window;
+
+/**
+ * Everything needed to set up the prototype of a host class in a new window, resolved once per
+ * {@link JavaScriptConfiguration} (and therefore per browser version) instead of once per window:
+ * the values of the constants, the accessor methods of the properties and the methods of the functions.
+ *
+ * <p>The prototypes themselves can't be shared between windows: their functions have the window
+ * as parent scope and the window's <tt>Function.prototype</tt> as prototype. They are therefore
+ * created for each window, but only when first needed (see {@link LazyHostClasses}).</p>
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+final class HostClassTemplate {
+
+    private static final Map<JavaScriptConfiguration, Templates> TEMPLATES =
+        new WeakHashMap<JavaScriptConfiguration, Templates>();
+
+    private final String className_;
+    private final Class< ? extends SimpleScriptable> linkedClass_;
+    private final boolean window_;
+    private final boolean jsObject_;
+    private final String extendedClass_;
+    private final Method jsConstructor_;
+    private final String[] constantNames_;
+    private final Object[] constantValues_;
+    private final String[] propertyNames_;
+    private final Method[] propertyReadMethods_;
+    private final Method[] propertyWriteMethods_;
+    private final String[] functionNames_;
+    private final Method[] functionMethods_;
+
+    private HostClassTemplate(final ClassConfiguration config) {
+        className_ = config.getClassName();
+        linkedClass_ = config.getLinkedClass();
+        window_ = Window.class.getName().equals(linkedClass_.getName());
+        jsObject_ = config.isJsObject();
+        if (StringUtils.isEmpty(config.getExtendedClass())) {
+            extendedClass_ = null;
+        }
+        else {
+            extendedClass_ = config.getExtendedClass();
+        }
+        jsConstructor_ = config.getJsConstructor();
+
+        final List<String> constants = config.constants();
+        constantNames_ = constants.toArray(new String[constants.size()]);
+        constantValues_ = new Object[constantNames_.length];
+        for (int i = 0; i < constantNames_.length; i++) {
+            try {
+                constantValues_[i] = linkedClass_.getField(constantNames_[i]).get(null);
+            }
+            catch (final Exception e) {
+                throw Context.reportRuntimeError("Cannot get field '" + constantNames_[i] + "' for type: "
+                    + className_);
+            }
+        }
+
+        final Set<String> properties = config.propertyKeys();
+        propertyNames_ = properties.toArray(new String[properties.size()]);
+        propertyReadMethods_ = new Method[propertyNames_.length];
+        propertyWriteMethods_ = new Method[propertyNames_.length];
+        for (int i = 0; i < propertyNames_.length; i++) {
+            propertyReadMethods_[i] = config.getPropertyReadMethod(propertyNames_[i]);
+            propertyWriteMethods_[i] = config.getPropertyWriteMethod(propertyNames_[i]);
+        }
+
+        final Set<String> functions = config.functionKeys();
+        functionNames_ = functions.toArray(new String[functions.size()]);
+        functionMethods_ = new Method[functionNames_.length];
+        for (int i = 0; i < functionNames_.length; i++) {
+            functionMethods_[i] = config.getFunctionMethod(functionNames_[i]);
+        }
+    }
+
+    /**
+     * The templates of all the classes of a configuration, with the indexes needed to find them.
+     */
+    static final class Templates {
+
+        private final List<HostClassTemplate> all_;
+        private final Map<String, HostClassTemplate> perClassName_ = new HashMap<String, HostClassTemplate>();
+        private final Map<Class< ? >, HostClassTemplate> perJsObjectClass_ =
+            new HashMap<Class< ? >, HostClassTemplate>();
+
+        private Templates(final JavaScriptConfiguration jsConfig) {
+            final List<HostClassTemplate> all = new ArrayList<HostClassTemplate>();
+            for (final String jsClassName : jsConfig.keySet()) {
+                final HostClassTemplate template = new HostClassTemplate(jsConfig.getClassConfiguration(jsClassName));
+                all.add(template);
+                perClassName_.put(template.getClassName(), template);
+                if (template.isJsObject() && !template.isWindow()) {
+                    perJsObjectClass_.put(template.getLinkedClass(), template);
+                }
+            }
+            all_ = Collections.unmodifiableList(all);
+        }
+
+        /**
+         * Returns the templates of all the classes.
+         * @return the templates, in the iteration order of the configuration
+         */
+        List<HostClassTemplate> getAll() {
+            return all_;
+        }
+
+        /**
+         * Returns the template of the class with the specified JavaScript name.
+         * @param className the JavaScript class name
+         * @return the template, <tt>null</tt> if there is no such class
+         */
+        HostClassTemplate get(final String className) {
+            return perClassName_.get(className);
+        }
+
+        /**
+         * Returns the template of the class visible as JavaScript object whose instances are of the
+         * specified host class.
+         * @param linkedClass the host class
+         * @return the template, <tt>null</tt> if there is no such class
+         */
+        HostClassTemplate get(final Class< ? > linkedClass) {
+            return perJsObjectClass_.get(linkedClass);
+        }
+    }
+
+    /**
+     * Returns the templates of all the classes of the specified configuration, built on first use.
+     * @param jsConfig the configuration of a browser version
+     * @return the templates
+     */
+    static Templates getTemplates(final JavaScriptConfiguration jsConfig) {
+        synchronized (TEMPLATES) {
+            Templates templates = TEMPLATES.get(jsConfig);
+            if (templates == null) {
+                templates = new Templates(jsConfig);
+                TEMPLATES.put(jsConfig, templates);
+            }
+            return templates;
+        }
+    }
+
+    /**
+     * Returns the JavaScript class name.
+     * @return the class name
+     */
+    String getClassName() {
+        return className_;
+    }
+
+    /**
+     * Returns the host class.
+     * @return the host class
+     */
+    Class< ? extends SimpleScriptable> getLinkedClass() {
+        return linkedClass_;
+    }
+
+    /**
+     * Indicates if this is the template of the {@link Window}, whose members are defined on the window itself.
+     * @return <tt>true</tt> for the window
+     */
+    boolean isWindow() {
+        return window_;
+    }
+
+    /**
+     * Indicates if this class is visible as JavaScript object.
+     * @return <tt>true</tt> if the class is visible
+     */
+    boolean isJsObject() {
+        return jsObject_;
+    }
+
+    /**
+     * Returns the JavaScript name of the class extended by this class.
+     * @return the parent class name, <tt>null</tt> if this class directly extends <tt>Object</tt>
+     */
+    String getExtendedClass() {
+        return extendedClass_;
+    }
+
+    /**
+     * Returns the constructor to use from JavaScript.
+     * @return the constructor, <tt>null</tt> if this class can't be instantiated from JavaScript
+     */
+    Method getJsConstructor() {
+        return jsConstructor_;
+    }
+
+    /**
+     * Defines the constants, properties and functions on the specified object.
+     * @param scriptable the object to configure
+     * @param functionAttributes the attributes of the functions
+     */
+    void defineMembers(final ScriptableObject scriptable, final int functionAttributes) {
+        defineConstants(scriptable);
+
+        for (int i = 0; i < propertyNames_.length; i++) {
+            scriptable.defineProperty(propertyNames_[i], null, propertyReadMethods_[i], propertyWriteMethods_[i],
+                ScriptableObject.EMPTY);
+        }
+
+        for (int i = 0; i < functionNames_.length; i++) {
+            final FunctionObject functionObject = new FunctionObject(functionNames_[i], functionMethods_[i],
+                scriptable);
+            scriptable.defineProperty(functionNames_[i], functionObject, functionAttributes);
+        }
+    }
+
+    /**
+     * Defines the constants on the specified object.
+     * @param scriptable the object to configure
+     */
+    void defineConstants(final ScriptableObject scriptable) {
+        for (int i = 0; i < constantNames_.length; i++) {
+            scriptable.defineProperty(constantNames_[i], constantValues_[i], ScriptableObject.EMPTY);
+        }
+    }
+}
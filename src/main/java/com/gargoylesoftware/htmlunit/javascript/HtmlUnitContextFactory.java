@@ -19,6 +19,7 @@ import net.sourceforge.htmlunit.corejs.javascript.Context;
 import net.sourceforge.htmlunit.corejs.javascript.ContextFactory;
 import net.sourceforge.htmlunit.corejs.javascript.ErrorReporter;
 import net.sourceforge.htmlunit.corejs.javascript.Evaluator;
+import net.sourceforge.htmlunit.corejs.javascript.EvaluatorException;
 import net.sourceforge.htmlunit.corejs.javascript.Script;
 import net.sourceforge.htmlunit.corejs.javascript.ScriptRuntime;
 import net.sourceforge.htmlunit.corejs.javascript.Scriptable;
@@ -52,6 +53,7 @@ public class HtmlUnitContextFactory extends ContextFactory {
     private final BrowserVersion browserVersion_;
     private final WebClient webClient_;
     private long timeout_;
+    private int optimizationLevel_ = -1;
     private Debugger debugger_;
     private final ErrorReporter errorReporter_;
     private final WrapFactory wrapFactory_ = new HtmlUnitWrapFactory();
@@ -88,6 +90,35 @@ public class HtmlUnitContextFactory extends ContextFactory {
         return timeout_;
     }
 
+    /**
+     * Sets the Rhino optimization level used to execute the scripts. With the default value <tt>-1</tt>,
+     * scripts are run by the interpreter. With a value between <tt>0</tt> and <tt>9</tt>, they are compiled
+     * to JVM bytecode, which is much faster for CPU intensive scripts but makes each compilation more
+     * expensive. The {@link #setTimeout(long) timeout} is enforced in both cases: compiled scripts contain
+     * calls to the instruction observer at function entries and loop back-edges.
+     *
+     * <p>The interpreter is always used when a {@link #setDebugger(Debugger) debugger} is set, as only
+     * interpreted scripts provide the debugging information.</p>
+     *
+     * @param optimizationLevel the optimization level, between <tt>-1</tt> and <tt>9</tt>
+     */
+    public void setOptimizationLevel(final int optimizationLevel) {
+        if (!Context.isValidOptimizationLevel(optimizationLevel)) {
+            throw new IllegalArgumentException("Invalid optimization level: " + optimizationLevel);
+        }
+        optimizationLevel_ = optimizationLevel;
+    }
+
+    /**
+     * Returns the Rhino optimization level used to execute the scripts when no debugger is set.
+     *
+     * @return the optimization level (default value is <tt>-1</tt>, i.e. interpreted mode)
+     * @see #setOptimizationLevel(int)
+     */
+    public int getOptimizationLevel() {
+        return optimizationLevel_;
+    }
+
     /**
      * Sets the JavaScript debugger to use to receive JavaScript execution debugging information.
      * The HtmlUnit default implementation ({@link DebuggerImpl}, {@link DebugFrameImpl}) may be
@@ -171,8 +202,65 @@ public class HtmlUnitContextFactory extends ContextFactory {
 //                    .preProcess(htmlPage, sourceCode, sourceName, null);
             }
 
-            return super.compileString(source, compiler, compilationErrorReporter,
-                    sourceName, lineno, securityDomain);
+            final int optimizationLevel = getOptimizationLevel();
+            if (optimizationLevel == -1) {
+                return super.compileString(source, compiler, compilationErrorReporter,
+                        sourceName, lineno, securityDomain);
+            }
+
+            // The parser reports the errors of the source to the compilation error reporter before failing;
+            // an exception without such report comes from the code generator, for instance for a script too
+            // big for the JVM limits on class files. Such a script can still be interpreted.
+            final ParseErrorRecorder reporter = new ParseErrorRecorder(
+                compilationErrorReporter != null ? compilationErrorReporter : getErrorReporter());
+            try {
+                return super.compileString(source, compiler, reporter, sourceName, lineno, securityDomain);
+            }
+            catch (final EvaluatorException e) {
+                if (reporter.hasErrors()) {
+                    throw e;
+                }
+                setOptimizationLevel(-1);
+                try {
+                    return super.compileString(source, compiler, compilationErrorReporter,
+                            sourceName, lineno, securityDomain);
+                }
+                finally {
+                    setOptimizationLevel(optimizationLevel);
+                }
+            }
+        }
+    }
+
+    /**
+     * Error reporter remembering whether errors have been reported while parsing a script.
+     */
+    private static final class ParseErrorRecorder implements ErrorReporter {
+        private final ErrorReporter reporter_;
+        private boolean errors_;
+
+        ParseErrorRecorder(final ErrorReporter reporter) {
+            reporter_ = reporter;
+        }
+
+        boolean hasErrors() {
+            return errors_;
+        }
+
+        public void warning(final String message, final String sourceName, final int line,
+                final String lineSource, final int lineOffset) {
+            reporter_.warning(message, sourceName, line, lineSource, lineOffset);
+        }
+
+        public void error(final String message, final String sourceName, final int line,
+                final String lineSource, final int lineOffset) {
+            errors_ = true;
+            reporter_.error(message, sourceName, line, lineSource, lineOffset);
+        }
+
+        public EvaluatorException runtimeError(final String message, final String sourceName, final int line,
+                final String lineSource, final int lineOffset) {
+            return reporter_.runtimeError(message, sourceName, line, lineSource, lineOffset);
         }
     }
 
@@ -211,8 +299,15 @@ public class HtmlUnitContextFactory extends ContextFactory {
     protected Context makeContext() {
         final TimeoutContext cx = new TimeoutContext(this);
 
-        // Use pure interpreter mode to get observeInstructionCount() callbacks.
-        cx.setOptimizationLevel(-1);
+        if (debugger_ != null || optimizationLevel_ == -1) {
+            // Use pure interpreter mode: it calls observeInstructionCount() by itself.
+            cx.setOptimizationLevel(-1);
+        }
+        else {
+            // Compiled code has to contain the calls to observeInstructionCount().
+            cx.setOptimizationLevel(optimizationLevel_);
+            cx.setGenerateObserverCount(true);
+        }
 
         // Set threshold on how often we want to receive the callbacks
         cx.setInstructionObserverThreshold(INSTRUCTION_COUNT_THRESHOLD);
@@ -16,37 +16,35 @@ package com.gargoylesoftware.htmlunit.javascript;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.StringReader;
 import java.lang.reflect.Member;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import net.sourceforge.htmlunit.corejs.javascript.Context;
 import net.sourceforge.htmlunit.corejs.javascript.ContextAction;
+import net.sourceforge.htmlunit.corejs.javascript.EvaluatorException;
 import net.sourceforge.htmlunit.corejs.javascript.Function;
 import net.sourceforge.htmlunit.corejs.javascript.FunctionObject;
 import net.sourceforge.htmlunit.corejs.javascript.Script;
 import net.sourceforge.htmlunit.corejs.javascript.Scriptable;
 import net.sourceforge.htmlunit.corejs.javascript.ScriptableObject;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.gargoylesoftware.htmlunit.BrowserVersion;
+import com.gargoylesoftware.htmlunit.Cache;
 import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.ScriptException;
+import com.gargoylesoftware.htmlunit.ScriptPreProcessor;
 import com.gargoylesoftware.htmlunit.SgmlPage;
 import com.gargoylesoftware.htmlunit.WebAssert;
 import com.gargoylesoftware.htmlunit.WebClient;
 import com.gargoylesoftware.htmlunit.WebWindow;
 import com.gargoylesoftware.htmlunit.html.DomNode;
-import com.gargoylesoftware.htmlunit.html.HtmlDivision;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
-import com.gargoylesoftware.htmlunit.javascript.configuration.ClassConfiguration;
 import com.gargoylesoftware.htmlunit.javascript.configuration.JavaScriptConfiguration;
-import com.gargoylesoftware.htmlunit.javascript.host.Element;
 import com.gargoylesoftware.htmlunit.javascript.host.Window;
 
 /**
@@ -73,6 +71,18 @@ public class JavaScriptEngine {
     private static final long serialVersionUID = -5414040051465432088L;
     private static final Log LOG = LogFactory.getLog(JavaScriptEngine.class);
 
+    /** The method called for <tt>eval</tt> (cf unit tests testEvalScopeOtherWindow and testEvalScopeLocal). */
+    private static final Member CUSTOM_EVAL;
+
+    static {
+        try {
+            CUSTOM_EVAL = Window.class.getMethod("custom_eval", String.class);
+        }
+        catch (final NoSuchMethodException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
     private final WebClient webClient_;
     private final HtmlUnitContextFactory contextFactory_;
 
@@ -146,16 +156,15 @@ public class JavaScriptEngine {
     }
 
     /**
-     * Initializes all the JS stuff for the window.
+     * Initializes all the JS stuff for the window. The host classes are defined in the window only when
+     * first needed (see {@link LazyHostClasses}), from configurations resolved once per browser version
+     * (see {@link HostClassTemplate}).
      * @param webWindow the web window
      * @param context the current context
      * @throws Exception if something goes wrong
      */
     private void init(final WebWindow webWindow, final Context context) throws Exception {
         final WebClient webClient = webWindow.getWebClient();
-        final Map<Class< ? extends SimpleScriptable>, Scriptable> prototypes =
-            new HashMap<Class< ? extends SimpleScriptable>, Scriptable>();
-        final Map<String, Scriptable> prototypesPerJSName = new HashMap<String, Scriptable>();
         final Window window = new Window();
         final JavaScriptConfiguration jsConfig = JavaScriptConfiguration.getInstance(webClient.getBrowserVersion());
         context.initStandardObjects(window);
@@ -170,73 +179,17 @@ public class JavaScriptEngine {
         final Scriptable fallbackCaller = new FallbackCaller();
         ScriptableObject.getObjectPrototype(window).setPrototype(fallbackCaller);
 
-        for (final String jsClassName : jsConfig.keySet()) {
-            final ClassConfiguration config = jsConfig.getClassConfiguration(jsClassName);
-            final boolean isWindow = Window.class.getName().equals(config.getLinkedClass().getName());
-            if (isWindow) {
-                configureConstantsPropertiesAndFunctions(config, window);
-            }
-            else {
-                final ScriptableObject prototype = configureClass(config, window);
-                if (config.isJsObject()) {
-                    // for FF, place object with prototype property in Window scope
-                    if (!getWebClient().getBrowserVersion().isIE()) {
-                        final SimpleScriptable obj = config.getLinkedClass().newInstance();
-                        prototype.defineProperty("__proto__", prototype, ScriptableObject.DONTENUM);
-                        obj.defineProperty("prototype", prototype, ScriptableObject.DONTENUM); // but not setPrototype!
-                        obj.setParentScope(window);
-                        ScriptableObject.defineProperty(window, config.getClassName(), obj, ScriptableObject.DONTENUM);
-                        // this obj won't have prototype, constants need to be configured on it again
-                        configureConstants(config, obj);
-
-                        if (obj.getClass() == Element.class && webWindow.getEnclosedPage() instanceof HtmlPage) {
-                            final DomNode domNode =
-                                new HtmlDivision(null, "", (SgmlPage) webWindow.getEnclosedPage(), null);
-                            obj.setDomNode(domNode);
-                        }
-                    }
-                    prototypes.put(config.getLinkedClass(), prototype);
-                }
-                prototypesPerJSName.put(config.getClassName(), prototype);
-            }
-        }
-
-        // once all prototypes have been build, it's possible to configure the chains
-        final Scriptable objectPrototype = ScriptableObject.getObjectPrototype(window);
-        for (final Map.Entry<String, Scriptable> entry : prototypesPerJSName.entrySet()) {
-            final String name = entry.getKey();
-            final ClassConfiguration config = jsConfig.getClassConfiguration(name);
-            Scriptable prototype = entry.getValue();
-            if (prototype.getPrototype() != null) {
-                prototype = prototype.getPrototype(); // "double prototype" hack for FF
-            }
-            if (!StringUtils.isEmpty(config.getExtendedClass())) {
-                final Scriptable parentPrototype = prototypesPerJSName.get(config.getExtendedClass());
-                prototype.setPrototype(parentPrototype);
-            }
-            else {
-                prototype.setPrototype(objectPrototype);
+        final int functionAttributes = getFunctionAttributes();
+        for (final HostClassTemplate template : HostClassTemplate.getTemplates(jsConfig).getAll()) {
+            if (template.isWindow()) {
+                template.defineMembers(window, functionAttributes);
             }
         }
 
         // eval hack (cf unit tests testEvalScopeOtherWindow and testEvalScopeLocal)
-        final Class< ? >[] evalFnTypes = {String.class};
-        final Member evalFn = Window.class.getMethod("custom_eval", evalFnTypes);
-        final FunctionObject jsCustomEval = new FunctionObject("eval", evalFn, window);
+        final FunctionObject jsCustomEval = new FunctionObject("eval", CUSTOM_EVAL, window);
         window.associateValue("custom_eval", jsCustomEval);
 
-        for (final String jsClassName : jsConfig.keySet()) {
-            final ClassConfiguration config = jsConfig.getClassConfiguration(jsClassName);
-            final Method jsConstructor = config.getJsConstructor();
-            if (jsConstructor != null) {
-                final Scriptable prototype = prototypesPerJSName.get(jsClassName);
-                if (prototype != null) {
-                    final FunctionObject jsCtor = new FunctionObject(jsClassName, jsConstructor, window);
-                    jsCtor.addAsConstructor(window, prototype);
-                }
-            }
-        }
-
         // Rhino defines too much methods for us, particularly since implementation of ECMAScript5
         removePrototypeProperties(window, "String", "equals", "equalsIgnoreCase", "trim");
         removePrototypeProperties(window, "Function", "bind");
@@ -258,7 +211,19 @@ public class JavaScriptEngine {
             removePrototypeProperties(window, "Array", "reduce", "reduceRight");
         }
 
-        window.setPrototypes(prototypes);
+        SgmlPage htmlPage = null;
+        if (webWindow.getEnclosedPage() instanceof HtmlPage) {
+            htmlPage = (SgmlPage) webWindow.getEnclosedPage();
+        }
+        final LazyHostClasses hostClasses = new LazyHostClasses(window, webClient.getBrowserVersion(),
+            functionAttributes, htmlPage);
+        for (final HostClassTemplate template : HostClassTemplate.getTemplates(jsConfig).getAll()) {
+            // a class with the name of a standard object, like Namespace, replaces it
+            if (!template.isWindow()) {
+                window.delete(template.getClassName());
+            }
+        }
+        window.setHostClasses(hostClasses);
         window.initialize(webWindow);
     }
 
@@ -287,68 +252,14 @@ public class JavaScriptEngine {
     }
 
     /**
-     * Configures the specified class for access via JavaScript.
-     * @param config the configuration settings for the class to be configured
-     * @param window the scope within which to configure the class
-     * @throws InstantiationException if the new class cannot be instantiated
-     * @throws IllegalAccessException if we don't have access to create the new instance
-     * @return the created prototype
-     */
-    private ScriptableObject configureClass(final ClassConfiguration config, final Scriptable window)
-        throws InstantiationException, IllegalAccessException {
-
-        final Class< ? > jsHostClass = config.getLinkedClass();
-        final ScriptableObject prototype = (ScriptableObject) jsHostClass.newInstance();
-        prototype.setParentScope(window);
-
-        configureConstantsPropertiesAndFunctions(config, prototype);
-
-        return prototype;
-    }
-
-    /**
-     * Configures constants, properties and functions on the object.
-     * @param config the configuration for the object
-     * @param scriptable the object to configure
+     * Returns the attributes of the functions of the host objects: IE doesn't enumerate them.
+     * @return the attributes
      */
-    private void configureConstantsPropertiesAndFunctions(final ClassConfiguration config,
-            final ScriptableObject scriptable) {
-
-        // the constants
-        configureConstants(config, scriptable);
-
-        // the properties
-        for (final String propertyName : config.propertyKeys()) {
-            final Method readMethod = config.getPropertyReadMethod(propertyName);
-            final Method writeMethod = config.getPropertyWriteMethod(propertyName);
-            scriptable.defineProperty(propertyName, null, readMethod, writeMethod, ScriptableObject.EMPTY);
-        }
-
-        int attributes = ScriptableObject.EMPTY;
+    private int getFunctionAttributes() {
         if (webClient_.getBrowserVersion().isIE()) {
-            attributes = ScriptableObject.DONTENUM;
-        }
-        // the functions
-        for (final String functionName : config.functionKeys()) {
-            final Method method = config.getFunctionMethod(functionName);
-            final FunctionObject functionObject = new FunctionObject(functionName, method, scriptable);
-            scriptable.defineProperty(functionName, functionObject, attributes);
-        }
-    }
-
-    private void configureConstants(final ClassConfiguration config,
-            final ScriptableObject scriptable) {
-        for (final String constant : config.constants()) {
-            final Class< ? > linkedClass = config.getLinkedClass();
-            try {
-                final Object value = linkedClass.getField(constant).get(null);
-                scriptable.defineProperty(constant, value, ScriptableObject.EMPTY);
-            }
-            catch (final Exception e) {
-                throw Context.reportRuntimeError("Cannot get field '" + constant + "' for type: "
-                    + config.getClassName());
-            }
+            return ScriptableObject.DONTENUM;
         }
+        return ScriptableObject.EMPTY;
     }
 
     /**
@@ -396,10 +307,128 @@ public class JavaScriptEngine {
                            final String sourceName,
                            final int startLine) {
 
-        final Script script = compile(htmlPage, sourceCode, sourceName, startLine);
+        final Cache cache = webClient_.getCache();
+        final String key = getInlineScriptKey("script", sourceCode, sourceName, startLine);
+        Script script = InlineScript.getScript(cache.getCachedInlineScript(key), sourceCode, this);
+        if (script == null) {
+            script = compile(htmlPage, sourceCode, sourceName, startLine);
+            if (script != null) {
+                cache.cacheInlineScript(key, new InlineScript(sourceCode, script, this), sourceCode.length());
+            }
+        }
         return execute(htmlPage, script);
     }
 
+    /**
+     * Compiles the function of an event handler in the specified scope. Like with
+     * {@link Context#compileFunction(Scriptable, String, String, int, Object)}, the script pre processors
+     * are not applied, but the compiled code is cached by content: the same handler found on many elements
+     * or on many loads of a page is compiled only once.
+     *
+     * @param cx the current context
+     * @param scope the scope of the function, i.e. the object to which the handler is attached
+     * @param functionSource the source of the function, for instance <tt>function(event) { ... }</tt>
+     * @param sourceName the name of the compiled code, which must not depend on the element as it is
+     * part of the cache key, for instance <tt>onclick event in http://...</tt>
+     * @param errorSourceName the name of the handler of this very element, reported for syntax errors
+     * @return the function
+     */
+    public Function compileEventHandler(final Context cx, final Scriptable scope, final String functionSource,
+            final String sourceName, final String errorSourceName) {
+        final Cache cache = webClient_.getCache();
+        final String key = getInlineScriptKey("handler", functionSource, sourceName, 0);
+        Script script = InlineScript.getScript(cache.getCachedInlineScript(key), functionSource, this);
+        if (script == null) {
+            // the function is compiled as the single expression of a script, which can be evaluated in any scope
+            try {
+                script = cx.compileReader(new StringReader("(" + functionSource + ")"), sourceName, 0, null);
+            }
+            catch (final EvaluatorException e) {
+                throw new EvaluatorException(e.details(), errorSourceName, e.lineNumber(), e.lineSource(),
+                    e.columnNumber());
+            }
+            catch (final IOException e) {
+                throw Context.throwAsScriptRuntimeEx(e); // can't happen with a StringReader
+            }
+            cache.cacheInlineScript(key, new InlineScript(functionSource, script, this),
+                functionSource.length());
+        }
+        return (Function) script.exec(cx, scope);
+    }
+
+    private String getInlineScriptKey(final String kind, final String source, final String sourceName,
+            final int startLine) {
+        return kind + ':' + webClient_.getBrowserVersion().getNickname() + ':' + getCompiledOptimizationLevel()
+            + ':' + isDebugging() + ':' + source.hashCode() + ':' + source.length() + ':' + startLine
+            + ':' + sourceName;
+    }
+
+    /**
+     * Indicates if the scripts are compiled for a debugger, i.e. interpreted with debugging information.
+     * @return <tt>true</tt> if a debugger is set
+     */
+    private boolean isDebugging() {
+        return contextFactory_.getDebugger() != null;
+    }
+
+    /**
+     * Returns the optimization level with which the scripts are compiled: the interpreter is always
+     * used when a debugger is set.
+     * @return the optimization level
+     */
+    private int getCompiledOptimizationLevel() {
+        if (isDebugging()) {
+            return -1;
+        }
+        return contextFactory_.getOptimizationLevel();
+    }
+
+    /**
+     * A script compiled from inline code as stored in the cache. The key only contains a hash of the code,
+     * and the cache may be shared between web clients: the code and the settings influencing the compilation
+     * are stored as well to reuse the script only when it's safe.
+     */
+    private static final class InlineScript {
+        private final String source_;
+        private final Script script_;
+        private final BrowserVersion browserVersion_;
+        private final ScriptPreProcessor scriptPreProcessor_;
+        private final int optimizationLevel_;
+        private final boolean debugging_;
+
+        private InlineScript(final String source, final Script script, final JavaScriptEngine engine) {
+            source_ = source;
+            script_ = script;
+            browserVersion_ = engine.webClient_.getBrowserVersion();
+            scriptPreProcessor_ = engine.webClient_.getScriptPreProcessor();
+            optimizationLevel_ = engine.getCompiledOptimizationLevel();
+            debugging_ = engine.isDebugging();
+        }
+
+        /**
+         * Returns the compiled script held by the specified cached object if it has been compiled
+         * from the same code with the same settings as the ones of the specified engine.
+         * @param cached the object from the cache, may be <tt>null</tt>
+         * @param source the code to compile
+         * @param engine the engine which wants to execute the script
+         * @return the compiled script, <tt>null</tt> if none can be used
+         */
+        static Script getScript(final Object cached, final String source, final JavaScriptEngine engine) {
+            if (cached instanceof InlineScript) {
+                final InlineScript inlineScript = (InlineScript) cached;
+                final WebClient client = engine.webClient_;
+                if (inlineScript.source_.equals(source)
+                        && inlineScript.browserVersion_.equals(client.getBrowserVersion())
+                        && inlineScript.scriptPreProcessor_ == client.getScriptPreProcessor()
+                        && inlineScript.optimizationLevel_ == engine.getCompiledOptimizationLevel()
+                        && inlineScript.debugging_ == engine.isDebugging()) {
+                    return inlineScript.script_;
+                }
+            }
+            return null;
+        }
+    }
+
     /**
      * Executes the specified JavaScript code in the context of a given HTML page.
      *
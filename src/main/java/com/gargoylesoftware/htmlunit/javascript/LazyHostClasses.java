@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit.javascript;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sourceforge.htmlunit.corejs.javascript.Context;
+import net.sourceforge.htmlunit.corejs.javascript.FunctionObject;
+import net.sourceforge.htmlunit.corejs.javascript.Scriptable;
+import net.sourceforge.htmlunit.corejs.javascript.ScriptableObject;
+
+import com.gargoylesoftware.htmlunit.BrowserVersion;
+import com.gargoylesoftware.htmlunit.SgmlPage;
+import com.gargoylesoftware.htmlunit.html.HtmlDivision;
+import com.gargoylesoftware.htmlunit.javascript.configuration.JavaScriptConfiguration;
+import com.gargoylesoftware.htmlunit.javascript.host.Element;
+import com.gargoylesoftware.htmlunit.javascript.host.Window;
+
+/**
+ * The host classes of a window, each one defined the first time it is needed: when its name is looked
+ * up in the window, when an object of this class is created or when the prototype of a subclass is
+ * defined. Most pages use only a few of the host classes, and the window of a frame can be set up without
+ * creating hundreds of prototypes and of function objects.
+ *
+ * <p>Defining a class creates its prototype with its properties and functions, links it to the prototype
+ * of the class it extends, and defines in the window the object or the constructor through which the
+ * class is visible from JavaScript, exactly as if all the classes had been defined when the window was
+ * initialized.</p>
+ *
+ * <p>Like all classes in this package, this class is not intended for direct use and may change without
+ * notice.</p>
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+public final class LazyHostClasses implements Serializable {
+
+    private static final long serialVersionUID = 2364985283765476432L;
+
+    private final Window window_;
+    private final BrowserVersion browserVersion_;
+    private final int functionAttributes_;
+    private final SgmlPage htmlPage_;
+    private final Map<String, Scriptable> prototypes_ = new HashMap<String, Scriptable>();
+    private transient HostClassTemplate.Templates templates_;
+
+    /**
+     * Creates an instance.
+     * @param window the window in which the classes are defined
+     * @param browserVersion the simulated browser version
+     * @param functionAttributes the attributes of the functions of the prototypes
+     * @param htmlPage the HTML page of the window when it was initialized, if any
+     */
+    LazyHostClasses(final Window window, final BrowserVersion browserVersion, final int functionAttributes,
+            final SgmlPage htmlPage) {
+        window_ = window;
+        browserVersion_ = browserVersion;
+        functionAttributes_ = functionAttributes;
+        htmlPage_ = htmlPage;
+    }
+
+    private HostClassTemplate.Templates getTemplates() {
+        if (templates_ == null) {
+            templates_ = HostClassTemplate.getTemplates(JavaScriptConfiguration.getInstance(browserVersion_));
+        }
+        return templates_;
+    }
+
+    /**
+     * Returns the prototype of the objects of the specified host class, defining the class if needed.
+     * @param jsClass the host class
+     * @return the prototype, <tt>null</tt> if the host class isn't visible as JavaScript object
+     */
+    public Scriptable getPrototype(final Class< ? extends SimpleScriptable> jsClass) {
+        final HostClassTemplate template = getTemplates().get(jsClass);
+        if (template == null) {
+            return null;
+        }
+        return define(template);
+    }
+
+    /**
+     * Defines the class with the specified JavaScript name, if there is such a class and it isn't defined yet.
+     * This is called for each name looked up in the window, and is therefore cheap when there is nothing to do.
+     * @param className the name looked up in the window
+     */
+    public void define(final String className) {
+        if (!prototypes_.containsKey(className)) {
+            final HostClassTemplate template = getTemplates().get(className);
+            if (template != null && !template.isWindow()) {
+                define(template);
+            }
+        }
+    }
+
+    /**
+     * Defines all the classes not defined yet, for instance before listing all the properties of the window.
+     */
+    public void defineAll() {
+        for (final HostClassTemplate template : getTemplates().getAll()) {
+            if (!template.isWindow()) {
+                define(template);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of classes defined so far.
+     * @return the number of defined classes
+     */
+    int getDefinedCount() {
+        return prototypes_.size();
+    }
+
+    private Scriptable define(final HostClassTemplate template) {
+        final String className = template.getClassName();
+        Scriptable prototype = prototypes_.get(className);
+        if (prototype != null) {
+            return prototype;
+        }
+        final ScriptableObject newPrototype = newInstance(template);
+        newPrototype.setParentScope(window_);
+        template.defineMembers(newPrototype, functionAttributes_);
+        prototype = newPrototype;
+        // registered before looking up the name in the window or defining the superclass, which
+        // would otherwise define this class again
+        prototypes_.put(className, prototype);
+
+        // a script may already have given its own value to the name, which it keeps
+        Object assignedValue = null;
+        int assignedAttributes = ScriptableObject.EMPTY;
+        if (window_.has(className, window_)) {
+            assignedValue = window_.get(className, window_);
+            assignedAttributes = window_.getAttributes(className);
+        }
+
+        if (template.isJsObject() && !browserVersion_.isIE()) {
+            // for FF, place object with prototype property in Window scope
+            final SimpleScriptable obj = newInstance(template);
+            newPrototype.defineProperty("__proto__", newPrototype, ScriptableObject.DONTENUM);
+            obj.defineProperty("prototype", newPrototype, ScriptableObject.DONTENUM); // but not setPrototype!
+            obj.setParentScope(window_);
+            ScriptableObject.defineProperty(window_, className, obj, ScriptableObject.DONTENUM);
+            // this obj won't have prototype, constants need to be configured on it again
+            template.defineConstants(obj);
+
+            if (obj.getClass() == Element.class && htmlPage_ != null) {
+                obj.setDomNode(new HtmlDivision(null, "", htmlPage_, null));
+            }
+        }
+
+        Scriptable chained = prototype;
+        if (chained.getPrototype() != null) {
+            chained = chained.getPrototype(); // "double prototype" hack for FF
+        }
+        if (template.getExtendedClass() != null) {
+            final HostClassTemplate parent = getTemplates().get(template.getExtendedClass());
+            if (parent == null || parent.isWindow()) {
+                chained.setPrototype(null);
+            }
+            else {
+                chained.setPrototype(define(parent));
+            }
+        }
+        else {
+            chained.setPrototype(ScriptableObject.getObjectPrototype(window_));
+        }
+
+        final Method jsConstructor = template.getJsConstructor();
+        if (jsConstructor != null) {
+            final FunctionObject jsCtor = new FunctionObject(className, jsConstructor, window_);
+            jsCtor.addAsConstructor(window_, prototype);
+        }
+        if (assignedValue != null) {
+            window_.defineProperty(className, assignedValue, assignedAttributes);
+        }
+        return prototype;
+    }
+
+    private static SimpleScriptable newInstance(final HostClassTemplate template) {
+        try {
+            return template.getLinkedClass().newInstance();
+        }
+        catch (final Exception e) {
+            throw Context.throwAsScriptRuntimeEx(e);
+        }
+    }
+}
@@ -18,12 +18,17 @@ import java.net.InetAddress;
 import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import net.sourceforge.htmlunit.corejs.javascript.Context;
 import net.sourceforge.htmlunit.corejs.javascript.ContextFactory;
+import net.sourceforge.htmlunit.corejs.javascript.Function;
 import net.sourceforge.htmlunit.corejs.javascript.FunctionObject;
-import net.sourceforge.htmlunit.corejs.javascript.NativeFunction;
 import net.sourceforge.htmlunit.corejs.javascript.Scriptable;
 import net.sourceforge.htmlunit.corejs.javascript.ScriptableObject;
 import net.sourceforge.htmlunit.corejs.javascript.Undefined;
@@ -38,7 +43,101 @@ import net.sourceforge.htmlunit.corejs.javascript.Undefined;
  */
 public final class ProxyAutoConfig {
 
-    private ProxyAutoConfig() {
+    /** Default time during which the result of <tt>FindProxyForURL</tt> is reused for the same key. */
+    public static final long DEFAULT_CACHE_TIME_TO_LIVE = 5 * 60 * 1000;
+
+    private static final int MAX_CACHED_RESULTS = 1000;
+    private static final Pattern FUNCTION_DECLARATION = Pattern.compile("function\\s+FindProxyForURL\\s*\\(\\s*(\\w+)");
+    private static final Pattern DATE_DEPENDENT = Pattern.compile("\\b(?:weekdayRange|dateRange|timeRange|Date)\\b");
+    private static final Pattern INDIRECT_ACCESS = Pattern.compile("\\b(?:arguments|caller|eval|Function)\\b");
+
+    private final ScriptableObject scope_;
+    private final Function function_;
+    private final boolean urlUsed_;
+    private final long timeToLive_;
+    private final Map<String, CachedResult> cache_;
+
+    private ProxyAutoConfig(final Context cx, final String content, final long timeToLive) {
+        // the script is run once, then everything it defined is sealed as the scope is shared between
+        // evaluations; each evaluation gets its own child scope
+        final ScriptableObject scope = cx.initStandardObjects(null, true);
+        defineMethods(scope);
+        cx.evaluateString(scope, "var ProxyConfig = function() {}; ProxyConfig.bindings = {}", "<init>", 1, null);
+        cx.compileString(content, "<Proxy Auto-Config>", 1, null).exec(cx, scope);
+
+        final Object function = scope.get("FindProxyForURL", scope);
+        if (!(function instanceof Function)) {
+            throw Context.reportRuntimeError("FindProxyForURL is not defined by the Proxy Auto-Config");
+        }
+        seal(scope, new IdentityHashMap<Scriptable, Boolean>());
+        scope_ = scope;
+        function_ = (Function) function;
+        urlUsed_ = isUrlUsed(cx, function_, content);
+        timeToLive_ = DATE_DEPENDENT.matcher(content).find() ? 0 : timeToLive;
+        cache_ = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+            private static final long serialVersionUID = -3185372066318624834L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedResult> eldest) {
+                return size() > MAX_CACHED_RESULTS;
+            }
+        };
+    }
+
+    /**
+     * Seals the specified object and the objects reachable from it, so that an evaluation
+     * can't change what the next ones see.
+     */
+    private static void seal(final Scriptable object, final Map<Scriptable, Boolean> visited) {
+        if (!(object instanceof ScriptableObject) || visited.put(object, Boolean.TRUE) != null) {
+            return;
+        }
+        final ScriptableObject scriptableObject = (ScriptableObject) object;
+        for (final Object id : scriptableObject.getAllIds()) {
+            final Object value;
+            if (id instanceof Integer) {
+                value = scriptableObject.get(((Integer) id).intValue(), scriptableObject);
+            }
+            else {
+                value = scriptableObject.get(id.toString(), scriptableObject);
+            }
+            if (value instanceof Scriptable) {
+                seal((Scriptable) value, visited);
+            }
+        }
+        seal(scriptableObject.getPrototype(), visited);
+        if (!scriptableObject.isSealed()) {
+            scriptableObject.sealObject();
+        }
+    }
+
+    /**
+     * Compiles the specified Proxy Auto-Config content. The returned instance can be used concurrently
+     * and remembers the results of <tt>FindProxyForURL</tt> for {@link #DEFAULT_CACHE_TIME_TO_LIVE}
+     * milliseconds, unless it depends on the current date. The top level of the content is run once,
+     * then the objects it defined are sealed: <tt>FindProxyForURL</tt> can't modify them.
+     * @param content the JavaScript content
+     * @return the compiled Proxy Auto-Config
+     */
+    public static ProxyAutoConfig compile(final String content) {
+        return compile(content, DEFAULT_CACHE_TIME_TO_LIVE);
+    }
+
+    /**
+     * Compiles the specified Proxy Auto-Config content.
+     * @param content the JavaScript content
+     * @param timeToLive the time in milliseconds during which a result is reused, <tt>0</tt> to disable caching;
+     *        ignored if the content uses <tt>weekdayRange</tt>, <tt>dateRange</tt>, <tt>timeRange</tt> or <tt>Date</tt>
+     * @return the compiled Proxy Auto-Config
+     */
+    public static ProxyAutoConfig compile(final String content, final long timeToLive) {
+        final Context cx = ContextFactory.getGlobal().enterContext();
+        try {
+            return new ProxyAutoConfig(cx, content, timeToLive);
+        }
+        finally {
+            Context.exit();
+        }
     }
 
     /**
@@ -46,38 +145,112 @@ public final class ProxyAutoConfig {
      * @param content the JavaScript content
      * @param url the URL to be retrieved
      * @return semicolon-separated result
+     * @see #compile(String)
      */
     public static String evaluate(final String content, final URL url) {
+        return compile(content, 0).findProxyForUrl(url);
+    }
+
+    /**
+     * Returns the result of <tt>FindProxyForURL</tt> for the specified URL. As long as the result is cached,
+     * it is reused for the URLs with the same protocol, host and port or, if the Proxy Auto-Config makes use
+     * of the complete URL, for the same URL.
+     * @param url the URL to be retrieved
+     * @return semicolon-separated result
+     */
+    public String findProxyForUrl(final URL url) {
+        final String key = getCacheKey(url);
+        final long now = System.currentTimeMillis();
+        if (timeToLive_ > 0) {
+            synchronized (cache_) {
+                final CachedResult cached = cache_.get(key);
+                if (cached != null && cached.expiration_ > now) {
+                    return cached.result_;
+                }
+            }
+        }
+
+        final String result;
         final Context cx = ContextFactory.getGlobal().enterContext();
         try {
-            final ProxyAutoConfig config = new ProxyAutoConfig();
-            final Scriptable scope = cx.initStandardObjects();
-
-            config.defineMethod("isPlainHostName", scope);
-            config.defineMethod("dnsDomainIs", scope);
-            config.defineMethod("localHostOrDomainIs", scope);
-            config.defineMethod("isResolvable", scope);
-            config.defineMethod("isInNet", scope);
-            config.defineMethod("dnsResolve", scope);
-            config.defineMethod("myIpAddress", scope);
-            config.defineMethod("dnsDomainLevels", scope);
-            config.defineMethod("shExpMatch", scope);
-            config.defineMethod("weekdayRange", scope);
-            config.defineMethod("dateRange", scope);
-            config.defineMethod("timeRange", scope);
-
-            cx.evaluateString(scope, "var ProxyConfig = function() {}; ProxyConfig.bindings = {}", "<init>", 1, null);
-            cx.evaluateString(scope, content, "<Proxy Auto-Config>", 1, null);
-            final Object functionArgs[] = {url.toExternalForm(), url.getHost()};
-            final Object fObj = scope.get("FindProxyForURL", scope);
-
-            final NativeFunction f = (NativeFunction) fObj;
-            final Object result = f.call(cx, scope, scope, functionArgs);
-            return Context.toString(result);
+            final Scriptable scope = cx.newObject(scope_);
+            scope.setPrototype(scope_);
+            scope.setParentScope(null);
+            final Object[] functionArgs = {url.toExternalForm(), url.getHost()};
+            result = Context.toString(function_.call(cx, scope, scope, functionArgs));
         }
         finally {
             Context.exit();
         }
+
+        if (timeToLive_ > 0) {
+            synchronized (cache_) {
+                cache_.put(key, new CachedResult(result, now + timeToLive_));
+            }
+        }
+        return result;
+    }
+
+    private String getCacheKey(final URL url) {
+        if (urlUsed_) {
+            final String externalForm = url.toExternalForm();
+            final int hashIndex = externalForm.indexOf('#');
+            if (hashIndex != -1) {
+                return externalForm.substring(0, hashIndex);
+            }
+            return externalForm;
+        }
+        return url.getProtocol() + "://" + url.getHost().toLowerCase() + ':' + url.getPort();
+    }
+
+    /**
+     * Indicates if the function may depend on its first parameter (the complete URL), or only on the host.
+     * In case of doubt, the URL is considered to be used: when the function mentions its first parameter,
+     * or when the script mentions <tt>arguments</tt>, <tt>caller</tt>, <tt>eval</tt> or <tt>Function</tt>.
+     * This is a textual check, which misses a URL reached through computed property names
+     * (like <tt>FindProxyForURL['argu' + 'ments']</tt>); the results of such a script are wrongly reused
+     * for all URLs of a host. Use {@link #compile(String, long)} with <tt>0</tt> to disable caching then.
+     */
+    private static boolean isUrlUsed(final Context cx, final Function function, final String content) {
+        if (INDIRECT_ACCESS.matcher(content).find()) {
+            return true;
+        }
+        final String source = cx.decompileFunction(function, 0);
+        final Matcher matcher = FUNCTION_DECLARATION.matcher(source);
+        if (!matcher.find()) {
+            return true;
+        }
+        final Matcher usage = Pattern.compile("\\b" + matcher.group(1) + "\\b").matcher(source);
+        usage.region(matcher.end(), source.length());
+        return usage.find();
+    }
+
+    private void defineMethods(final Scriptable scope) {
+        defineMethod("isPlainHostName", scope);
+        defineMethod("dnsDomainIs", scope);
+        defineMethod("localHostOrDomainIs", scope);
+        defineMethod("isResolvable", scope);
+        defineMethod("isInNet", scope);
+        defineMethod("dnsResolve", scope);
+        defineMethod("myIpAddress", scope);
+        defineMethod("dnsDomainLevels", scope);
+        defineMethod("shExpMatch", scope);
+        defineMethod("weekdayRange", scope);
+        defineMethod("dateRange", scope);
+        defineMethod("timeRange", scope);
+    }
+
+    /**
+     * A result of <tt>FindProxyForURL</tt> and the time until which it can be reused.
+     */
+    private static final class CachedResult {
+        private final String result_;
+        private final long expiration_;
+
+        CachedResult(final String result, final long expiration) {
+            result_ = result;
+            expiration_ = expiration;
+        }
     }
 
     private void defineMethod(final String methodName, final Scriptable scope) {
@@ -14,12 +14,14 @@
  */
 package com.gargoylesoftware.htmlunit.javascript.configuration;
 
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 import com.gargoylesoftware.htmlunit.javascript.SimpleScriptable;
 
@@ -36,6 +38,15 @@ public final class ClassConfiguration {
     private static final String SETTER_PREFIX = "jsxSet_";
     private static final String FUNCTION_PREFIX = "jsxFunction_";
 
+    /**
+     * The public methods of the host classes, indexed once per class: the configurations of all browser
+     * versions look up the same methods. The indexes reference the methods, hence their class: they are
+     * held softly, otherwise the weak keys would never be cleared. All accesses have to be synchronized
+     * on the map.
+     */
+    private static final Map<Class< ? >, SoftReference<MethodIndex>> METHOD_INDEXES
+        = new WeakHashMap<Class< ? >, SoftReference<MethodIndex>>();
+
     private Map<String, PropertyInfo> propertyMap_ = new HashMap<String, PropertyInfo>();
     private Map<String, FunctionInfo> functionMap_ = new HashMap<String, FunctionInfo>();
     private List<String> constants_ = new ArrayList<String>();
@@ -51,6 +62,66 @@ public final class ClassConfiguration {
     private final Method jsConstructor_;
     private final String htmlClassname_;
     private final boolean jsObject_;
+    private final MethodIndex methodIndex_;
+
+    /**
+     * The public methods of a class, by name.
+     */
+    private static final class MethodIndex {
+        /** The first method of each name, in the order of {@link Class#getMethods()}. */
+        private final Map<String, Method> methods_ = new HashMap<String, Method>();
+        /** The first method of each name taking exactly one argument. */
+        private final Map<String, Method> oneArgumentMethods_ = new HashMap<String, Method>();
+        /** The methods without argument. */
+        private final Map<String, Method> noArgumentMethods_ = new HashMap<String, Method>();
+
+        MethodIndex(final Class< ? > clazz) {
+            for (final Method method : clazz.getMethods()) {
+                final String name = method.getName();
+                if (!methods_.containsKey(name)) {
+                    methods_.put(name, method);
+                }
+                final int parameterCount = method.getParameterTypes().length;
+                if (parameterCount == 0) {
+                    // like Class.getMethod(), prefer an override with covariant return type to its bridge
+                    final Method existing = noArgumentMethods_.get(name);
+                    if (existing == null || existing.isBridge()) {
+                        noArgumentMethods_.put(name, method);
+                    }
+                }
+                else if (parameterCount == 1 && !oneArgumentMethods_.containsKey(name)) {
+                    oneArgumentMethods_.put(name, method);
+                }
+            }
+        }
+
+        Method getMethod(final String name) {
+            return methods_.get(name);
+        }
+
+        Method getOneArgumentMethod(final String name) {
+            return oneArgumentMethods_.get(name);
+        }
+
+        Method getNoArgumentMethod(final String name) {
+            return noArgumentMethods_.get(name);
+        }
+    }
+
+    private static MethodIndex getMethodIndex(final Class< ? > clazz) {
+        synchronized (METHOD_INDEXES) {
+            final SoftReference<MethodIndex> reference = METHOD_INDEXES.get(clazz);
+            MethodIndex index = null;
+            if (reference != null) {
+                index = reference.get();
+            }
+            if (index == null) {
+                index = new MethodIndex(clazz);
+                METHOD_INDEXES.put(clazz, new SoftReference<MethodIndex>(index));
+            }
+            return index;
+        }
+    }
 
     /**
      * Constructor.
@@ -70,14 +141,9 @@ public final class ClassConfiguration {
         className_ = classname;
         extendedClass_ = extendedClass;
         linkedClass_ = (Class< ? extends SimpleScriptable>) Class.forName(implementingClass);
+        methodIndex_ = getMethodIndex(linkedClass_);
         if (jsConstructor != null && jsConstructor.length() != 0) {
-            Method foundCtor = null;
-            for (final Method method : linkedClass_.getMethods()) {
-                if (method.getName().equals(jsConstructor)) {
-                    foundCtor = method;
-                    break;
-                }
-            }
+            final Method foundCtor = methodIndex_.getMethod(jsConstructor);
             if (foundCtor == null) {
                 throw new IllegalStateException("Constructor method \"" + jsConstructor
                         + "\" in class \"" + implementingClass + " is not found.");
@@ -113,25 +179,17 @@ public final class ClassConfiguration {
         final PropertyInfo info = new PropertyInfo();
         info.setReadable(readable);
         info.setWriteable(writeable);
-        try {
-            if (readable) {
-                info.setReadMethod(linkedClass_.getMethod(GETTER_PREFIX + name, (Class []) null));
+        if (readable) {
+            final Method readMethod = methodIndex_.getNoArgumentMethod(GETTER_PREFIX + name);
+            if (readMethod == null) {
+                throw new IllegalStateException("Method '" + GETTER_PREFIX + name + "' was not found for "
+                    + name + " property in " + linkedClass_.getName());
             }
+            info.setReadMethod(readMethod);
         }
-        catch (final NoSuchMethodException e) {
-            throw new IllegalStateException("Method '" + GETTER_PREFIX + name + "' was not found for "
-                + name + " property in " + linkedClass_.getName());
-        }
-        // For the setters, we have to loop through the methods since we do not know what type of argument
-        // the method takes.
+        // For the setters, we do not know what type of argument the method takes.
         if (writeable) {
-            final String setMethodName = SETTER_PREFIX + name;
-            for (final Method method : linkedClass_.getMethods()) {
-                if (method.getName().equals(setMethodName) && method.getParameterTypes().length == 1) {
-                    info.setWriteMethod(method);
-                    break;
-                }
-            }
+            info.setWriteMethod(methodIndex_.getOneArgumentMethod(SETTER_PREFIX + name));
             if (info.getWriteMethod() == null) {
                 throw new IllegalStateException("Method '" + SETTER_PREFIX + name + "' was not found for " + name
                     + " property in " + linkedClass_.getName());
@@ -178,13 +236,7 @@ public final class ClassConfiguration {
      */
     public void addFunction(final String name) {
         final FunctionInfo info = new FunctionInfo();
-        final String setMethodName = FUNCTION_PREFIX + name;
-        for (final Method method : linkedClass_.getMethods()) {
-            if (method.getName().equals(setMethodName)) {
-                info.setFunctionMethod(method);
-                break;
-            }
-        }
+        info.setFunctionMethod(methodIndex_.getMethod(FUNCTION_PREFIX + name));
         if (info.getFunctionMethod() == null) {
             throw new IllegalStateException("Method '" + FUNCTION_PREFIX + name + "' was not found for " + name
                 + " function in " + linkedClass_.getName());
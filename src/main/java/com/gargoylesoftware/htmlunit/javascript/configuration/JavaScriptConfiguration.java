@@ -21,22 +21,24 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
 import com.gargoylesoftware.htmlunit.BrowserVersion;
 import com.gargoylesoftware.htmlunit.html.HtmlAbbreviated;
@@ -113,8 +115,8 @@ public final class JavaScriptConfiguration {
 
     private static final Log LOG = LogFactory.getLog(JavaScriptConfiguration.class);
 
-    /** The JavaScript configuration XML document. */
-    private static Document XmlDocument_;
+    /** The root element of the JavaScript configuration XML document. */
+    private static ConfigurationElement XmlDocument_;
 
     /** Constant indicating that this function/property is used by the specified browser version. */
     public static final int ENABLED   = 1;
@@ -135,6 +137,78 @@ public final class JavaScriptConfiguration {
 
     private final Map<String, ClassConfiguration> configuration_;
 
+    /**
+     * An element of the configuration file. The file is read once into these light objects rather than
+     * into a W3C DOM: only the elements and their attributes are needed to build the configuration of
+     * each browser version.
+     */
+    private static final class ConfigurationElement {
+        private final String tagName_;
+        private final Map<String, String> attributes_;
+        private final List<ConfigurationElement> children_ = new ArrayList<ConfigurationElement>();
+
+        ConfigurationElement(final String tagName, final Attributes attributes) {
+            tagName_ = tagName;
+            final int length = attributes.getLength();
+            if (length == 0) {
+                attributes_ = Collections.emptyMap();
+            }
+            else {
+                attributes_ = new HashMap<String, String>(length * 2);
+                for (int i = 0; i < length; i++) {
+                    attributes_.put(attributes.getQName(i), attributes.getValue(i));
+                }
+            }
+        }
+
+        String getTagName() {
+            return tagName_;
+        }
+
+        /**
+         * Returns the value of the specified attribute, like {@link org.w3c.dom.Element#getAttribute(String)}.
+         * @param name the attribute name
+         * @return the value, an empty string if the attribute isn't present
+         */
+        String getAttribute(final String name) {
+            final String value = attributes_.get(name);
+            if (value == null) {
+                return "";
+            }
+            return value;
+        }
+
+        List<ConfigurationElement> getChildren() {
+            return children_;
+        }
+    }
+
+    /**
+     * Builds the {@link ConfigurationElement}s while the configuration file is parsed.
+     */
+    private static final class ConfigurationHandler extends DefaultHandler {
+        private final LinkedList<ConfigurationElement> stack_ = new LinkedList<ConfigurationElement>();
+        private ConfigurationElement root_;
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName,
+                final Attributes attributes) {
+            final ConfigurationElement element = new ConfigurationElement(qName, attributes);
+            if (stack_.isEmpty()) {
+                root_ = element;
+            }
+            else {
+                stack_.getLast().getChildren().add(element);
+            }
+            stack_.addLast(element);
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName, final String qName) {
+            stack_.removeLast();
+        }
+    }
+
     /**
      * Constructor is only called from {@link #getInstance(BrowserVersion)} which is synchronized.
      * @param browser the browser version to use
@@ -166,14 +240,6 @@ public final class JavaScriptConfiguration {
         ConfigurationMap_ = new WeakHashMap<BrowserVersion, JavaScriptConfiguration>(11);
     }
 
-    /**
-     * Sets the document configuration for testing.
-     * @param document - The configuration document
-     */
-    protected static void setXmlDocument(final Document document) {
-        XmlDocument_ = document;
-    }
-
     /**
      * Gets the configuration file and make it an input reader and then pass to the method to read the file.
      */
@@ -203,14 +269,16 @@ public final class JavaScriptConfiguration {
         final InputSource inputSource = new InputSource(configurationReader);
 
         try {
-            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
+            final SAXParserFactory factory = SAXParserFactory.newInstance();
             factory.setValidating(false);
 
-            final DocumentBuilder documentBuilder = factory.newDocumentBuilder();
-            documentBuilder.setErrorHandler(new StrictErrorHandler());
+            final XMLReader xmlReader = factory.newSAXParser().getXMLReader();
+            final ConfigurationHandler handler = new ConfigurationHandler();
+            xmlReader.setContentHandler(handler);
+            xmlReader.setErrorHandler(new StrictErrorHandler());
+            xmlReader.parse(inputSource);
 
-            XmlDocument_ = documentBuilder.parse(inputSource);
+            XmlDocument_ = handler.root_;
         }
         catch (final SAXParseException parseException) {
             LOG.error("line=[" + parseException.getLineNumber()
@@ -289,26 +357,21 @@ public final class JavaScriptConfiguration {
 
     private Map<String, ClassConfiguration> buildUsageMap(final BrowserVersion browser) {
         final Map<String, ClassConfiguration> classMap = new HashMap<String, ClassConfiguration>(30);
-        Node node = XmlDocument_.getDocumentElement().getFirstChild();
-        while (node != null) {
-            if (node instanceof Element) {
-                final Element element = (Element) node;
-                if (element.getTagName().equals("class")) {
-                    final String className = element.getAttribute("name");
-                    if (!testToExcludeElement(element, browser)) {
-                        try {
-                            final ClassConfiguration config = parseClassElement(className, element, browser);
-                            if (config != null) {
-                                classMap.put(className, config);
-                            }
-                        }
-                        catch (final ClassNotFoundException e) {
-                            throw new IllegalStateException("The class was not found for '" + className + "'");
+        for (final ConfigurationElement element : XmlDocument_.getChildren()) {
+            if (element.getTagName().equals("class")) {
+                final String className = element.getAttribute("name");
+                if (!testToExcludeElement(element, browser)) {
+                    try {
+                        final ClassConfiguration config = parseClassElement(className, element, browser);
+                        if (config != null) {
+                            classMap.put(className, config);
                         }
                     }
+                    catch (final ClassNotFoundException e) {
+                        throw new IllegalStateException("The class was not found for '" + className + "'");
+                    }
                 }
             }
-            node = node.getNextSibling();
         }
         return Collections.unmodifiableMap(classMap);
     }
@@ -321,7 +384,7 @@ public final class JavaScriptConfiguration {
      * @return the class element to build the class configuration
      * @throws ClassNotFoundException if the specified class could not be found
      */
-    private ClassConfiguration parseClassElement(final String className, final Element element,
+    private ClassConfiguration parseClassElement(final String className, final ConfigurationElement element,
         final BrowserVersion browser) throws ClassNotFoundException {
         final String notImplemented = element.getAttribute("notImplemented");
         if ("true".equalsIgnoreCase(notImplemented)) {
@@ -340,32 +403,27 @@ public final class JavaScriptConfiguration {
             new ClassConfiguration(className, linkedClassname, jsConstructor,
                     superclassName, htmlClassname, jsObjectFlag);
         ClassnameMap_.put(linkedClassname, className);
-        Node node = element.getFirstChild();
-        while (node != null) {
-            if (node instanceof Element) {
-                final Element childElement = (Element) node;
-                final String tagName = childElement.getTagName();
-                if (tagName.equals("property")) {
-                    parsePropertyElement(classConfiguration, childElement, browser);
-                }
-                else if (tagName.equals("function")) {
-                    parseFunctionElement(classConfiguration, childElement, browser);
-                }
-                else if (tagName.equals("constant")) {
-                    parseConstantElement(classConfiguration, childElement, browser);
-                }
-                else if (tagName.equals("browser")) {
-                    LOG.debug("browser tag not yet handled for class " + linkedClassname);
-                }
-                else if (tagName.equals("doclink")) {
-                    // ignore this link
-                }
-                else {
-                    throw new IllegalStateException("Do not understand element type '"
-                        + tagName + "' in '" + linkedClassname + "'");
-                }
+        for (final ConfigurationElement childElement : element.getChildren()) {
+            final String tagName = childElement.getTagName();
+            if (tagName.equals("property")) {
+                parsePropertyElement(classConfiguration, childElement, browser);
+            }
+            else if (tagName.equals("function")) {
+                parseFunctionElement(classConfiguration, childElement, browser);
+            }
+            else if (tagName.equals("constant")) {
+                parseConstantElement(classConfiguration, childElement, browser);
+            }
+            else if (tagName.equals("browser")) {
+                LOG.debug("browser tag not yet handled for class " + linkedClassname);
+            }
+            else if (tagName.equals("doclink")) {
+                // ignore this link
+            }
+            else {
+                throw new IllegalStateException("Do not understand element type '"
+                    + tagName + "' in '" + linkedClassname + "'");
             }
-            node = node.getNextSibling();
         }
         return classConfiguration;
     }
@@ -377,7 +435,7 @@ public final class JavaScriptConfiguration {
      * @param element the property element
      * @param browser the browser version under consideration
      */
-    private void parsePropertyElement(final ClassConfiguration classConfiguration, final Element element,
+    private void parsePropertyElement(final ClassConfiguration classConfiguration, final ConfigurationElement element,
         final BrowserVersion browser) {
         final String notImplemented = element.getAttribute("notImplemented");
         if ("true".equalsIgnoreCase(notImplemented)) {
@@ -407,7 +465,7 @@ public final class JavaScriptConfiguration {
      * @param element the function element
      * @param browser the browser version under consideration
      */
-    private void parseFunctionElement(final ClassConfiguration classConfiguration, final Element element,
+    private void parseFunctionElement(final ClassConfiguration classConfiguration, final ConfigurationElement element,
         final BrowserVersion browser) {
         final String notImplemented = element.getAttribute("notImplemented");
         if ("true".equalsIgnoreCase(notImplemented)) {
@@ -427,7 +485,7 @@ public final class JavaScriptConfiguration {
      * @param element the property element
      * @param browser the browser version under consideration
      */
-    private void parseConstantElement(final ClassConfiguration classConfiguration, final Element element,
+    private void parseConstantElement(final ClassConfiguration classConfiguration, final ConfigurationElement element,
         final BrowserVersion browser) {
         if (testToExcludeElement(element, browser)) {
             return;
@@ -443,24 +501,19 @@ public final class JavaScriptConfiguration {
      * @param browser the browser version under consideration
      * @return true to exclude this element
      */
-    private boolean testToExcludeElement(final Element element, final BrowserVersion browser) {
+    private boolean testToExcludeElement(final ConfigurationElement element, final BrowserVersion browser) {
         if (browser == null) {
             return false;
         }
-        Node node = element.getFirstChild();
         boolean browserConstraint = false;
         boolean allowBrowser = false;
-        while (node != null) {
-            if (node instanceof Element) {
-                final Element childElement = (Element) node;
-                if (childElement.getTagName().equals("browser")) {
-                    browserConstraint = true;
-                    if (testToIncludeForBrowserConstraint(childElement, browser)) {
-                        allowBrowser = true;
-                    }
+        for (final ConfigurationElement childElement : element.getChildren()) {
+            if (childElement.getTagName().equals("browser")) {
+                browserConstraint = true;
+                if (testToIncludeForBrowserConstraint(childElement, browser)) {
+                    allowBrowser = true;
                 }
             }
-            node = node.getNextSibling();
         }
         if (browserConstraint && !allowBrowser) {
             return true;
@@ -490,7 +543,8 @@ public final class JavaScriptConfiguration {
         return configuration_.get(classname);
     }
 
-    private boolean testToIncludeForBrowserConstraint(final Element element, final BrowserVersion browser) {
+    private boolean testToIncludeForBrowserConstraint(final ConfigurationElement element,
+            final BrowserVersion browser) {
         if ((!browser.isIE() || !"Internet Explorer".equals(element.getAttribute("name")))
             && (!browser.isFirefox() || !"Firefox".equals(element.getAttribute("name")))) {
             return false;
@@ -21,6 +21,7 @@ import net.sourceforge.htmlunit.corejs.javascript.JavaScriptException;
 import net.sourceforge.htmlunit.corejs.javascript.Scriptable;
 
 import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.javascript.JavaScriptEngine;
 import com.gargoylesoftware.htmlunit.javascript.SimpleScriptable;
 
 /**
@@ -73,8 +74,10 @@ public class EventHandler extends BaseFunction {
         final SimpleScriptable jsObj = (SimpleScriptable) node_.getScriptObject();
         // compile "just in time"
         if (realFunction_ == null) {
-            realFunction_ = cx.compileFunction(jsObj, jsSnippet_, eventName_ + " event for " + node_
-                + " in " + node_.getPage().getWebResponse().getRequestSettings().getUrl(), 0, null);
+            final JavaScriptEngine engine = node_.getPage().getWebClient().getJavaScriptEngine();
+            final String url = node_.getPage().getWebResponse().getRequestSettings().getUrl().toExternalForm();
+            realFunction_ = engine.compileEventHandler(cx, jsObj, jsSnippet_, eventName_ + " event in " + url,
+                eventName_ + " event for " + node_ + " in " + url);
         }
 
         final Object result = realFunction_.call(cx, scope, thisObj, args);
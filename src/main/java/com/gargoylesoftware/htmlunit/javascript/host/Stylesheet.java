@@ -15,7 +15,11 @@
 package com.gargoylesoftware.htmlunit.javascript.host;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
@@ -227,14 +231,30 @@ public class Stylesheet extends SimpleScriptable {
             }
             else {
                 final WebResponse response = client.loadWebResponse(request);
-                uri = response.getRequestSettings().getUrl().toExternalForm();
-                client.printContentIfNecessary(response);
-                client.throwFailingHttpStatusCodeExceptionIfNecessary(response);
-                // CSS content must have downloaded OK; go ahead and build the corresponding stylesheet.
-                final String css = response.getContentAsString();
-                final InputSource source = new InputSource(new StringReader(css));
-                sheet = new Stylesheet(element, source, uri);
-                cache.cacheIfPossible(request, response, sheet.getWrappedSheet());
+                try {
+                    uri = response.getRequestSettings().getUrl().toExternalForm();
+                    final Object revalidated = cache.getCachedObject(response);
+                    if (revalidated instanceof CSSStyleSheet) {
+                        sheet = new Stylesheet(element, (CSSStyleSheet) revalidated, uri);
+                    }
+                    else {
+                        client.printContentIfNecessary(response);
+                        client.throwFailingHttpStatusCodeExceptionIfNecessary(response);
+                        // CSS content must have downloaded OK; go ahead and build the corresponding stylesheet.
+                        final Reader css = getContentAsReader(response);
+                        try {
+                            sheet = new Stylesheet(element, new InputSource(css), uri);
+                        }
+                        finally {
+                            IOUtils.closeQuietly(css);
+                        }
+                        cache.cacheIfPossible(request, response, sheet.getWrappedSheet());
+                    }
+                }
+                finally {
+                    // the content isn't needed anymore once parsed, the cache keeps it if needed
+                    client.cleanUpWebResponse(response);
+                }
             }
         }
         catch (final FailingHttpStatusCodeException e) {
@@ -256,6 +276,28 @@ public class Stylesheet extends SimpleScriptable {
         return sheet;
     }
 
+    /**
+     * Returns a reader decoding the content of the specified response while the CSS parser consumes it,
+     * so that no string holding the whole stylesheet has to be created.
+     * @param response the response holding the stylesheet
+     * @return the reader
+     * @throws IOException if the content can't be read
+     */
+    private static Reader getContentAsReader(final WebResponse response) throws IOException {
+        final InputStream content = response.getContentAsStream();
+        if (content == null) {
+            return new StringReader("");
+        }
+        final String charset = response.getContentCharset();
+        try {
+            return new InputStreamReader(content, charset);
+        }
+        catch (final UnsupportedEncodingException e) {
+            LOG.warn("Attempted to use unsupported encoding '" + charset + "'; using default system encoding.");
+            return new InputStreamReader(content);
+        }
+    }
+
     /**
      * Returns <tt>true</tt> if the specified selector selects the specified element.
      *
@@ -63,6 +63,7 @@ import com.gargoylesoftware.htmlunit.html.HtmlElement;
 import com.gargoylesoftware.htmlunit.html.HtmlLink;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
 import com.gargoylesoftware.htmlunit.html.HtmlStyle;
+import com.gargoylesoftware.htmlunit.javascript.LazyHostClasses;
 import com.gargoylesoftware.htmlunit.javascript.ScriptableWithFallbackGetter;
 import com.gargoylesoftware.htmlunit.javascript.SimpleScriptable;
 import com.gargoylesoftware.htmlunit.javascript.background.JavaScriptFunctionJob;
@@ -125,6 +126,7 @@ public class Window extends SimpleScriptable implements ScriptableWithFallbackGe
     private HTMLCollection frames_; // has to be a member to have equality (==) working
     private Map<Class< ? extends SimpleScriptable>, Scriptable> prototypes_ =
         new HashMap<Class< ? extends SimpleScriptable>, Scriptable>();
+    private LazyHostClasses hostClasses_;
     private EventListenersContainer eventListenersContainer_;
     private Object controllers_;
     private Object opener_;
@@ -162,7 +164,11 @@ public class Window extends SimpleScriptable implements ScriptableWithFallbackGe
      */
     @Override
     public Scriptable getPrototype(final Class< ? extends SimpleScriptable> jsClass) {
-        return prototypes_.get(jsClass);
+        final Scriptable prototype = prototypes_.get(jsClass);
+        if (prototype == null && hostClasses_ != null) {
+            return hostClasses_.getPrototype(jsClass);
+        }
+        return prototype;
     }
 
     /**
@@ -173,6 +179,22 @@ public class Window extends SimpleScriptable implements ScriptableWithFallbackGe
         prototypes_ = map;
     }
 
+    /**
+     * Sets the host classes which are defined in this window when first needed.
+     * @param hostClasses the host classes
+     */
+    public void setHostClasses(final LazyHostClasses hostClasses) {
+        hostClasses_ = hostClasses;
+    }
+
+    /**
+     * Returns the host classes which are defined in this window when first needed.
+     * @return the host classes
+     */
+    public LazyHostClasses getHostClasses() {
+        return hostClasses_;
+    }
+
     /**
      * The JavaScript function "alert()".
      * @param message the message
@@ -1126,9 +1148,45 @@ public class Window extends SimpleScriptable implements ScriptableWithFallbackGe
         else if ("Image".equals(name)) {
             name = "HTMLImageElement";
         }
+        if (hostClasses_ != null) {
+            hostClasses_.define(name);
+        }
         return super.get(name, start);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean has(final String name, final Scriptable start) {
+        if (hostClasses_ != null) {
+            hostClasses_.define(name);
+        }
+        return super.has(name, start);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delete(final String name) {
+        if (hostClasses_ != null) {
+            hostClasses_.define(name);
+        }
+        super.delete(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object[] getAllIds() {
+        if (hostClasses_ != null) {
+            hostClasses_.defineAll();
+        }
+        return super.getAllIds();
+    }
+
     private static Scriptable getTopScope(final Scriptable s) {
         Scriptable top = s;
         while (top != null && top.getParentScope() != null) {
@@ -85,6 +85,7 @@ public class XMLHttpRequest extends SimpleScriptable {
     private boolean async_;
     private int threadID_;
     private WebResponse webResponse_;
+    private WebResponse loadedResponse_;
     private String overriddenMimeType_;
     private HtmlPage containingPage_;
     private boolean caseSensitiveProperties_;
@@ -478,9 +479,16 @@ public class XMLHttpRequest extends SimpleScriptable {
      */
     private void doSend(final Context context) {
         final WebClient wc = getWindow().getWebWindow().getWebClient();
+        if (loadedResponse_ != null) {
+            // the response to the previous request isn't readable anymore
+            wc.cleanUpWebResponse(loadedResponse_);
+            loadedResponse_ = null;
+            webResponse_ = null;
+        }
         try {
             setState(STATE_LOADED, context);
             final WebResponse webResponse = wc.loadWebResponse(requestSettings_);
+            loadedResponse_ = webResponse;
             LOG.debug("Web response loaded successfully.");
             if (overriddenMimeType_ == null) {
                 webResponse_ = webResponse;
@@ -15,7 +15,9 @@
 package com.gargoylesoftware.htmlunit.javascript.regexp;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -42,8 +44,36 @@ public class HtmlUnitRegExpProxy extends RegExpImpl {
 
     private static final Log LOG = LogFactory.getLog(HtmlUnitRegExpProxy.class);
 
+    /** The maximum number of translated patterns kept. */
+    private static final int MAX_CACHED_PATTERNS = 500;
+
+    /** Marks a regular expression which can't be handled by the JDK. */
+    private static final Pattern UNSUPPORTED = Pattern.compile("");
+
+    /**
+     * The JDK patterns corresponding to the JavaScript regular expressions, keyed by flags and source.
+     * All accesses have to be synchronized on the map.
+     */
+    private static final PatternCache PATTERNS = new PatternCache();
+
     private final RegExpProxy wrapped_;
 
+    /**
+     * An access ordered map of the translated patterns, bounded by number of entries.
+     */
+    private static final class PatternCache extends LinkedHashMap<String, Pattern> {
+        private static final long serialVersionUID = 4125741293307547386L;
+
+        PatternCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Pattern> eldest) {
+            return size() > MAX_CACHED_PATTERNS;
+        }
+    }
+
     /**
      * Wraps a proxy to enhance it.
      * @param wrapped the original proxy
@@ -83,20 +113,11 @@ public class HtmlUnitRegExpProxy extends RegExpImpl {
                 return StringUtils.replaceOnce(thisString, (String) arg0, replacement);
             }
             else if (arg0 instanceof NativeRegExp) {
-                try {
-                    final NativeRegExp regexp = (NativeRegExp) arg0;
-                    final RegExpData reData = new RegExpData(regexp);
-                    final String regex = reData.getJavaPattern();
-                    final int flags = reData.getJavaFlags();
-                    final Pattern pattern = Pattern.compile(regex, flags);
+                final RegExpData reData = new RegExpData((NativeRegExp) arg0);
+                final Pattern pattern = reData.getPattern();
+                if (pattern != null) {
                     final Matcher matcher = pattern.matcher(thisString);
-                    if (reData.hasFlag('g')) {
-                        return doReplacement(thisString, replacement, matcher, true);
-                    }
-                    return doReplacement(thisString, replacement, matcher, false);
-                }
-                catch (final PatternSyntaxException e) {
-                    LOG.warn(e.getMessage(), e);
+                    return doReplacement(thisString, replacement, matcher, reData.hasFlag('g'));
                 }
             }
         }
@@ -114,36 +135,43 @@ public class HtmlUnitRegExpProxy extends RegExpImpl {
                 reData = new RegExpData(Context.toString(arg0));
             }
 
-            final Pattern pattern = Pattern.compile(reData.getJavaPattern(), reData.getJavaFlags());
-            final Matcher matcher = pattern.matcher(thisString);
-            if (!matcher.find()) {
-                return null;
+            final Pattern pattern = reData.getPattern();
+            if (pattern != null) {
+                return doMatch(cx, scope, thisString, pattern, reData.hasFlag('g'));
             }
-            final int index = matcher.start(0);
-            final List<Object> groups = new ArrayList<Object>();
-            if (reData.hasFlag('g')) { // has flag g
+        }
+
+        return wrappedAction(cx, scope, thisObj, args, actionType);
+    }
+
+    private Object doMatch(final Context cx, final Scriptable scope, final String thisString,
+            final Pattern pattern, final boolean global) {
+        final Matcher matcher = pattern.matcher(thisString);
+        if (!matcher.find()) {
+            return null;
+        }
+        final int index = matcher.start(0);
+        final List<Object> groups = new ArrayList<Object>();
+        if (global) {
+            groups.add(matcher.group(0));
+            while (matcher.find()) {
                 groups.add(matcher.group(0));
-                while (matcher.find()) {
-                    groups.add(matcher.group(0));
-                }
             }
-            else {
-                for (int i = 0; i <= matcher.groupCount(); ++i) {
-                    Object group = matcher.group(i);
-                    if (group == null) {
-                        group = Context.getUndefinedValue();
-                    }
-                    groups.add(group);
+        }
+        else {
+            for (int i = 0; i <= matcher.groupCount(); ++i) {
+                Object group = matcher.group(i);
+                if (group == null) {
+                    group = Context.getUndefinedValue();
                 }
+                groups.add(group);
             }
-            final Scriptable response = cx.newArray(scope, groups.toArray());
-            // the additional properties (cf ECMA script reference 15.10.6.2 13)
-            response.put("index", response, new Integer(index));
-            response.put("input", response, thisString);
-            return response;
         }
-
-        return wrappedAction(cx, scope, thisObj, args, actionType);
+        final Scriptable response = cx.newArray(scope, groups.toArray());
+        // the additional properties (cf ECMA script reference 15.10.6.2 13)
+        response.put("index", response, new Integer(index));
+        response.put("input", response, thisString);
+        return response;
     }
 
     private String doReplacement(final String originalString, final String replacement, final Matcher matcher,
@@ -340,6 +368,36 @@ public class HtmlUnitRegExpProxy extends RegExpImpl {
             return jsRegExpToJavaRegExp(jsSource_);
         }
 
+        /**
+         * Returns the JDK pattern equivalent to this regular expression. The translation and the compilation
+         * are done only once for all the occurrences of the same expression with the same flags, even when
+         * they fail.
+         * @return the pattern, <tt>null</tt> if the expression can't be handled by the JDK
+         */
+        Pattern getPattern() {
+            final String key = jsFlags_ + '/' + jsSource_;
+            Pattern pattern;
+            synchronized (PATTERNS) {
+                pattern = PATTERNS.get(key);
+            }
+            if (pattern == null) {
+                try {
+                    pattern = Pattern.compile(getJavaPattern(), getJavaFlags());
+                }
+                catch (final PatternSyntaxException e) {
+                    LOG.warn(e.getMessage(), e);
+                    pattern = UNSUPPORTED;
+                }
+                synchronized (PATTERNS) {
+                    PATTERNS.put(key, pattern);
+                }
+            }
+            if (pattern == UNSUPPORTED) {
+                return null;
+            }
+            return pattern;
+        }
+
         boolean hasFlag(final char c) {
             return jsFlags_.indexOf(c) != -1;
         }
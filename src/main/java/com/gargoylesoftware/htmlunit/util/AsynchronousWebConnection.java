@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.gargoylesoftware.htmlunit.WebAssert;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.WebRequestSettings;
+import com.gargoylesoftware.htmlunit.WebResponse;
+
+/**
+ * <p>A {@link WebConnection} which, additionally to the synchronous {@link #getResponse(WebRequestSettings)},
+ * allows to issue requests without blocking the calling thread, getting the response through a
+ * {@link Future} and/or a {@link Callback}.</p>
+ *
+ * <p>The requests are performed by the wrapped connection, which blocks: only the calling thread is freed,
+ * and each request in flight still holds one thread of the executor for its whole duration. The number of
+ * requests performed at the same time is therefore the number of threads of the executor, the other ones
+ * wait in its queue. The default executor has a fixed number of threads and a queue of at most
+ * {@value #MAX_QUEUED_REQUESTS} requests; when it is full, {@link #getResponseAsync(WebRequestSettings)}
+ * throws a {@link RejectedExecutionException}. Another executor can be provided instead.</p>
+ *
+ * <p>As the wrapped connection is used unchanged, features like compression, proxies, cookies and
+ * credentials behave as for synchronous requests. When wrapping an
+ * {@link com.gargoylesoftware.htmlunit.HttpWebConnection}, its
+ * {@link com.gargoylesoftware.htmlunit.ConnectionPool} should allow as many connections per host
+ * as threads are used here. {@link com.gargoylesoftware.htmlunit.NioWebConnection} performs many requests
+ * at the same time without holding a thread for each of them.</p>
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+public class AsynchronousWebConnection extends WebConnectionWrapper {
+
+    private static final Log LOG = LogFactory.getLog(AsynchronousWebConnection.class);
+
+    /** The maximal number of requests waiting for a thread of the default executor. */
+    public static final int MAX_QUEUED_REQUESTS = 1000;
+
+    private final ExecutorService executor_;
+    private final boolean ownExecutor_;
+
+    /**
+     * Receives the outcome of an asynchronous request. It is called from the thread which performed
+     * the request.
+     */
+    public interface Callback {
+
+        /**
+         * Called when the response has been received.
+         * @param settings the request
+         * @param response the response
+         */
+        void completed(final WebRequestSettings settings, final WebResponse response);
+
+        /**
+         * Called when the request failed.
+         * @param settings the request
+         * @param cause the reason of the failure
+         */
+        void failed(final WebRequestSettings settings, final Throwable cause);
+    }
+
+    /**
+     * Creates a connection performing asynchronous requests through the provided connection.
+     * @param webConnection the connection that does the real work
+     * @param threads the maximal number of requests performed at the same time
+     */
+    public AsynchronousWebConnection(final WebConnection webConnection, final int threads) {
+        super(webConnection);
+        executor_ = createExecutor(threads);
+        ownExecutor_ = true;
+    }
+
+    /**
+     * Creates a connection performing asynchronous requests through the provided connection, with the
+     * threads of the provided executor. The executor isn't stopped by {@link #shutdown()}.
+     * @param webConnection the connection that does the real work
+     * @param executor the executor performing the requests
+     */
+    public AsynchronousWebConnection(final WebConnection webConnection, final ExecutorService executor) {
+        super(webConnection);
+        WebAssert.notNull("executor", executor);
+        executor_ = executor;
+        ownExecutor_ = false;
+    }
+
+    /**
+     * Creates a connection performing asynchronous requests through the connection of the web client,
+     * and places itself as connection of the web client.
+     * @param webClient the web client which connection should be wrapped
+     * @param threads the maximal number of requests performed at the same time
+     */
+    public AsynchronousWebConnection(final WebClient webClient, final int threads) {
+        super(webClient);
+        executor_ = createExecutor(threads);
+        ownExecutor_ = true;
+    }
+
+    private static ExecutorService createExecutor(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS), new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread =
+                        new Thread(runnable, "HtmlUnit async connection " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    /**
+     * Performs the request in the background.
+     * @param settings the request, which must not be modified until the response has been received
+     * @return the future response
+     * @throws RejectedExecutionException if the executor doesn't accept more requests
+     */
+    public Future<WebResponse> getResponseAsync(final WebRequestSettings settings) {
+        return getResponseAsync(settings, null);
+    }
+
+    /**
+     * Performs the request in the background and notifies the callback once done.
+     * @param settings the request, which must not be modified until the response has been received
+     * @param callback the callback to notify, may be <tt>null</tt>
+     * @return the future response
+     * @throws RejectedExecutionException if the executor doesn't accept more requests
+     */
+    public Future<WebResponse> getResponseAsync(final WebRequestSettings settings, final Callback callback) {
+        final FutureTask<WebResponse> task = new FutureTask<WebResponse>(new Callable<WebResponse>() {
+            public WebResponse call() throws Exception {
+                return getResponse(settings);
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (callback != null && !isCancelled()) {
+                    notifyCallback(callback, settings, this);
+                }
+            }
+        };
+        executor_.execute(task);
+        return task;
+    }
+
+    private static void notifyCallback(final Callback callback, final WebRequestSettings settings,
+            final Future<WebResponse> future) {
+        try {
+            final WebResponse response;
+            try {
+                response = future.get();
+            }
+            catch (final ExecutionException e) {
+                callback.failed(settings, e.getCause());
+                return;
+            }
+            catch (final InterruptedException e) {
+                callback.failed(settings, e);
+                return;
+            }
+            callback.completed(settings, response);
+        }
+        catch (final RuntimeException e) {
+            LOG.error("Callback failed for " + settings.getUrl(), e);
+        }
+    }
+
+    /**
+     * Stops the threads of the default executor. Pending requests are abandoned and no new asynchronous
+     * request can be issued; synchronous requests are still possible. An executor provided to the
+     * constructor is left running.
+     */
+    public void shutdown() {
+        if (ownExecutor_) {
+            executor_.shutdownNow();
+        }
+    }
+}
@@ -52,6 +52,12 @@ public final class EncodingSniffer {
     /** UTF-8 charset name. */
     static final String UTF8 = "UTF-8";
 
+    /** The endings of the HTML content types. */
+    private static final String[] HTML_CONTENT_TYPES = {"text/html"};
+
+    /** The endings of the XML content types. */
+    private static final String[] XML_CONTENT_TYPES = {"text/xml", "application/xml", "text/vnd.wap.wml", "+xml"};
+
     /** Sequence(s) of bytes indicating the beginning of a comment. */
     private static final byte[][] COMMENT_START = new byte[][] {
         new byte[] {'<'},
@@ -141,6 +147,38 @@ public final class EncodingSniffer {
         }
     }
 
+    /**
+     * Sniffs encoding settings like {@link #sniffEncoding(List, InputStream)}, using the content type and
+     * the charset already parsed from the specified headers.
+     *
+     * @param headers the HTTP response headers sent back with the content to be sniffed
+     * @param content the content to be sniffed
+     * @return the encoding sniffed from the specified content and/or the corresponding HTTP headers,
+     *         or <tt>null</tt> if the encoding could not be determined
+     * @throws IOException if an IO error occurs
+     */
+    public static String sniffEncoding(final ResponseHeaders headers, final InputStream content)
+        throws IOException {
+        final String encoding = headers.getCharset();
+        if (encoding != null) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Encoding found in HTTP headers: '" + encoding + "'.");
+            }
+            return encoding;
+        }
+        if (content == null) {
+            return null;
+        }
+        final String contentType = headers.getContentType();
+        if (contentTypeEndsWith(contentType, HTML_CONTENT_TYPES)) {
+            return sniffHtmlContentEncoding(content);
+        }
+        else if (contentTypeEndsWith(contentType, XML_CONTENT_TYPES)) {
+            return sniffXmlContentEncoding(content);
+        }
+        return sniffEncodingFromUnicodeBom(read(content, 3));
+    }
+
     /**
      * Returns <tt>true</tt> if the specified HTTP response headers indicate an HTML response.
      *
@@ -148,7 +186,7 @@ public final class EncodingSniffer {
      * @return <tt>true</tt> if the specified HTTP response headers indicate an HTML response
      */
     static boolean isHtml(final List<NameValuePair> headers) {
-        return contentTypeEndsWith(headers, "text/html");
+        return contentTypeEndsWith(headers, HTML_CONTENT_TYPES);
     }
 
     /**
@@ -158,7 +196,7 @@ public final class EncodingSniffer {
      * @return <tt>true</tt> if the specified HTTP response headers indicate an XML response
      */
     static boolean isXml(final List<NameValuePair> headers) {
-        return contentTypeEndsWith(headers, "text/xml", "application/xml", "text/vnd.wap.wml", "+xml");
+        return contentTypeEndsWith(headers, XML_CONTENT_TYPES);
     }
 
     /**
@@ -179,15 +217,21 @@ public final class EncodingSniffer {
                 if (i != -1) {
                     value = value.substring(0, i);
                 }
-                value = value.trim();
-                boolean found = false;
-                for (String ending : contentTypeEndings) {
-                    if (value.toLowerCase().endsWith(ending.toLowerCase())) {
-                        found = true;
-                        break;
-                    }
-                }
-                return found;
+                return contentTypeEndsWith(value, contentTypeEndings);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the specified content type (without parameters) ends with one of the specified
+     * lower case strings.
+     */
+    private static boolean contentTypeEndsWith(final String contentType, final String... contentTypeEndings) {
+        final String value = contentType.trim().toLowerCase();
+        for (final String ending : contentTypeEndings) {
+            if (value.endsWith(ending)) {
+                return true;
             }
         }
         return false;
@@ -210,13 +254,16 @@ public final class EncodingSniffer {
     public static String sniffHtmlEncoding(final List<NameValuePair> headers, final InputStream content)
         throws IOException {
 
-        String encoding = sniffEncodingFromHttpHeaders(headers);
+        final String encoding = sniffEncodingFromHttpHeaders(headers);
         if (encoding != null || content == null) {
             return encoding;
         }
+        return sniffHtmlContentEncoding(content);
+    }
 
+    private static String sniffHtmlContentEncoding(final InputStream content) throws IOException {
         byte[] bytes = read(content, 3);
-        encoding = sniffEncodingFromUnicodeBom(bytes);
+        String encoding = sniffEncodingFromUnicodeBom(bytes);
         if (encoding != null) {
             return encoding;
         }
@@ -242,13 +289,16 @@ public final class EncodingSniffer {
     public static String sniffXmlEncoding(final List<NameValuePair> headers, final InputStream content)
         throws IOException {
 
-        String encoding = sniffEncodingFromHttpHeaders(headers);
+        final String encoding = sniffEncodingFromHttpHeaders(headers);
         if (encoding != null || content == null) {
             return encoding;
         }
+        return sniffXmlContentEncoding(content);
+    }
 
+    private static String sniffXmlContentEncoding(final InputStream content) throws IOException {
         byte[] bytes = read(content, 3);
-        encoding = sniffEncodingFromUnicodeBom(bytes);
+        String encoding = sniffEncodingFromUnicodeBom(bytes);
         if (encoding != null) {
             return encoding;
         }
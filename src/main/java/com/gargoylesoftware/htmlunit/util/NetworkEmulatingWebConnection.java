@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.lang.math.NumberUtils;
+
+import com.gargoylesoftware.htmlunit.WebAssert;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.WebRequestSettings;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebResponseImpl;
+import com.gargoylesoftware.htmlunit.WebResponseTimings;
+
+/**
+ * Wrapper around a WebConnection that emulates the conditions of a slower network: latency added to each
+ * request, limited bandwidth per connection and limited number of concurrent connections per host.
+ * Combined with a {@link com.gargoylesoftware.htmlunit.MockWebConnection} or a
+ * {@link ReplayingWebConnection}, it allows to study how page loads behave on different networks
+ * without a real slow server.<br>
+ * <br>
+ * Example:
+ * <pre>
+ * final NetworkEmulatingWebConnection connection = new NetworkEmulatingWebConnection(webClient);
+ * connection.setLatency(NetworkEmulatingWebConnection.uniformLatency(50, 150, 42));
+ * connection.setBandwidth(256 * 1024);
+ * connection.setMaxConnectionsPerHost(2);
+ * </pre>
+ *
+ * <p>The waits are performed through a {@link Clock}, which can be replaced to make tests deterministic.
+ * The {@link WebResponse#getLoadTime() load time} of the responses includes the emulated delays. The
+ * transfer time is computed from the size of the body as received, before decoding, when it is known from
+ * the {@link WebResponseTimings} of the response, otherwise from the <tt>Content-Length</tt> header or
+ * from the size of the content.</p>
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+public class NetworkEmulatingWebConnection extends WebConnectionWrapper {
+
+    /**
+     * The source of time used to wait.
+     */
+    public interface Clock {
+
+        /**
+         * Returns the current time.
+         * @return the current time in milliseconds
+         */
+        long currentTimeMillis();
+
+        /**
+         * Waits for the specified time.
+         * @param millis the time to wait in milliseconds
+         * @throws InterruptedException if the thread is interrupted
+         */
+        void sleep(final long millis) throws InterruptedException;
+    }
+
+    /**
+     * Provides the latency of each request.
+     */
+    public interface Latency {
+
+        /**
+         * Returns the latency for the specified request.
+         * @param settings the request
+         * @return the latency in milliseconds
+         */
+        long getLatency(final WebRequestSettings settings);
+    }
+
+    /** The clock using the system time. */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        public void sleep(final long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+    };
+
+    private volatile Clock clock_ = SYSTEM_CLOCK;
+    private volatile Latency latency_ = fixedLatency(0);
+    private volatile long bandwidth_;
+    private volatile int maxConnectionsPerHost_;
+    private final ConcurrentMap<String, Semaphore> hostPermits_ = new ConcurrentHashMap<String, Semaphore>();
+
+    /**
+     * Wraps the specified connection.
+     * @param webConnection the web connection that does the real work
+     */
+    public NetworkEmulatingWebConnection(final WebConnection webConnection) {
+        super(webConnection);
+    }
+
+    /**
+     * Wraps the connection of the web client and places itself as connection of the web client.
+     * @param webClient the web client which connection should be wrapped
+     */
+    public NetworkEmulatingWebConnection(final WebClient webClient) {
+        super(webClient);
+    }
+
+    /**
+     * Returns a latency which is the same for all requests.
+     * @param latency the latency in milliseconds
+     * @return the latency
+     */
+    public static Latency fixedLatency(final long latency) {
+        return new Latency() {
+            public long getLatency(final WebRequestSettings settings) {
+                return latency;
+            }
+        };
+    }
+
+    /**
+     * Returns a latency uniformly distributed between the specified bounds.
+     * @param min the minimal latency in milliseconds
+     * @param max the maximal latency in milliseconds
+     * @param seed the seed of the random sequence, which makes runs reproducible
+     * @return the latency
+     */
+    public static Latency uniformLatency(final long min, final long max, final long seed) {
+        final Random random = new Random(seed);
+        return new Latency() {
+            public synchronized long getLatency(final WebRequestSettings settings) {
+                return min + (long) (random.nextDouble() * (max - min));
+            }
+        };
+    }
+
+    /**
+     * Returns a latency following a normal distribution, never below <tt>0</tt>.
+     * @param mean the mean latency in milliseconds
+     * @param standardDeviation the standard deviation in milliseconds
+     * @param seed the seed of the random sequence, which makes runs reproducible
+     * @return the latency
+     */
+    public static Latency normalLatency(final long mean, final long standardDeviation, final long seed) {
+        final Random random = new Random(seed);
+        return new Latency() {
+            public synchronized long getLatency(final WebRequestSettings settings) {
+                return Math.max(0, mean + Math.round(random.nextGaussian() * standardDeviation));
+            }
+        };
+    }
+
+    /**
+     * Sets the clock used to wait.
+     * @param clock the clock
+     */
+    public void setClock(final Clock clock) {
+        WebAssert.notNull("clock", clock);
+        clock_ = clock;
+    }
+
+    /**
+     * Returns the clock used to wait.
+     * @return the clock
+     */
+    public Clock getClock() {
+        return clock_;
+    }
+
+    /**
+     * Sets the latency added before each request.
+     * @param latency the latency
+     */
+    public void setLatency(final Latency latency) {
+        WebAssert.notNull("latency", latency);
+        latency_ = latency;
+    }
+
+    /**
+     * Returns the bandwidth of each connection.
+     * @return the bandwidth in bytes per second, <tt>0</tt> if unlimited
+     */
+    public long getBandwidth() {
+        return bandwidth_;
+    }
+
+    /**
+     * Sets the bandwidth of each connection, which determines the time needed to receive the responses.
+     * @param bandwidth the bandwidth in bytes per second, <tt>0</tt> for no limit
+     */
+    public void setBandwidth(final long bandwidth) {
+        if (bandwidth < 0) {
+            throw new IllegalArgumentException("bandwidth should not be negative!");
+        }
+        bandwidth_ = bandwidth;
+    }
+
+    /**
+     * Returns the maximal number of requests performed at the same time to a host.
+     * @return the maximal number of connections per host, <tt>0</tt> if unlimited
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost_;
+    }
+
+    /**
+     * Sets the maximal number of requests performed at the same time to a host; additional requests
+     * wait for a previous one to complete. This should be set before any request is performed.
+     * @param maxConnections the maximal number of connections per host, <tt>0</tt> for no limit
+     */
+    public void setMaxConnectionsPerHost(final int maxConnections) {
+        if (maxConnections < 0) {
+            throw new IllegalArgumentException("maxConnections should not be negative!");
+        }
+        maxConnectionsPerHost_ = maxConnections;
+        hostPermits_.clear();
+    }
+
+    /**
+     * Waits for a connection to the host to be available, for the latency, performs the request with
+     * the wrapped connection, then waits for the transfer time.
+     * {@inheritDoc}
+     */
+    @Override
+    public WebResponse getResponse(final WebRequestSettings settings) throws IOException {
+        final Clock clock = clock_;
+        final long start = clock.currentTimeMillis();
+        final Semaphore permits = getPermits(settings);
+        try {
+            if (permits != null) {
+                permits.acquire();
+            }
+            try {
+                sleep(clock, latency_.getLatency(settings));
+                final WebResponse response = super.getResponse(settings);
+                final long bandwidth = bandwidth_;
+                if (bandwidth > 0) {
+                    sleep(clock, getTransferSize(response) * 1000L / bandwidth);
+                }
+                final long emulatedTime = clock.currentTimeMillis() - start;
+                if (response instanceof WebResponseImpl) {
+                    // keep the concrete response, whose timings and content are used by the client and the cache
+                    final WebResponseImpl responseImpl = (WebResponseImpl) response;
+                    responseImpl.setLoadTime(Math.max(emulatedTime, responseImpl.getLoadTime()));
+                    return responseImpl;
+                }
+                return new WebResponseWrapper(response) {
+                    private static final long serialVersionUID = -5493217096316306014L;
+
+                    @Override
+                    public long getLoadTime() {
+                        return Math.max(emulatedTime, super.getLoadTime());
+                    }
+                };
+            }
+            finally {
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while emulating the network for " + settings.getUrl());
+        }
+    }
+
+    /**
+     * Returns the number of bytes transferred for the body of the response: the size received on the wire
+     * if known, otherwise the announced length, otherwise the size of the content, counted without
+     * loading it in memory.
+     * @param response the response
+     * @return the number of bytes
+     * @throws IOException if the content can't be read
+     */
+    private static long getTransferSize(final WebResponse response) throws IOException {
+        if (response instanceof WebResponseImpl) {
+            final WebResponseTimings timings = ((WebResponseImpl) response).getTimings();
+            if (timings != null && timings.getWireBytes() >= 0) {
+                return timings.getWireBytes();
+            }
+        }
+        final long contentLength = NumberUtils.toLong(response.getResponseHeaderValue("Content-Length"), -1);
+        if (contentLength >= 0) {
+            return contentLength;
+        }
+        final InputStream content = response.getContentAsStream();
+        if (content == null) {
+            return 0;
+        }
+        try {
+            final byte[] buffer = new byte[8192];
+            long size = 0;
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                size += read;
+            }
+            return size;
+        }
+        finally {
+            content.close();
+        }
+    }
+
+    private Semaphore getPermits(final WebRequestSettings settings) {
+        final int max = maxConnectionsPerHost_;
+        if (max == 0) {
+            return null;
+        }
+        final String host = settings.getUrl().getHost().toLowerCase();
+        Semaphore permits = hostPermits_.get(host);
+        if (permits == null) {
+            final Semaphore newPermits = new Semaphore(max, true);
+            permits = hostPermits_.putIfAbsent(host, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+        return permits;
+    }
+
+    private static void sleep(final Clock clock, final long millis) throws InterruptedException {
+        if (millis > 0) {
+            clock.sleep(millis);
+        }
+    }
+}
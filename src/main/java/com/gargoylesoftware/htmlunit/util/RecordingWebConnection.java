@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.WebRequestSettings;
+import com.gargoylesoftware.htmlunit.WebResponse;
+
+/**
+ * Wrapper around a "real" WebConnection that records all the exchanges (request key, response status,
+ * headers and body, load time) in an archive file, which can be served later by a {@link ReplayingWebConnection}.
+ * This allows to reproduce page loads offline, for instance to measure the time spent by HtmlUnit
+ * itself without the noise of the network.<br>
+ * <br>
+ * Example:
+ * <pre>
+ * final WebClient client = new WebClient();
+ * final RecordingWebConnection recorder = new RecordingWebConnection(client, new File("site.archive"));
+ * client.getPage("http://www.example.com/");
+ * recorder.close();
+ * </pre>
+ *
+ * <p>The archive is a sequence of exchanges followed by an index written by {@link #close()}, which
+ * lets the replaying connection locate an exchange without reading the bodies of the others. Response
+ * bodies are stored decompressed, copied in chunks from the content stream of the responses. The request
+ * headers aren't recorded, as the exchanges are matched on the method, the URL and the submitted content
+ * only.</p>
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ * @see ReplayingWebConnection
+ */
+public class RecordingWebConnection extends WebConnectionWrapper {
+
+    private static final Log LOG = LogFactory.getLog(RecordingWebConnection.class);
+
+    /** The first bytes of an archive ("HUAR"). */
+    static final int MAGIC = 0x48554152;
+
+    /** The version of the archive format. */
+    static final int VERSION = 2;
+
+    private final File file_;
+    private final CountingOutputStream counter_;
+    private final DataOutputStream out_;
+    private final List<String> keys_ = new ArrayList<String>();
+    private final List<Long> offsets_ = new ArrayList<Long>();
+    private boolean closed_;
+
+    /**
+     * Wraps a web connection to record the exchanges in the specified file, which is overwritten.
+     * @param webConnection the web connection that does the real work
+     * @param file the archive file
+     * @throws IOException if the file can't be created
+     */
+    public RecordingWebConnection(final WebConnection webConnection, final File file) throws IOException {
+        super(webConnection);
+        file_ = file;
+        counter_ = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out_ = new DataOutputStream(counter_);
+        writeHeader();
+    }
+
+    /**
+     * Wraps the web connection of the web client to record the exchanges in the specified file,
+     * which is overwritten, and places itself as connection of the web client.
+     * @param webClient the web client which connection should be wrapped
+     * @param file the archive file
+     * @throws IOException if the file can't be created
+     */
+    public RecordingWebConnection(final WebClient webClient, final File file) throws IOException {
+        super(webClient);
+        file_ = file;
+        counter_ = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out_ = new DataOutputStream(counter_);
+        writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        out_.writeInt(MAGIC);
+        out_.writeInt(VERSION);
+    }
+
+    /**
+     * Calls the wrapped web connection and records the exchange.
+     * {@inheritDoc}
+     */
+    @Override
+    public WebResponse getResponse(final WebRequestSettings settings) throws IOException {
+        final WebResponse response = super.getResponse(settings);
+        record(settings, response);
+        return response;
+    }
+
+    /**
+     * Appends the exchange to the archive.
+     * @param settings the request
+     * @param response the response received
+     * @throws IOException if the exchange can't be written
+     */
+    protected synchronized void record(final WebRequestSettings settings, final WebResponse response)
+        throws IOException {
+        if (closed_) {
+            LOG.warn("Archive " + file_ + " already closed, not recording " + settings.getUrl());
+            return;
+        }
+        final String key = getKey(settings);
+        keys_.add(key);
+        offsets_.add(counter_.getByteCount());
+
+        writeString(key);
+
+        out_.writeInt(response.getStatusCode());
+        writeString(response.getStatusMessage());
+        // the body is stored decoded: the headers related to the transfer encoding don't apply anymore
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        boolean encoded = false;
+        for (final NameValuePair header : response.getResponseHeaders()) {
+            encoded |= "Content-Encoding".equalsIgnoreCase(header.getName());
+        }
+        for (final NameValuePair header : response.getResponseHeaders()) {
+            final String name = header.getName();
+            if (!"Content-Encoding".equalsIgnoreCase(name)
+                    && !(encoded && "Content-Length".equalsIgnoreCase(name))) {
+                headers.add(header);
+            }
+        }
+        out_.writeInt(headers.size());
+        for (final NameValuePair header : headers) {
+            writeString(header.getName());
+            writeString(header.getValue());
+        }
+        out_.writeLong(response.getLoadTime());
+
+        final InputStream body = response.getContentAsStream();
+        if (body == null) {
+            out_.writeInt(-1);
+            return;
+        }
+        try {
+            // the length isn't known in advance: the body is written as chunks, ended by an empty one
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                if (read > 0) {
+                    out_.writeInt(read);
+                    out_.write(buffer, 0, read);
+                }
+            }
+            out_.writeInt(0);
+        }
+        finally {
+            body.close();
+        }
+    }
+
+    /**
+     * Writes the exchanges recorded so far to the file.
+     * @throws IOException if the archive can't be written
+     */
+    public synchronized void flush() throws IOException {
+        out_.flush();
+    }
+
+    /**
+     * Writes the index and closes the archive. Exchanges performed afterwards aren't recorded anymore.
+     * @throws IOException if the archive can't be written
+     */
+    public synchronized void close() throws IOException {
+        if (closed_) {
+            return;
+        }
+        closed_ = true;
+        try {
+            final long indexOffset = counter_.getByteCount();
+            out_.writeInt(keys_.size());
+            for (int i = 0; i < keys_.size(); i++) {
+                writeString(keys_.get(i));
+                out_.writeLong(offsets_.get(i));
+            }
+            out_.writeLong(indexOffset);
+            out_.writeInt(MAGIC);
+        }
+        finally {
+            out_.close();
+        }
+        LOG.info("Recorded " + keys_.size() + " exchanges in " + file_);
+    }
+
+    private void writeString(final String s) throws IOException {
+        if (s == null) {
+            out_.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = s.getBytes("UTF-8");
+        out_.writeInt(bytes.length);
+        out_.write(bytes);
+    }
+
+    /**
+     * Returns the key under which an exchange is stored: the method, the URL without fragment and, for
+     * requests other than GET, the submitted content.
+     * @param settings the request
+     * @return the key
+     */
+    static String getKey(final WebRequestSettings settings) {
+        final StringBuilder key = new StringBuilder();
+        key.append(settings.getHttpMethod().name()).append(' ');
+        final String url = settings.getUrl().toExternalForm();
+        final int hashIndex = url.indexOf('#');
+        key.append(hashIndex == -1 ? url : url.substring(0, hashIndex));
+        if (settings.getHttpMethod() != HttpMethod.GET) {
+            if (settings.getRequestBody() != null) {
+                key.append('\n').append(settings.getRequestBody());
+            }
+            if (settings.getRequestParameters() != null) {
+                for (final NameValuePair pair : settings.getRequestParameters()) {
+                    key.append('\n').append(pair.getName()).append('=').append(pair.getValue());
+                }
+            }
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.WebRequestSettings;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebResponseData;
+import com.gargoylesoftware.htmlunit.WebResponseImpl;
+
+/**
+ * A {@link WebConnection} serving the exchanges recorded by a {@link RecordingWebConnection}, without any
+ * network access.<br>
+ * <br>
+ * Example:
+ * <pre>
+ * final WebClient client = new WebClient();
+ * client.setWebConnection(new ReplayingWebConnection(new File("site.archive")));
+ * client.getPage("http://www.example.com/");
+ * </pre>
+ *
+ * <p>Requests are matched on their method, URL and submitted content. When the same request has been
+ * recorded several times, the recorded responses are served in order, the last one being repeated.
+ * Requests that haven't been recorded get a <tt>404</tt> response.</p>
+ *
+ * <p>The archive is memory-mapped and the responses are read on demand, so that big archives don't need
+ * to fit in the heap. By default the responses are served immediately; the recorded load times can be
+ * simulated with {@link #setSimulateLatency(boolean)}.</p>
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ * @see RecordingWebConnection
+ */
+public class ReplayingWebConnection implements WebConnection {
+
+    private static final Log LOG = LogFactory.getLog(ReplayingWebConnection.class);
+
+    private final File file_;
+    private final ByteBuffer archive_;
+    private final Map<String, List<Integer>> index_ = new HashMap<String, List<Integer>>();
+    private final Map<String, AtomicInteger> served_ = new HashMap<String, AtomicInteger>();
+    private volatile boolean simulateLatency_;
+
+    /**
+     * Opens the specified archive.
+     * @param file the archive written by a {@link RecordingWebConnection}
+     * @throws IOException if the archive can't be read
+     */
+    public ReplayingWebConnection(final File file) throws IOException {
+        file_ = file;
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            archive_ = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally {
+            IOUtils.closeQuietly(in);
+        }
+        try {
+            readIndex();
+        }
+        catch (final BufferUnderflowException e) {
+            throw new IOException("Truncated archive " + file);
+        }
+    }
+
+    private void readIndex() throws IOException {
+        final ByteBuffer buffer = archive_.duplicate();
+        if (buffer.getInt() != RecordingWebConnection.MAGIC) {
+            throw new IOException(file_ + " is not an archive");
+        }
+        final int version = buffer.getInt();
+        if (version != RecordingWebConnection.VERSION) {
+            throw new IOException("Unsupported version " + version + " of archive " + file_);
+        }
+        final int start = buffer.position();
+
+        final int trailer = buffer.limit() - 12;
+        if (trailer >= start && buffer.getInt(trailer + 8) == RecordingWebConnection.MAGIC) {
+            buffer.position((int) buffer.getLong(trailer));
+            final int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                final String key = readString(buffer);
+                addToIndex(key, (int) buffer.getLong());
+            }
+        }
+        else {
+            // the recording hasn't been closed: scan the exchanges
+            LOG.warn("No index found in archive " + file_ + ", scanning it");
+            buffer.position(start);
+            while (buffer.hasRemaining()) {
+                final int offset = buffer.position();
+                try {
+                    final String key = readString(buffer);
+                    skipExchange(buffer);
+                    addToIndex(key, offset);
+                }
+                catch (final BufferUnderflowException e) {
+                    LOG.warn("Ignoring truncated exchange at the end of archive " + file_);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void addToIndex(final String key, final int offset) {
+        List<Integer> offsets = index_.get(key);
+        if (offsets == null) {
+            offsets = new ArrayList<Integer>(1);
+            index_.put(key, offsets);
+            served_.put(key, new AtomicInteger());
+        }
+        offsets.add(offset);
+    }
+
+    private static void skipExchange(final ByteBuffer buffer) {
+        buffer.getInt();
+        readString(buffer);
+        skipPairs(buffer);
+        buffer.getLong();
+        getBodyLength(buffer);
+    }
+
+    /**
+     * Returns the length of the body, written in chunks, starting at the position of the buffer.
+     * The position of the buffer is moved after the body.
+     * @param buffer the buffer
+     * @return the length of the body, <tt>-1</tt> if there is no body
+     */
+    private static int getBodyLength(final ByteBuffer buffer) {
+        int chunkLength = buffer.getInt();
+        if (chunkLength < 0) {
+            return -1;
+        }
+        int length = 0;
+        while (chunkLength > 0) {
+            length += chunkLength;
+            buffer.position(buffer.position() + chunkLength);
+            chunkLength = buffer.getInt();
+        }
+        return length;
+    }
+
+    private static void skipPairs(final ByteBuffer buffer) {
+        final int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            readString(buffer);
+            readString(buffer);
+        }
+    }
+
+    /**
+     * Indicates if the recorded load time is waited before serving a response.
+     * @return <tt>true</tt> if the latency is simulated
+     */
+    public boolean isSimulateLatency() {
+        return simulateLatency_;
+    }
+
+    /**
+     * Sets whether the recorded load time is waited before serving a response. This is disabled by
+     * default, which allows to measure the time spent by HtmlUnit itself.
+     * @param simulateLatency <tt>true</tt> to simulate the latency
+     */
+    public void setSimulateLatency(final boolean simulateLatency) {
+        simulateLatency_ = simulateLatency;
+    }
+
+    /**
+     * Returns the number of distinct requests in the archive.
+     * @return the number of distinct requests
+     */
+    public int getRequestCount() {
+        return index_.size();
+    }
+
+    /**
+     * Starts serving again the first recorded response of each request.
+     */
+    public void rewind() {
+        for (final AtomicInteger served : served_.values()) {
+            served.set(0);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WebResponse getResponse(final WebRequestSettings settings) throws IOException {
+        final String key = RecordingWebConnection.getKey(settings);
+        final List<Integer> offsets = index_.get(key);
+        if (offsets == null) {
+            LOG.warn("No recorded response for " + settings.getHttpMethod() + " " + settings.getUrl());
+            final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+            final WebResponseData data = new WebResponseData(new byte[0], HttpStatus.SC_NOT_FOUND,
+                "Not Found", headers);
+            return new WebResponseImpl(data, settings, 0);
+        }
+        final int next = served_.get(key).getAndIncrement();
+        final int offset = offsets.get(Math.min(next, offsets.size() - 1));
+        return readResponse(settings, offset);
+    }
+
+    private WebResponse readResponse(final WebRequestSettings settings, final int offset) throws IOException {
+        final ByteBuffer buffer = archive_.duplicate();
+        buffer.position(offset);
+        readString(buffer);
+
+        final int statusCode = buffer.getInt();
+        final String statusMessage = readString(buffer);
+        final int headerCount = buffer.getInt();
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>(headerCount);
+        for (int i = 0; i < headerCount; i++) {
+            headers.add(new NameValuePair(readString(buffer), readString(buffer)));
+        }
+        final long loadTime = buffer.getLong();
+        final int bodyLength = getBodyLength(buffer.duplicate());
+        byte[] body = null;
+        if (bodyLength >= 0) {
+            body = new byte[bodyLength];
+            int position = 0;
+            int chunkLength;
+            while ((chunkLength = buffer.getInt()) > 0) {
+                buffer.get(body, position, chunkLength);
+                position += chunkLength;
+            }
+        }
+
+        if (simulateLatency_ && loadTime > 0) {
+            try {
+                Thread.sleep(loadTime);
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while simulating latency");
+            }
+        }
+        final WebResponseData data = new WebResponseData(body, statusCode, statusMessage, headers);
+        return new WebResponseImpl(data, settings, loadTime);
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        }
+        catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit.util;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The immutable headers of a response, indexed by case insensitive name. The values derived from the headers
+ * which are needed again and again, like the content type, the charset, the <tt>Cache-Control</tt>
+ * directives or the dates, are parsed only once.
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+public final class ResponseHeaders implements Serializable {
+
+    private static final long serialVersionUID = -4510323404880938436L;
+
+    /** Marks a date header which is missing or can't be parsed. */
+    private static final Long NO_DATE = Long.valueOf(Long.MIN_VALUE);
+
+    private final List<NameValuePair> headers_;
+
+    /** The value of the first header with a given name, keyed by the lower case name. */
+    private transient Map<String, String> firstValues_;
+
+    private transient volatile String contentType_;
+    private transient volatile boolean charsetParsed_;
+    private transient volatile String charset_;
+    private transient volatile Map<String, String> cacheControlDirectives_;
+    private transient volatile Map<String, Long> dates_;
+
+    /**
+     * Creates a new instance.
+     * @param headers the headers, in the order in which they have been received
+     */
+    public ResponseHeaders(final List<NameValuePair> headers) {
+        headers_ = Collections.unmodifiableList(new ArrayList<NameValuePair>(headers));
+        index();
+    }
+
+    private void index() {
+        final Map<String, String> firstValues = new HashMap<String, String>(headers_.size() * 2);
+        for (final NameValuePair header : headers_) {
+            if (header.getName() == null) {
+                continue;
+            }
+            final String key = toKey(header.getName().trim());
+            if (!firstValues.containsKey(key)) {
+                firstValues.put(key, header.getValue());
+            }
+        }
+        firstValues_ = firstValues;
+    }
+
+    private static String toKey(final String name) {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns all headers, in the order in which they have been received.
+     * @return an immutable list of the headers
+     */
+    public List<NameValuePair> getHeaders() {
+        return headers_;
+    }
+
+    /**
+     * Returns the value of the first header with the specified name.
+     * @param name the case insensitive header name
+     * @return the header value, or <tt>null</tt> if there is no such header
+     */
+    public String getValue(final String name) {
+        return firstValues_.get(toKey(name));
+    }
+
+    /**
+     * Returns the content type without its parameters, as declared by the <tt>Content-Type</tt> header.
+     * @return the content type, an empty string if there is no <tt>Content-Type</tt> header
+     */
+    public String getContentType() {
+        String contentType = contentType_;
+        if (contentType == null) {
+            contentType = getValue("Content-Type");
+            if (contentType == null) {
+                // Not technically legal but some servers don't return a content-type
+                contentType = "";
+            }
+            else {
+                final int index = contentType.indexOf(';');
+                if (index != -1) {
+                    contentType = contentType.substring(0, index);
+                }
+            }
+            contentType_ = contentType;
+        }
+        return contentType;
+    }
+
+    /**
+     * Returns the charset declared by the <tt>Content-Type</tt> headers.
+     * @return the charset, or <tt>null</tt> if none is declared
+     */
+    public String getCharset() {
+        if (!charsetParsed_) {
+            String charset = null;
+            for (final NameValuePair header : headers_) {
+                if ("content-type".equalsIgnoreCase(header.getName())) {
+                    charset = EncodingSniffer.extractEncodingFromContentType(header.getValue());
+                    if (charset != null) {
+                        break;
+                    }
+                }
+            }
+            charset_ = charset;
+            charsetParsed_ = true;
+        }
+        return charset_;
+    }
+
+    /**
+     * Indicates if the <tt>Cache-Control</tt> header contains the specified directive.
+     * @param directive the case insensitive directive name
+     * @return <tt>true</tt> if the directive is present
+     */
+    public boolean hasCacheControlDirective(final String directive) {
+        return getCacheControlDirectives().containsKey(toKey(directive));
+    }
+
+    /**
+     * Returns the value of a directive of the <tt>Cache-Control</tt> header, like <tt>max-age</tt>.
+     * @param directive the case insensitive directive name
+     * @return the unquoted value, or <tt>null</tt> if the directive is absent or has no value
+     */
+    public String getCacheControlDirectiveValue(final String directive) {
+        return getCacheControlDirectives().get(toKey(directive));
+    }
+
+    private Map<String, String> getCacheControlDirectives() {
+        Map<String, String> directives = cacheControlDirectives_;
+        if (directives == null) {
+            directives = parseCacheControl(getValue("Cache-Control"));
+            cacheControlDirectives_ = directives;
+        }
+        return directives;
+    }
+
+    /**
+     * Parses the directives of a <tt>Cache-Control</tt> header value, of a response or of a request. When a
+     * directive is repeated, the first occurrence is kept, whether it has a value or not.
+     * @param cacheControl the header value, may be <tt>null</tt>
+     * @return the unquoted values of the directives (<tt>null</tt> for a directive without value), keyed by
+     * lower case directive name
+     */
+    public static Map<String, String> parseCacheControl(final String cacheControl) {
+        if (cacheControl == null) {
+            return Collections.emptyMap();
+        }
+        final Map<String, String> directives = new HashMap<String, String>();
+        for (final String token : cacheControl.split(",")) {
+            final int index = token.indexOf('=');
+            final String name;
+            final String value;
+            if (index == -1) {
+                name = token;
+                value = null;
+            }
+            else {
+                name = token.substring(0, index);
+                value = token.substring(index + 1).trim().replace("\"", "");
+            }
+            final String key = toKey(name.trim());
+            if (!directives.containsKey(key)) {
+                directives.put(key, value);
+            }
+        }
+        return directives;
+    }
+
+    /**
+     * Returns the value of the specified date header, like <tt>Expires</tt> or <tt>Last-Modified</tt>.
+     * @param name the case insensitive header name
+     * @return a new date, or <tt>null</tt> if the header is missing or can't be parsed
+     */
+    public Date getDate(final String name) {
+        Map<String, Long> dates = dates_;
+        if (dates == null) {
+            dates = new ConcurrentHashMap<String, Long>(4);
+            dates_ = dates;
+        }
+        final String key = toKey(name);
+        Long time = dates.get(key);
+        if (time == null) {
+            final Date date = StringUtils.parseHttpDate(getValue(name));
+            time = (date == null) ? NO_DATE : Long.valueOf(date.getTime());
+            dates.put(key, time);
+        }
+        if (time == NO_DATE) {
+            return null;
+        }
+        return new Date(time.longValue());
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        index();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return headers_.toString();
+    }
+}
@@ -15,17 +15,24 @@
 package com.gargoylesoftware.htmlunit;
 
 import static com.gargoylesoftware.htmlunit.util.StringUtils.formatHttpDate;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.time.DateUtils;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -35,6 +42,8 @@ import com.gargoylesoftware.htmlunit.BrowserRunner.Browser;
 import com.gargoylesoftware.htmlunit.BrowserRunner.Browsers;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
 import com.gargoylesoftware.htmlunit.util.NameValuePair;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+import com.steadystate.css.dom.CSSStyleSheetImpl;
 
 /**
  * Tests for {@link Cache}.
@@ -81,6 +90,57 @@ public class CacheTest extends WebTestCase {
         assertFalse(cache.isDynamicContent(response));
     }
 
+    /**
+     * A huge <tt>max-age</tt> must not overflow into an already expired freshness lifetime.
+     * @throws Exception if the test fails
+     */
+    @Test
+    @Browsers(Browser.NONE)
+    public void getFreshUntilWithHugeMaxAge() throws Exception {
+        final Cache cache = new Cache();
+        final Map<String, String> headers = new HashMap<String, String>();
+        final WebResponse response = new DummyWebResponse() {
+            private static final long serialVersionUID = 4518935710383637925L;
+
+            @Override
+            public String getResponseHeaderValue(final String headerName) {
+                return headers.get(headerName);
+            }
+        };
+        final long now = System.currentTimeMillis();
+
+        headers.put("Cache-Control", "max-age=60");
+        assertEquals(now + 60 * DateUtils.MILLIS_PER_SECOND, cache.getFreshUntil(response, now));
+
+        headers.put("Cache-Control", "max-age=" + Long.MAX_VALUE / 10);
+        assertEquals(Long.MAX_VALUE, cache.getFreshUntil(response, now));
+
+        headers.put("Cache-Control", "max-age=99999999999999999999");
+        assertEquals(Long.MAX_VALUE, cache.getFreshUntil(response, now));
+    }
+
+    /**
+     * A permanent redirect with a huge <tt>max-age</tt> must be remembered.
+     * @throws Exception if the test fails
+     */
+    @Test
+    @Browsers(Browser.NONE)
+    public void getPermanentRedirectFreshUntilWithHugeMaxAge() throws Exception {
+        final Cache cache = new Cache();
+        final WebResponse response = new DummyWebResponse() {
+            private static final long serialVersionUID = -2750946178294407383L;
+
+            @Override
+            public String getResponseHeaderValue(final String headerName) {
+                if ("Cache-Control".equals(headerName)) {
+                    return "max-age=" + Long.MAX_VALUE;
+                }
+                return null;
+            }
+        };
+        assertEquals(Long.MAX_VALUE, cache.getPermanentRedirectFreshUntil(response, System.currentTimeMillis()));
+    }
+
     /**
      * @throws Exception if the test fails
      */
@@ -171,6 +231,190 @@ public class CacheTest extends WebTestCase {
                 urlPage2, connection.getLastWebRequestSettings().getUrl());
     }
 
+    /**
+     * Stale responses with an ETag should be revalidated and reused when the server answers 304.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void revalidationWithETag() throws Exception {
+        final String content = "<html><head><title>page 1</title>\n"
+            + "<script src='foo1.js'></script>\n"
+            + "</head><body></body></html>";
+
+        final WebClient webClient = getWebClient();
+        final MockWebConnection connection = new MockWebConnection();
+        final List<String> ifNoneMatch = new ArrayList<String>();
+        webClient.setWebConnection(new WebConnectionWrapper(connection) {
+            @Override
+            public WebResponse getResponse(final WebRequestSettings settings) throws IOException {
+                if (settings.getUrl().getPath().endsWith(".js")) {
+                    ifNoneMatch.add(settings.getAdditionalHeaders().get("If-None-Match"));
+                }
+                return super.getResponse(settings);
+            }
+        });
+
+        final URL urlPage1 = new URL(URL_FIRST, "page1.html");
+        connection.setResponse(urlPage1, content);
+        final URL urlScript = new URL(URL_FIRST, "foo1.js");
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        headers.add(new NameValuePair("ETag", "\"abc\""));
+        connection.setResponse(urlScript, "alert('in foo1');", 200, "ok", JAVASCRIPT_MIME_TYPE, headers);
+
+        final List<String> collectedAlerts = new ArrayList<String>();
+        webClient.setAlertHandler(new CollectingAlertHandler(collectedAlerts));
+
+        webClient.getPage(urlPage1);
+        connection.setResponse(urlScript, "", HttpStatus.SC_NOT_MODIFIED, "Not Modified", null,
+            new ArrayList<NameValuePair>());
+        webClient.getPage(urlPage1);
+
+        assertEquals(new String[] {"in foo1", "in foo1"}, collectedAlerts);
+        assertEquals(Arrays.asList(null, "\"abc\""), ifNoneMatch);
+        assertEquals(1, webClient.getCache().getSize());
+    }
+
+    /**
+     * A shared cache should be usable by several web clients but must not reuse private responses.
+     * @throws Exception if the test fails
+     */
+    @Test
+    @Browsers(Browser.NONE)
+    public void sharedBetweenClients() throws Exception {
+        final String content = "<html><head><title>page 1</title>\n"
+            + "<script src='foo1.js'></script>\n"
+            + "<script src='foo2.js'></script>\n"
+            + "</head><body></body></html>";
+
+        final MockWebConnection connection = new MockWebConnection();
+        final URL urlPage1 = new URL(URL_FIRST, "page1.html");
+        connection.setResponse(urlPage1, content);
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        headers.add(new NameValuePair("Last-Modified", "Sun, 15 Jul 2007 20:46:27 GMT"));
+        connection.setResponse(new URL(URL_FIRST, "foo1.js"), "alert('in foo1');", 200, "ok",
+            JAVASCRIPT_MIME_TYPE, headers);
+        final List<NameValuePair> privateHeaders = new ArrayList<NameValuePair>(headers);
+        privateHeaders.add(new NameValuePair("Cache-Control", "private"));
+        connection.setResponse(new URL(URL_FIRST, "foo2.js"), "alert('in foo2');", 200, "ok",
+            JAVASCRIPT_MIME_TYPE, privateHeaders);
+
+        final Cache cache = new Cache();
+        cache.setShared(true);
+        final List<String> collectedAlerts = new ArrayList<String>();
+        for (int i = 0; i < 2; i++) {
+            final WebClient webClient = new WebClient();
+            try {
+                webClient.setCache(cache);
+                webClient.setWebConnection(connection);
+                webClient.setAlertHandler(new CollectingAlertHandler(collectedAlerts));
+                webClient.getPage(urlPage1);
+            }
+            finally {
+                webClient.closeAllWindows();
+            }
+        }
+
+        assertEquals(new String[] {"in foo1", "in foo2", "in foo1", "in foo2"}, collectedAlerts);
+        assertEquals(1, cache.getSize());
+        assertEquals("page twice, foo1.js once, foo2.js twice", 5, connection.getRequestCount());
+    }
+
+    /**
+     * A shared cache must not hand the same parsed stylesheet, which scripts can modify, to several
+     * clients: it keeps only the responses.
+     * @throws Exception if the test fails
+     */
+    @Test
+    @Browsers(Browser.NONE)
+    public void sharedCacheDoesNotCacheStyleSheets() throws Exception {
+        final Cache cache = new Cache();
+        cache.setShared(true);
+
+        cache.cache("div { color: red }", new CSSStyleSheetImpl());
+        assertNull(cache.getCachedStyleSheet("div { color: red }"));
+        assertEquals(0, cache.getSize());
+
+        final WebRequestSettings request = new WebRequestSettings(new URL(URL_FIRST, "style.css"));
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        headers.add(new NameValuePair("Last-Modified", "Sun, 15 Jul 2007 20:46:27 GMT"));
+        final WebResponseData data = new WebResponseData(new byte[10], HttpStatus.SC_OK, "OK", headers);
+        final WebResponse response = new WebResponseImpl(data, request, 0);
+        cache.cacheIfPossible(request, response, new CSSStyleSheetImpl());
+        assertSame(response, cache.getCachedResponse(request));
+        assertSame(response, cache.getCachedObject(request));
+    }
+
+    /**
+     * A shared cache must not store the responses to requests authenticated by the web connection
+     * or sent with cookies, unless they are marked as public.
+     * @throws Exception if the test fails
+     */
+    @Test
+    @Browsers(Browser.NONE)
+    public void isShareable() throws Exception {
+        final Cache cache = new Cache();
+        final WebRequestSettings request = new WebRequestSettings(URL_FIRST);
+        final WebResponseData data = new WebResponseData(new byte[0], HttpStatus.SC_OK, "OK",
+            new ArrayList<NameValuePair>());
+        final WebResponse response = new WebResponseImpl(data, request, 0);
+        assertTrue(cache.isShareable(request, response));
+
+        data.setRequestCredentials(true, false);
+        assertFalse(cache.isShareable(request, response));
+        data.setRequestCredentials(false, true);
+        assertFalse(cache.isShareable(request, response));
+
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        headers.add(new NameValuePair("Cache-Control", "public"));
+        final WebResponseData publicData = new WebResponseData(new byte[0], HttpStatus.SC_OK, "OK", headers);
+        final WebResponse publicResponse = new WebResponseImpl(publicData, request, 0);
+        publicData.setRequestCredentials(true, true);
+        assertTrue(cache.isShareable(request, publicResponse));
+    }
+
+    /**
+     * A response evicted from the cache must stay readable by the pages built on it, and its temporary
+     * file must be deleted once these pages are closed.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void evictedResponseReadableByOpenPage() throws Exception {
+        final List<File> files = new ArrayList<File>();
+        final WebClient client = getWebClient();
+        client.setWebConnection(new WebConnection() {
+            public WebResponse getResponse(final WebRequestSettings request) throws IOException {
+                final File file = File.createTempFile("htmlunit", ".tmp");
+                FileUtils.writeStringToFile(file, "content " + files.size(), "ISO-8859-1");
+                files.add(file);
+                final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+                headers.add(new NameValuePair("Content-Type", "text/plain"));
+                headers.add(new NameValuePair("Last-Modified", "Sun, 15 Jul 2007 20:46:27 GMT"));
+                final DownloadedContent content = new DownloadedContent.OnFile(file, true);
+                final WebResponseData data = new WebResponseData(content, HttpStatus.SC_OK, "OK", headers);
+                return new WebResponseImpl(data, request, 0);
+            }
+        });
+
+        // a page built on the response stored in the cache
+        final TextPage first = client.getPage(URL_FIRST);
+        assertEquals(1, client.getCache().getSize());
+        client.getCache().clear();
+        assertEquals("content 0", IOUtils.toString(first.getWebResponse().getContentAsStream(), "ISO-8859-1"));
+        assertTrue(files.get(0).exists());
+
+        // a page built on a copy handed out by the cache
+        client.getPage(URL_SECOND);
+        final TextPage second = client.getPage(URL_SECOND);
+        assertEquals(2, files.size());
+        client.getCache().clear();
+        assertEquals("content 1", second.getWebResponse().getContentAsString());
+        assertEquals("content 1", IOUtils.toString(second.getWebResponse().getContentAsStream(), "ISO-8859-1"));
+
+        client.closeAllWindows();
+        assertFalse(files.get(0).exists());
+        assertFalse(files.get(1).exists());
+    }
+
     /**
      *@throws Exception if the test fails
      */
@@ -202,6 +446,114 @@ public class CacheTest extends WebTestCase {
         assertEquals(0, client.getCache().getSize());
     }
 
+    /**
+     * The least recently used entry should be evicted first.
+     * @throws Exception if the test fails
+     */
+    @Test
+    @Browsers(Browser.NONE)
+    public void leastRecentlyUsedEvicted() throws Exception {
+        final Cache cache = new Cache();
+        cache.setMaxSize(2);
+
+        final WebRequestSettings request1 = cacheResponse(cache, "a.js", 10);
+        final WebRequestSettings request2 = cacheResponse(cache, "b.js", 10);
+        assertNotNull(cache.getCachedResponse(request1));
+        final WebRequestSettings request3 = cacheResponse(cache, "c.js", 10);
+
+        assertEquals(2, cache.getSize());
+        assertNotNull(cache.getCachedResponse(request1));
+        assertNull(cache.getCachedResponse(request2));
+        assertNotNull(cache.getCachedResponse(request3));
+    }
+
+    /**
+     * The cache should not hold more than its maximal weight.
+     * @throws Exception if the test fails
+     */
+    @Test
+    @Browsers(Browser.NONE)
+    public void maxWeightMaintained() throws Exception {
+        final Cache cache = new Cache();
+        cache.setMaxSize(3);
+        cache.setMaxWeight(250);
+
+        final WebRequestSettings request1 = cacheResponse(cache, "a.js", 100);
+        final WebRequestSettings request2 = cacheResponse(cache, "b.js", 100);
+        final WebRequestSettings request3 = cacheResponse(cache, "c.js", 100);
+
+        assertEquals(2, cache.getSize());
+        assertNull(cache.getCachedResponse(request1));
+        assertNotNull(cache.getCachedResponse(request2));
+        assertNotNull(cache.getCachedResponse(request3));
+
+        cacheResponse(cache, "big.js", 1000);
+        assertEquals(2, cache.getSize());
+    }
+
+    /**
+     * Threads storing and looking up entries concurrently should not break the limits, which apply to the
+     * whole cache whatever the segments the entries fall in.
+     * @throws Exception if the test fails
+     */
+    @Test
+    @Browsers(Browser.NONE)
+    public void limitsMaintainedByConcurrentThreads() throws Exception {
+        final Cache cache = new Cache();
+        cache.setMaxSize(100);
+        cache.setMaxWeight(100 * 50);
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 500; j++) {
+                            final WebRequestSettings request = cacheResponse(cache, thread + "-" + j + ".js", 40);
+                            cache.getCachedResponse(request);
+                            cache.getCachedResponse(new WebRequestSettings(new URL(URL_FIRST, "0-0.js")));
+                        }
+                    }
+                    catch (final Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(100, cache.getSize());
+
+        // all entries fit in the cache, even if many of them fall in the same segment
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        final List<WebRequestSettings> requests = new ArrayList<WebRequestSettings>();
+        for (int i = 0; i < 100; i++) {
+            requests.add(cacheResponse(cache, i + ".js", 40));
+        }
+        assertEquals(100, cache.getSize());
+        for (final WebRequestSettings request : requests) {
+            assertNotNull(cache.getCachedResponse(request));
+        }
+    }
+
+    private WebRequestSettings cacheResponse(final Cache cache, final String file, final int length)
+        throws Exception {
+        final WebRequestSettings request = new WebRequestSettings(new URL(URL_FIRST, file));
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        headers.add(new NameValuePair("Last-Modified", "Sun, 15 Jul 2007 20:46:27 GMT"));
+        final WebResponseData data = new WebResponseData(new byte[length], 200, "OK", headers);
+        final WebResponse response = new WebResponseImpl(data, request, 0);
+        cache.cacheIfPossible(request, response, response);
+        return request;
+    }
+
     /**
      * TODO: improve CSS caching to cache a COPY of the object as stylesheet objects can be modified dynamically.
      * @throws Exception if the test fails
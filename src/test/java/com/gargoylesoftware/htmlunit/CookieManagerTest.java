@@ -117,6 +117,42 @@ public class CookieManagerTest extends WebServerTestCase {
         assertEquals(cookie2, mgr.getCookies().iterator().next());
     }
 
+    /**
+     * The cookies for a URL should be the ones of the host and its parent domains, in insertion order.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void getCookiesForUrl() throws Exception {
+        final CookieManager mgr = new CookieManager();
+        final Cookie parent = new Cookie(".example.com", "parent", "1", "/", null, false);
+        final Cookie other = new Cookie("other.com", "other", "2", "/", null, false);
+        final Cookie host = new Cookie("www.example.com", "host", "3", "/", null, false);
+        final Cookie sibling = new Cookie("foo.example.com", "sibling", "4", "/", null, false);
+        final Cookie secure = new Cookie("www.example.com", "secure", "5", "/", null, true);
+        final Cookie path = new Cookie("www.example.com", "path", "6", "/private", null, false);
+        for (final Cookie cookie : new Cookie[] {parent, other, host, sibling, secure, path}) {
+            mgr.addCookie(cookie);
+        }
+
+        final List<Cookie> cookies = new ArrayList<Cookie>(mgr.getCookies(new URL("http://www.example.com/test")));
+        assertEquals(2, cookies.size());
+        assertEquals(parent, cookies.get(0));
+        assertEquals(host, cookies.get(1));
+
+        // re-adding a cookie moves it to the end
+        mgr.addCookie(parent);
+        final List<Cookie> secureCookies =
+            new ArrayList<Cookie>(mgr.getCookies(new URL("https://www.example.com/private/")));
+        assertEquals(4, secureCookies.size());
+        assertEquals(path, secureCookies.get(0)); // most specific path first
+        assertEquals(host, secureCookies.get(1));
+        assertEquals(parent, secureCookies.get(3));
+
+        mgr.removeCookie(host);
+        assertEquals(1, mgr.getCookies(new URL("http://www.example.com/test")).size());
+        assertEquals(5, mgr.getCookies().size());
+    }
+
     /**
      * @throws Exception if the test fails
      */
@@ -365,4 +401,50 @@ public class CookieManagerTest extends WebServerTestCase {
         final String[] expectedAlerts = {"my_key="};
         assertEquals(expectedAlerts, collectedAlerts);
     }
+
+    /**
+     * The cookies set by an intermediate response, here an authentication challenge, must be kept.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void cookieOfAuthenticationChallenge() throws Exception {
+        final Map<String, Class< ? extends Servlet>> servlets = new HashMap<String, Class< ? extends Servlet>>();
+        servlets.put("/test", ChallengeCookieServlet.class);
+        startWebServer("./", null, servlets);
+
+        final WebClient client = new WebClient();
+        ((DefaultCredentialsProvider) client.getCredentialsProvider()).addCredentials("jetty", "jetty");
+        final List<String> collectedAlerts = new ArrayList<String>();
+        client.setAlertHandler(new CollectingAlertHandler(collectedAlerts));
+        client.getPage("http://localhost:" + PORT + "/test");
+        final String[] expectedAlerts = {"challenge=1"};
+        assertEquals(expectedAlerts, collectedAlerts);
+        assertEquals("1", client.getCookieManager().getCookie("challenge").getValue());
+    }
+
+    /**
+     * Servlet for {@link #cookieOfAuthenticationChallenge()}.
+     */
+    public static class ChallengeCookieServlet extends HttpServlet {
+
+        private static final long serialVersionUID = -2461934582935307812L;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+            if (request.getHeader("Authorization") == null) {
+                response.addCookie(new javax.servlet.http.Cookie("challenge", "1"));
+                response.setHeader("WWW-Authenticate", "Basic realm=\"test\"");
+                response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+                return;
+            }
+            response.setContentType("text/html");
+            final Writer writer = response.getWriter();
+            writer.write("<html><head><script>function test() {alert(document.cookie)}</script>"
+                + "<body onload='test()'></body></html>");
+            writer.close();
+        }
+    }
 }
@@ -254,6 +254,67 @@ public class HttpWebConnectionTest extends WebServerTestCase {
         Assert.assertTrue("createHttpClient has not been called", tabCalled[0]);
     }
 
+    /**
+     * Several web clients should be able to use the same connection pool and reuse its connections.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void sharedConnectionPool() throws Exception {
+        startWebServer("./");
+
+        final ConnectionPool pool = new ConnectionPool();
+        pool.setMaxConnectionsPerHost(5);
+        pool.setIdleTimeout(60 * 1000);
+        try {
+            for (int i = 0; i < 2; i++) {
+                final WebClient webClient = new WebClient();
+                final HttpWebConnection connection = (HttpWebConnection) webClient.getWebConnection();
+                connection.setConnectionPool(pool);
+                webClient.getPage("http://localhost:" + PORT + "/LICENSE.txt");
+                Assert.assertSame(pool, connection.getConnectionPool());
+            }
+            Assert.assertEquals(1, pool.getConnectionsInPool());
+            Assert.assertEquals(5, pool.getMaxConnectionsPerHost());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * The timings of the responses should be reported to the listeners.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void responseTimings() throws Exception {
+        startWebServer("./");
+
+        final WebClient webClient = new WebClient();
+        final List<WebResponseTimings> collected = new ArrayList<WebResponseTimings>();
+        webClient.addResponseTimingListener(new ResponseTimingListener() {
+            public void responseLoaded(final WebResponse response, final WebResponseTimings timings) {
+                collected.add(timings);
+            }
+        });
+        final String url = "http://localhost:" + PORT + "/LICENSE.txt";
+        final Page page = webClient.getPage(url);
+        webClient.getPage(url);
+
+        Assert.assertEquals(2, collected.size());
+        final WebResponseTimings first = collected.get(0);
+        Assert.assertFalse(first.isConnectionReused());
+        Assert.assertTrue(first.getConnect() >= 0);
+        Assert.assertTrue(first.getFirstByte() >= first.getConnect());
+        Assert.assertTrue(first.getBodyComplete() >= first.getFirstByte());
+        Assert.assertEquals(page.getWebResponse().getContentAsBytes().length, first.getWireBytes());
+        Assert.assertEquals(first.getWireBytes(), first.getDecodedBytes());
+        Assert.assertFalse(first.isCacheHit());
+
+        final WebResponseTimings second = collected.get(1);
+        Assert.assertTrue(second.isConnectionReused() || second.isCacheHit());
+        Assert.assertSame(first, ((WebResponseImpl) page.getWebResponse()).getTimings());
+    }
+
     /**
      * Test that the right file part is built for a file that doesn't exist.
      * @throws Exception if the test fails
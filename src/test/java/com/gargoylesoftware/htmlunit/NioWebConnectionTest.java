@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit;
+
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Servlet;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import com.gargoylesoftware.htmlunit.util.AsynchronousWebConnection;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+
+/**
+ * Tests for {@link NioWebConnection}.
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+public class NioWebConnectionTest extends WebServerTestCase {
+
+    private NioWebConnection connection_;
+
+    /**
+     * Shuts the connection down.
+     */
+    @After
+    public void shutdownConnection() {
+        if (connection_ != null) {
+            connection_.shutdown();
+        }
+    }
+
+    private NioWebConnection startServer(final WebClient client) throws Exception {
+        final Map<String, Class< ? extends Servlet>> servlets = new HashMap<String, Class< ? extends Servlet>>();
+        servlets.put("/nio/*", NioServlet.class);
+        startWebServer("./", null, servlets);
+        connection_ = new NioWebConnection(client);
+        return connection_;
+    }
+
+    private static WebRequestSettings settings(final String path) throws Exception {
+        return new WebRequestSettings(new URL("http://localhost:" + PORT + "/nio/" + path));
+    }
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void connectionReused() throws Exception {
+        final NioWebConnection connection = startServer(new WebClient());
+
+        final WebResponseImpl first = (WebResponseImpl) connection.getResponse(settings("hello"));
+        assertEquals(200, first.getStatusCode());
+        assertEquals("hello", first.getContentAsString());
+        assertFalse(first.getTimings().isConnectionReused());
+
+        final WebResponseImpl second = (WebResponseImpl) connection.getResponse(settings("hello"));
+        assertEquals("hello", second.getContentAsString());
+        assertTrue(second.getTimings().isConnectionReused());
+        assertEquals(1, connection.getOpenConnections());
+    }
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void gzipChunked() throws Exception {
+        final NioWebConnection connection = startServer(new WebClient());
+
+        final WebResponse response = connection.getResponse(settings("gzip"));
+        assertEquals(StringUtils.repeat("compressed ", 1000), response.getContentAsString());
+    }
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void cookies() throws Exception {
+        final WebClient client = new WebClient();
+        final NioWebConnection connection = startServer(client);
+
+        connection.getResponse(settings("setCookie"));
+        assertEquals("value", client.getCookieManager().getCookie("nio").getValue());
+
+        connection.getResponse(settings("hello"));
+        assertEquals("nio=value", NioServlet.LastCookieHeader_);
+    }
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void basicAuthentication() throws Exception {
+        final WebClient client = new WebClient();
+        final DefaultCredentialsProvider provider = new DefaultCredentialsProvider();
+        provider.addCredentials("jetty", "jetty");
+        client.setCredentialsProvider(provider);
+        final NioWebConnection connection = startServer(client);
+
+        final WebResponse response = connection.getResponse(settings("protected"));
+        assertEquals(200, response.getStatusCode());
+        assertEquals("authenticated", response.getContentAsString());
+    }
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void postParameters() throws Exception {
+        final NioWebConnection connection = startServer(new WebClient());
+
+        final WebRequestSettings settings = settings("echo");
+        settings.setHttpMethod(HttpMethod.POST);
+        final List<NameValuePair> parameters = new ArrayList<NameValuePair>();
+        parameters.add(new NameValuePair("name", "a b\u00e9"));
+        settings.setRequestParameters(parameters);
+        settings.setCharset("UTF-8");
+
+        final WebResponse response = connection.getResponse(settings);
+        assertEquals("POST a b\u00e9", response.getContentAsString("UTF-8"));
+    }
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void timeout() throws Exception {
+        final WebClient client = new WebClient();
+        client.setTimeout(200);
+        final NioWebConnection connection = startServer(client);
+
+        try {
+            connection.getResponse(settings("slow?delay=2000"));
+            fail("SocketTimeoutException expected");
+        }
+        catch (final SocketTimeoutException e) {
+            // expected
+        }
+        assertEquals(0, connection.getOpenConnections());
+    }
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void largeBody() throws Exception {
+        final NioWebConnection connection = startServer(new WebClient());
+        connection.setMaxInMemory(100);
+
+        final WebResponseImpl response = (WebResponseImpl) connection.getResponse(settings("large"));
+        assertEquals(StringUtils.repeat("0123456789", 1000), response.getContentAsString());
+        response.cleanUp();
+    }
+
+    /**
+     * The requests wait for the server at the same time, without a thread per request.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void manyRequestsInFlight() throws Exception {
+        final NioWebConnection connection = startServer(new WebClient());
+        final int requests = 20;
+        connection.setMaxConnectionsPerHost(requests);
+
+        final CountDownLatch latch = new CountDownLatch(requests);
+        final AtomicInteger completed = new AtomicInteger();
+        final AsynchronousWebConnection.Callback callback = new AsynchronousWebConnection.Callback() {
+            public void completed(final WebRequestSettings settings, final WebResponse webResponse) {
+                completed.incrementAndGet();
+                latch.countDown();
+            }
+            public void failed(final WebRequestSettings settings, final Throwable cause) {
+                latch.countDown();
+            }
+        };
+
+        final long start = System.currentTimeMillis();
+        final List<Future<WebResponse>> futures = new ArrayList<Future<WebResponse>>();
+        for (int i = 0; i < requests; i++) {
+            futures.add(connection.getResponseAsync(settings("slow?delay=500"), callback));
+        }
+        assertTrue(latch.await(20, TimeUnit.SECONDS));
+        assertEquals(requests, completed.get());
+        for (final Future<WebResponse> future : futures) {
+            assertEquals("slow", future.get().getContentAsString());
+        }
+        // the requests have been performed in parallel
+        assertTrue(System.currentTimeMillis() - start < requests * 500);
+    }
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void shutdown() throws Exception {
+        final NioWebConnection connection = startServer(new WebClient());
+        connection.getResponse(settings("hello"));
+        connection.shutdown();
+
+        try {
+            connection.getResponse(settings("hello"));
+            fail("IOException expected");
+        }
+        catch (final IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Servlet for the tests, whose behavior depends on the requested path.
+     */
+    public static class NioServlet extends HttpServlet {
+
+        private static final long serialVersionUID = -4261848297435601823L;
+
+        private static volatile String LastCookieHeader_;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+            final String path = StringUtils.substringAfterLast(request.getRequestURI(), "/");
+            if ("gzip".equals(path)) {
+                response.setHeader("Content-Encoding", "gzip");
+                final OutputStream out = new GZIPOutputStream(response.getOutputStream());
+                out.write(StringUtils.repeat("compressed ", 1000).getBytes("ISO-8859-1"));
+                out.close();
+                return;
+            }
+            if ("setCookie".equals(path)) {
+                response.addCookie(new Cookie("nio", "value"));
+            }
+            else if ("protected".equals(path)) {
+                final String expected =
+                    "Basic " + new String(Base64.encodeBase64("jetty:jetty".getBytes("ISO-8859-1")));
+                if (!expected.equals(request.getHeader("Authorization"))) {
+                    response.setHeader("WWW-Authenticate", "Basic realm=\"nio\"");
+                    response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+                    return;
+                }
+                write(response, "authenticated");
+                return;
+            }
+            else if ("slow".equals(path)) {
+                try {
+                    Thread.sleep(Long.parseLong(request.getParameter("delay")));
+                }
+                catch (final InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+                write(response, "slow");
+                return;
+            }
+            else if ("large".equals(path)) {
+                write(response, StringUtils.repeat("0123456789", 1000));
+                return;
+            }
+            LastCookieHeader_ = request.getHeader("Cookie");
+            write(response, "hello");
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void doPost(final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException {
+            request.setCharacterEncoding("UTF-8");
+            response.setCharacterEncoding("UTF-8");
+            write(response, "POST " + request.getParameter("name"));
+        }
+
+        private static void write(final HttpServletResponse response, final String content) throws IOException {
+            response.setContentType("text/plain");
+            final Writer writer = response.getWriter();
+            writer.write(content);
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit;
+
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+import com.steadystate.css.dom.CSSStyleSheetImpl;
+
+/**
+ * Tests for {@link PersistentCache}.
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+public class PersistentCacheTest extends WebTestCase {
+
+    private File directory_;
+
+    /**
+     * Creates the cache directory.
+     * @throws Exception if the directory can't be created
+     */
+    @Before
+    public void createDirectory() throws Exception {
+        directory_ = File.createTempFile("htmlunit-cache", "");
+        directory_.delete();
+    }
+
+    /**
+     * Deletes the cache directory.
+     * @throws Exception if the directory can't be deleted
+     */
+    @After
+    public void deleteDirectory() throws Exception {
+        FileUtils.deleteDirectory(directory_);
+    }
+
+    /**
+     * Responses cached by a cache should be available to a new cache using the same directory.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void responseReusedByNewCache() throws Exception {
+        final WebRequestSettings request = new WebRequestSettings(new URL(URL_FIRST, "foo.js"));
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        headers.add(new NameValuePair("Last-Modified", "Sun, 15 Jul 2007 20:46:27 GMT"));
+        headers.add(new NameValuePair("Content-Type", JAVASCRIPT_MIME_TYPE));
+        final WebResponseData data = new WebResponseData("alert(1);".getBytes("UTF-8"), 200, "OK", headers);
+        final WebResponse response = new WebResponseImpl(data, request, 0);
+
+        new PersistentCache(directory_).cacheIfPossible(request, response, response);
+
+        final PersistentCache cache = new PersistentCache(directory_);
+        assertEquals(0, cache.getSize());
+        final WebResponse cached = cache.getCachedResponse(request);
+        assertNotNull(cached);
+        assertEquals(1, cache.getSize());
+        assertEquals("alert(1);", cached.getContentAsString());
+        assertEquals(JAVASCRIPT_MIME_TYPE, cached.getContentType());
+        assertEquals("Sun, 15 Jul 2007 20:46:27 GMT", cached.getResponseHeaderValue("Last-Modified"));
+
+        cache.clear();
+        assertNull(new PersistentCache(directory_).getCachedResponse(request));
+    }
+
+    /**
+     * Clearing the cache must not delete the body of a response still in use.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void clearKeepsBodyInUse() throws Exception {
+        final WebRequestSettings request = new WebRequestSettings(new URL(URL_FIRST, "foo.js"));
+        final WebResponse response = createResponse(request, "alert(1);");
+        new PersistentCache(directory_).cacheIfPossible(request, response, response);
+
+        final PersistentCache cache = new PersistentCache(directory_);
+        final WebResponse cached = cache.getCachedResponse(request);
+        cache.clear();
+        assertEquals("alert(1);", cached.getContentAsString());
+        assertNull(new PersistentCache(directory_).getCachedResponse(request));
+    }
+
+    /**
+     * Entries should be deleted when the directory exceeds its maximum size.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void maxDiskSize() throws Exception {
+        final PersistentCache cache = new PersistentCache(directory_);
+        cache.setMaxDiskSize(3000);
+        final String content = StringUtils.repeat("x", 500);
+        for (int i = 0; i < 10; i++) {
+            final WebRequestSettings request = new WebRequestSettings(new URL(URL_FIRST, i + ".js"));
+            final WebResponse response = createResponse(request, content);
+            cache.cacheIfPossible(request, response, response);
+        }
+        assertTrue(FileUtils.sizeOfDirectory(directory_) <= 3000);
+
+        final PersistentCache newCache = new PersistentCache(directory_);
+        int found = 0;
+        for (int i = 0; i < 10; i++) {
+            if (newCache.getCachedResponse(new WebRequestSettings(new URL(URL_FIRST, i + ".js"))) != null) {
+                found++;
+            }
+        }
+        assertTrue(found > 0 && found < 10);
+    }
+
+    /**
+     * CSS snippets are only cached in memory.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void styleSheetSnippetNotStored() throws Exception {
+        final PersistentCache cache = new PersistentCache(directory_);
+        final String css = "div { color: red }";
+        cache.cache(css, new CSSStyleSheetImpl());
+        assertNotNull(cache.getCachedStyleSheet(css));
+        assertEquals(0, directory_.list().length);
+        assertNull(new PersistentCache(directory_).getCachedStyleSheet(css));
+    }
+
+    private static WebResponse createResponse(final WebRequestSettings request, final String content)
+        throws Exception {
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        headers.add(new NameValuePair("Last-Modified", "Sun, 15 Jul 2007 20:46:27 GMT"));
+        headers.add(new NameValuePair("Content-Type", JAVASCRIPT_MIME_TYPE));
+        final WebResponseData data = new WebResponseData(content.getBytes("UTF-8"), 200, "OK", headers);
+        return new WebResponseImpl(data, request, 0);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit;
+
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.junit.Test;
+
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+
+/**
+ * Tests for {@link RequestCoalescer}.
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+public class RequestCoalescerTest extends WebTestCase {
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void concurrentIdenticalRequests() throws Exception {
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        headers.add(new NameValuePair("Last-Modified", "Sun, 15 Jul 2007 20:46:27 GMT"));
+        final WebResponseData data =
+            new WebResponseData("alert(1)".getBytes("ISO-8859-1"), HttpStatus.SC_OK, "OK", headers);
+        final WebResponse response = new WebResponseImpl(data, URL_FIRST, HttpMethod.GET, 0);
+
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final WebConnection connection = new WebConnection() {
+            public WebResponse getResponse(final WebRequestSettings settings) throws IOException {
+                if (calls.incrementAndGet() > 1) {
+                    // not joined: don't keep the leader waiting, the call count reports the failure
+                    release.countDown();
+                }
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                catch (final InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+                return response;
+            }
+        };
+
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final Cache cache = new Cache();
+        final WebResponse[] responses = new WebResponse[2];
+        final Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            final WebRequestSettings settings = new WebRequestSettings(URL_FIRST);
+            settings.setAdditionalHeader("Referer", "http://localhost/frame" + i + ".html");
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        responses[index] = coalescer.getResponse(settings, connection, cache);
+                    }
+                    catch (final IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+
+        threads[0].start();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        threads[1].start();
+        // the leader is released once the second request waits for its response
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (threads[1].getState() != Thread.State.WAITING && release.getCount() != 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        release.countDown();
+        for (final Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        assertEquals(1, calls.get());
+        assertSame(response, responses[0]);
+        assertEquals("alert(1)", responses[1].getContentAsString());
+
+        // once the first request is done, a new one is performed
+        coalescer.getResponse(new WebRequestSettings(URL_FIRST), connection, cache);
+        assertEquals(2, calls.get());
+    }
+}
@@ -17,11 +17,15 @@ package com.gargoylesoftware.htmlunit;
 import static org.junit.Assert.assertNotNull;
 
 import java.io.IOException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.servlet.Servlet;
 import javax.servlet.http.HttpServlet;
@@ -35,6 +39,7 @@ import org.junit.runner.RunWith;
 import com.gargoylesoftware.htmlunit.BrowserRunner.Alerts;
 import com.gargoylesoftware.htmlunit.BrowserRunner.NotYetImplemented;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
 
 /**
  * Tests for {@link WebClient} that run with BrowserRunner.
@@ -64,6 +69,188 @@ public class WebClient2Test extends WebServerTestCase {
         assertEquals(getExpectedAlerts(), collectedAlerts);
     }
 
+    /**
+     * External scripts should be downloaded in advance by the prefetch threads and still be executed in order.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void prefetchScripts() throws Exception {
+        final String html = "<html><head>\n"
+            + "<script src='a.js'></script>\n"
+            + "<script src='b.js'></script>\n"
+            + "<script src='c.js'></script>\n"
+            + "</head><body></body></html>";
+
+        final MockWebConnection connection = new MockWebConnection();
+        connection.setResponse(URL_FIRST, html);
+        connection.setResponse(new URL(URL_FIRST, "a.js"), "alert('a')", JAVASCRIPT_MIME_TYPE);
+        connection.setResponse(new URL(URL_FIRST, "b.js"), "alert('b')", JAVASCRIPT_MIME_TYPE);
+        connection.setResponse(new URL(URL_FIRST, "c.js"), "alert('c')", JAVASCRIPT_MIME_TYPE);
+
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        final List<Map<String, String>> headers = Collections.synchronizedList(new ArrayList<Map<String, String>>());
+        final WebClient client = getWebClient();
+        client.setWebConnection(new WebConnectionWrapper(connection) {
+            @Override
+            public synchronized WebResponse getResponse(final WebRequestSettings settings) throws IOException {
+                if (settings.getUrl().getPath().endsWith(".js")) {
+                    threads.add(Thread.currentThread().getName());
+                    headers.add(settings.getAdditionalHeaders());
+                }
+                return super.getResponse(settings);
+            }
+        });
+        client.setPrefetchThreads(2);
+        try {
+            final List<String> collectedAlerts = new ArrayList<String>();
+            client.setAlertHandler(new CollectingAlertHandler(collectedAlerts));
+
+            final WebRequestSettings request = new WebRequestSettings(URL_FIRST);
+            request.setAdditionalHeader("Referer", URL_SECOND.toExternalForm());
+            request.setAdditionalHeader("X-Custom", "hello");
+            client.getPage(request);
+            assertEquals(new String[] {"a", "b", "c"}, collectedAlerts);
+
+            // the prefetch requests have the same headers as the requests of the page, so they are all used
+            assertEquals(3, threads.size());
+            for (final String thread : threads) {
+                assertTrue(thread, thread.startsWith("HtmlUnit prefetch"));
+            }
+            for (final Map<String, String> requestHeaders : headers) {
+                assertEquals(URL_FIRST.toExternalForm(), requestHeaders.get("Referer"));
+                assertEquals("hello", requestHeaders.get("X-Custom"));
+            }
+        }
+        finally {
+            client.setPrefetchThreads(0);
+        }
+    }
+
+    /**
+     * Stylesheets and frames should be downloaded once, by the prefetch threads, although their requests
+     * don't carry the headers of the page's request.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void prefetchStylesheetsAndFrames() throws Exception {
+        final String html = "<html><head>\n"
+            + "<link rel='stylesheet' type='text/css' href='style.css'>\n"
+            + "</head><body>\n"
+            + "<iframe src='frame.html'></iframe>\n"
+            + "<script>alert(document.styleSheets[0] ? 'sheet' : 'none');</script>\n"
+            + "</body></html>";
+
+        final MockWebConnection connection = new MockWebConnection();
+        connection.setResponse(URL_FIRST, html);
+        connection.setResponse(new URL(URL_FIRST, "style.css"), "body { color: red }", "text/css");
+        connection.setResponse(new URL(URL_FIRST, "frame.html"), "<html><body>frame</body></html>");
+
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        final WebClient client = getWebClient();
+        client.addRequestHeader("X-Custom", "hello");
+        client.setWebConnection(new WebConnectionWrapper(connection) {
+            @Override
+            public WebResponse getResponse(final WebRequestSettings settings) throws IOException {
+                if (!URL_FIRST.equals(settings.getUrl())) {
+                    requests.add(settings.getUrl().getPath() + " " + Thread.currentThread().getName());
+                }
+                return super.getResponse(settings);
+            }
+        });
+        client.setPrefetchThreads(2);
+        try {
+            final List<String> collectedAlerts = new ArrayList<String>();
+            client.setAlertHandler(new CollectingAlertHandler(collectedAlerts));
+            client.getPage(URL_FIRST);
+            assertEquals(new String[] {"sheet"}, collectedAlerts);
+
+            assertEquals(requests.toString(), 2, requests.size());
+            for (final String request : requests) {
+                assertTrue(request, request.contains(" HtmlUnit prefetch"));
+            }
+        }
+        finally {
+            client.setPrefetchThreads(0);
+        }
+    }
+
+    /**
+     * The prefetch threads are stopped when the windows are closed, and started again when needed.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void prefetchThreadsStoppedByCloseAllWindows() throws Exception {
+        final String html = "<html><head><script src='a.js'></script></head><body></body></html>";
+        final MockWebConnection connection = new MockWebConnection();
+        connection.setResponse(URL_FIRST, html);
+        connection.setResponse(new URL(URL_FIRST, "a.js"), "alert('a')", JAVASCRIPT_MIME_TYPE);
+
+        final WebClient client = getWebClient();
+        client.setWebConnection(connection);
+        client.setPrefetchThreads(1);
+        try {
+            final List<String> collectedAlerts = new ArrayList<String>();
+            client.setAlertHandler(new CollectingAlertHandler(collectedAlerts));
+            client.getPage(URL_FIRST);
+            assertTrue(getPrefetchThreadCount() > 0);
+
+            client.closeAllWindows();
+            final long end = System.currentTimeMillis() + 5000;
+            while (getPrefetchThreadCount() > 0 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, getPrefetchThreadCount());
+
+            client.getPage(URL_FIRST);
+            assertEquals(new String[] {"a", "a"}, collectedAlerts);
+        }
+        finally {
+            client.setPrefetchThreads(0);
+        }
+    }
+
+    private static int getPrefetchThreadCount() {
+        int count = 0;
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("HtmlUnit prefetch")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Pages of several web clients should be loadable in the background using a shared executor.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void getPageAsync() throws Exception {
+        final MockWebConnection connection = new MockWebConnection();
+        connection.setResponse(URL_FIRST, "<html><head><title>first</title></head><body></body></html>");
+        connection.setResponse(URL_SECOND, "<html><head><title>second</title></head><body></body></html>");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(1);
+        final List<WebClient> clients = new ArrayList<WebClient>();
+        try {
+            final List<Future<HtmlPage>> futures = new ArrayList<Future<HtmlPage>>();
+            for (final URL url : new URL[] {URL_FIRST, URL_SECOND}) {
+                final WebClient client = new WebClient(getBrowserVersion());
+                clients.add(client);
+                client.setWebConnection(connection);
+                client.setAsyncExecutor(executor);
+                futures.add(client.<HtmlPage>getPageAsync(new WebRequestSettings(url)));
+            }
+            assertEquals("first", futures.get(0).get().getTitleText());
+            assertEquals("second", futures.get(1).get().getTitleText());
+        }
+        finally {
+            for (final WebClient client : clients) {
+                client.closeAllWindows();
+            }
+            executor.shutdown();
+        }
+    }
+
     /**
      * Test that the path and query string are encoded to be valid.
      * @throws Exception if something goes wrong
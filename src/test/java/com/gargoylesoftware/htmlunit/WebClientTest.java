@@ -470,6 +470,36 @@ public class WebClientTest extends WebServerTestCase {
         doTestRedirection(statusCode, initialRequestMethod, expectedRedirectedRequestMethod);
     }
 
+    /**
+     * Verifies that the target of a permanent redirect is remembered unless its headers forbid it.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void permanentRedirectCached() throws Exception {
+        final WebClient client = new WebClient();
+        final MockWebConnection conn = new MockWebConnection();
+        client.setWebConnection(conn);
+
+        final List<NameValuePair> headers = asList(new NameValuePair("Location", URL_SECOND.toString()));
+        conn.setResponse(URL_FIRST, "", 301, "Moved Permanently", "text/html", headers);
+        conn.setResponse(URL_SECOND, "<html><body>abc</body></html>");
+
+        client.getPage(URL_FIRST);
+        assertEquals(2, conn.getRequestCount());
+        final HtmlPage page = client.getPage(URL_FIRST);
+        assertEquals(3, conn.getRequestCount());
+        assertEquals(URL_SECOND, page.getWebResponse().getRequestSettings().getUrl());
+        assertEquals(URL_SECOND, conn.getLastWebRequestSettings().getUrl());
+
+        client.getCache().clear();
+        final List<NameValuePair> noCacheHeaders = asList(new NameValuePair("Location", URL_SECOND.toString()),
+            new NameValuePair("Cache-Control", "no-cache"));
+        conn.setResponse(URL_FIRST, "", 301, "Moved Permanently", "text/html", noCacheHeaders);
+        client.getPage(URL_FIRST);
+        client.getPage(URL_FIRST);
+        assertEquals(7, conn.getRequestCount());
+    }
+
     /**
      * Basic logic for all the redirection tests.
      *
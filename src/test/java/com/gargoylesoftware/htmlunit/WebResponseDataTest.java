@@ -14,14 +14,26 @@
  */
 package com.gargoylesoftware.htmlunit;
 
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
 
 import javax.servlet.Servlet;
 import javax.servlet.http.HttpServlet;
@@ -77,6 +89,173 @@ public class WebResponseDataTest extends WebServerTestCase {
         assertNull(data.getBody());
     }
 
+    /**
+     * Verifies that a body exceeding the in-memory limit is stored in a file and can be read several times.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void contentOnFile() throws Exception {
+        final byte[] content = StringUtils.repeat("Hello World!", 10).getBytes("UTF-8");
+        final DownloadedContent downloaded = HttpWebConnection.downloadContent(new ByteArrayInputStream(content), 50);
+        assertTrue(downloaded instanceof DownloadedContent.OnFile);
+        assertEquals(content.length, downloaded.length());
+
+        final WebResponseData data = new WebResponseData(downloaded, HttpStatus.SC_OK, "OK",
+            new ArrayList<NameValuePair>());
+        assertTrue(Arrays.equals(content, data.getBody()));
+        assertSame(data.getBody(), data.getBody());
+        assertTrue(Arrays.equals(content, IOUtils.toByteArray(data.getInputStream())));
+
+        data.cleanUp();
+        try {
+            data.getInputStream();
+            fail("The temporary file should have been deleted");
+        }
+        catch (final FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Verifies that subclasses overriding {@link WebResponseData#getBody(InputStream, List)} still get
+     * their body through this method when the content has been downloaded.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void getBodyHookWithDownloadedContent() throws Exception {
+        final DownloadedContent downloaded = new DownloadedContent.InMemory("hello".getBytes("UTF-8"));
+        final WebResponseData data = new WebResponseData(downloaded, HttpStatus.SC_OK, "OK",
+                new ArrayList<NameValuePair>()) {
+            @Override
+            protected byte[] getBody(final InputStream stream, final List<NameValuePair> headers)
+                throws IOException {
+                return IOUtils.toString(stream, "UTF-8").toUpperCase().getBytes("UTF-8");
+            }
+        };
+        assertEquals("HELLO", new String(data.getBody(), "UTF-8"));
+        assertEquals("HELLO", IOUtils.toString(data.getInputStream(), "UTF-8"));
+    }
+
+    /**
+     * Verifies that gzipped downloaded content is decompressed lazily.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void gzippedDownloadedContent() throws Exception {
+        final InputStream stream = getClass().getClassLoader().getResourceAsStream(GZIPPED_FILE);
+        final DownloadedContent downloaded = HttpWebConnection.downloadContent(stream, 500 * 1024);
+        assertTrue(downloaded instanceof DownloadedContent.InMemory);
+
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        headers.add(new NameValuePair("Content-Encoding", "gzip"));
+        final WebResponseData data = new WebResponseData(downloaded, HttpStatus.SC_OK, "OK", headers);
+        final String body = IOUtils.toString(data.getInputStream(), "UTF-8");
+        assertTrue(StringUtils.contains(body, "Test"));
+        assertEquals(body, new String(data.getBody(), "UTF-8"));
+    }
+
+    /**
+     * Deflate content compressed with a preset dictionary can't be decoded and mustn't look empty.
+     * @throws Exception if the test fails
+     */
+    @Test(expected = ZipException.class)
+    public void deflateWithPresetDictionary() throws Exception {
+        final Deflater deflater = new Deflater();
+        deflater.setDictionary("Hello World".getBytes("UTF-8"));
+        final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        final OutputStream deflateStream = new DeflaterOutputStream(deflated, deflater);
+        deflateStream.write("Hello World! Hello World!".getBytes("UTF-8"));
+        deflateStream.close();
+
+        final InputStream in = InflatingInputStream.decode(new ByteArrayInputStream(deflated.toByteArray()),
+            "deflate");
+        try {
+            IOUtils.toByteArray(in);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The layers already built are closed when a later layer of a chain can't be built.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void contentEncodingChainInvalidHeader() throws Exception {
+        final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        final OutputStream deflateStream = new DeflaterOutputStream(deflated);
+        deflateStream.write("not gzipped".getBytes("UTF-8"));
+        deflateStream.close();
+
+        final boolean[] closed = {false};
+        final InputStream raw = new ByteArrayInputStream(deflated.toByteArray()) {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+                super.close();
+            }
+        };
+        try {
+            InflatingInputStream.decode(raw, "gzip, deflate");
+            fail("ZipException expected");
+        }
+        catch (final ZipException e) {
+            // expected
+        }
+        assertTrue(closed[0]);
+    }
+
+    /**
+     * Verifies that chained content encodings are decoded in the reverse order of their application.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void contentEncodingChain() throws Exception {
+        final byte[] content = StringUtils.repeat("Hello Compressed World! ", 5000).getBytes("UTF-8");
+        final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        final OutputStream gzipStream = new GZIPOutputStream(gzipped);
+        gzipStream.write(content);
+        gzipStream.close();
+        final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        final OutputStream deflateStream = new DeflaterOutputStream(deflated);
+        deflateStream.write(gzipped.toByteArray());
+        deflateStream.close();
+
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        headers.add(new NameValuePair("Content-Encoding", "gzip, deflate"));
+        for (int i = 0; i < 3; i++) {
+            final DownloadedContent downloaded = new DownloadedContent.InMemory(deflated.toByteArray());
+            final WebResponseData data = new WebResponseData(downloaded, HttpStatus.SC_OK, "OK", headers);
+            assertTrue(Arrays.equals(content, data.getBody()));
+            assertTrue(Arrays.equals(content, IOUtils.toByteArray(data.getInputStream())));
+        }
+    }
+
+    /**
+     * Verifies that compressed content is decoded to a string while it is decompressed.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void gzippedContentAsString() throws Exception {
+        final String content = StringUtils.repeat("caf\u00e9 cr\u00e8me ", 3000);
+        final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        final OutputStream gzipStream = new GZIPOutputStream(gzipped);
+        gzipStream.write(content.getBytes("UTF-8"));
+        gzipStream.close();
+
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        headers.add(new NameValuePair("Content-Encoding", "gzip"));
+        headers.add(new NameValuePair("Content-Type", "text/plain; charset=UTF-8"));
+        final DownloadedContent downloaded = new DownloadedContent.InMemory(gzipped.toByteArray());
+        final WebResponseData data = new WebResponseData(downloaded, HttpStatus.SC_OK, "OK", headers);
+        assertEquals(content, data.getBodyAsString("UTF-8"));
+
+        final WebResponse response = new WebResponseImpl(data, URL_FIRST, HttpMethod.GET, 0);
+        assertEquals(content, response.getContentAsString());
+        assertEquals(new String(content.getBytes("UTF-8")), response.getContentAsString("no-such-charset"));
+    }
+
     /**
      * @throws Exception if the test fails
      */
@@ -14,7 +14,10 @@
  */
 package com.gargoylesoftware.htmlunit;
 
+import static org.junit.Assert.assertSame;
+
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -156,6 +159,36 @@ public class WebResponseImplTest extends WebServerTestCase {
         illegalCharset("text/html; charset=UnknownCharset", TextUtil.DEFAULT_CHARSET);
     }
 
+    /**
+     * Verifies that the charset is sniffed only once and that the content is decoded only once per charset.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void charsetAndContentMemoized() throws Exception {
+        final String html = "<html><head><meta http-equiv='Content-Type' content='text/html; charset=UTF-8'>"
+            + "</head><body>\u00e9</body></html>";
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        headers.add(new NameValuePair("Content-Type", "text/html"));
+        final WebResponseData data = new WebResponseData(html.getBytes("UTF-8"), 200, "OK", headers);
+        final int[] streamRequests = {0};
+        final WebResponse response = new WebResponseImpl(data, URL_FIRST, HttpMethod.GET, 0) {
+            @Override
+            public InputStream getContentAsStream() throws IOException {
+                streamRequests[0]++;
+                return super.getContentAsStream();
+            }
+        };
+
+        final String content = response.getContentAsString();
+        assertEquals(html, content);
+        assertEquals("UTF-8", response.getContentCharset());
+        assertEquals(1, streamRequests[0]);
+        assertSame(content, response.getContentAsString());
+        assertSame(content, response.getContentAsString("UTF-8"));
+        assertFalse(html.equals(response.getContentAsString("ISO-8859-1")));
+        assertEquals(1, streamRequests[0]);
+    }
+
     private void illegalCharset(final String cntTypeHeader, final String expectedCharset) throws Exception {
         final MockWebConnection conn = new MockWebConnection();
         final List<NameValuePair> headers = new ArrayList<NameValuePair>();
@@ -19,14 +19,17 @@ import static org.junit.Assert.fail;
 
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
+import net.sourceforge.htmlunit.corejs.javascript.Context;
 import net.sourceforge.htmlunit.corejs.javascript.ContextFactory;
 import net.sourceforge.htmlunit.corejs.javascript.Script;
+import net.sourceforge.htmlunit.corejs.javascript.debug.DebuggableScript;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -56,6 +59,8 @@ import com.gargoylesoftware.htmlunit.html.HtmlPage;
 import com.gargoylesoftware.htmlunit.html.HtmlScript;
 import com.gargoylesoftware.htmlunit.html.HtmlSubmitInput;
 import com.gargoylesoftware.htmlunit.html.HtmlTextInput;
+import com.gargoylesoftware.htmlunit.javascript.configuration.JavaScriptConfiguration;
+import com.gargoylesoftware.htmlunit.javascript.host.Window;
 import com.gargoylesoftware.htmlunit.util.NameValuePair;
 
 /**
@@ -100,6 +105,57 @@ public class JavaScriptEngineTest extends WebTestCase {
         assertEquals("foo", textInput.getValueAttribute());
     }
 
+    /**
+     * Verifies that the window of a frame defines only the host classes it needs, while each window
+     * still gets its own prototypes and functions.
+     * @throws Exception if the test fails
+     */
+    @Test
+    @Alerts({ "true", "function", "true" })
+    public void hostClassesDefinedWhenNeeded() throws Exception {
+        final String html
+            = "<html><head><title>foo</title><script>\n"
+            + "function test() {\n"
+            + "  var doc = frames[0].document;\n"
+            + "  alert(doc.getElementById != document.getElementById);\n"
+            + "  alert(typeof doc.getElementById);\n"
+            + "  alert(doc.getElementById('nothing') == null);\n"
+            + "}\n"
+            + "</script></head><body onload='test()'>\n"
+            + "<iframe src='about:blank'></iframe>\n"
+            + "</body></html>";
+
+        final HtmlPage page = loadPageWithAlerts(html);
+
+        final JavaScriptConfiguration jsConfig = JavaScriptConfiguration.getInstance(getBrowserVersion());
+        final int classes = HostClassTemplate.getTemplates(jsConfig).getAll().size();
+        final Window frameWindow = (Window) page.getFrames().get(0).getScriptObject();
+        final int defined = frameWindow.getHostClasses().getDefinedCount();
+        assertTrue(defined + " classes defined out of " + classes, defined * 3 < classes);
+    }
+
+    /**
+     * A host class defined after a script gave its name another value should not replace this value.
+     * @throws Exception if the test fails
+     */
+    @Test
+    @Alerts({ "DIV", "true" })
+    public void hostClassDefinedLaterKeepsScriptValue() throws Exception {
+        final String html
+            = "<html><head><title>foo</title><script>\n"
+            + "function HTMLDivElement() {}\n"
+            + "HTMLDivElement.mine = true;\n"
+            + "function test() {\n"
+            + "  var div = document.createElement('div');\n"
+            + "  alert(div.tagName);\n"
+            + "  alert(HTMLDivElement.mine);\n"
+            + "}\n"
+            + "</script></head><body onload='test()'>\n"
+            + "</body></html>";
+
+        loadPageWithAlerts(html);
+    }
+
     /**
      * Regression test for bug https://sf.net/tracker/?func=detail&atid=448266&aid=1609944&group_id=47038.
      * @throws Exception if the test fails
@@ -1098,6 +1154,96 @@ public class JavaScriptEngineTest extends WebTestCase {
         }
     }
 
+    /**
+     * Compiled scripts must be terminated by the timeout too.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void timeoutCompiled() throws Exception {
+        final WebClient client = getWebClient();
+        final HtmlUnitContextFactory contextFactory = client.getJavaScriptEngine().getContextFactory();
+        final long timeout = 2000;
+        final long oldTimeout = client.getJavaScriptTimeout();
+        final int oldOptimizationLevel = contextFactory.getOptimizationLevel();
+        client.setJavaScriptTimeout(timeout);
+        contextFactory.setOptimizationLevel(9);
+
+        try {
+            client.setThrowExceptionOnScriptError(false);
+
+            final String content = "<html><body><script>\n"
+                + "function sum(n) { var s = 0; for (var i = 1; i <= n; i++) { s += i; } return s; }\n"
+                + "alert(sum(100));\n"
+                + "while(1) {}\n"
+                + "</script></body></html>";
+            final MockWebConnection webConnection = new MockWebConnection();
+            webConnection.setDefaultResponse(content);
+            client.setWebConnection(webConnection);
+
+            final List<String> collectedAlerts = new ArrayList<String>();
+            client.setAlertHandler(new CollectingAlertHandler(collectedAlerts));
+
+            final Exception[] exceptions = {null};
+            final Thread runner = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        client.getPage(URL_FIRST);
+                    }
+                    catch (final Exception e) {
+                        exceptions[0] = e;
+                    }
+                }
+            };
+
+            runner.start();
+
+            runner.join(timeout * 2);
+            if (runner.isAlive()) {
+                runner.interrupt();
+                fail("Script was still running after timeout");
+            }
+            assertNull(exceptions[0]);
+            assertEquals(Arrays.asList("5050"), collectedAlerts);
+        }
+        finally {
+            client.setJavaScriptTimeout(oldTimeout);
+            contextFactory.setOptimizationLevel(oldOptimizationLevel);
+        }
+    }
+
+    /**
+     * A script too big to be compiled to a class file is interpreted instead.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void oversizedScriptCompiled() throws Exception {
+        final WebClient client = getWebClient();
+        final HtmlUnitContextFactory contextFactory = client.getJavaScriptEngine().getContextFactory();
+        final int oldOptimizationLevel = contextFactory.getOptimizationLevel();
+        contextFactory.setOptimizationLevel(9);
+
+        try {
+            // far more than 64K of bytecode in the method of the script
+            final StringBuilder content = new StringBuilder("<html><body><script>\nvar a = 0;\n");
+            for (int i = 0; i < 20000; i++) {
+                content.append("a = a + 1;\n");
+            }
+            content.append("alert(a);\n</script></body></html>");
+            final MockWebConnection webConnection = new MockWebConnection();
+            webConnection.setDefaultResponse(content.toString());
+            client.setWebConnection(webConnection);
+
+            final List<String> collectedAlerts = new ArrayList<String>();
+            client.setAlertHandler(new CollectingAlertHandler(collectedAlerts));
+            client.getPage(URL_FIRST);
+            assertEquals(Arrays.asList("20000"), collectedAlerts);
+        }
+        finally {
+            contextFactory.setOptimizationLevel(oldOptimizationLevel);
+        }
+    }
+
     private static final class CountingJavaScriptEngine extends JavaScriptEngine {
         private static final long serialVersionUID = 7010508171587446215L;
         private int scriptExecutionCount_ = 0;
@@ -1309,6 +1455,77 @@ public class JavaScriptEngineTest extends WebTestCase {
         assertEquals(1, countingJavaScriptEngine.getCompileCount());
     }
 
+    /**
+     * Test that inline scripts and event handlers are compiled once for all the page loads, and that the
+     * scripts compiled without debugging information aren't reused once a debugger is set.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void inlineScriptCached() throws Exception {
+        final String content
+            = "<html><head><title>foo</title>\n"
+            + "<script>alert(document.title)</script>\n"
+            + "</head><body>\n"
+            + "<button id='b1' onclick='alert(this.id)'>1</button>\n"
+            + "<button id='b2' onclick='alert(this.id)'>2</button>\n"
+            + "</body></html>";
+
+        final WebClient client = getWebClient();
+        final MockWebConnection connection = new MockWebConnection();
+        client.setWebConnection(connection);
+        connection.setResponse(URL_FIRST, content);
+
+        final List<String> collectedAlerts = new ArrayList<String>();
+        client.setAlertHandler(new CollectingAlertHandler(collectedAlerts));
+        final HtmlPage page1 = client.getPage(URL_FIRST);
+        page1.getHtmlElementById("b1").click();
+        assertEquals(new String[] {"foo", "b1"}, collectedAlerts);
+
+        // the debugger is notified of each compilation
+        final CompilationCounter compilations = new CompilationCounter();
+        final HtmlUnitContextFactory contextFactory = client.getJavaScriptEngine().getContextFactory();
+        contextFactory.setDebugger(compilations);
+        try {
+            for (int i = 0; i < 2; i++) {
+                collectedAlerts.clear();
+                final HtmlPage page = client.getPage(URL_FIRST);
+                page.getHtmlElementById("b1").click();
+                page.getHtmlElementById("b2").click();
+                assertEquals(new String[] {"foo", "b1", "b2"}, collectedAlerts);
+                assertEquals(1, compilations.getCount("alert(document.title)"));
+                assertEquals(1, compilations.getCount("alert(this.id)"));
+            }
+        }
+        finally {
+            contextFactory.setDebugger(null);
+        }
+    }
+
+    /**
+     * Debugger counting the compiled scripts.
+     */
+    private static final class CompilationCounter extends DebuggerAdapter {
+        private final List<String> sources_ = new ArrayList<String>();
+
+        @Override
+        public void handleCompilationDone(final Context cx, final DebuggableScript functionOrScript,
+                final String source) {
+            if (!functionOrScript.isFunction()) {
+                sources_.add(source);
+            }
+        }
+
+        int getCount(final String code) {
+            int count = 0;
+            for (final String source : sources_) {
+                if (source.contains(code)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
     /**
      * Test that code in script tags is executed on page load. Try different combinations
      * of the script tag except for the case where a remote JavaScript page is loaded. That
@@ -14,9 +14,13 @@
  */
 package com.gargoylesoftware.htmlunit.javascript;
 
+import static org.junit.Assert.fail;
+
+import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 
+import net.sourceforge.htmlunit.corejs.javascript.EvaluatorException;
 import net.sourceforge.htmlunit.corejs.javascript.Undefined;
 
 import org.junit.Test;
@@ -119,4 +123,81 @@ public class ProxyAutoConfigTest extends WebTestCase {
         assertEquals("com org net edu gov ", value);
     }
 
+    /**
+     * The compiled Proxy Auto-Config reuses the result for the same host, unless the URL is used.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void compiledResultIsCached() throws Exception {
+        final String hostOnly = "function FindProxyForURL(url, host) {\n"
+            + "  return 'PROXY ' + host + ':' + Math.random();\n"
+            + "}\n";
+        final ProxyAutoConfig byHost = ProxyAutoConfig.compile(hostOnly);
+        final String first = byHost.findProxyForUrl(new URL("http://first/a.html"));
+        assertEquals(first, byHost.findProxyForUrl(new URL("http://first/b.html")));
+        assertFalse(first.equals(byHost.findProxyForUrl(new URL("http://second/a.html"))));
+
+        final ProxyAutoConfig uncached = ProxyAutoConfig.compile(hostOnly, 0);
+        assertFalse(uncached.findProxyForUrl(URL_FIRST).equals(uncached.findProxyForUrl(URL_FIRST)));
+
+        final String urlUsed = "function FindProxyForURL(url, host) {\n"
+            + "  return url + ' ' + Math.random();\n"
+            + "}\n";
+        final ProxyAutoConfig byUrl = ProxyAutoConfig.compile(urlUsed);
+        final String page = byUrl.findProxyForUrl(new URL("http://first/a.html"));
+        assertEquals(page, byUrl.findProxyForUrl(new URL("http://first/a.html#top")));
+        assertFalse(page.equals(byUrl.findProxyForUrl(new URL("http://first/b.html"))));
+
+        final String dateDependent = "function FindProxyForURL(url, host) {\n"
+            + "  return (weekdayRange('MON', 'SUN') ? 'DIRECT' : 'PROXY p:80') + ';' + Math.random();\n"
+            + "}\n";
+        final ProxyAutoConfig byDate = ProxyAutoConfig.compile(dateDependent);
+        assertFalse(byDate.findProxyForUrl(URL_FIRST).equals(byDate.findProxyForUrl(URL_FIRST)));
+    }
+
+    /**
+     * The script is run once, an evaluation can't change what the next ones see.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void evaluationsAreIsolated() throws Exception {
+        final String content = "var runs = 0;\n"
+            + "var hosts = {};\n"
+            + "runs++;\n"
+            + "function FindProxyForURL(url, host) {\n"
+            + "  this.last = host;\n"
+            + "  if (host == 'first') {\n"
+            + "    hosts.first = true;\n"
+            + "  }\n"
+            + "  return 'PROXY ' + host + ':' + runs + ':' + hosts.first;\n"
+            + "}\n";
+        final ProxyAutoConfig config = ProxyAutoConfig.compile(content, 0);
+        assertEquals("PROXY localhost:1:undefined", config.findProxyForUrl(URL_FIRST));
+        assertEquals("PROXY localhost:1:undefined", config.findProxyForUrl(URL_FIRST));
+        try {
+            config.findProxyForUrl(new URL("http://first/"));
+            fail("the global objects should be sealed");
+        }
+        catch (final EvaluatorException e) {
+            // expected
+        }
+        assertEquals("PROXY localhost:1:undefined", config.findProxyForUrl(URL_FIRST));
+    }
+
+    /**
+     * A script reading the URL through <tt>arguments</tt> must have its results cached per URL.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void urlUsedThroughArguments() throws Exception {
+        final String content = "function FindProxyForURL(url, host) {\n"
+            + "  return helper.apply(null, arguments);\n"
+            + "}\n"
+            + "function helper(u) {\n"
+            + "  return 'PROXY ' + u;\n"
+            + "}\n";
+        final ProxyAutoConfig config = ProxyAutoConfig.compile(content);
+        assertEquals("PROXY http://first/a.html", config.findProxyForUrl(new URL("http://first/a.html")));
+        assertEquals("PROXY http://first/b.html", config.findProxyForUrl(new URL("http://first/b.html")));
+    }
 }
@@ -14,6 +14,7 @@
  */
 package com.gargoylesoftware.htmlunit.javascript.configuration;
 
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import org.junit.Assert;
@@ -71,6 +72,26 @@ public class ClassConfigurationTest extends WebTestCase {
         assertTrue("Configs should now be equal", config1.equals(config2));
     }
 
+    /**
+     * Tests that the methods of a class are looked up once for all its configurations.
+     * @throws Exception - Exception on error
+     */
+    @Test
+    public void methodsSharedBetweenConfigurations() throws Exception {
+        final ClassConfiguration config1 = new ClassConfiguration("c1",
+            ConfigTestClass.class.getName(), null, null, null, true);
+        final ClassConfiguration config2 = new ClassConfiguration("c2",
+            ConfigTestClass.class.getName(), null, null, null, true);
+
+        config1.addProperty("test", true, true);
+        config1.addFunction("testFunction");
+        config2.addProperty("test", true, true);
+        config2.addFunction("testFunction");
+        assertSame(config1.getPropertyReadMethod("test"), config2.getPropertyReadMethod("test"));
+        assertSame(config1.getPropertyWriteMethod("test"), config2.getPropertyWriteMethod("test"));
+        assertSame(config1.getFunctionMethod("testFunction"), config2.getFunctionMethod("testFunction"));
+    }
+
     /**
      * Tests equality on a class configuration.
      * @throws Exception - Exception on error
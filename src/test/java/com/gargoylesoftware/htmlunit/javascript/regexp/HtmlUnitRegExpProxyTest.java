@@ -895,4 +895,15 @@ public class HtmlUnitRegExpProxyTest extends WebDriverTestCase {
     public void replace_group2digits_doesntExist() throws Exception {
         testEvaluate("'abcdefghijkl'.replace(/(a)(b)(c)(d)(e)(f)(g)(h)(i)(j)(k)(l)/g, '[\\$18]')");
     }
+
+    /**
+     * The same source with different flags must not share the cached pattern.
+     * @throws Exception if an error occurs
+     */
+    @Test
+    @Alerts("aBax|axax|axab|B,b|aBax")
+    public void sameSourceDifferentFlags() throws Exception {
+        testEvaluate("['aBab'.replace(/b/g, 'x'), 'aBab'.replace(/b/gi, 'x'), 'aBab'.replace(/b/i, 'x'),"
+            + " 'aBab'.match(/b/gi), 'aBab'.replace(/b/g, 'x')].join('|')");
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit.util;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.junit.Test;
+
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.WebRequestSettings;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebResponseData;
+import com.gargoylesoftware.htmlunit.WebResponseImpl;
+import com.gargoylesoftware.htmlunit.WebTestCase;
+
+/**
+ * Tests for {@link AsynchronousWebConnection}.
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+public class AsynchronousWebConnectionTest extends WebTestCase {
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void futureAndCallback() throws Exception {
+        final List<NameValuePair> emptyList = Collections.emptyList();
+        final WebResponseData data = new WebResponseData(new byte[]{}, HttpStatus.SC_OK, "", emptyList);
+        final WebResponse response = new WebResponseImpl(data, URL_FIRST, HttpMethod.GET, 0);
+        final WebRequestSettings wrs = new WebRequestSettings(URL_FIRST);
+        final WebRequestSettings failingWrs = new WebRequestSettings(URL_SECOND);
+
+        final WebConnection realConnection = new WebConnection() {
+            public WebResponse getResponse(final WebRequestSettings settings) throws IOException {
+                if (settings == failingWrs) {
+                    throw new IOException("failed");
+                }
+                return response;
+            }
+        };
+
+        final AsynchronousWebConnection connection = new AsynchronousWebConnection(realConnection, 2);
+        try {
+            final CountDownLatch latch = new CountDownLatch(2);
+            final Object[] outcome = new Object[2];
+            final AsynchronousWebConnection.Callback callback = new AsynchronousWebConnection.Callback() {
+                public void completed(final WebRequestSettings settings, final WebResponse webResponse) {
+                    outcome[0] = webResponse;
+                    latch.countDown();
+                }
+                public void failed(final WebRequestSettings settings, final Throwable cause) {
+                    outcome[1] = cause;
+                    latch.countDown();
+                }
+            };
+
+            final Future<WebResponse> future = connection.getResponseAsync(wrs, callback);
+            final Future<WebResponse> failingFuture = connection.getResponseAsync(failingWrs, callback);
+            assertSame(response, future.get());
+            try {
+                failingFuture.get();
+                fail("IOException expected");
+            }
+            catch (final ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertSame(response, outcome[0]);
+            assertTrue(outcome[1] instanceof IOException);
+            assertSame(response, connection.getResponse(wrs));
+        }
+        finally {
+            connection.shutdown();
+        }
+    }
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void providedExecutor() throws Exception {
+        final List<NameValuePair> emptyList = Collections.emptyList();
+        final WebResponseData data = new WebResponseData(new byte[]{}, HttpStatus.SC_OK, "", emptyList);
+        final WebResponse response = new WebResponseImpl(data, URL_FIRST, HttpMethod.GET, 0);
+        final WebConnection realConnection = new WebConnection() {
+            public WebResponse getResponse(final WebRequestSettings settings) {
+                return response;
+            }
+        };
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final AsynchronousWebConnection connection = new AsynchronousWebConnection(realConnection, executor);
+            final WebRequestSettings wrs = new WebRequestSettings(URL_FIRST);
+            assertSame(response, connection.getResponseAsync(wrs).get());
+
+            // the provided executor belongs to the caller
+            connection.shutdown();
+            assertFalse(executor.isShutdown());
+            assertSame(response, connection.getResponseAsync(wrs).get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
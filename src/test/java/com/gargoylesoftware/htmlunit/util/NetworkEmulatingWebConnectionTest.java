@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit.util;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.gargoylesoftware.htmlunit.MockWebConnection;
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.WebRequestSettings;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebResponseImpl;
+import com.gargoylesoftware.htmlunit.WebTestCase;
+
+/**
+ * Tests for {@link NetworkEmulatingWebConnection}.
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+public class NetworkEmulatingWebConnectionTest extends WebTestCase {
+
+    /**
+     * Clock advancing only when waiting.
+     */
+    private static final class ManualClock implements NetworkEmulatingWebConnection.Clock {
+        private long time_;
+
+        public synchronized long currentTimeMillis() {
+            return time_;
+        }
+
+        public synchronized void sleep(final long millis) {
+            time_ += millis;
+        }
+    }
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void latencyAndBandwidth() throws Exception {
+        final MockWebConnection mockConnection = new MockWebConnection();
+        mockConnection.setResponse(URL_FIRST, new String(new char[2000]).replace('\0', 'a'), "text/plain");
+
+        final ManualClock clock = new ManualClock();
+        final NetworkEmulatingWebConnection connection = new NetworkEmulatingWebConnection(mockConnection);
+        connection.setClock(clock);
+        connection.setLatency(NetworkEmulatingWebConnection.fixedLatency(100));
+        connection.setBandwidth(1000);
+        connection.setMaxConnectionsPerHost(1);
+
+        final WebResponse response = connection.getResponse(new WebRequestSettings(URL_FIRST));
+        // the concrete response is kept, the client and the cache need it
+        assertTrue(response instanceof WebResponseImpl);
+        assertEquals(2000, response.getContentAsBytes().length);
+        assertEquals(2100, response.getLoadTime());
+        assertEquals(2100, clock.currentTimeMillis());
+
+        connection.setBandwidth(0);
+        assertEquals(100, connection.getResponse(new WebRequestSettings(URL_FIRST)).getLoadTime());
+    }
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void reproducibleLatency() throws Exception {
+        final NetworkEmulatingWebConnection.Latency first = NetworkEmulatingWebConnection.uniformLatency(50, 150, 7);
+        final NetworkEmulatingWebConnection.Latency second = NetworkEmulatingWebConnection.uniformLatency(50, 150, 7);
+        final WebRequestSettings settings = new WebRequestSettings(URL_FIRST);
+        for (int i = 0; i < 10; i++) {
+            final long latency = first.getLatency(settings);
+            assertTrue(latency >= 50 && latency < 150);
+            assertEquals(latency, second.getLatency(settings));
+        }
+    }
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void maxConnectionsPerHost() throws Exception {
+        final MockWebConnection mockConnection = new MockWebConnection();
+        mockConnection.setDefaultResponse("hello", "text/plain");
+
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch entered = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final WebConnection blockingConnection = new WebConnection() {
+            public WebResponse getResponse(final WebRequestSettings settings) throws IOException {
+                calls.incrementAndGet();
+                final int nowActive = active.incrementAndGet();
+                synchronized (maxActive) {
+                    maxActive.set(Math.max(maxActive.get(), nowActive));
+                }
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                catch (final InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+                active.decrementAndGet();
+                return mockConnection.getResponse(settings);
+            }
+        };
+
+        final NetworkEmulatingWebConnection connection = new NetworkEmulatingWebConnection(blockingConnection);
+        connection.setClock(new ManualClock());
+        connection.setMaxConnectionsPerHost(2);
+
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        connection.getResponse(new WebRequestSettings(URL_FIRST));
+                    }
+                    catch (final IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        // two requests are performed, the two other ones wait for a connection
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        int waiting = 0;
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (waiting != 2 && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+            waiting = 0;
+            for (final Thread thread : threads) {
+                if (thread.getState() == Thread.State.WAITING) {
+                    waiting++;
+                }
+            }
+        }
+        assertEquals(2, waiting);
+        assertEquals(2, calls.get());
+
+        release.countDown();
+        for (final Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(4, calls.get());
+        assertEquals(2, maxActive.get());
+    }
+}
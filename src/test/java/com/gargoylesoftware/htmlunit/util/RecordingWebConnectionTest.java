@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.gargoylesoftware.htmlunit.MockWebConnection;
+import com.gargoylesoftware.htmlunit.WebRequestSettings;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebTestCase;
+
+/**
+ * Tests for {@link RecordingWebConnection} and {@link ReplayingWebConnection}.
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+public class RecordingWebConnectionTest extends WebTestCase {
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void recordAndReplay() throws Exception {
+        final MockWebConnection mockConnection = new MockWebConnection();
+        final List<NameValuePair> headers = new ArrayList<NameValuePair>();
+        headers.add(new NameValuePair("X-Test", "yes"));
+        mockConnection.setResponse(URL_FIRST, "<html><body>first</body></html>", 200, "OK", "text/html", headers);
+        mockConnection.setResponse(URL_SECOND, "second", 500, "Oops", "text/plain", headers);
+
+        final File file = File.createTempFile("htmlunit", ".archive");
+        try {
+            final RecordingWebConnection recorder = new RecordingWebConnection(mockConnection, file);
+            recorder.getResponse(new WebRequestSettings(URL_FIRST));
+            recorder.getResponse(new WebRequestSettings(URL_SECOND));
+            recorder.close();
+
+            final ReplayingWebConnection replayer = new ReplayingWebConnection(file);
+            assertEquals(2, replayer.getRequestCount());
+
+            WebResponse response = replayer.getResponse(new WebRequestSettings(URL_FIRST));
+            assertEquals(200, response.getStatusCode());
+            assertEquals("<html><body>first</body></html>", response.getContentAsString());
+            assertEquals("yes", response.getResponseHeaderValue("X-Test"));
+
+            response = replayer.getResponse(new WebRequestSettings(URL_SECOND));
+            assertEquals(500, response.getStatusCode());
+            assertEquals("Oops", response.getStatusMessage());
+            assertEquals("second", response.getContentAsString());
+
+            response = replayer.getResponse(new WebRequestSettings(URL_THIRD));
+            assertEquals(404, response.getStatusCode());
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * An archive whose recording hasn't been closed can still be replayed.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void replayWithoutIndex() throws Exception {
+        final MockWebConnection mockConnection = new MockWebConnection();
+        mockConnection.setResponse(URL_FIRST, "first");
+
+        final File file = File.createTempFile("htmlunit", ".archive");
+        try {
+            final RecordingWebConnection recorder = new RecordingWebConnection(mockConnection, file) {
+                @Override
+                public synchronized void close() {
+                    // don't write the index
+                }
+            };
+            recorder.getResponse(new WebRequestSettings(URL_FIRST));
+            recorder.flush();
+
+            final ReplayingWebConnection replayer = new ReplayingWebConnection(file);
+            assertEquals("first", replayer.getResponse(new WebRequestSettings(URL_FIRST)).getContentAsString());
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A body bigger than the copy buffer is recorded in several chunks.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void bigBody() throws Exception {
+        final StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            content.append(i).append(' ');
+        }
+        final MockWebConnection mockConnection = new MockWebConnection();
+        mockConnection.setResponse(URL_FIRST, content.toString(), "text/plain");
+        mockConnection.setResponse(URL_SECOND, "second", "text/plain");
+
+        final File file = File.createTempFile("htmlunit", ".archive");
+        try {
+            final RecordingWebConnection recorder = new RecordingWebConnection(mockConnection, file);
+            recorder.getResponse(new WebRequestSettings(URL_FIRST));
+            recorder.getResponse(new WebRequestSettings(URL_SECOND));
+            recorder.flush();
+
+            // without index, the exchanges are found by skipping the chunks of the bodies
+            final ReplayingWebConnection replayer = new ReplayingWebConnection(file);
+            assertEquals(content.toString(),
+                replayer.getResponse(new WebRequestSettings(URL_FIRST)).getContentAsString());
+            assertEquals("second", replayer.getResponse(new WebRequestSettings(URL_SECOND)).getContentAsString());
+            recorder.close();
+        }
+        finally {
+            file.delete();
+        }
+    }
+}
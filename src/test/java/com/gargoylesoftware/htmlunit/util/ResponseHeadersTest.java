@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2002-2010 Gargoyle Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gargoylesoftware.htmlunit.util;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ResponseHeaders}.
+ *
+ * @version $Revision$
+ * @author <a href="mailto:agent@local">agent</a>
+ */
+public class ResponseHeadersTest {
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void values() throws Exception {
+        final ResponseHeaders headers = new ResponseHeaders(asList(
+            new NameValuePair("content-TYPE", "text/html; charset=ISO-8859-1"),
+            new NameValuePair("Cache-Control", "private, Max-Age=\"60\""),
+            new NameValuePair("Expires", "Thu, 01 Dec 1994 16:00:00 GMT"),
+            new NameValuePair("Set-Cookie", "a=1"),
+            new NameValuePair("Set-Cookie", "b=2")));
+
+        assertEquals(5, headers.getHeaders().size());
+        assertEquals("a=1", headers.getValue("set-cookie"));
+        assertNull(headers.getValue("ETag"));
+        assertEquals("text/html", headers.getContentType());
+        assertEquals("ISO-8859-1", headers.getCharset());
+        assertTrue(headers.hasCacheControlDirective("PRIVATE"));
+        assertFalse(headers.hasCacheControlDirective("no-cache"));
+        assertEquals("60", headers.getCacheControlDirectiveValue("max-age"));
+        assertNull(headers.getCacheControlDirectiveValue("private"));
+        assertEquals(786297600000L, headers.getDate("Expires").getTime());
+        assertNull(headers.getDate("Last-Modified"));
+
+        final ResponseHeaders deserialized = (ResponseHeaders) SerializationUtils.clone(headers);
+        assertEquals("text/html; charset=ISO-8859-1", deserialized.getValue("Content-Type"));
+        assertEquals("60", deserialized.getCacheControlDirectiveValue("max-age"));
+    }
+
+    /**
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void noContentType() throws Exception {
+        final ResponseHeaders headers = new ResponseHeaders(asList(new NameValuePair("foo", "bar")));
+        assertEquals("", headers.getContentType());
+        assertNull(headers.getCharset());
+        assertFalse(headers.hasCacheControlDirective("no-store"));
+    }
+
+    /**
+     * A repeated directive keeps its first occurrence, with or without value.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void repeatedCacheControlDirective() throws Exception {
+        final Map<String, String> directives = ResponseHeaders.parseCacheControl("max-age, MAX-AGE=60, no-cache");
+        assertTrue(directives.containsKey("max-age"));
+        assertNull(directives.get("max-age"));
+        assertTrue(directives.containsKey("no-cache"));
+        assertEquals("60", ResponseHeaders.parseCacheControl("max-age=60, max-age").get("max-age"));
+        assertTrue(ResponseHeaders.parseCacheControl(null).isEmpty());
+    }
+}